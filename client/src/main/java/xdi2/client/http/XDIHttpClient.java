@@ -1,5 +1,6 @@
 package xdi2.client.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
@@ -26,6 +27,7 @@ import xdi2.messaging.MessageEnvelope;
 import xdi2.messaging.MessageResult;
 import xdi2.messaging.error.ErrorMessageResult;
 import xdi2.messaging.http.AcceptHeader;
+import xdi2.messaging.http.ContentEncoding;
 
 /**
  * An XDI client that can send XDI messages over HTTP and receive results.
@@ -36,6 +38,10 @@ import xdi2.messaging.http.AcceptHeader;
  * <li>recvMimeType - The mime type in which we want to receive the results from the endpoint. The Accept header will be set accordingly.
  * If the endpoint replies in some other mime type than requested, we will still try to read it.</li>
  * <li>useragent - The User-Agent HTTP header to use.</li>
+ * <li>compression - If 1, we send an Accept-Encoding header and decompress the results accordingly.</li>
+ * <li>compressionthreshold - The minimum size of a message envelope in bytes to send it gzip-compressed,
+ * or -1 to never compress message envelopes. The endpoint must support this.</li>
+ * <li>compressionlevel - The compression level, from 0 to 9, or -1 for the default level.</li>
  * </ul> 
  * 
  * @author markus
@@ -46,10 +52,16 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 	public static final String KEY_SENDMIMETYPE = "sendmimetype";
 	public static final String KEY_RECVMIMETYPE = "recvmimetype";
 	public static final String KEY_USERAGENT = "useragent";
+	public static final String KEY_COMPRESSION = "compression";
+	public static final String KEY_COMPRESSIONTHRESHOLD = "compressionthreshold";
+	public static final String KEY_COMPRESSIONLEVEL = "compressionlevel";
 
 	public static final String DEFAULT_SENDMIMETYPE = "application/xdi+json;implied=0;inner=1";
 	public static final String DEFAULT_RECVMIMETYPE = "application/xdi+json;implied=0;inner=1";
 	public static final String DEFAULT_USERAGENT = "XDI2 Java Library";
+	public static final String DEFAULT_COMPRESSION = "1";
+	public static final String DEFAULT_COMPRESSIONTHRESHOLD = "-1";
+	public static final String DEFAULT_COMPRESSIONLEVEL = Integer.toString(ContentEncoding.DEFAULT_LEVEL);
 
 	protected static final Logger log = LoggerFactory.getLogger(XDIHttpClient.class);
 
@@ -57,6 +69,9 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 	protected MimeType sendMimeType;
 	protected MimeType recvMimeType;
 	protected String userAgent;
+	protected boolean compression;
+	protected int compressionThreshold;
+	protected int compressionLevel;
 
 	public XDIHttpClient() {
 
@@ -66,6 +81,9 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 		this.sendMimeType = new MimeType(DEFAULT_SENDMIMETYPE);
 		this.recvMimeType = new MimeType(DEFAULT_RECVMIMETYPE);
 		this.userAgent = DEFAULT_USERAGENT;
+		this.compression = "1".equals(DEFAULT_COMPRESSION);
+		this.compressionThreshold = Integer.parseInt(DEFAULT_COMPRESSIONTHRESHOLD);
+		this.compressionLevel = Integer.parseInt(DEFAULT_COMPRESSIONLEVEL);
 	}
 
 	public XDIHttpClient(String endpointUri) {
@@ -81,6 +99,9 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 		this.sendMimeType = new MimeType(DEFAULT_SENDMIMETYPE);
 		this.recvMimeType = new MimeType(DEFAULT_RECVMIMETYPE);
 		this.userAgent = DEFAULT_USERAGENT;
+		this.compression = "1".equals(DEFAULT_COMPRESSION);
+		this.compressionThreshold = Integer.parseInt(DEFAULT_COMPRESSIONTHRESHOLD);
+		this.compressionLevel = Integer.parseInt(DEFAULT_COMPRESSIONLEVEL);
 	}
 
 	public XDIHttpClient(String endpointUri, MimeType sendMimeType, MimeType recvMimeType, String userAgent) {
@@ -96,6 +117,9 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 		this.sendMimeType = (sendMimeType != null) ? sendMimeType : new MimeType(DEFAULT_SENDMIMETYPE);
 		this.recvMimeType = (recvMimeType != null) ? recvMimeType : new MimeType(DEFAULT_RECVMIMETYPE);
 		this.userAgent = (userAgent != null) ? userAgent : DEFAULT_USERAGENT;
+		this.compression = "1".equals(DEFAULT_COMPRESSION);
+		this.compressionThreshold = Integer.parseInt(DEFAULT_COMPRESSIONTHRESHOLD);
+		this.compressionLevel = Integer.parseInt(DEFAULT_COMPRESSIONLEVEL);
 	}
 
 	public XDIHttpClient(Properties parameters) throws Exception {
@@ -106,12 +130,18 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 			this.sendMimeType = new MimeType(DEFAULT_SENDMIMETYPE);
 			this.recvMimeType = new MimeType(DEFAULT_RECVMIMETYPE);
 			this.userAgent = DEFAULT_USERAGENT;
+			this.compression = "1".equals(DEFAULT_COMPRESSION);
+			this.compressionThreshold = Integer.parseInt(DEFAULT_COMPRESSIONTHRESHOLD);
+			this.compressionLevel = Integer.parseInt(DEFAULT_COMPRESSIONLEVEL);
 		} else {
 
 			this.endpointUri = new URL(parameters.getProperty(KEY_ENDPOINTURI, null));
 			this.sendMimeType = new MimeType(parameters.getProperty(KEY_SENDMIMETYPE, DEFAULT_SENDMIMETYPE));
 			this.recvMimeType = new MimeType(parameters.getProperty(KEY_RECVMIMETYPE, DEFAULT_RECVMIMETYPE));
 			this.userAgent = parameters.getProperty(KEY_RECVMIMETYPE, DEFAULT_USERAGENT);
+			this.compression = "1".equals(parameters.getProperty(KEY_COMPRESSION, DEFAULT_COMPRESSION));
+			this.compressionThreshold = Integer.parseInt(parameters.getProperty(KEY_COMPRESSIONTHRESHOLD, DEFAULT_COMPRESSIONTHRESHOLD));
+			this.compressionLevel = Integer.parseInt(parameters.getProperty(KEY_COMPRESSIONLEVEL, DEFAULT_COMPRESSIONLEVEL));
 
 			if (log.isDebugEnabled()) log.debug("Initialized with " + parameters.toString() + ".");
 		}
@@ -187,6 +217,7 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 			http.setRequestProperty("Content-Type", sendMimeType.toString());
 			http.setRequestProperty("Accept", acceptHeader.toString());
 			http.setRequestProperty("User-Agent", this.userAgent);
+			if (this.compression) http.setRequestProperty("Accept-Encoding", ContentEncoding.acceptEncoding());
 			http.setRequestMethod("POST");
 		} catch (Exception ex) {
 
@@ -202,10 +233,30 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 
 		try {
 
-			OutputStream outputStream = http.getOutputStream();
-			writer.write(messageEnvelope.getGraph(), outputStream);
-			outputStream.flush();
-			outputStream.close();
+			if (this.compressionThreshold >= 0) {
+
+				// buffer the message envelope to see if it is worth compressing
+
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				writer.write(messageEnvelope.getGraph(), buffer);
+
+				boolean compress = buffer.size() >= this.compressionThreshold;
+				if (compress) http.setRequestProperty("Content-Encoding", ContentEncoding.GZIP);
+
+				if (log.isDebugEnabled()) log.debug("Sending " + buffer.size() + " bytes" + (compress ? " (" + ContentEncoding.GZIP + ")." : "."));
+
+				OutputStream outputStream = http.getOutputStream();
+				if (compress) outputStream = ContentEncoding.encode(outputStream, ContentEncoding.GZIP, this.compressionLevel);
+				buffer.writeTo(outputStream);
+				outputStream.flush();
+				outputStream.close();
+			} else {
+
+				OutputStream outputStream = http.getOutputStream();
+				writer.write(messageEnvelope.getGraph(), outputStream);
+				outputStream.flush();
+				outputStream.close();
+			}
 
 			responseCode = http.getResponseCode();
 			responseMessage = http.getResponseMessage();
@@ -225,8 +276,9 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 
 		String contentType = http.getContentType();
 		int contentLength = http.getContentLength();
+		String contentEncoding = http.getContentEncoding();
 
-		if (log.isDebugEnabled()) log.debug("Received result. Content-Type: " + contentType + ", Content-Length: " + contentLength);
+		if (log.isDebugEnabled()) log.debug("Received result. Content-Type: " + contentType + ", Content-Length: " + contentLength + ", Content-Encoding: " + contentEncoding);
 
 		if (contentType != null) {
 
@@ -249,7 +301,7 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 
 		try {
 
-			InputStream inputStream = http.getInputStream();
+			InputStream inputStream = ContentEncoding.decode(http.getInputStream(), contentEncoding);
 			reader.read(messageResult.getGraph(), inputStream);
 			inputStream.close();
 		} catch (Exception ex) {
@@ -329,4 +381,34 @@ public class XDIHttpClient extends XDIAbstractClient implements XDIClient {
 
 		this.userAgent = userAgent;
 	}
+
+	public boolean isCompression() {
+
+		return this.compression;
+	}
+
+	public void setCompression(boolean compression) {
+
+		this.compression = compression;
+	}
+
+	public int getCompressionThreshold() {
+
+		return this.compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getCompressionLevel() {
+
+		return this.compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+
+		this.compressionLevel = compressionLevel;
+	}
 }
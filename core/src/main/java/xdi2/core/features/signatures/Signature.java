@@ -158,6 +158,7 @@ public abstract class Signature <SKEY extends Key, VKEY extends Key> implements
 		parameters.setProperty(XDIWriterRegistry.PARAMETER_ORDERED, "1");
 		parameters.setProperty(XDIWriterRegistry.PARAMETER_INNER, "0");
 		parameters.setProperty(XDIWriterRegistry.PARAMETER_PRETTY, "0");
+		parameters.setProperty(XDIWriterRegistry.PARAMETER_STREAMING, "0");
 
 		XDIJSONWriter writer = new XDIJSONWriter(parameters);
 		StringWriter buffer = new StringWriter();
@@ -106,25 +106,28 @@ public abstract class AbstractContextNode implements ContextNode {
 	}
 
 	@Override
-	/*
-	 * TODO: This is inefficient for nodes deep down in the tree.
-	 */
 	public XDI3Segment getXri() {
 
-		if (this.isRootContextNode()) return XDIConstants.XRI_S_CONTEXT;
+		return this.makeXri();
+	}
 
-		StringBuilder xri = new StringBuilder();
+	/**
+	 * Builds the XRI of this context node from the XRI of its parent context node
+	 * and its own arc XRI, without re-parsing. Subclasses that can keep the result
+	 * should do so in their getXri().
+	 */
+	protected XDI3Segment makeXri() {
+
+		if (this.isRootContextNode()) return XDIConstants.XRI_S_CONTEXT;
 
-		xri.append(this.getArcXri().toString());
+		ContextNode contextNode = this.getContextNode();
 
-		for (ContextNode contextNode = this.getContextNode(); 
-				contextNode != null && ! contextNode.isRootContextNode(); 
-				contextNode = contextNode.getContextNode()) {
+		if (contextNode.isRootContextNode()) return XDI3Segment.fromComponent(this.getArcXri());
 
-			xri.insert(0, contextNode.getArcXri());
-		}
+		List<XDI3SubSegment> subSegments = new ArrayList<XDI3SubSegment> (contextNode.getXri().getSubSegments());
+		subSegments.add(this.getArcXri());
 
-		return XDI3Segment.create(xri.toString());
+		return XDI3Segment.fromComponents(subSegments);
 	}
 
 	/*
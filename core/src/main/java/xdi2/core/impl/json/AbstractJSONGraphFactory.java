@@ -14,9 +14,18 @@ import xdi2.core.impl.AbstractGraphFactory;
  */
 public abstract class AbstractJSONGraphFactory extends AbstractGraphFactory implements GraphFactory {
 
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+	public static final boolean DEFAULT_PREFETCH = true;
+
+	private int cacheSize;
+	private boolean prefetch;
+
 	public AbstractJSONGraphFactory() {
 
 		super();
+
+		this.cacheSize = DEFAULT_CACHE_SIZE;
+		this.prefetch = DEFAULT_PREFETCH;
 	}
 
 	@Override
@@ -26,7 +35,7 @@ public abstract class AbstractJSONGraphFactory extends AbstractGraphFactory impl
 
 		JSONStore jsonStore = this.openJSONStore(identifier);
 
-		return new JSONGraph(this, identifier, jsonStore);
+		return new JSONGraph(this, identifier, jsonStore, this.cacheSize, this.prefetch);
 	}
 
 	/**
@@ -34,4 +43,34 @@ public abstract class AbstractJSONGraphFactory extends AbstractGraphFactory impl
 	 * @param identifier An optional identifier to distinguish JSON stores from one another.
 	 */
 	protected abstract JSONStore openJSONStore(String identifier) throws IOException;
+
+	public int getCacheSize() {
+
+		return this.cacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of JSON objects each graph keeps in its cache.
+	 * A size of 0 disables caching.
+	 */
+	public void setCacheSize(int cacheSize) {
+
+		if (cacheSize < 0) throw new IllegalArgumentException("Invalid cache size: " + cacheSize);
+
+		this.cacheSize = cacheSize;
+	}
+
+	public boolean getPrefetch() {
+
+		return this.prefetch;
+	}
+
+	/**
+	 * Enables or disables loading of many JSON objects with one call to the JSON store
+	 * when iterating over context nodes or traversing subtrees.
+	 */
+	public void setPrefetch(boolean prefetch) {
+
+		this.prefetch = prefetch;
+	}
 }
@@ -1,7 +1,11 @@
 package xdi2.core.impl.json;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
+import xdi2.core.impl.json.JSONStoreStatistics.Operation;
 import xdi2.core.util.iterators.IteratorContains;
 import xdi2.core.util.iterators.IteratorRemover;
 
@@ -10,94 +14,227 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
+/**
+ * Base class for JSONStore implementations.
+ * Keeps counters and latency histograms for all operations, and optionally
+ * a bounded journal of the most recent operations, which is disabled by default.
+ */
 public abstract class AbstractJSONStore implements JSONStore {
 
-	private StringBuffer logBuffer;
-	private boolean logEnabled;
+	private static final String SUBSEGMENT_START = "=@+$*!#&({[<";
+
+	private JSONStoreStatistics statistics;
+	private JSONStoreJournal journal;
 
 	public AbstractJSONStore() {
 
-		this.logBuffer = new StringBuffer();
-		this.logEnabled = true;
+		this.statistics = new JSONStoreStatistics();
+		this.journal = null;
 	}
 
 	@Override
 	public final JsonObject load(String id) throws IOException {
 
-		JsonObject jsonObject = this.loadInternal(id);
+		long start = System.nanoTime();
+
+		try {
+
+			return this.loadInternal(id);
+		} finally {
+
+			this.record(Operation.LOAD, id, null, start);
+		}
+	}
+
+	@Override
+	public final Map<String, JsonObject> loadMany(Collection<String> ids) throws IOException {
+
+		long start = System.nanoTime();
+
+		try {
 
-		if (this.getLogEnabled()) this.logBuffer.append("load( " + id + " , " + jsonObject + " )\n");
+			return this.loadManyInternal(ids);
+		} finally {
 
-		return jsonObject;
+			this.record(Operation.LOAD_MANY, null, ids.size() + " ids", start);
+		}
+	}
+
+	@Override
+	public final Map<String, JsonObject> loadPrefix(String idPrefix, int limit) throws IOException {
+
+		long start = System.nanoTime();
+
+		try {
+
+			return this.loadPrefixInternal(idPrefix, limit);
+		} finally {
+
+			this.record(Operation.LOAD_PREFIX, idPrefix, null, start);
+		}
 	}
 
 	@Override
 	public final void save(String id, JsonObject jsonObject) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("save( " + id + " , " + jsonObject + " )\n");
+		long start = System.nanoTime();
+
+		try {
 
-		this.saveInternal(id, jsonObject);
+			this.saveInternal(id, jsonObject);
+		} finally {
+
+			this.record(Operation.SAVE, id, null, start);
+		}
 	}
 
 	@Override
 	public final void saveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("saveToArray( " + id + " , " + key + " , " + jsonPrimitive + " )\n");
+		long start = System.nanoTime();
+
+		try {
 
-		this.saveToArrayInternal(id, key, jsonPrimitive);
+			this.saveToArrayInternal(id, key, jsonPrimitive);
+		} finally {
+
+			this.record(Operation.SAVE_TO_ARRAY, id, key, start);
+		}
 	}
 
 	@Override
 	public final void saveToObject(String id, String key, JsonElement jsonElement) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("saveToObject( " + id + " , " + key + " , " + jsonElement + " )\n");
+		long start = System.nanoTime();
 
-		this.saveToObjectInternal(id, key, jsonElement);
+		try {
+
+			this.saveToObjectInternal(id, key, jsonElement);
+		} finally {
+
+			this.record(Operation.SAVE_TO_OBJECT, id, key, start);
+		}
 	}
 
 	@Override
 	public final void delete(String id) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("delete( " + id + " )\n");
+		long start = System.nanoTime();
+
+		try {
+
+			this.deleteInternal(id);
+		} finally {
 
-		this.deleteInternal(id);
+			this.record(Operation.DELETE, id, null, start);
+		}
 	}
 
 	@Override
 	public final void deleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("deleteFromArray( " + id + " , " + key + " , " + jsonPrimitive + " )\n");
+		long start = System.nanoTime();
+
+		try {
+
+			this.deleteFromArrayInternal(id, key, jsonPrimitive);
+		} finally {
 
-		this.deleteFromArrayInternal(id, key, jsonPrimitive);
+			this.record(Operation.DELETE_FROM_ARRAY, id, key, start);
+		}
 	}
 
 	@Override
 	public final void deleteFromObject(String id, String key) throws IOException {
 
-		if (this.getLogEnabled()) this.logBuffer.append("deleteFromObject( " + id + " , " + key + " )\n");
+		long start = System.nanoTime();
+
+		try {
 
-		this.deleteFromObjectInternal(id, key);
+			this.deleteFromObjectInternal(id, key);
+		} finally {
+
+			this.record(Operation.DELETE_FROM_OBJECT, id, key, start);
+		}
 	}
 
-	public StringBuffer getLogBuffer() {
+	@Override
+	public boolean supportsTransactions() {
 
-		return this.logBuffer;
+		return false;
 	}
 
-	public boolean getLogEnabled() {
+	@Override
+	public void beginTransaction() {
 
-		return this.logEnabled;
 	}
 
-	public void setLogEnabled(boolean logEnabled) {
+	@Override
+	public void commitTransaction() {
+
+	}
+
+	@Override
+	public void rollbackTransaction() {
+
+	}
+
+	/*
+	 * Statistics and journal
+	 */
+
+	public JSONStoreStatistics getStatistics() {
+
+		return this.statistics;
+	}
+
+	/**
+	 * Returns the journal of the most recent operations, or null if it is disabled.
+	 */
+	public JSONStoreJournal getJournal() {
+
+		return this.journal;
+	}
+
+	public int getJournalSize() {
+
+		JSONStoreJournal journal = this.journal;
 
-		this.logEnabled = logEnabled;
+		return journal == null ? 0 : journal.getSize();
+	}
+
+	/**
+	 * Sets the maximum number of entries in the journal, and clears it.
+	 * A size of 0 disables the journal.
+	 */
+	public void setJournalSize(int journalSize) {
 
+		if (journalSize < 0) throw new IllegalArgumentException("Invalid journal size: " + journalSize);
+
+		this.journal = journalSize == 0 ? null : new JSONStoreJournal(journalSize);
 	}
 
-	public void resetLogBuffer() {
+	private void record(Operation operation, String id, String key, long start) {
+
+		long nanos = System.nanoTime() - start;
 
-		this.logBuffer = new StringBuffer();
+		this.statistics.record(operation, nanos);
+
+		JSONStoreJournal journal = this.journal;
+		if (journal != null) journal.record(operation, id, key, nanos);
+	}
+
+	/**
+	 * Checks if an id is returned by loadPrefix() for an id prefix. Context node XRIs
+	 * below the one of the prefix continue it with the first character of a subsegment,
+	 * so e.g. =a+b is below =a, but =ab is not.
+	 */
+	protected static boolean matchesPrefix(String id, String idPrefix) {
+
+		if (! id.startsWith(idPrefix)) return false;
+		if (id.length() == idPrefix.length()) return true;
+
+		return SUBSEGMENT_START.indexOf(id.charAt(idPrefix.length())) != -1;
 	}
 
 	/*
@@ -106,6 +243,21 @@ public abstract class AbstractJSONStore implements JSONStore {
 
 	protected abstract JsonObject loadInternal(String id) throws IOException;
 
+	protected Map<String, JsonObject> loadManyInternal(Collection<String> ids) throws IOException {
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+		for (String id : ids) {
+
+			JsonObject jsonObject = this.loadInternal(id);
+			if (jsonObject != null) jsonObjects.put(id, jsonObject);
+		}
+
+		return jsonObjects;
+	}
+
+	protected abstract Map<String, JsonObject> loadPrefixInternal(String idPrefix, int limit) throws IOException;
+
 	protected abstract void saveInternal(String id, JsonObject jsonObject) throws IOException;
 
 	protected void saveToArrayInternal(String id, String key, JsonPrimitive jsonPrimitive) throws IOException {
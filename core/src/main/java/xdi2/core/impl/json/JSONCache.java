@@ -0,0 +1,139 @@
+package xdi2.core.impl.json;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A size-bounded cache of JSON objects by id, which evicts the least recently used
+ * entry when it is full. The ids are also kept sorted, so that all ids with a
+ * given prefix can be removed without looking at the other ids.
+ */
+public class JSONCache {
+
+	private final int size;
+
+	private final LinkedHashMap<String, JsonObject> jsonObjects;
+	private final TreeSet<String> ids;
+
+	private long hits;
+	private long misses;
+
+	public JSONCache(int size) {
+
+		if (size < 0) throw new IllegalArgumentException("Invalid cache size: " + size);
+
+		this.size = size;
+
+		this.jsonObjects = new LinkedHashMap<String, JsonObject> (16, 0.75f, true) {
+
+			private static final long serialVersionUID = 6386404727599932387L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+
+				if (this.size() <= JSONCache.this.size) return false;
+
+				JSONCache.this.ids.remove(eldest.getKey());
+
+				return true;
+			}
+		};
+		this.ids = new TreeSet<String> ();
+
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	public synchronized JsonObject get(String id) {
+
+		JsonObject jsonObject = this.jsonObjects.get(id);
+
+		if (jsonObject != null) this.hits++; else this.misses++;
+
+		return jsonObject;
+	}
+
+	/**
+	 * Checks if an id is in the cache, without counting a hit or miss.
+	 */
+	public synchronized boolean contains(String id) {
+
+		return this.jsonObjects.containsKey(id);
+	}
+
+	public synchronized void put(String id, JsonObject jsonObject) {
+
+		if (this.size == 0) return;
+
+		this.ids.add(id);
+		this.jsonObjects.put(id, jsonObject);
+	}
+
+	public synchronized void remove(String id) {
+
+		this.ids.remove(id);
+		this.jsonObjects.remove(id);
+	}
+
+	/**
+	 * Removes all ids that start with a prefix.
+	 */
+	public synchronized void removePrefix(String prefix) {
+
+		for (Iterator<String> ids = this.ids.tailSet(prefix).iterator(); ids.hasNext(); ) {
+
+			String id = ids.next();
+			if (! id.startsWith(prefix)) break;
+
+			this.jsonObjects.remove(id);
+			ids.remove();
+		}
+	}
+
+	public synchronized void clear() {
+
+		this.ids.clear();
+		this.jsonObjects.clear();
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
+	public int getSize() {
+
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of JSON objects currently in the cache.
+	 */
+	public synchronized int getCount() {
+
+		return this.jsonObjects.size();
+	}
+
+	public synchronized long getHits() {
+
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+
+		return this.misses;
+	}
+
+	/**
+	 * Returns the ids currently in the cache, in sorted order.
+	 */
+	public synchronized List<String> getIds() {
+
+		return new ArrayList<String> (this.ids);
+	}
+}
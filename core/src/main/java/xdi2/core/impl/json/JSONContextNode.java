@@ -1,5 +1,6 @@
 package xdi2.core.impl.json;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -9,6 +10,7 @@ import java.util.Set;
 import xdi2.core.ContextNode;
 import xdi2.core.Literal;
 import xdi2.core.Relation;
+import xdi2.core.Statement;
 import xdi2.core.constants.XDIConstants;
 import xdi2.core.impl.AbstractContextNode;
 import xdi2.core.impl.AbstractLiteral;
@@ -27,12 +29,20 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
+/**
+ * A context node of a JSONGraph.
+ *
+ * Iterating over the child context nodes loads all children that are not cached yet
+ * with a single call to the JSONStore, and traversing a subtree with getAllContextNodes()
+ * or getAllStatements() first loads the whole subtree with a single call.
+ */
 public class JSONContextNode extends AbstractContextNode implements ContextNode {
 
 	private static final long serialVersionUID = 1222781682444161539L;
 
 	private XDI3SubSegment arcXri;
 	private XDI3Segment xri;
+	private boolean prefetched;
 
 	JSONContextNode(JSONGraph graph, JSONContextNode contextNode, XDI3SubSegment arcXri, XDI3Segment xri) {
 
@@ -40,6 +50,7 @@ public class JSONContextNode extends AbstractContextNode implements ContextNode
 
 		this.arcXri = arcXri;
 		this.xri = xri;
+		this.prefetched = false;
 	}
 
 	/*
@@ -129,17 +140,59 @@ public class JSONContextNode extends AbstractContextNode implements ContextNode
 
 		return new ReadOnlyIterator<ContextNode> (new MappingIterator<JsonElement, ContextNode> (entryList.iterator()) {
 
+			private boolean childrenPrefetched = false;
+
 			@Override
 			public ContextNode map(JsonElement jsonElement) {
 
+				// load all children with one call to the store before the first one is used
+
+				if (! this.childrenPrefetched) {
+
+					List<String> ids = new ArrayList<String> (entryList.size());
+					for (JsonElement entry : entryList) ids.add(XDI3Util.concatXris(JSONContextNode.this.getXri(), XDI3SubSegment.create(entry.getAsString())).toString());
+
+					((JSONGraph) JSONContextNode.this.getGraph()).jsonPrefetch(ids);
+
+					this.childrenPrefetched = true;
+				}
+
 				XDI3SubSegment arcXri = XDI3SubSegment.create(((JsonPrimitive) jsonElement).getAsString());
 				XDI3Segment xri = XDI3Util.concatXris(JSONContextNode.this.getXri(), arcXri);
 
-				return new JSONContextNode((JSONGraph) JSONContextNode.this.getGraph(), JSONContextNode.this, arcXri, xri);
+				JSONContextNode contextNode = new JSONContextNode((JSONGraph) JSONContextNode.this.getGraph(), JSONContextNode.this, arcXri, xri);
+				contextNode.prefetched = JSONContextNode.this.prefetched;
+
+				return contextNode;
 			}
 		});
 	}
 
+	@Override
+	public ReadOnlyIterator<ContextNode> getAllContextNodes() {
+
+		if (! this.prefetched) return this.prefetchSubtree().getAllContextNodes();
+
+		return super.getAllContextNodes();
+	}
+
+	@Override
+	public boolean containsContextNodes() {
+
+		return this.getContextNodeCount() > 0;
+	}
+
+	@Override
+	public long getContextNodeCount() {
+
+		JsonObject jsonObject = ((JSONGraph) this.getGraph()).jsonLoad(this.getXri().toString());
+
+		JsonArray jsonArrayContexts = jsonObject.getAsJsonArray(XDIConstants.XRI_SS_CONTEXT.toString());
+		if (jsonArrayContexts == null) return 0;
+
+		return jsonArrayContexts.size();
+	}
+
 	@Override
 	public void delContextNode(XDI3SubSegment arcXri) {
 
@@ -203,6 +256,31 @@ public class JSONContextNode extends AbstractContextNode implements ContextNode
 		};
 	}
 
+	@Override
+	public ReadOnlyIterator<Relation> getIncomingRelations(final XDI3Segment arcXri) {
+
+		JsonObject jsonObject = ((JSONGraph) this.getGraph()).jsonLoad(this.getXri().toString());
+
+		JsonArray jsonArrayIncomingRelations = jsonObject.getAsJsonArray("/" + arcXri.toString());
+		if (jsonArrayIncomingRelations == null) return new EmptyIterator<Relation> ();
+		if (jsonArrayIncomingRelations.size() < 1) return new EmptyIterator<Relation> ();
+
+		final List<JsonElement> entryList = new IteratorListMaker<JsonElement> (jsonArrayIncomingRelations.iterator()).list();
+
+		return new ReadOnlyIterator<Relation> (new MappingIterator<JsonElement, Relation> (entryList.iterator()) {
+
+			@Override
+			public Relation map(JsonElement jsonElement) {
+
+				XDI3Segment contextNodeXri = XDI3Segment.create(((JsonPrimitive) jsonElement).getAsString());
+
+				ContextNode contextNode = JSONContextNode.this.getGraph().getDeepContextNode(contextNodeXri);
+
+				return new JSONRelation(contextNode, arcXri, JSONContextNode.this.getXri());
+			}
+		});
+	}
+
 	@Override
 	public ReadOnlyIterator<Relation> getIncomingRelations() {
 
@@ -271,4 +349,34 @@ public class JSONContextNode extends AbstractContextNode implements ContextNode
 
 		((JSONGraph) this.getGraph()).jsonDeleteFromObject(this.getXri().toString(), XDIConstants.XRI_SS_LITERAL.toString());
 	}
+
+	/*
+	 * Methods related to statements
+	 */
+
+	@Override
+	public ReadOnlyIterator<Statement> getAllStatements() {
+
+		if (! this.prefetched) return this.prefetchSubtree().getAllStatements();
+
+		return super.getAllStatements();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/**
+	 * Loads the JSON objects of this context node and all its descendants with one call to the store.
+	 * @return A copy of this context node, whose descendants will not load their subtrees again.
+	 */
+	private JSONContextNode prefetchSubtree() {
+
+		((JSONGraph) this.getGraph()).jsonPrefetch(this.isRootContextNode() ? "" : this.getXri().toString());
+
+		JSONContextNode contextNode = new JSONContextNode((JSONGraph) this.getGraph(), (JSONContextNode) this.getContextNode(), this.arcXri, this.xri);
+		contextNode.prefetched = true;
+
+		return contextNode;
+	}
 }
@@ -1,10 +1,15 @@
 package xdi2.core.impl.json;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +28,18 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
+/**
+ * A graph that stores each context node as a JSON object in a JSONStore.
+ *
+ * Loaded JSON objects are kept in a size-bounded LRU cache. Inside a transaction,
+ * changed JSON objects and deleted ids are buffered, and only written to the
+ * JSONStore when the transaction is committed, in a store transaction that lasts
+ * just as long as the writing. Transactions belong to the thread that began them,
+ * so other threads keep reading and writing outside of them.
+ *
+ * Traversals prefetch JSON objects into the cache with JSONStore.loadMany() and
+ * JSONStore.loadPrefix(), unless this is disabled in the graph factory.
+ */
 public class JSONGraph extends AbstractGraph implements Graph {
 
 	private static final long serialVersionUID = -7459785412219244590L;
@@ -32,16 +49,22 @@ public class JSONGraph extends AbstractGraph implements Graph {
 	private final JSONStore jsonStore;
 
 	private final JSONContextNode jsonRootContextNode;
-	private final Map<String, JsonObject> jsonObjects;
+	private final JSONCache jsonCache;
+	private final boolean prefetch;
 
-	JSONGraph(GraphFactory graphFactory, String identifier, JSONStore jsonStore) {
+	private final ThreadLocal<JSONTransaction> transaction;
+
+	JSONGraph(GraphFactory graphFactory, String identifier, JSONStore jsonStore, int cacheSize, boolean prefetch) {
 
 		super(graphFactory, identifier);
 
 		this.jsonStore = jsonStore;
 
 		this.jsonRootContextNode = new JSONContextNode(this, null, null, XDIConstants.XRI_S_ROOT);
-		this.jsonObjects = new HashMap<String, JsonObject> ();
+		this.jsonCache = new JSONCache(cacheSize);
+		this.prefetch = prefetch;
+
+		this.transaction = new ThreadLocal<JSONTransaction> ();
 	}
 
 	@Override
@@ -63,25 +86,87 @@ public class JSONGraph extends AbstractGraph implements Graph {
 	@Override
 	public boolean supportsTransactions() {
 
-		return false;
+		return true;
 	}
 
 	@Override
 	public void beginTransaction() {
 
-		this.jsonObjects.clear();
+		this.transaction.set(new JSONTransaction());
 	}
 
 	@Override
-	public void commitTransaction() {
+	public synchronized void commitTransaction() {
+
+		JSONTransaction transaction = this.transaction.get();
+		if (transaction == null) return;
+
+		if (log.isDebugEnabled()) log.debug("Committing " + transaction.jsonDirty.size() + " changed and " + transaction.jsonDeleted.size() + " deleted JSON ids");
+
+		try {
+
+			this.jsonStore.beginTransaction();
+		} catch (RuntimeException ex) {
+
+			this.transaction.remove();
+			throw ex;
+		}
+
+		try {
+
+			// deleted ids first, since all changes below them were made after they were deleted
+
+			for (String id : transaction.jsonDeleted) {
+
+				this.jsonStore.delete(id);
+				this.jsonCache.removePrefix(id);
+			}
+
+			for (Entry<String, JsonObject> entry : transaction.jsonDirty.entrySet()) {
+
+				this.jsonStore.save(entry.getKey(), entry.getValue());
+				this.jsonCache.put(entry.getKey(), entry.getValue());
+			}
+
+			this.jsonStore.commitTransaction();
+		} catch (IOException ex) {
+
+			this.commitFailed();
+
+			throw new Xdi2RuntimeException("Cannot commit JSON: " + ex.getMessage(), ex);
+		} catch (RuntimeException ex) {
 
-		this.jsonObjects.clear();
+			this.commitFailed();
+
+			throw ex;
+		} finally {
+
+			this.transaction.remove();
+		}
 	}
 
 	@Override
 	public void rollbackTransaction() {
 
-		this.jsonObjects.clear();
+		JSONTransaction transaction = this.transaction.get();
+
+		if (log.isDebugEnabled() && transaction != null) log.debug("Discarding " + transaction.jsonDirty.size() + " changed and " + transaction.jsonDeleted.size() + " deleted JSON ids");
+
+		this.transaction.remove();
+	}
+
+	/**
+	 * Some of the changes may have been written already, and the cache may hold some of them.
+	 */
+	private void commitFailed() {
+
+		try {
+
+			this.jsonStore.rollbackTransaction();
+		} finally {
+
+			this.jsonCache.clear();
+		}
 	}
 
 	/*
@@ -98,15 +183,37 @@ public class JSONGraph extends AbstractGraph implements Graph {
 		return this.jsonStore;
 	}
 
+	/**
+	 * Returns the cache of JSON objects loaded from the JSON store.
+	 */
+	public JSONCache getJsonCache() {
+
+		return this.jsonCache;
+	}
+
 	/*
 	 * Helper methods
 	 */
 
-	JsonObject jsonLoad(String id) {
+	synchronized JsonObject jsonLoad(String id) {
 
 		if (log.isTraceEnabled()) log.trace("Loading JSON " + id);
 
-		JsonObject jsonObject = this.jsonObjects.get(id);
+		// changes in the current transaction
+
+		JSONTransaction transaction = this.transaction.get();
+
+		if (transaction != null) {
+
+			JsonObject jsonObject = transaction.jsonDirty.get(id);
+			if (jsonObject != null) return jsonObject;
+
+			if (transaction.isDeleted(id)) return new JsonObject();
+		}
+
+		// cache and store
+
+		JsonObject jsonObject = this.jsonCache.get(id);
 		if (jsonObject != null) return jsonObject;
 
 		try {
@@ -114,7 +221,7 @@ public class JSONGraph extends AbstractGraph implements Graph {
 			jsonObject = this.jsonStore.load(id);
 			if (jsonObject == null) jsonObject = new JsonObject();
 
-			this.jsonObjects.put(id, jsonObject);
+			this.jsonCache.put(id, jsonObject);
 
 			return jsonObject;
 		} catch (IOException ex) {
@@ -123,143 +230,316 @@ public class JSONGraph extends AbstractGraph implements Graph {
 		}
 	}
 
-	void jsonSave(String id, JsonObject jsonObject) {
+	/**
+	 * Loads the JSON objects that are not cached yet with one call to the store, and caches them.
+	 */
+	synchronized void jsonPrefetch(Collection<String> ids) {
+
+		if (! this.prefetch || this.jsonCache.getSize() == 0) return;
+
+		List<String> loadIds = new ArrayList<String> (ids.size());
+		for (String id : ids) if (! this.jsonCache.contains(id)) loadIds.add(id);
+
+		if (loadIds.size() < 2) return;
+
+		if (log.isTraceEnabled()) log.trace("Prefetching " + loadIds.size() + " JSON objects");
+
+		try {
+
+			Map<String, JsonObject> jsonObjects = this.jsonStore.loadMany(loadIds);
+
+			for (String id : loadIds) {
+
+				JsonObject jsonObject = jsonObjects.get(id);
+				this.jsonCache.put(id, jsonObject == null ? new JsonObject() : jsonObject);
+			}
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot load JSON: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Loads the JSON objects of a context node and all context nodes below it with one call to
+	 * the store, and caches the ones that are not cached yet. Nothing is loaded if they do not
+	 * all fit into the cache, since the ones that are evicted would have to be loaded again.
+	 */
+	synchronized void jsonPrefetch(String idPrefix) {
+
+		if (! this.prefetch || this.jsonCache.getSize() == 0) return;
+
+		if (log.isTraceEnabled()) log.trace("Prefetching JSON " + idPrefix);
+
+		try {
+
+			Map<String, JsonObject> jsonObjects = this.jsonStore.loadPrefix(idPrefix, this.jsonCache.getSize());
+
+			if (jsonObjects == null) {
+
+				if (log.isTraceEnabled()) log.trace("Not prefetching JSON " + idPrefix + ", since it does not fit into the cache");
+
+				return;
+			}
+
+			for (Entry<String, JsonObject> entry : jsonObjects.entrySet()) {
+
+				if (! this.jsonCache.contains(entry.getKey())) this.jsonCache.put(entry.getKey(), entry.getValue());
+			}
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot load JSON at " + idPrefix + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	synchronized void jsonSave(String id, JsonObject jsonObject) {
 
 		if (log.isTraceEnabled()) log.trace("Saving JSON " + id);
 
+		JSONTransaction transaction = this.transaction.get();
+
+		if (transaction != null) {
+
+			transaction.jsonDirty.put(id, jsonObject);
+
+			return;
+		}
+
 		try {
 
 			this.jsonStore.save(id, jsonObject);
 
-			this.jsonObjects.put(id, jsonObject);
+			this.jsonCache.put(id, jsonObject);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot save JSON at " + id + ": " + ex.getMessage(), ex);
 		}
 	}
 
-	void jsonSaveToArray(String id, String key, JsonPrimitive jsonPrimitive) {
+	synchronized void jsonSaveToArray(String id, String key, JsonPrimitive jsonPrimitive) {
 
 		if (log.isTraceEnabled()) log.trace("Saving JSON to array " + id + " at " + key);
 
-		try {
-
-			this.jsonStore.saveToArray(id, key, jsonPrimitive);
-
-			JsonObject jsonObject = this.jsonObjects.get(id);
+		JSONTransaction transaction = this.transaction.get();
 
-			if (jsonObject == null) {
+		if (transaction != null) {
 
-				jsonObject = new JsonObject();
-				JsonArray jsonArray = new JsonArray();
-				jsonArray.add(jsonPrimitive);
-				jsonObject.add(key, jsonArray);
-			} else {
+			addToArray(this.jsonDirty(transaction, id), key, jsonPrimitive);
 
-				JsonArray jsonArray = jsonObject.getAsJsonArray(key);
+			return;
+		}
 
-				if (jsonArray == null) { 
+		try {
 
-					jsonArray = new JsonArray();
-					jsonArray.add(jsonPrimitive);
-					jsonObject.add(key, jsonArray);
-				} else {
+			this.jsonStore.saveToArray(id, key, jsonPrimitive);
 
-					if (! new IteratorContains<JsonElement> (jsonArray.iterator(), jsonPrimitive).contains()) jsonArray.add(jsonPrimitive);
-				}
-			}
+			// only update a cached JSON object, a missing one is loaded again from the store
 
-			this.jsonObjects.put(id, jsonObject);
+			JsonObject jsonObject = this.jsonCache.get(id);
+			if (jsonObject != null) addToArray(jsonObject, key, jsonPrimitive);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot save JSON to array " + id + ": " + ex.getMessage(), ex);
 		}
 	}
 
-	void jsonSaveToObject(String id, String key, JsonElement jsonElement) {
+	synchronized void jsonSaveToObject(String id, String key, JsonElement jsonElement) {
 
 		if (log.isTraceEnabled()) log.trace("Saving JSON to object " + id + " at " + key);
 
-		try {
+		JSONTransaction transaction = this.transaction.get();
 
-			this.jsonStore.saveToObject(id, key, jsonElement);
+		if (transaction != null) {
 
-			JsonObject jsonObject = this.jsonObjects.get(id);
+			this.jsonDirty(transaction, id).add(key, jsonElement);
 
-			if (jsonObject == null) {
+			return;
+		}
 
-				jsonObject = new JsonObject();
-				jsonObject.add(key, jsonElement);
-			} else {
+		try {
 
-				jsonObject.add(key, jsonElement);
-			}
+			this.jsonStore.saveToObject(id, key, jsonElement);
 
-			this.jsonObjects.put(id, jsonObject);
+			JsonObject jsonObject = this.jsonCache.get(id);
+			if (jsonObject != null) jsonObject.add(key, jsonElement);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot save JSON to object " + id + ": " + ex.getMessage(), ex);
 		}
 	}
 
-	void jsonDelete(String id) {
+	synchronized void jsonDelete(String id) {
 
 		if (log.isTraceEnabled()) log.trace("Deleting JSON " + id);
 
-		try {
+		JSONTransaction transaction = this.transaction.get();
 
-			this.jsonStore.delete(id);
+		if (transaction != null) {
 
-			for (Iterator<Entry<String, JsonObject>> iterator = this.jsonObjects.entrySet().iterator(); iterator.hasNext(); ) {
+			// forget changes below the deleted id, and keep the deleted ids free of prefixes of each other
 
-				if (iterator.next().getKey().startsWith(id)) iterator.remove();
+			removePrefix(transaction.jsonDirty.navigableKeySet(), id);
+
+			if (! transaction.isDeleted(id)) {
+
+				removePrefix(transaction.jsonDeleted, id);
+				transaction.jsonDeleted.add(id);
 			}
+
+			return;
+		}
+
+		try {
+
+			this.jsonStore.delete(id);
+
+			this.jsonCache.removePrefix(id);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot delete JSON " + id + ": " + ex.getMessage(), ex);
 		}
 	}
 
-	void jsonDeleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) {
+	synchronized void jsonDeleteFromArray(String id, String key, JsonPrimitive jsonPrimitive) {
 
 		if (log.isTraceEnabled()) log.trace("Removing JSON from array " + id + " at " + key);
 
-		try {
+		JSONTransaction transaction = this.transaction.get();
 
-			this.jsonStore.deleteFromArray(id, key, jsonPrimitive);
+		if (transaction != null) {
 
-			JsonObject jsonObject = this.jsonObjects.get(id);
-			if (jsonObject == null) return;
+			removeFromArray(this.jsonDirty(transaction, id), key, jsonPrimitive);
 
-			JsonArray jsonArray = jsonObject.getAsJsonArray(key);
-			if (jsonArray == null) return;
+			return;
+		}
 
-			new IteratorRemover<JsonElement> (jsonArray.iterator(), jsonPrimitive).remove();
+		try {
 
-			this.jsonObjects.put(id, jsonObject);
+			this.jsonStore.deleteFromArray(id, key, jsonPrimitive);
+
+			JsonObject jsonObject = this.jsonCache.get(id);
+			if (jsonObject != null) removeFromArray(jsonObject, key, jsonPrimitive);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot remove JSON from array " + id + ": " + ex.getMessage(), ex);
 		}
 	}
 
-	void jsonDeleteFromObject(String id, String key) {
+	synchronized void jsonDeleteFromObject(String id, String key) {
 
 		if (log.isTraceEnabled()) log.trace("Removing JSON from object " + id + " at " + key);
 
-		try {
+		JSONTransaction transaction = this.transaction.get();
 
-			this.jsonStore.deleteFromObject(id, key);
+		if (transaction != null) {
+
+			this.jsonDirty(transaction, id).remove(key);
+
+			return;
+		}
 
-			JsonObject jsonObject = this.jsonObjects.get(id);
-			if (jsonObject == null) return;
+		try {
 
-			jsonObject.remove(key);
+			this.jsonStore.deleteFromObject(id, key);
 
-			this.jsonObjects.put(id, jsonObject);
+			JsonObject jsonObject = this.jsonCache.get(id);
+			if (jsonObject != null) jsonObject.remove(key);
 		} catch (IOException ex) {
 
 			throw new Xdi2RuntimeException("Cannot remove JSON from object " + id + ": " + ex.getMessage(), ex);
 		}
 	}
+
+	/**
+	 * Returns the JSON object to change in the current transaction.
+	 * The first time, this is a copy of the current JSON object, so that the cache
+	 * and the store are not changed before the transaction is committed.
+	 */
+	private JsonObject jsonDirty(JSONTransaction transaction, String id) {
+
+		JsonObject jsonObject = transaction.jsonDirty.get(id);
+
+		if (jsonObject == null) {
+
+			jsonObject = (JsonObject) copy(this.jsonLoad(id));
+			transaction.jsonDirty.put(id, jsonObject);
+		}
+
+		return jsonObject;
+	}
+
+	private static void addToArray(JsonObject jsonObject, String key, JsonPrimitive jsonPrimitive) {
+
+		JsonArray jsonArray = jsonObject.getAsJsonArray(key);
+
+		if (jsonArray == null) { 
+
+			jsonArray = new JsonArray();
+			jsonArray.add(jsonPrimitive);
+			jsonObject.add(key, jsonArray);
+		} else {
+
+			if (! new IteratorContains<JsonElement> (jsonArray.iterator(), jsonPrimitive).contains()) jsonArray.add(jsonPrimitive);
+		}
+	}
+
+	private static void removeFromArray(JsonObject jsonObject, String key, JsonPrimitive jsonPrimitive) {
+
+		JsonArray jsonArray = jsonObject.getAsJsonArray(key);
+		if (jsonArray == null) return;
+
+		new IteratorRemover<JsonElement> (jsonArray.iterator(), jsonPrimitive).remove();
+	}
+
+	private static void removePrefix(NavigableSet<String> ids, String prefix) {
+
+		for (Iterator<String> i = ids.tailSet(prefix, true).iterator(); i.hasNext(); ) {
+
+			if (! i.next().startsWith(prefix)) break;
+
+			i.remove();
+		}
+	}
+
+	private static JsonElement copy(JsonElement jsonElement) {
+
+		if (jsonElement.isJsonObject()) {
+
+			JsonObject jsonObject = new JsonObject();
+			for (Entry<String, JsonElement> entry : ((JsonObject) jsonElement).entrySet()) jsonObject.add(entry.getKey(), copy(entry.getValue()));
+
+			return jsonObject;
+		}
+
+		if (jsonElement.isJsonArray()) {
+
+			JsonArray jsonArray = new JsonArray();
+			for (JsonElement item : (JsonArray) jsonElement) jsonArray.add(copy(item));
+
+			return jsonArray;
+		}
+
+		// primitives and null are immutable
+
+		return jsonElement;
+	}
+
+	/**
+	 * The changed JSON objects and deleted ids of a transaction.
+	 */
+	private static class JSONTransaction {
+
+		private final TreeMap<String, JsonObject> jsonDirty = new TreeMap<String, JsonObject> ();
+		private final TreeSet<String> jsonDeleted = new TreeSet<String> ();
+
+		/**
+		 * Checks if an id was deleted in this transaction, i.e. if it starts with a deleted id.
+		 * Since no deleted id is a prefix of another one, only the closest smaller one needs to be checked.
+		 */
+		private boolean isDeleted(String id) {
+
+			String deletedId = this.jsonDeleted.floor(id);
+
+			return deletedId != null && id.startsWith(deletedId);
+		}
+	}
 }
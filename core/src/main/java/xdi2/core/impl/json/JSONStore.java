@@ -1,6 +1,8 @@
 package xdi2.core.impl.json;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -10,6 +12,11 @@ import com.google.gson.JsonPrimitive;
  * The JSON based graph storage implementations needs a JSONStore to function.
  * This defines basic operations on a JSON based datastore.
  * 
+ * loadMany() and loadPrefix() return only the JSON objects that exist.
+ * loadPrefix() returns the JSON object with an id and the JSON objects of all
+ * context nodes below it, i.e. the ids that continue the id with a new subsegment.
+ * It returns null instead if there are more of them than a limit.
+ * 
  * @author markus
  */
 public interface JSONStore {
@@ -17,7 +24,14 @@ public interface JSONStore {
 	public void init() throws IOException;
 	public void close();
 
+	public boolean supportsTransactions();
+	public void beginTransaction();
+	public void commitTransaction();
+	public void rollbackTransaction();
+
 	public JsonObject load(String id) throws IOException;
+	public Map<String, JsonObject> loadMany(Collection<String> ids) throws IOException;
+	public Map<String, JsonObject> loadPrefix(String idPrefix, int limit) throws IOException;
 	public void save(String id, JsonObject jsonObject) throws IOException;
 	public void saveToArray(String id, String key, JsonPrimitive jsonPrimitive) throws IOException;
 	public void saveToObject(String id, String key, JsonElement jsonElement) throws IOException;
@@ -0,0 +1,139 @@
+package xdi2.core.impl.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xdi2.core.impl.json.JSONStoreStatistics.Operation;
+
+/**
+ * A bounded journal of the most recent operations on a JSONStore.
+ * It only records which operation was performed on which id, not the JSON data.
+ * Once the journal is full, the oldest entries are overwritten.
+ */
+public class JSONStoreJournal {
+
+	private Entry[] entries;
+	private int next;
+	private long total;
+
+	public JSONStoreJournal(int size) {
+
+		if (size <= 0) throw new IllegalArgumentException("Invalid journal size: " + size);
+
+		this.entries = new Entry[size];
+		this.next = 0;
+		this.total = 0;
+	}
+
+	public synchronized void record(Operation operation, String id, String key, long nanos) {
+
+		this.entries[this.next] = new Entry(operation, id, key, System.currentTimeMillis(), nanos);
+
+		this.next = (this.next + 1) % this.entries.length;
+		this.total++;
+	}
+
+	/**
+	 * Returns the entries in the journal, oldest first.
+	 */
+	public synchronized List<Entry> getEntries() {
+
+		List<Entry> entries = new ArrayList<Entry> (this.getCount());
+
+		for (int i=0; i<this.entries.length; i++) {
+
+			Entry entry = this.entries[(this.next + i) % this.entries.length];
+			if (entry != null) entries.add(entry);
+		}
+
+		return entries;
+	}
+
+	public int getSize() {
+
+		return this.entries.length;
+	}
+
+	/**
+	 * Returns the number of entries currently in the journal.
+	 */
+	public synchronized int getCount() {
+
+		return (int) Math.min(this.total, this.entries.length);
+	}
+
+	/**
+	 * Returns the number of entries ever recorded, including overwritten ones.
+	 */
+	public synchronized long getTotal() {
+
+		return this.total;
+	}
+
+	public synchronized void clear() {
+
+		for (int i=0; i<this.entries.length; i++) this.entries[i] = null;
+
+		this.next = 0;
+		this.total = 0;
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder buffer = new StringBuilder();
+
+		for (Entry entry : this.getEntries()) buffer.append(entry.toString() + "\n");
+
+		return buffer.toString();
+	}
+
+	public static class Entry {
+
+		private Operation operation;
+		private String id;
+		private String key;
+		private long timestamp;
+		private long nanos;
+
+		private Entry(Operation operation, String id, String key, long timestamp, long nanos) {
+
+			this.operation = operation;
+			this.id = id;
+			this.key = key;
+			this.timestamp = timestamp;
+			this.nanos = nanos;
+		}
+
+		public Operation getOperation() {
+
+			return this.operation;
+		}
+
+		public String getId() {
+
+			return this.id;
+		}
+
+		public String getKey() {
+
+			return this.key;
+		}
+
+		public long getTimestamp() {
+
+			return this.timestamp;
+		}
+
+		public long getNanos() {
+
+			return this.nanos;
+		}
+
+		@Override
+		public String toString() {
+
+			return this.operation + "( " + this.id + (this.key == null ? "" : " , " + this.key) + " ) " + (this.nanos / 1000) + "us";
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package xdi2.core.impl.json;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-operation counters and latency histograms of a JSONStore.
+ * The histograms have power-of-two buckets: bucket 0 counts operations that took less
+ * than 1 microsecond, bucket i counts operations that took at least 2^(i-1) and less than
+ * 2^i microseconds. The last bucket also counts everything slower than that.
+ */
+public class JSONStoreStatistics {
+
+	public static final int BUCKETS = 32;
+
+	public enum Operation {
+
+		LOAD, LOAD_MANY, LOAD_PREFIX, SAVE, SAVE_TO_ARRAY, SAVE_TO_OBJECT, DELETE, DELETE_FROM_ARRAY, DELETE_FROM_OBJECT
+	}
+
+	private static final int OPERATIONS = Operation.values().length;
+
+	private AtomicLongArray counts;
+	private AtomicLongArray nanos;
+	private AtomicLongArray histograms;
+
+	public JSONStoreStatistics() {
+
+		this.counts = new AtomicLongArray(OPERATIONS);
+		this.nanos = new AtomicLongArray(OPERATIONS);
+		this.histograms = new AtomicLongArray(OPERATIONS * BUCKETS);
+	}
+
+	public void record(Operation operation, long nanos) {
+
+		int i = operation.ordinal();
+
+		this.counts.incrementAndGet(i);
+		this.nanos.addAndGet(i, nanos);
+		this.histograms.incrementAndGet(i * BUCKETS + bucket(nanos));
+	}
+
+	public long getCount(Operation operation) {
+
+		return this.counts.get(operation.ordinal());
+	}
+
+	public long getTotalNanos(Operation operation) {
+
+		return this.nanos.get(operation.ordinal());
+	}
+
+	public long[] getHistogram(Operation operation) {
+
+		long[] histogram = new long[BUCKETS];
+
+		for (int i=0; i<BUCKETS; i++) histogram[i] = this.histograms.get(operation.ordinal() * BUCKETS + i);
+
+		return histogram;
+	}
+
+	/**
+	 * Returns an upper bound for a percentile of the latencies of an operation.
+	 * @param operation The operation.
+	 * @param percentile The percentile, between 0 and 100.
+	 * @return The upper bound of the histogram bucket that contains the percentile, in microseconds,
+	 * or 0 if the operation was never recorded.
+	 */
+	public long getPercentileMicros(Operation operation, double percentile) {
+
+		long[] histogram = this.getHistogram(operation);
+		long count = 0;
+
+		for (long bucket : histogram) count += bucket;
+		if (count == 0) return 0;
+
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		if (rank < 1) rank = 1;
+
+		for (int i=0; i<BUCKETS; i++) {
+
+			rank -= histogram[i];
+			if (rank <= 0) return 1L << i;
+		}
+
+		return 1L << (BUCKETS - 1);
+	}
+
+	public void reset() {
+
+		for (int i=0; i<OPERATIONS; i++) {
+
+			this.counts.set(i, 0);
+			this.nanos.set(i, 0);
+		}
+
+		for (int i=0; i<OPERATIONS * BUCKETS; i++) this.histograms.set(i, 0);
+	}
+
+	/**
+	 * Returns the histogram bucket for a latency.
+	 */
+	public static int bucket(long nanos) {
+
+		long micros = nanos / 1000;
+		if (micros <= 0) return 0;
+
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+	}
+
+	@Override
+	public String toString() {
+
+		StringBuilder buffer = new StringBuilder();
+
+		for (Operation operation : Operation.values()) {
+
+			long count = this.getCount(operation);
+			if (count == 0) continue;
+
+			if (buffer.length() > 0) buffer.append(", ");
+			buffer.append(operation + "=" + count + " (avg " + (this.getTotalNanos(operation) / count / 1000) + "us, p99 < " + this.getPercentileMicros(operation, 99) + "us)");
+		}
+
+		return buffer.toString();
+	}
+}
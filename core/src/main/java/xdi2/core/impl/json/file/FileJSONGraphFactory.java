@@ -1,6 +1,8 @@
 package xdi2.core.impl.json.file;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
 
 import xdi2.core.GraphFactory;
 import xdi2.core.impl.json.AbstractJSONGraphFactory;
@@ -8,14 +10,28 @@ import xdi2.core.impl.json.JSONStore;
 
 /**
  * GraphFactory that creates file-based JSON graphs.
+ * By default, all files are kept in the current working directory. In sharded mode,
+ * they are spread over a directory tree under the configured path, and written in batches.
  * 
  * @author markus
  */
 public class FileJSONGraphFactory extends AbstractJSONGraphFactory implements GraphFactory {
 
+	public static final boolean DEFAULT_SHARDED = false;
+	public static final String DEFAULT_PATH = "./xdi2-file-json/";
+	public static final int DEFAULT_BATCH_SIZE = ShardedFileJSONStore.DEFAULT_BATCH_SIZE;
+
+	private boolean sharded;
+	private String path;
+	private int batchSize;
+
 	public FileJSONGraphFactory() { 
 
 		super();
+
+		this.sharded = DEFAULT_SHARDED;
+		this.path = DEFAULT_PATH;
+		this.batchSize = DEFAULT_BATCH_SIZE;
 	}
 
 	@Override
@@ -31,7 +47,14 @@ public class FileJSONGraphFactory extends AbstractJSONGraphFactory implements Gr
 
 		try {
 
-			jsonStore = new FileJSONStore(prefix);
+			if (this.isSharded()) {
+
+				jsonStore = new ShardedFileJSONStore(new File(this.getPath(), URLEncoder.encode(prefix, "UTF-8")), this.getBatchSize());
+			} else {
+
+				jsonStore = new FileJSONStore(prefix);
+			}
+
 			jsonStore.init();
 		} catch (Exception ex) {
 
@@ -42,4 +65,34 @@ public class FileJSONGraphFactory extends AbstractJSONGraphFactory implements Gr
 
 		return jsonStore;
 	}
+
+	public boolean isSharded() {
+
+		return this.sharded;
+	}
+
+	public void setSharded(boolean sharded) {
+
+		this.sharded = sharded;
+	}
+
+	public String getPath() {
+
+		return this.path;
+	}
+
+	public void setPath(String path) {
+
+		this.path = path;
+	}
+
+	public int getBatchSize() {
+
+		return this.batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+
+		this.batchSize = batchSize;
+	}
 }
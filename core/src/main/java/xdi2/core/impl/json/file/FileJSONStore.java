@@ -8,7 +8,11 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import xdi2.core.exceptions.Xdi2RuntimeException;
 import xdi2.core.impl.json.AbstractJSONStore;
@@ -48,13 +52,38 @@ public class FileJSONStore extends AbstractJSONStore implements JSONStore {
 		File file = new File(filename);
 		if (! file.exists()) return null;
 
-		FileReader fileReader = new FileReader(file);
-		BufferedReader bufferedReader = new BufferedReader(fileReader);
-		JsonObject jsonObject = gson.getAdapter(JsonObject.class).fromJson(bufferedReader);
+		return read(file);
+	}
 
-		fileReader.close();
+	@Override
+	protected Map<String, JsonObject> loadPrefixInternal(String idPrefix, int limit) throws IOException {
 
-		return jsonObject;
+		// one directory listing finds all files, since the file names start with the encoded ids.
+		// the files of other graphs whose prefixes start with ours, and of other ids that start
+		// with the id prefix, are told apart by the decoded ids.
+
+		String baseFilename = filename(this.getPrefix(), idPrefix);
+		String prefixFilename = filename(this.getPrefix(), "");
+		Map<String, File> files = new HashMap<String, File> ();
+
+		String[] filenames = new File(".").list();
+		if (filenames == null) filenames = new String[0];
+
+		for (String filename : filenames) {
+
+			if (! filename.startsWith(baseFilename) || ! filename.endsWith(".json")) continue;
+
+			String id = id(filename.substring(prefixFilename.length(), filename.length() - ".json".length()));
+			if (id != null && matchesPrefix(id, idPrefix)) files.put(id, new File(filename));
+		}
+
+		if (files.size() > limit) return null;
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+		for (Entry<String, File> entry : files.entrySet()) jsonObjects.put(entry.getKey(), read(entry.getValue()));
+
+		return jsonObjects;
 	}
 
 	@Override
@@ -101,6 +130,34 @@ public class FileJSONStore extends AbstractJSONStore implements JSONStore {
 	 * Helper methods
 	 */
 
+	private static JsonObject read(File file) throws IOException {
+
+		FileReader fileReader = new FileReader(file);
+		BufferedReader bufferedReader = new BufferedReader(fileReader);
+		JsonObject jsonObject = gson.getAdapter(JsonObject.class).fromJson(bufferedReader);
+
+		fileReader.close();
+
+		return jsonObject;
+	}
+
+	/**
+	 * Decodes an id from a file name, or returns null if it is not an encoded id.
+	 */
+	private static String id(String filename) {
+
+		try {
+
+			return URLDecoder.decode(filename, "UTF-8");
+		} catch (IllegalArgumentException ex) {
+
+			return null;
+		} catch (UnsupportedEncodingException ex) {
+
+			throw new Xdi2RuntimeException(ex.getMessage(), ex);
+		}
+	}
+
 	private static String filename(String prefix, String id) {
 
 		StringBuilder buffer = new StringBuilder();
@@ -0,0 +1,401 @@
+package xdi2.core.impl.json.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.exceptions.Xdi2RuntimeException;
+import xdi2.core.impl.json.AbstractJSONStore;
+import xdi2.core.impl.json.JSONStore;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A file based JSONStore that spreads its files over a hashed directory tree,
+ * and keeps changed JSON objects in memory until they are flushed.
+ *
+ * Each JSON object is stored in a file directory/xx/yy/id.json, where xx and yy
+ * are derived from the hash code of the id. The ids of all stored objects are kept
+ * in a sorted in-memory index, so deleting an id and all ids below it does not
+ * require listing any directories.
+ *
+ * Changes are flushed in a batch when a transaction is committed, when the store
+ * is closed, and outside of transactions also when the number of changed objects
+ * reaches the batch size. Every file is written to a temporary file first and then
+ * renamed, so readers never see a partially written file.
+ */
+public class ShardedFileJSONStore extends AbstractJSONStore implements JSONStore {
+
+	private static final Logger log = LoggerFactory.getLogger(ShardedFileJSONStore.class);
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+
+	private static final String SUFFIX = ".json";
+	private static final String TEMP_SUFFIX = ".json.tmp";
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private File directory;
+	private int batchSize;
+
+	private TreeSet<String> ids;
+	private Map<String, JsonObject> dirty;
+	private Set<File> shards;
+	private boolean transaction;
+
+	public ShardedFileJSONStore(File directory, int batchSize) {
+
+		this.directory = directory;
+		this.batchSize = batchSize;
+
+		this.ids = new TreeSet<String> ();
+		this.dirty = new LinkedHashMap<String, JsonObject> ();
+		this.shards = new HashSet<File> ();
+		this.transaction = false;
+	}
+
+	public ShardedFileJSONStore(File directory) {
+
+		this(directory, DEFAULT_BATCH_SIZE);
+	}
+
+	@Override
+	public synchronized void init() throws IOException {
+
+		if (! this.directory.exists() && ! this.directory.mkdirs()) throw new IOException("Cannot create directory " + this.directory.getAbsolutePath());
+
+		// build the index of ids, and remove left-over temporary files
+
+		this.ids.clear();
+		this.shards.clear();
+
+		for (File shard1 : listDirectories(this.directory)) {
+
+			for (File shard2 : listDirectories(shard1)) {
+
+				this.shards.add(shard2);
+
+				File[] files = shard2.listFiles();
+				if (files == null) continue;
+
+				for (File file : files) {
+
+					String filename = file.getName();
+
+					if (filename.endsWith(TEMP_SUFFIX)) {
+
+						file.delete();
+					} else if (filename.endsWith(SUFFIX)) {
+
+						this.ids.add(URLDecoder.decode(filename.substring(0, filename.length() - SUFFIX.length()), "UTF-8"));
+					}
+				}
+			}
+		}
+
+		if (log.isDebugEnabled()) log.debug("Found " + this.ids.size() + " JSON objects in " + this.directory.getAbsolutePath());
+	}
+
+	@Override
+	public synchronized void close() {
+
+		try {
+
+			this.flush();
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot flush JSON objects: " + ex.getMessage(), ex);
+		}
+	}
+
+	/*
+	 * Methods related to transactions
+	 */
+
+	@Override
+	public boolean supportsTransactions() {
+
+		return true;
+	}
+
+	@Override
+	public synchronized void beginTransaction() {
+
+		try {
+
+			this.flush();
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot flush JSON objects: " + ex.getMessage(), ex);
+		}
+
+		this.transaction = true;
+	}
+
+	@Override
+	public synchronized void commitTransaction() {
+
+		this.transaction = false;
+
+		try {
+
+			this.flush();
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot flush JSON objects: " + ex.getMessage(), ex);
+		}
+	}
+
+	@Override
+	public synchronized void rollbackTransaction() {
+
+		this.transaction = false;
+
+		// restore the index for everything we changed, then forget the changes
+
+		for (String id : this.dirty.keySet()) {
+
+			if (this.file(id).exists()) this.ids.add(id); else this.ids.remove(id);
+		}
+
+		this.dirty.clear();
+	}
+
+	/*
+	 * Internal methods
+	 */
+
+	@Override
+	protected synchronized JsonObject loadInternal(String id) throws IOException {
+
+		if (this.dirty.containsKey(id)) return this.dirty.get(id);
+		if (! this.ids.contains(id)) return null;
+
+		File file = this.file(id);
+		if (! file.exists()) return null;
+
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+
+			return gson.getAdapter(JsonObject.class).fromJson(bufferedReader);
+		} finally {
+
+			bufferedReader.close();
+		}
+	}
+
+	@Override
+	protected synchronized Map<String, JsonObject> loadPrefixInternal(String idPrefix, int limit) throws IOException {
+
+		List<String> loadIds = new ArrayList<String> ();
+
+		for (String id : this.ids.tailSet(idPrefix)) {
+
+			if (! id.startsWith(idPrefix)) break;
+			if (! matchesPrefix(id, idPrefix)) continue;
+
+			if (loadIds.size() == limit) return null;
+
+			loadIds.add(id);
+		}
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+		for (String id : loadIds) {
+
+			JsonObject jsonObject = this.loadInternal(id);
+			if (jsonObject != null) jsonObjects.put(id, jsonObject);
+		}
+
+		return jsonObjects;
+	}
+
+	@Override
+	protected synchronized void saveInternal(String id, JsonObject jsonObject) throws IOException {
+
+		this.ids.add(id);
+		this.dirty.put(id, jsonObject);
+
+		this.flushIfFull();
+	}
+
+	@Override
+	protected synchronized void deleteInternal(String id) throws IOException {
+
+		for (Iterator<String> ids = this.ids.tailSet(id).iterator(); ids.hasNext(); ) {
+
+			String deleteId = ids.next();
+			if (! deleteId.startsWith(id)) break;
+
+			ids.remove();
+			this.dirty.put(deleteId, null);
+		}
+
+		this.flushIfFull();
+	}
+
+	/*
+	 * Flushing
+	 */
+
+	/**
+	 * Writes all changed JSON objects to their files, and deletes the files
+	 * of deleted JSON objects.
+	 */
+	public synchronized void flush() throws IOException {
+
+		if (this.dirty.isEmpty()) return;
+
+		if (log.isDebugEnabled()) log.debug("Flushing " + this.dirty.size() + " JSON objects to " + this.directory.getAbsolutePath());
+
+		for (Entry<String, JsonObject> entry : this.dirty.entrySet()) {
+
+			File file = this.file(entry.getKey());
+
+			if (entry.getValue() == null) {
+
+				if (file.exists() && ! file.delete()) throw new IOException("Cannot delete " + file.getAbsolutePath());
+			} else {
+
+				this.write(file, entry.getValue());
+			}
+		}
+
+		this.dirty.clear();
+	}
+
+	private void flushIfFull() throws IOException {
+
+		if (this.transaction || this.dirty.size() < this.batchSize) return;
+
+		this.flush();
+	}
+
+	private void write(File file, JsonObject jsonObject) throws IOException {
+
+		File shard = file.getParentFile();
+
+		if (! this.shards.contains(shard)) {
+
+			if (! shard.exists() && ! shard.mkdirs()) throw new IOException("Cannot create directory " + shard.getAbsolutePath());
+			this.shards.add(shard);
+		}
+
+		File tempFile = new File(shard, file.getName().substring(0, file.getName().length() - SUFFIX.length()) + TEMP_SUFFIX);
+
+		BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+
+		try {
+
+			JsonWriter jsonWriter = new JsonWriter(bufferedWriter);
+			gson.toJson(jsonObject, jsonWriter);
+			jsonWriter.flush();
+		} finally {
+
+			bufferedWriter.close();
+		}
+
+		// File.renameTo() does not replace an existing file on all platforms
+
+		if (! tempFile.renameTo(file)) {
+
+			file.delete();
+			if (! tempFile.renameTo(file)) throw new IOException("Cannot rename " + tempFile.getAbsolutePath() + " to " + file.getName());
+		}
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
+	public File getDirectory() {
+
+		return this.directory;
+	}
+
+	public int getBatchSize() {
+
+		return this.batchSize;
+	}
+
+	public synchronized int getDirtyCount() {
+
+		return this.dirty.size();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private File file(String id) {
+
+		int hash = id.hashCode();
+
+		String shard1 = hex((hash >>> 8) & 0xff);
+		String shard2 = hex(hash & 0xff);
+
+		try {
+
+			return new File(new File(new File(this.directory, shard1), shard2), URLEncoder.encode(id, "UTF-8") + SUFFIX);
+		} catch (UnsupportedEncodingException ex) {
+
+			throw new Xdi2RuntimeException(ex.getMessage(), ex);
+		}
+	}
+
+	private static String hex(int b) {
+
+		return b < 0x10 ? "0" + Integer.toHexString(b) : Integer.toHexString(b);
+	}
+
+	private static File[] listDirectories(File directory) {
+
+		File[] files = directory.listFiles();
+		if (files == null) return new File[0];
+
+		List<File> directories = new ArrayList<File> ();
+		for (File file : files) if (file.isDirectory()) directories.add(file);
+
+		return directories.toArray(new File[directories.size()]);
+	}
+
+	public static void cleanup(File directory) {
+
+		File[] files = directory.listFiles();
+
+		if (files != null) {
+
+			for (File file : files) {
+
+				if (file.isDirectory()) cleanup(file); else file.delete();
+			}
+		}
+
+		directory.delete();
+	}
+}
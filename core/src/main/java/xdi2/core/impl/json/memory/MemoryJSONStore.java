@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import xdi2.core.impl.json.AbstractJSONStore;
 import xdi2.core.impl.json.JSONStore;
@@ -13,11 +14,11 @@ import com.google.gson.JsonObject;
 
 public class MemoryJSONStore extends AbstractJSONStore implements JSONStore {
 
-	private Map<String, JsonObject> jsonObjects;
+	private TreeMap<String, JsonObject> jsonObjects;
 
 	public MemoryJSONStore() {
 
-		this.jsonObjects = new HashMap<String, JsonObject> ();
+		this.jsonObjects = new TreeMap<String, JsonObject> ();
 	}
 
 	@Override
@@ -36,6 +37,24 @@ public class MemoryJSONStore extends AbstractJSONStore implements JSONStore {
 		return this.jsonObjects.get(id);
 	}
 
+	@Override
+	protected Map<String, JsonObject> loadPrefixInternal(String idPrefix, int limit) throws IOException {
+
+		Map<String, JsonObject> jsonObjects = new HashMap<String, JsonObject> ();
+
+		for (Entry<String, JsonObject> entry : this.jsonObjects.tailMap(idPrefix).entrySet()) {
+
+			if (! entry.getKey().startsWith(idPrefix)) break;
+			if (! matchesPrefix(entry.getKey(), idPrefix)) continue;
+
+			if (jsonObjects.size() == limit) return null;
+
+			jsonObjects.put(entry.getKey(), entry.getValue());
+		}
+
+		return jsonObjects;
+	}
+
 	@Override
 	protected void saveInternal(String id, JsonObject jsonObject) throws IOException {
 
@@ -45,9 +64,11 @@ public class MemoryJSONStore extends AbstractJSONStore implements JSONStore {
 	@Override
 	protected void deleteInternal(String id) throws IOException {
 
-		for (Iterator<Entry<String, JsonObject>> iterator = this.jsonObjects.entrySet().iterator(); iterator.hasNext(); ) {
+		for (Iterator<String> ids = this.jsonObjects.tailMap(id).keySet().iterator(); ids.hasNext(); ) {
+
+			if (! ids.next().startsWith(id)) break;
 
-			if (iterator.next().getKey().startsWith(id)) iterator.remove();
+			ids.remove();
 		}
 	}
 }
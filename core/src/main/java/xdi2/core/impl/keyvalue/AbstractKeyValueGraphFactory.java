@@ -16,11 +16,15 @@ public abstract class AbstractKeyValueGraphFactory extends AbstractGraphFactory
 
 	private boolean supportGetContextNodes;
 	private boolean supportGetRelations;
+	private boolean indexIncomingRelations;
+	private boolean orderedKeys;
 
-	public AbstractKeyValueGraphFactory(boolean supportGetContextNodes, boolean supportGetRelations) {
+	public AbstractKeyValueGraphFactory(boolean supportGetContextNodes, boolean supportGetRelations, boolean indexIncomingRelations) {
 
 		this.supportGetContextNodes = supportGetContextNodes;
 		this.supportGetRelations = supportGetRelations;
+		this.indexIncomingRelations = indexIncomingRelations;
+		this.orderedKeys = false;
 	}
 
 	@Override
@@ -30,7 +34,13 @@ public abstract class AbstractKeyValueGraphFactory extends AbstractGraphFactory
 
 		KeyValueStore keyValueStore = this.openKeyValueStore(identifier);
 
-		return new KeyValueGraph(this, identifier, keyValueStore, this.getSupportGetContextNodes(), this.getSupportGetRelations());
+		if (this.getOrderedKeys() && ! keyValueStore.supportsOrderedKeys()) {
+
+			keyValueStore.close();
+			throw new IOException("Key/value store " + keyValueStore.getClass().getSimpleName() + " does not support ordered keys.");
+		}
+
+		return new KeyValueGraph(this, identifier, keyValueStore, this.getSupportGetContextNodes(), this.getSupportGetRelations(), this.getIndexIncomingRelations(), this.getOrderedKeys());
 	}
 
 	/**
@@ -58,4 +68,35 @@ public abstract class AbstractKeyValueGraphFactory extends AbstractGraphFactory
 
 		this.supportGetRelations = supportGetRelations;
 	}
+
+	public boolean getIndexIncomingRelations() {
+
+		return this.indexIncomingRelations;
+	}
+
+	/**
+	 * Enables or disables the index of incoming relations in opened graphs.
+	 * Only enable this for key/value stores that have been written with the index from the start,
+	 * since incoming relations that were stored without the index will not be found.
+	 */
+	public void setIndexIncomingRelations(boolean indexIncomingRelations) {
+
+		this.indexIncomingRelations = indexIncomingRelations;
+	}
+
+	public boolean getOrderedKeys() {
+
+		return this.orderedKeys;
+	}
+
+	/**
+	 * Enables or disables the ordered key layout in opened graphs. In this layout, all keys of
+	 * a context node and its subtree share one prefix, so that stores with ordered keys can read
+	 * or delete a whole subtree in one range scan. Like the index of incoming relations, this must
+	 * be the same every time a key/value store is opened.
+	 */
+	public void setOrderedKeys(boolean orderedKeys) {
+
+		this.orderedKeys = orderedKeys;
+	}
 }
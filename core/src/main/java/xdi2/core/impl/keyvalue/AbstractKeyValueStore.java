@@ -1,6 +1,7 @@
 package xdi2.core.impl.keyvalue;
 
 import java.util.Iterator;
+import java.util.Map.Entry;
 
 import xdi2.core.util.iterators.IteratorFirstItem;
 import xdi2.core.util.iterators.IteratorCounter;
@@ -70,6 +71,24 @@ public abstract class AbstractKeyValueStore implements KeyValueStore {
 		return new IteratorCounter(this.getAll(key)).count();
 	}
 
+	@Override
+	public boolean supportsOrderedKeys() {
+
+		return false;
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> getAllWithPrefix(String prefix) {
+
+		throw new UnsupportedOperationException("Ordered keys are not supported.");
+	}
+
+	@Override
+	public void deleteWithPrefix(String prefix) {
+
+		throw new UnsupportedOperationException("Ordered keys are not supported.");
+	}
+
 	@Override
 	public boolean supportsTransactions() {
 
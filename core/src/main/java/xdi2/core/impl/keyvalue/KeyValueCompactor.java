@@ -0,0 +1,363 @@
+package xdi2.core.impl.keyvalue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.constants.XDIConstants;
+import xdi2.core.exceptions.Xdi2RuntimeException;
+import xdi2.core.impl.keyvalue.bdb.BDBKeyValueGraphFactory;
+import xdi2.core.util.iterators.ClosableIterator;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3SubSegment;
+
+/**
+ * An offline tool that removes orphaned keys from the key/value store of a graph, i.e. keys
+ * that cannot be reached from the root context node anymore. Such keys were left behind when
+ * context nodes and relations were deleted before their subtrees were deleted completely.
+ * 
+ * The store must support ordered keys, so that all its keys can be listed, and it must not
+ * be used by a graph while it is compacted. Entries of the index of incoming relations are
+ * kept as long as the relation they point to exists.
+ * 
+ * The keys are scanned once, and every key is checked by looking up the arcs from the root
+ * context node to its context node in the store. Only a bounded number of context nodes is
+ * remembered, and the orphaned entries are deleted in batches during the scan, so memory does
+ * not grow with the size of the store. The store must therefore allow writes while its keys
+ * are iterated, as MapKeyValueStore and BDBKeyValueStore (outside of a transaction) do.
+ * 
+ * @author markus
+ */
+public class KeyValueCompactor {
+
+	private static final Logger log = LoggerFactory.getLogger(KeyValueCompactor.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int CONTEXT_NODE_CACHE_SIZE = 10000;
+	private static final int DELETE_BATCH_SIZE = 1000;
+
+	private KeyValueStore keyValueStore;
+	private boolean orderedKeys;
+
+	private Map<String, Boolean> reachableContextNodes;
+
+	public KeyValueCompactor(KeyValueStore keyValueStore, boolean orderedKeys) {
+
+		this.keyValueStore = keyValueStore;
+		this.orderedKeys = orderedKeys;
+
+		this.reachableContextNodes = new LinkedHashMap<String, Boolean> (16, 0.75f, true) {
+
+			private static final long serialVersionUID = 3542376480164339271L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+
+				return this.size() > CONTEXT_NODE_CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * Finds all orphaned entries of the store and deletes them.
+	 * @return The number of entries that were scanned and deleted, and the bytes of keys and values that were deleted.
+	 */
+	public Result compact() {
+
+		if (! this.keyValueStore.supportsOrderedKeys()) throw new Xdi2RuntimeException("Key/value store " + this.keyValueStore.getClass().getSimpleName() + " cannot list its keys.");
+
+		// make sure we don't delete everything because the store uses the other key layout
+
+		if (! this.containsRootContextNode() && ! this.isEmpty()) throw new Xdi2RuntimeException("Key/value store has no root context node in the " + (this.orderedKeys ? "ordered" : "default") + " key layout.");
+
+		Result result = new Result();
+
+		// scan all keys, and delete the orphaned entries whenever a batch is full
+
+		List<Entry<String, String>> orphanedEntries = new ArrayList<Entry<String, String>> (DELETE_BATCH_SIZE);
+
+		Iterator<Entry<String, String>> entries = this.keyValueStore.getAllWithPrefix("");
+
+		try {
+
+			while (entries.hasNext()) {
+
+				Entry<String, String> entry = entries.next();
+
+				result.scannedEntries++;
+
+				if (this.isReachable(entry)) continue;
+
+				orphanedEntries.add(entry);
+				if (orphanedEntries.size() < DELETE_BATCH_SIZE) continue;
+
+				this.delete(orphanedEntries, result);
+				orphanedEntries.clear();
+			}
+		} finally {
+
+			close(entries);
+		}
+
+		this.delete(orphanedEntries, result);
+
+		this.reachableContextNodes.clear();
+
+		if (log.isDebugEnabled()) log.debug(result.toString());
+
+		return result;
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private boolean containsRootContextNode() {
+
+		return this.keyValueStore.contains(KeyValueContextNode.getContextNodesKey("", this.orderedKeys)) ||
+				this.keyValueStore.contains(KeyValueContextNode.getRelationsKey("", this.orderedKeys)) ||
+				this.keyValueStore.contains(KeyValueContextNode.getLiteralKey("", this.orderedKeys));
+	}
+
+	private boolean isEmpty() {
+
+		Iterator<Entry<String, String>> entries = this.keyValueStore.getAllWithPrefix("");
+
+		try {
+
+			return ! entries.hasNext();
+		} finally {
+
+			close(entries);
+		}
+	}
+
+	/**
+	 * Checks if an entry can be reached from the root context node. Entries of the index of
+	 * incoming relations can be reached if a relation they point to can be reached.
+	 */
+	private boolean isReachable(Entry<String, String> entry) {
+
+		String key = entry.getKey();
+
+		int index = key.indexOf(KeyValueContextNode.INCOMING_RELATIONS_SUFFIX);
+		String rest = index == -1 ? null : key.substring(index + KeyValueContextNode.INCOMING_RELATIONS_SUFFIX.length());
+
+		if (rest != null && rest.isEmpty()) {
+
+			Iterator<String> contextNodeXris = this.keyValueStore.getAll(key + "/" + entry.getValue());
+
+			try {
+
+				while (contextNodeXris.hasNext()) {
+
+					if (this.isIndexedRelation(key.substring(0, index), entry.getValue(), contextNodeXris.next())) return true;
+				}
+			} finally {
+
+				close(contextNodeXris);
+			}
+
+			return false;
+		}
+
+		if (rest != null && rest.startsWith("/")) return this.isIndexedRelation(key.substring(0, index), rest.substring(1), entry.getValue());
+
+		return this.isReachable(key);
+	}
+
+	/**
+	 * Checks if a key of the context nodes, relations or literal of a context node, or of one of its relations, can be reached.
+	 */
+	private boolean isReachable(String key) {
+
+		String[] contextNodeKeyAndRest = KeyValueContextNode.splitDataKey(key, this.orderedKeys);
+		if (contextNodeKeyAndRest == null) return false;
+
+		String contextNodeKey = contextNodeKeyAndRest[0];
+		String rest = contextNodeKeyAndRest[1];
+
+		if (! this.isReachableContextNode(contextNodeKey)) return false;
+		if (rest.startsWith("/")) return this.keyValueStore.contains(KeyValueContextNode.getRelationsKey(contextNodeKey, this.orderedKeys), rest.substring(1));
+
+		return true;
+	}
+
+	/**
+	 * Checks if the context node with a key can be reached, i.e. if its arc is in the context nodes of its parent,
+	 * and its parent can be reached.
+	 */
+	private boolean isReachableContextNode(String key) {
+
+		if (key.isEmpty()) return true;
+
+		Boolean reachable = this.reachableContextNodes.get(key);
+		if (reachable != null) return reachable.booleanValue();
+
+		String[] parentKeyAndArcXri = KeyValueContextNode.splitContextNodeKey(key, this.orderedKeys);
+
+		reachable = Boolean.valueOf(parentKeyAndArcXri != null &&
+				this.isReachableContextNode(parentKeyAndArcXri[0]) &&
+				this.keyValueStore.contains(KeyValueContextNode.getContextNodesKey(parentKeyAndArcXri[0], this.orderedKeys), parentKeyAndArcXri[1]));
+
+		this.reachableContextNodes.put(key, reachable);
+
+		return reachable.booleanValue();
+	}
+
+	/**
+	 * Checks if an entry of the index of incoming relations points to a relation that exists.
+	 */
+	private boolean isIndexedRelation(String targetContextNodeXri, String arcXri, String contextNodeXri) {
+
+		if (targetContextNodeXri.isEmpty()) targetContextNodeXri = XDIConstants.XRI_S_ROOT.toString();
+
+		String relationKey;
+
+		try {
+
+			relationKey = KeyValueContextNode.getRelationKey(this.contextNodeKey(XDI3Segment.create(contextNodeXri)), arcXri, this.orderedKeys);
+		} catch (Exception ex) {
+
+			return false;
+		}
+
+		return this.isReachable(relationKey) && this.keyValueStore.contains(relationKey, targetContextNodeXri);
+	}
+
+	/**
+	 * Deletes entries in one transaction, if the store supports transactions.
+	 */
+	private void delete(List<Entry<String, String>> entries, Result result) {
+
+		if (entries.isEmpty()) return;
+
+		boolean transaction = this.keyValueStore.supportsTransactions();
+		if (transaction) this.keyValueStore.beginTransaction();
+
+		try {
+
+			for (Entry<String, String> entry : entries) this.keyValueStore.delete(entry.getKey(), entry.getValue());
+
+			if (transaction) this.keyValueStore.commitTransaction();
+		} catch (RuntimeException ex) {
+
+			if (transaction) this.keyValueStore.rollbackTransaction();
+			throw ex;
+		}
+
+		for (Entry<String, String> entry : entries) {
+
+			result.orphanedEntries++;
+			result.reclaimedBytes += entry.getKey().getBytes(UTF8).length + entry.getValue().getBytes(UTF8).length;
+		}
+	}
+
+	private String contextNodeKey(XDI3Segment contextNodeXri) {
+
+		String key = "";
+
+		if (XDIConstants.XRI_S_ROOT.equals(contextNodeXri)) return key;
+
+		for (XDI3SubSegment arcXri : contextNodeXri.getSubSegments()) {
+
+			key = KeyValueContextNode.getContextNodeKey(key, arcXri.toString(), this.orderedKeys);
+		}
+
+		return key;
+	}
+
+	private static void close(Iterator<?> iterator) {
+
+		if (iterator instanceof ClosableIterator<?>) ((ClosableIterator<?>) iterator).close();
+	}
+
+	private static long directorySize(File directory) {
+
+		long size = 0;
+
+		File[] files = directory.listFiles();
+		if (files == null) return size;
+
+		for (File file : files) size += file.isDirectory() ? directorySize(file) : file.length();
+
+		return size;
+	}
+
+	/**
+	 * Compacts a graph in a BDB database.
+	 * Usage: KeyValueCompactor databasePath identifier [ordered]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2 || args.length > 3 || (args.length == 3 && ! "ordered".equals(args[2]))) {
+
+			log.error("Usage: " + KeyValueCompactor.class.getName() + " databasePath identifier [ordered]");
+			System.exit(1);
+		}
+
+		BDBKeyValueGraphFactory graphFactory = new BDBKeyValueGraphFactory();
+		graphFactory.setDatabasePath(args[0]);
+		graphFactory.setOrderedKeys(args.length == 3);
+
+		long sizeBefore = directorySize(new File(args[0]));
+
+		Result result = graphFactory.compactGraph(args[1]);
+
+		long sizeAfter = directorySize(new File(args[0]));
+
+		log.info(result.toString());
+		log.info("Database files: " + sizeBefore + " bytes before, " + sizeAfter + " bytes after compaction.");
+	}
+
+	/*
+	 * Helper classes
+	 */
+
+	/**
+	 * What a compaction found and deleted.
+	 */
+	public static class Result {
+
+		private long scannedEntries;
+		private long orphanedEntries;
+		private long reclaimedBytes;
+
+		private Result() {
+
+			this.scannedEntries = 0;
+			this.orphanedEntries = 0;
+			this.reclaimedBytes = 0;
+		}
+
+		public long getScannedEntries() {
+
+			return this.scannedEntries;
+		}
+
+		public long getOrphanedEntries() {
+
+			return this.orphanedEntries;
+		}
+
+		public long getReclaimedBytes() {
+
+			return this.reclaimedBytes;
+		}
+
+		@Override
+		public String toString() {
+
+			return "Scanned " + this.scannedEntries + " entries, deleted " + this.orphanedEntries + " orphaned entries with " + this.reclaimedBytes + " bytes of keys and values.";
+		}
+	}
+}
@@ -1,27 +1,53 @@
 package xdi2.core.impl.keyvalue;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 
 import xdi2.core.ContextNode;
 import xdi2.core.Literal;
 import xdi2.core.Relation;
+import xdi2.core.Statement;
+import xdi2.core.constants.XDIConstants;
 import xdi2.core.impl.AbstractContextNode;
 import xdi2.core.impl.AbstractLiteral;
 import xdi2.core.util.iterators.DescendingIterator;
 import xdi2.core.util.iterators.EmptyIterator;
+import xdi2.core.util.iterators.IteratorListMaker;
 import xdi2.core.util.iterators.MappingIterator;
 import xdi2.core.util.iterators.ReadOnlyIterator;
+import xdi2.core.util.iterators.SelectingMappingIterator;
 import xdi2.core.xri3.XDI3Segment;
 import xdi2.core.xri3.XDI3SubSegment;
 
+/**
+ * A context node in a key/value store.
+ * 
+ * In the ordered key layout, the key of an inner context node is the key of its parent,
+ * a separator and its arc XRI. The keys of the context nodes, relations and literal of a
+ * context node are its key, the separator twice, and "C", "R", "/" + arc XRI or "L".
+ * So all keys of a context node and its subtree start with its key and the separator.
+ * 
+ * Deleting a context node deletes the keys of its whole subtree, with ordered keys in one
+ * range delete. Stores that were written before this was the case may contain orphaned keys,
+ * which KeyValueCompactor removes.
+ */
 public class KeyValueContextNode extends AbstractContextNode implements ContextNode {
 
 	private static final long serialVersionUID = -4967051993820678931L;
 
+	private static final String SEPARATOR = "\u0001";
+	private static final String DATA_SEPARATOR = SEPARATOR + SEPARATOR;
+	private static final String CONTEXT_NODES_SUFFIX = DATA_SEPARATOR + "C";
+
+	static final String INCOMING_RELATIONS_SUFFIX = "/--I";
+
 	private KeyValueStore keyValueStore;
 	private String key;
 
 	private XDI3SubSegment arcXri;
+	private XDI3Segment xri;
 
 	public KeyValueContextNode(KeyValueGraph graph, KeyValueContextNode contextNode, KeyValueStore keyValueStore, String key, XDI3SubSegment arcXri) {
 
@@ -51,6 +77,14 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		return this.arcXri;
 	}
 
+	@Override
+	public XDI3Segment getXri() {
+
+		if (this.xri == null) this.xri = this.makeXri();
+
+		return this.xri;
+	}
+
 	/*
 	 * Methods related to context nodes of this context node
 	 */
@@ -63,13 +97,7 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		String contextNodesKey = this.getContextNodesKey();
 		String contextNodeKey = this.getContextNodeKey(arcXri);
 
-		if (! this.keyValueStore.contains(contextNodesKey, arcXri.toString())) {
-
-			this.keyValueStore.set(contextNodesKey, arcXri.toString());
-			this.keyValueStore.delete(contextNodeKey + "/--C");
-			this.keyValueStore.delete(contextNodeKey + "/--R");
-			this.keyValueStore.delete(contextNodeKey + "/--L");
-		}
+		this.keyValueStore.set(contextNodesKey, arcXri.toString());
 
 		KeyValueContextNode contextNode = new KeyValueContextNode((KeyValueGraph) this.getGraph(), this, this.keyValueStore, contextNodeKey, arcXri);
 
@@ -94,6 +122,34 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		});
 	}
 
+	@Override
+	public ReadOnlyIterator<ContextNode> getAllContextNodes() {
+
+		if (! this.isOrderedKeys()) return super.getAllContextNodes();
+
+		// one range scan over the subtree, picking up the inner context nodes of every context node
+
+		final ContextNodeResolver contextNodeResolver = new ContextNodeResolver();
+
+		return new SelectingMappingIterator<Entry<String, String>, ContextNode> (this.keyValueStore.getAllWithPrefix(this.getSubtreePrefix())) {
+
+			@Override
+			public boolean select(Entry<String, String> entry) {
+
+				return entry.getKey().endsWith(CONTEXT_NODES_SUFFIX);
+			}
+
+			@Override
+			public ContextNode map(Entry<String, String> entry) {
+
+				String key = entry.getKey();
+				KeyValueContextNode contextNode = contextNodeResolver.resolve(key.substring(0, key.length() - CONTEXT_NODES_SUFFIX.length()));
+
+				return contextNode.makeContextNode(XDI3SubSegment.create(entry.getValue()));
+			}
+		};
+	}
+
 	@Override
 	public ContextNode getContextNode(XDI3SubSegment arcXri) {
 
@@ -130,10 +186,16 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 
 		for (Iterator<Relation> relations = contextNode.getIncomingRelations(); relations.hasNext(); ) relations.next().delete();
 
-		// delete this context node
+		// remove relations of the deleted context nodes from the index
+
+		if (this.isIndexIncomingRelations()) unindexRelations(new IteratorListMaker<Relation> (contextNode.getAllRelations()).list());
+
+		// delete this context node and its subtree
 
 		String contextNodesKey = this.getContextNodesKey();
 
+		((KeyValueContextNode) contextNode).deleteKeys();
+
 		this.keyValueStore.delete(contextNodesKey, arcXri.toString());
 	}
 
@@ -146,10 +208,23 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 			for (Iterator<Relation> relations = contextNodes.next().getIncomingRelations(); relations.hasNext(); ) 
 				relations.next().delete();
 
+		// remove relations of the deleted context nodes from the index
+
+		if (this.isIndexIncomingRelations()) {
+
+			for (Iterator<ContextNode> contextNodes = this.getContextNodes(); contextNodes.hasNext(); ) 
+				unindexRelations(new IteratorListMaker<Relation> (contextNodes.next().getAllRelations()).list());
+		}
+
 		// delete context nodes
 
 		String contextNodesKey = this.getContextNodesKey();
 
+		for (String arcXri : new IteratorListMaker<String> (this.keyValueStore.getAll(contextNodesKey)).list()) {
+
+			this.makeContextNode(XDI3SubSegment.create(arcXri)).deleteKeys();
+		}
+
 		this.keyValueStore.delete(contextNodesKey);
 	}
 
@@ -178,6 +253,12 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		this.keyValueStore.set(relationsKey, arcXri.toString());
 		this.keyValueStore.set(relationKey, targetContextNodeXri.toString());
 
+		if (this.isIndexIncomingRelations()) {
+
+			this.keyValueStore.set(getIncomingRelationsKey(targetContextNodeXri), arcXri.toString());
+			this.keyValueStore.set(getIncomingRelationKey(targetContextNodeXri, arcXri), this.getXri().toString());
+		}
+
 		KeyValueRelation relation = new KeyValueRelation(this, this.keyValueStore, relationKey, arcXri, targetContextNodeXri);
 
 		return relation;
@@ -255,6 +336,32 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		};
 	}
 
+	@Override
+	public ReadOnlyIterator<Relation> getIncomingRelations(XDI3Segment arcXri) {
+
+		if (! this.isIndexIncomingRelations()) return super.getIncomingRelations(arcXri);
+
+		List<Relation> incomingRelations = new ArrayList<Relation> ();
+		this.addIncomingRelations(arcXri, incomingRelations);
+
+		return new ReadOnlyIterator<Relation> (incomingRelations.iterator());
+	}
+
+	@Override
+	public ReadOnlyIterator<Relation> getIncomingRelations() {
+
+		if (! this.isIndexIncomingRelations()) return super.getIncomingRelations();
+
+		List<Relation> incomingRelations = new ArrayList<Relation> ();
+
+		for (Iterator<String> arcXris = this.keyValueStore.getAll(getIncomingRelationsKey(this.getXri())); arcXris.hasNext(); ) {
+
+			this.addIncomingRelations(XDI3Segment.create(arcXris.next()), incomingRelations);
+		}
+
+		return new ReadOnlyIterator<Relation> (incomingRelations.iterator());
+	}
+
 	@Override
 	public boolean containsRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
 
@@ -293,6 +400,8 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 
 			this.keyValueStore.delete(relationsKey, arcXri.toString());
 		}
+
+		if (this.isIndexIncomingRelations()) this.unindexRelation(arcXri, targetContextNodeXri);
 	}
 
 	@Override
@@ -300,6 +409,11 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 
 		String relationsKey = this.getRelationsKey();
 
+		String relationKey = this.getRelationKey(arcXri);
+
+		if (this.isIndexIncomingRelations()) unindexRelations(new IteratorListMaker<Relation> (this.getRelations(arcXri)).list());
+
+		this.keyValueStore.delete(relationKey);
 		this.keyValueStore.delete(relationsKey, arcXri.toString());
 	}
 
@@ -308,6 +422,9 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 
 		String relationsKey = this.getRelationsKey();
 
+		if (this.isIndexIncomingRelations()) unindexRelations(new IteratorListMaker<Relation> (this.getRelations()).list());
+
+		this.deleteRelationKeys();
 		this.keyValueStore.delete(relationsKey);
 	}
 
@@ -389,33 +506,279 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 		this.keyValueStore.delete(literalKey);
 	}
 
+	/*
+	 * Methods related to statements
+	 */
+
+	@Override
+	public ReadOnlyIterator<Statement> getAllStatements() {
+
+		if (! this.isOrderedKeys()) return super.getAllStatements();
+
+		// one range scan over the subtree, turning every context node, relation and literal into a statement
+
+		final ContextNodeResolver contextNodeResolver = new ContextNodeResolver();
+
+		return new SelectingMappingIterator<Entry<String, String>, Statement> (this.keyValueStore.getAllWithPrefix(this.getSubtreePrefix())) {
+
+			@Override
+			public boolean select(Entry<String, String> entry) {
+
+				String key = entry.getKey();
+				String suffix = key.substring(key.lastIndexOf(DATA_SEPARATOR) + DATA_SEPARATOR.length());
+
+				return suffix.equals("C") || suffix.equals("L") || suffix.startsWith("/");
+			}
+
+			@Override
+			public Statement map(Entry<String, String> entry) {
+
+				String key = entry.getKey();
+				int index = key.lastIndexOf(DATA_SEPARATOR);
+				String suffix = key.substring(index + DATA_SEPARATOR.length());
+
+				KeyValueContextNode contextNode = contextNodeResolver.resolve(key.substring(0, index));
+
+				if (suffix.equals("C")) return contextNode.makeContextNode(XDI3SubSegment.create(entry.getValue())).getStatement();
+				if (suffix.equals("L")) return new KeyValueLiteral(contextNode, contextNode.keyValueStore, key, AbstractLiteral.stringToLiteralData(entry.getValue())).getStatement();
+
+				return new KeyValueRelation(contextNode, contextNode.keyValueStore, key, XDI3Segment.create(suffix.substring(1)), XDI3Segment.create(entry.getValue())).getStatement();
+			}
+		};
+	}
+
 	/*
 	 * Helper methods
 	 */
 
+	private String getOwnKey() {
+
+		return this.isRootContextNode() ? "" : this.key;
+	}
+
+	private String getSubtreePrefix() {
+
+		return this.getOwnKey() + SEPARATOR;
+	}
+
 	private String getContextNodesKey() {
 
-		return (this.isRootContextNode() ? "" : this.key) + "/--C";
+		return getContextNodesKey(this.getOwnKey(), this.isOrderedKeys());
 	}
 
 	private String getContextNodeKey(XDI3SubSegment arcXri) {
 
-		return (this.isRootContextNode() ? "" : this.key) + arcXri.toString();
+		return getContextNodeKey(this.getOwnKey(), arcXri.toString(), this.isOrderedKeys());
 	}
 
 	private String getRelationsKey() {
 
-		return (this.isRootContextNode() ? "" : this.key) + "/--R";
+		return getRelationsKey(this.getOwnKey(), this.isOrderedKeys());
 	}
 
 	private String getRelationKey(XDI3Segment arcXri) {
 
-		return (this.isRootContextNode() ? "" : this.key) + "/" + arcXri.toString();
+		return getRelationKey(this.getOwnKey(), arcXri.toString(), this.isOrderedKeys());
 	}
 
 	private String getLiteralKey() {
 
-		return (this.isRootContextNode() ? "" : this.key) + "/--L";
+		return getLiteralKey(this.getOwnKey(), this.isOrderedKeys());
+	}
+
+	/**
+	 * Deletes all keys of this context node and its subtree. With ordered keys, this is one range delete.
+	 */
+	private void deleteKeys() {
+
+		if (this.isOrderedKeys()) {
+
+			this.keyValueStore.deleteWithPrefix(this.getSubtreePrefix());
+			return;
+		}
+
+		for (String arcXri : new IteratorListMaker<String> (this.keyValueStore.getAll(this.getContextNodesKey())).list()) {
+
+			this.makeContextNode(XDI3SubSegment.create(arcXri)).deleteKeys();
+		}
+
+		this.deleteRelationKeys();
+
+		this.keyValueStore.delete(this.getContextNodesKey());
+		this.keyValueStore.delete(this.getRelationsKey());
+		this.keyValueStore.delete(this.getLiteralKey());
+	}
+
+	private void deleteRelationKeys() {
+
+		for (String arcXri : new IteratorListMaker<String> (this.keyValueStore.getAll(this.getRelationsKey())).list()) {
+
+			this.keyValueStore.delete(this.getRelationKey(XDI3Segment.create(arcXri)));
+		}
+	}
+
+	private KeyValueContextNode makeContextNode(XDI3SubSegment arcXri) {
+
+		return new KeyValueContextNode((KeyValueGraph) this.getGraph(), this, this.keyValueStore, this.getContextNodeKey(arcXri), arcXri);
+	}
+
+	private static String getIncomingRelationsKey(XDI3Segment targetContextNodeXri) {
+
+		return (XDIConstants.XRI_S_ROOT.equals(targetContextNodeXri) ? "" : targetContextNodeXri.toString()) + INCOMING_RELATIONS_SUFFIX;
+	}
+
+	private static String getIncomingRelationKey(XDI3Segment targetContextNodeXri, XDI3Segment arcXri) {
+
+		return getIncomingRelationsKey(targetContextNodeXri) + "/" + arcXri.toString();
+	}
+
+	/*
+	 * The key layouts, for the context node with the given key ("" for the root context node)
+	 */
+
+	static String getContextNodesKey(String key, boolean orderedKeys) {
+
+		return orderedKeys ? key + CONTEXT_NODES_SUFFIX : key + "/--C";
+	}
+
+	static String getContextNodeKey(String key, String arcXri, boolean orderedKeys) {
+
+		return orderedKeys ? key + SEPARATOR + arcXri : key + arcXri;
+	}
+
+	static String getRelationsKey(String key, boolean orderedKeys) {
+
+		return orderedKeys ? key + DATA_SEPARATOR + "R" : key + "/--R";
+	}
+
+	static String getRelationKey(String key, String arcXri, boolean orderedKeys) {
+
+		return orderedKeys ? key + DATA_SEPARATOR + "/" + arcXri : key + "/" + arcXri;
+	}
+
+	static String getLiteralKey(String key, boolean orderedKeys) {
+
+		return orderedKeys ? key + DATA_SEPARATOR + "L" : key + "/--L";
+	}
+
+	/**
+	 * Splits a key of the context nodes, relations or literal of a context node, or of one of its relations,
+	 * into the key of the context node and "C", "R", "L" or "/" + arc XRI.
+	 * @return Null, if the key has neither of these layouts.
+	 */
+	static String[] splitDataKey(String key, boolean orderedKeys) {
+
+		if (orderedKeys) {
+
+			int index = key.lastIndexOf(DATA_SEPARATOR);
+			if (index == -1) return null;
+
+			String rest = key.substring(index + DATA_SEPARATOR.length());
+			if (! rest.equals("C") && ! rest.equals("R") && ! rest.equals("L") && ! rest.startsWith("/")) return null;
+
+			return new String[] { key.substring(0, index), rest };
+		}
+
+		if (key.endsWith("/--C")) return new String[] { key.substring(0, key.length() - 4), "C" };
+		if (key.endsWith("/--R")) return new String[] { key.substring(0, key.length() - 4), "R" };
+		if (key.endsWith("/--L")) return new String[] { key.substring(0, key.length() - 4), "L" };
+
+		// the key of a context node has no slashes, except in cross-references
+
+		int depth = 0;
+
+		for (int i=0; i<key.length(); i++) {
+
+			char c = key.charAt(i);
+
+			if (c == '(') depth++;
+			else if (c == ')') depth--;
+			else if (c == '/' && depth == 0) return new String[] { key.substring(0, i), key.substring(i) };
+		}
+
+		return null;
+	}
+
+	/**
+	 * Splits the key of an inner context node into the key of its parent and its arc XRI.
+	 * @return Null, if the key is not the key of an inner context node.
+	 */
+	static String[] splitContextNodeKey(String key, boolean orderedKeys) {
+
+		if (orderedKeys) {
+
+			int index = key.lastIndexOf(SEPARATOR);
+			if (index == -1) return null;
+
+			return new String[] { key.substring(0, index), key.substring(index + SEPARATOR.length()) };
+		}
+
+		XDI3Segment xri;
+
+		try {
+
+			xri = XDI3Segment.create(key);
+		} catch (Exception ex) {
+
+			return null;
+		}
+
+		if (xri.getNumSubSegments() == 0) return null;
+
+		String arcXri = xri.getLastSubSegment().toString();
+		if (! key.endsWith(arcXri)) return null;
+
+		return new String[] { key.substring(0, key.length() - arcXri.length()), arcXri };
+	}
+
+	private boolean isIndexIncomingRelations() {
+
+		return ((KeyValueGraph) this.getGraph()).getIndexIncomingRelations();
+	}
+
+	private boolean isOrderedKeys() {
+
+		return ((KeyValueGraph) this.getGraph()).getOrderedKeys();
+	}
+
+	/**
+	 * Looks up the indexed incoming relations with a given arc XRI.
+	 */
+	private void addIncomingRelations(XDI3Segment arcXri, List<Relation> incomingRelations) {
+
+		XDI3Segment targetContextNodeXri = this.getXri();
+
+		for (Iterator<String> contextNodeXris = this.keyValueStore.getAll(getIncomingRelationKey(targetContextNodeXri, arcXri)); contextNodeXris.hasNext(); ) {
+
+			KeyValueContextNode contextNode = (KeyValueContextNode) this.getGraph().getDeepContextNode(XDI3Segment.create(contextNodeXris.next()));
+			if (contextNode == null) continue;
+
+			incomingRelations.add(new KeyValueRelation(contextNode, this.keyValueStore, contextNode.getRelationKey(arcXri), arcXri, targetContextNodeXri));
+		}
+	}
+
+	/**
+	 * Removes a relation of this context node from the index.
+	 */
+	private void unindexRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
+
+		String incomingRelationsKey = getIncomingRelationsKey(targetContextNodeXri);
+		String incomingRelationKey = getIncomingRelationKey(targetContextNodeXri, arcXri);
+
+		this.keyValueStore.delete(incomingRelationKey, this.getXri().toString());
+
+		if (! this.keyValueStore.contains(incomingRelationKey)) {
+
+			this.keyValueStore.delete(incomingRelationsKey, arcXri.toString());
+		}
+	}
+
+	private static void unindexRelations(List<Relation> relations) {
+
+		for (Relation relation : relations) {
+
+			((KeyValueContextNode) relation.getContextNode()).unindexRelation(relation.getArcXri(), relation.getTargetContextNodeXri());
+		}
 	}
 
 	KeyValueStore getKeyValueStore() {
@@ -427,4 +790,50 @@ public class KeyValueContextNode extends AbstractContextNode implements ContextN
 
 		return this.key;
 	}
+
+	/*
+	 * Helper classes
+	 */
+
+	/**
+	 * Finds the context nodes for the keys that a range scan below this context node returns.
+	 * Consecutive keys of a scan share most of their path, so the context nodes of the last path are reused.
+	 */
+	private class ContextNodeResolver {
+
+		private List<KeyValueContextNode> path;
+
+		private ContextNodeResolver() {
+
+			this.path = new ArrayList<KeyValueContextNode> ();
+			this.path.add(KeyValueContextNode.this);
+		}
+
+		private KeyValueContextNode resolve(String key) {
+
+			int depth = 0;
+			int start = KeyValueContextNode.this.getOwnKey().length();
+
+			while (start < key.length()) {
+
+				int end = key.indexOf(SEPARATOR, start + 1);
+				if (end == -1) end = key.length();
+
+				depth++;
+
+				String contextNodeKey = key.substring(0, end);
+
+				if (this.path.size() <= depth || ! this.path.get(depth).key.equals(contextNodeKey)) {
+
+					while (this.path.size() > depth) this.path.remove(this.path.size() - 1);
+
+					this.path.add(this.path.get(depth - 1).makeContextNode(XDI3SubSegment.create(key.substring(start + 1, end))));
+				}
+
+				start = end;
+			}
+
+			return this.path.get(depth);
+		}
+	}
 }
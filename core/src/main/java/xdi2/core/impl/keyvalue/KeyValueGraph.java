@@ -12,10 +12,12 @@ public class KeyValueGraph extends AbstractGraph implements Graph {
 
 	private final boolean supportGetContextNodes;
 	private final boolean supportGetRelations;
+	private final boolean indexIncomingRelations;
+	private final boolean orderedKeys;
 
 	private final KeyValueContextNode rootContextNode;
 
-	KeyValueGraph(AbstractKeyValueGraphFactory graphFactory, String identifier, KeyValueStore keyValueStore, boolean supportGetContextNodes, boolean supportGetRelations) {
+	KeyValueGraph(AbstractKeyValueGraphFactory graphFactory, String identifier, KeyValueStore keyValueStore, boolean supportGetContextNodes, boolean supportGetRelations, boolean indexIncomingRelations, boolean orderedKeys) {
 
 		super(graphFactory, identifier);
 
@@ -23,6 +25,8 @@ public class KeyValueGraph extends AbstractGraph implements Graph {
 
 		this.supportGetContextNodes = supportGetContextNodes;
 		this.supportGetRelations = supportGetRelations;
+		this.indexIncomingRelations = indexIncomingRelations;
+		this.orderedKeys = orderedKeys;
 
 		this.rootContextNode = new KeyValueContextNode(this, null, keyValueStore, "()", null);
 	}
@@ -96,4 +100,20 @@ public class KeyValueGraph extends AbstractGraph implements Graph {
 
 		return this.supportGetRelations;
 	}
+
+	/**
+	 * @return True, if this key/value graph maintains an index of incoming relations.
+	 */
+	public boolean getIndexIncomingRelations() {
+
+		return this.indexIncomingRelations;
+	}
+
+	/**
+	 * @return True, if this key/value graph uses the ordered key layout, where each subtree is one range of keys.
+	 */
+	public boolean getOrderedKeys() {
+
+		return this.orderedKeys;
+	}
 }
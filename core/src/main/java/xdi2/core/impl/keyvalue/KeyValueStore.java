@@ -2,11 +2,17 @@ package xdi2.core.impl.keyvalue;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.Map.Entry;
 
 /**
  * The key/value based graph storage implementations needs a KeyValueStore to function.
  * This defines basic operations on a key/value pair based datastore.
  * 
+ * Stores that support ordered keys can also read and delete all keys with a given prefix.
+ * 
+ * Transactions are bound to the thread that calls beginTransaction(), so several
+ * threads can each work in their own transaction on the same store.
+ * 
  * @author markus
  */
 public interface KeyValueStore {
@@ -25,6 +31,10 @@ public interface KeyValueStore {
 	public long count(String key);
 	public void clear();
 
+	public boolean supportsOrderedKeys();
+	public Iterator<Entry<String, String>> getAllWithPrefix(String prefix);
+	public void deleteWithPrefix(String prefix);
+
 	public boolean supportsTransactions();
 	public void beginTransaction();
 	public void commitTransaction();
@@ -6,6 +6,7 @@ import java.io.PrintStream;
 
 import xdi2.core.GraphFactory;
 import xdi2.core.impl.keyvalue.AbstractKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.KeyValueCompactor;
 import xdi2.core.impl.keyvalue.KeyValueStore;
 
 import com.sleepycat.collections.CurrentTransaction;
@@ -13,6 +14,7 @@ import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Durability.SyncPolicy;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.OperationStatus;
@@ -27,17 +29,27 @@ public class BDBKeyValueGraphFactory extends AbstractKeyValueGraphFactory implem
 
 	public static final boolean DEFAULT_SUPPORT_GET_CONTEXTNODES = true; 
 	public static final boolean DEFAULT_SUPPORT_GET_RELATIONS = true; 
+	public static final boolean DEFAULT_INDEX_INCOMING_RELATIONS = false; 
 	public static final boolean DEFAULT_SUPPORT_GET_LITERALS = true; 
 
 	public static final String DEFAULT_DATABASE_PATH = "./xdi2-bdb/";
+	public static final String DEFAULT_SYNC_POLICY = BDBKeyValueStore.DEFAULT_SYNC_POLICY.name();
+	public static final int DEFAULT_BATCH_SIZE = BDBKeyValueStore.DEFAULT_BATCH_SIZE;
+	public static final long DEFAULT_BATCH_WINDOW = BDBKeyValueStore.DEFAULT_BATCH_WINDOW;
 
 	private String databasePath;
+	private String syncPolicy;
+	private int batchSize;
+	private long batchWindow;
 
 	public BDBKeyValueGraphFactory() { 
 
-		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS);
+		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS, DEFAULT_INDEX_INCOMING_RELATIONS);
 
 		this.databasePath = DEFAULT_DATABASE_PATH;
+		this.syncPolicy = DEFAULT_SYNC_POLICY;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.batchWindow = DEFAULT_BATCH_WINDOW;
 	}
 
 	@Override
@@ -52,7 +64,7 @@ public class BDBKeyValueGraphFactory extends AbstractKeyValueGraphFactory implem
 
 		File file = new File(databasePath);
 
-		KeyValueStore keyValueStore;
+		BDBKeyValueStore keyValueStore;
 
 		try {
 
@@ -69,6 +81,9 @@ public class BDBKeyValueGraphFactory extends AbstractKeyValueGraphFactory implem
 			databaseConfig.setTransactional(true);
 
 			keyValueStore = new BDBKeyValueStore(databasePath, databaseName, environmentConfig, databaseConfig);
+			keyValueStore.setSyncPolicy(SyncPolicy.valueOf(this.getSyncPolicy()));
+			keyValueStore.setBatchSize(this.getBatchSize());
+			keyValueStore.setBatchWindow(this.getBatchWindow());
 			keyValueStore.init();
 		} catch (Exception ex) {
 
@@ -80,6 +95,29 @@ public class BDBKeyValueGraphFactory extends AbstractKeyValueGraphFactory implem
 		return keyValueStore;
 	}
 
+	/**
+	 * Deletes the orphaned keys of a graph, and gives their space back to the file system.
+	 * The graph must not be open while it is compacted.
+	 */
+	public KeyValueCompactor.Result compactGraph(String identifier) throws IOException {
+
+		BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.openKeyValueStore(identifier);
+
+		try {
+
+			KeyValueCompactor.Result result = new KeyValueCompactor(keyValueStore, this.getOrderedKeys()).compact();
+			keyValueStore.cleanLog();
+
+			return result;
+		} catch (RuntimeException ex) {
+
+			throw new IOException("Cannot compact database: " + ex.getMessage(), ex);
+		} finally {
+
+			keyValueStore.close();
+		}
+	}
+
 	public void dumpGraph(String identifier, PrintStream stream) throws IOException {
 
 		// check identifier
@@ -145,4 +183,43 @@ public class BDBKeyValueGraphFactory extends AbstractKeyValueGraphFactory implem
 
 		this.databasePath = path;
 	}
+
+	/**
+	 * The sync policy for commits: SYNC, WRITE_NO_SYNC or NO_SYNC.
+	 */
+	public String getSyncPolicy() {
+
+		return this.syncPolicy;
+	}
+
+	public void setSyncPolicy(String syncPolicy) {
+
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * The maximum number of writes outside of a transaction that are committed together.
+	 */
+	public int getBatchSize() {
+
+		return this.batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The number of milliseconds after which a batch of writes is committed, or 0 for no limit.
+	 */
+	public long getBatchWindow() {
+
+		return this.batchWindow;
+	}
+
+	public void setBatchWindow(long batchWindow) {
+
+		this.batchWindow = batchWindow;
+	}
 }
@@ -2,8 +2,27 @@ package xdi2.core.impl.keyvalue.bdb;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,16 +30,19 @@ import org.slf4j.LoggerFactory;
 import xdi2.core.exceptions.Xdi2RuntimeException;
 import xdi2.core.impl.keyvalue.AbstractKeyValueStore;
 import xdi2.core.impl.keyvalue.KeyValueStore;
-import xdi2.core.util.iterators.IteratorListMaker;
 import xdi2.core.util.iterators.ReadOnlyIterator;
 
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
+import com.sleepycat.je.Durability.SyncPolicy;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
@@ -28,12 +50,28 @@ import com.sleepycat.je.Transaction;
  * This class defines access to a BDB based datastore. It is used by the
  * BDBKeyValueGraphFactory class to create graphs stored in BDB.
  * 
+ * Keys and values are stored as UTF-8, so all keys with the same prefix form one range.
+ * Transactions are bound to the thread that began them. Writes outside of a transaction
+ * are committed in batches, and reads outside of a transaction see the uncommitted writes
+ * of the current batch, also those of other threads.
+ * 
  * @author markus
  */
 public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueStore {
 
 	private static final Logger log = LoggerFactory.getLogger(BDBKeyValueStore.class);
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String MIGRATED_SUFFIX = ".utf8";
+
+	public static final SyncPolicy DEFAULT_SYNC_POLICY = SyncPolicy.SYNC;
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	public static final long DEFAULT_BATCH_WINDOW = 0;
+	public static final boolean DEFAULT_LEAK_DETECTION = false;
+
+	private static final int PAGE_SIZE = 100;
+
 	private String databasePath;
 	private String databaseName;
 	private EnvironmentConfig environmentConfig;
@@ -43,7 +81,21 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 	private Database database;
 	private boolean databaseOpenedInTransaction;
 
-	private Transaction transaction;
+	private SyncPolicy syncPolicy;
+	private int batchSize;
+	private long batchWindow;
+
+	private ThreadLocal<Transaction> transaction;
+
+	private ReentrantLock batchLock;
+	private Transaction batchTransaction;
+	private List<Write> batchWrites;
+	private long batchStart;
+	private Timer batchTimer;
+
+	private ReferenceQueue<CursorIterator<?>> cursorQueue;
+	private Set<OpenCursor> openCursors;
+	private boolean leakDetection;
 
 	public BDBKeyValueStore(String databasePath, String databaseName, EnvironmentConfig environmentConfig, DatabaseConfig databaseConfig) {
 
@@ -51,6 +103,18 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 		this.databaseName = databaseName;
 		this.environmentConfig = environmentConfig;
 		this.databaseConfig = databaseConfig;
+
+		this.syncPolicy = DEFAULT_SYNC_POLICY;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.batchWindow = DEFAULT_BATCH_WINDOW;
+
+		this.transaction = new ThreadLocal<Transaction> ();
+		this.batchLock = new ReentrantLock();
+		this.batchWrites = new ArrayList<Write> ();
+
+		this.cursorQueue = new ReferenceQueue<CursorIterator<?>> ();
+		this.openCursors = Collections.synchronizedSet(new HashSet<OpenCursor> ());
+		this.leakDetection = DEFAULT_LEAK_DETECTION;
 	}
 
 	@Override
@@ -61,6 +125,8 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 		this.environment = new Environment(new File(this.databasePath), this.environmentConfig);
 		this.database = this.environment.openDatabase(null, this.databaseName, this.databaseConfig);
 		this.databaseOpenedInTransaction = false;
+
+		this.migrate();
 	}
 
 	@Override
@@ -70,6 +136,11 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		try {
 
+			this.commitBatch();
+			this.closeCursors(null);
+
+			if (this.batchTimer != null) this.batchTimer.cancel();
+
 			this.database.close();
 			this.environment.close();
 		} catch (DatabaseException ex) {
@@ -79,6 +150,7 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 			this.database = null;
 			this.environment = null;
+			this.batchTimer = null;
 		}
 	}
 
@@ -87,23 +159,18 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("set(" + key + "," + value + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
-		DatabaseEntry dbValue = new DatabaseEntry(value.getBytes());
-
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		final DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
+		final DatabaseEntry dbValue = new DatabaseEntry(value.getBytes(UTF8));
 
-		try {
-
-			OperationStatus status = this.database.put(transaction, dbKey, dbValue);
-			if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException("Unsuccessful");
+		this.write(new Write("Cannot write to database: ") {
 
-			if (this.transaction == null) transaction.commit();
-		} catch (Exception ex) {
+			@Override
+			protected void run(Transaction transaction) {
 
-			if (this.transaction == null) transaction.abort();
-			throw new Xdi2RuntimeException("Cannot write to database: " + ex.getMessage(), ex);
-		}
+				OperationStatus status = BDBKeyValueStore.this.database.put(transaction, dbKey, dbValue);
+				if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException("Unsuccessful");
+			}
+		});
 	}
 
 	@Override
@@ -111,23 +178,23 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("getOne(" + key + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
+		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
 		DatabaseEntry dbValue = new DatabaseEntry();
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		Transaction transaction = this.readTransaction();
 
 		try {
 
-			OperationStatus status = this.database.get(transaction, dbKey, dbValue, null);
+			OperationStatus status = this.database.get(transaction, dbKey, dbValue, LockMode.READ_COMMITTED);
 			if ((! status.equals(OperationStatus.SUCCESS)) && (! status.equals(OperationStatus.NOTFOUND))) throw new Xdi2RuntimeException();
 
-			if (this.transaction == null) transaction.commit();
-			return status.equals(OperationStatus.SUCCESS) ? new String(dbValue.getData()) : null;
+			return status.equals(OperationStatus.SUCCESS) ? new String(dbValue.getData(), UTF8) : null;
 		} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
 			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
+		} finally {
+
+			this.release();
 		}
 	}
 
@@ -136,22 +203,16 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("getAll(" + key + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
+		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
 		DatabaseEntry dbValue = new DatabaseEntry();
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		this.closeLeakedCursors();
 
 		try {
 
-			IteratorListMaker<String> i = new IteratorListMaker<String> (new CursorDuplicatesIterator(transaction, dbKey, dbValue));
-			List<String> list = i.list();
-
-			if (this.transaction == null) transaction.commit();
-			return list.iterator();
+			return new CursorDuplicatesIterator(this.transaction.get(), dbKey, dbValue);
 		} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
 			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
 		}
 	}
@@ -161,23 +222,24 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("contains(" + key + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
+		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
 		DatabaseEntry dbValue = new DatabaseEntry();
+		dbValue.setPartial(0, 0, true);
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		Transaction transaction = this.readTransaction();
 
 		try {
 
-			OperationStatus status = this.database.get(transaction, dbKey, dbValue, null);
+			OperationStatus status = this.database.get(transaction, dbKey, dbValue, LockMode.READ_COMMITTED);
 			if ((! status.equals(OperationStatus.SUCCESS)) && (! status.equals(OperationStatus.NOTFOUND))) throw new Xdi2RuntimeException();
 
-			if (this.transaction == null) transaction.commit();
 			return status.equals(OperationStatus.SUCCESS);
 		} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
 			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
+		} finally {
+
+			this.release();
 		}
 	}
 
@@ -186,89 +248,106 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("contains(" + key + "," + value + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
-		DatabaseEntry dbValue = new DatabaseEntry(value.getBytes());
+		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
+		DatabaseEntry dbValue = new DatabaseEntry(value.getBytes(UTF8));
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		Transaction transaction = this.readTransaction();
 
 		try {
 
-			OperationStatus status = this.database.getSearchBoth(transaction, dbKey, dbValue, null);
+			OperationStatus status = this.database.getSearchBoth(transaction, dbKey, dbValue, LockMode.READ_COMMITTED);
 			if ((! status.equals(OperationStatus.SUCCESS)) && (! status.equals(OperationStatus.NOTFOUND))) throw new Xdi2RuntimeException();
 
-			if (this.transaction == null) transaction.commit();
 			return status.equals(OperationStatus.SUCCESS);
 		} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
 			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
+		} finally {
+
+			this.release();
 		}
 	}
 
 	@Override
-	public void delete(String key) {
+	public long count(String key) {
 
-		if (log.isTraceEnabled()) log.trace("delete(" + key + ")");
+		if (log.isTraceEnabled()) log.trace("count(" + key + ")");
+
+		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
+		DatabaseEntry dbValue = new DatabaseEntry();
+		dbValue.setPartial(0, 0, true);
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
+		Cursor cursor = null;
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		Transaction transaction = this.readTransaction();
 
 		try {
 
-			this.database.delete(transaction, dbKey);
+			cursor = this.database.openCursor(transaction, CursorConfig.READ_COMMITTED);
+
+			OperationStatus status = cursor.getSearchKey(dbKey, dbValue, null);
+			if ((! status.equals(OperationStatus.SUCCESS)) && (! status.equals(OperationStatus.NOTFOUND))) throw new Xdi2RuntimeException();
 
-			if (this.transaction == null) transaction.commit();
+			return status.equals(OperationStatus.SUCCESS) ? cursor.count() : 0;
 		} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
-			throw new Xdi2RuntimeException("Cannot delete from database: " + ex.getMessage(), ex);
+			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
+		} finally {
+
+			if (cursor != null) cursor.close();
+
+			this.release();
 		}
 	}
 
 	@Override
-	public void delete(String key, String value) {
+	public void delete(String key) {
 
-		if (log.isTraceEnabled()) log.trace("delete(" + key + "," + value + ")");
+		if (log.isTraceEnabled()) log.trace("delete(" + key + ")");
 
-		DatabaseEntry dbKey = new DatabaseEntry(key.getBytes());
-		DatabaseEntry dbValue = new DatabaseEntry(value.getBytes());
+		final DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
 
-		Cursor cursor = null;
+		this.write(new Write("Cannot delete from database: ") {
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+			@Override
+			protected void run(Transaction transaction) {
 
-		try {
+				BDBKeyValueStore.this.database.delete(transaction, dbKey);
+			}
+		});
+	}
 
-			OperationStatus status;
+	@Override
+	public void delete(String key, String value) {
 
-			cursor = this.database.openCursor(transaction, null);
+		if (log.isTraceEnabled()) log.trace("delete(" + key + "," + value + ")");
 
-			status = cursor.getSearchBoth(dbKey, dbValue, null);
-			if (status.equals(OperationStatus.NOTFOUND)) {
+		final DatabaseEntry dbKey = new DatabaseEntry(key.getBytes(UTF8));
+		final DatabaseEntry dbValue = new DatabaseEntry(value.getBytes(UTF8));
 
-				cursor.close();
-				if (this.transaction == null) transaction.commit();
-				return;
-			}
-			if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException();
+		this.write(new Write("Cannot delete from database: ") {
 
-			status = cursor.delete();
-			if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException();
+			@Override
+			protected void run(Transaction transaction) {
 
-			cursor.close();
+				Cursor cursor = BDBKeyValueStore.this.database.openCursor(transaction, null);
 
-			if (this.transaction == null) transaction.commit();
-		} catch (Exception ex) {
+				try {
 
-			if (cursor != null) cursor.close();
+					OperationStatus status;
 
-			if (this.transaction == null) transaction.abort();
-			throw new Xdi2RuntimeException("Cannot delete from database: " + ex.getMessage(), ex);
-		}
+					status = cursor.getSearchBoth(dbKey, dbValue, null);
+					if (status.equals(OperationStatus.NOTFOUND)) return;
+					if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException();
+
+					status = cursor.delete();
+					if (! status.equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException();
+				} finally {
+
+					cursor.close();
+				}
+			}
+		});
 	}
 
 	@Override
@@ -276,27 +355,98 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("clear()");
 
-		Transaction transaction = this.transaction;
-		if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+		this.batchLock.lock();
 
 		try {
 
-			this.database.close();
+			this.commitBatch();
+			this.closeCursors(null);
 
-			this.environment.truncateDatabase(transaction, this.databaseName, false);
+			Transaction currentTransaction = this.transaction.get();
 
-			if (this.transaction == null) transaction.commit();
-		} catch (Exception ex) {
+			Transaction transaction = currentTransaction;
+			if (transaction == null) transaction = this.environment.beginTransaction(null, null);
+
+			try {
+
+				this.database.close();
+
+				this.environment.truncateDatabase(transaction, this.databaseName, false);
+
+				if (currentTransaction == null) this.commit(transaction);
+			} catch (Exception ex) {
 
-			if (this.transaction == null) transaction.abort();
-			throw new Xdi2RuntimeException("Cannot truncate dabatase: " + ex.getMessage(), ex);
+				if (currentTransaction == null) transaction.abort();
+				throw new Xdi2RuntimeException("Cannot truncate dabatase: " + ex.getMessage(), ex);
+			} finally {
+
+				this.database = this.environment.openDatabase(currentTransaction, this.databaseName, this.databaseConfig);
+				this.databaseOpenedInTransaction = (currentTransaction != null);
+			}
 		} finally {
 
-			this.database = this.environment.openDatabase(this.transaction, this.databaseName, this.databaseConfig);
-			this.databaseOpenedInTransaction = (this.transaction != null);
+			this.batchLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean supportsOrderedKeys() {
+
+		return true;
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> getAllWithPrefix(String prefix) {
+
+		if (log.isTraceEnabled()) log.trace("getAllWithPrefix(" + prefix + ")");
+
+		this.closeLeakedCursors();
+
+		try {
+
+			return new CursorPrefixIterator(this.transaction.get(), prefix.getBytes(UTF8));
+		} catch (Exception ex) {
+
+			throw new Xdi2RuntimeException("Cannot read from database: " + ex.getMessage(), ex);
 		}
 	}
 
+	@Override
+	public void deleteWithPrefix(String prefix) {
+
+		if (log.isTraceEnabled()) log.trace("deleteWithPrefix(" + prefix + ")");
+
+		final byte[] prefixBytes = prefix.getBytes(UTF8);
+
+		this.write(new Write("Cannot delete from database: ") {
+
+			@Override
+			protected void run(Transaction transaction) {
+
+				DatabaseEntry dbKey = new DatabaseEntry(prefixBytes);
+				DatabaseEntry dbValue = new DatabaseEntry();
+				dbValue.setPartial(0, 0, true);
+
+				Cursor cursor = BDBKeyValueStore.this.database.openCursor(transaction, null);
+
+				try {
+
+					OperationStatus status = cursor.getSearchKeyRange(dbKey, dbValue, null);
+
+					while (status.equals(OperationStatus.SUCCESS) && startsWith(dbKey.getData(), prefixBytes)) {
+
+						if (! cursor.delete().equals(OperationStatus.SUCCESS)) throw new Xdi2RuntimeException();
+
+						status = cursor.getNext(dbKey, dbValue, null);
+					}
+				} finally {
+
+					cursor.close();
+				}
+			}
+		});
+	}
+
 	@Override
 	public boolean supportsTransactions() {
 
@@ -308,13 +458,15 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("beginTransaction()");
 
-		if (this.transaction != null) throw new Xdi2RuntimeException("Already have an open transaction.");
+		if (this.transaction.get() != null) throw new Xdi2RuntimeException("Already have an open transaction.");
 
 		if (log.isDebugEnabled()) log.debug("Beginning Transaction...");
 
 		try {
 
-			this.transaction = this.environment.beginTransaction(null, null);
+			this.commitBatch();
+
+			this.transaction.set(this.environment.beginTransaction(null, null));
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot begin transaction: " + ex.getMessage(), ex);
@@ -328,12 +480,16 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("commitTransaction()");
 
-		if (this.transaction == null) throw new Xdi2RuntimeException("No open transaction.");
+		Transaction transaction = this.transaction.get();
+		if (transaction == null) throw new Xdi2RuntimeException("No open transaction.");
+
+		// if the commit fails, the transaction stays open, so that it can be rolled back
 
 		try {
 
-			this.transaction.commit();
-			this.transaction = null;
+			this.closeCursors(transaction);
+			this.commit(transaction);
+			this.transaction.remove();
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot commit transaction: " + ex.getMessage(), ex);
@@ -347,14 +503,16 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 
 		if (log.isTraceEnabled()) log.trace("rollbackTransaction()");
 
-		if (this.transaction == null) throw new Xdi2RuntimeException("No open transaction.");
+		Transaction transaction = this.transaction.get();
+		if (transaction == null) throw new Xdi2RuntimeException("No open transaction.");
 
 		if (log.isDebugEnabled()) log.debug("Rolling back transaction...");
 
 		try {
 
-			this.transaction.abort();
-			this.transaction = null;
+			this.transaction.remove();
+			this.closeCursors(transaction);
+			transaction.abort();
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot roll back transaction: " + ex.getMessage(), ex);
@@ -380,10 +538,476 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 		return this.databaseName;
 	}
 
+	/**
+	 * The sync policy for commits. SYNC writes and syncs the log on every commit,
+	 * WRITE_NO_SYNC only writes it (survives a crash of the process, not of the OS),
+	 * NO_SYNC does neither (like Transaction.commitNoSync()).
+	 */
+	public SyncPolicy getSyncPolicy() {
+
+		return this.syncPolicy;
+	}
+
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * The maximum number of writes outside of a transaction that are committed together.
+	 */
+	public int getBatchSize() {
+
+		return this.batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The number of milliseconds after which a batch of writes is committed, or 0 for no limit.
+	 */
+	public long getBatchWindow() {
+
+		return this.batchWindow;
+	}
+
+	public void setBatchWindow(long batchWindow) {
+
+		this.batchWindow = batchWindow;
+	}
+
+	/**
+	 * Returns the number of writes outside of a transaction that are not yet committed.
+	 */
+	public int getBatchCount() {
+
+		this.batchLock.lock();
+
+		try {
+
+			return this.batchWrites.size();
+		} finally {
+
+			this.batchLock.unlock();
+		}
+	}
+
+	/**
+	 * If enabled, every cursor remembers where it was opened, so that a cursor that is
+	 * never closed can be traced back to its caller. This costs a stack trace per getAll().
+	 */
+	public boolean getLeakDetection() {
+
+		return this.leakDetection;
+	}
+
+	public void setLeakDetection(boolean leakDetection) {
+
+		this.leakDetection = leakDetection;
+	}
+
+	/**
+	 * Returns the number of cursors that are currently open, after closing those whose
+	 * iterators have been garbage collected.
+	 */
+	public int getOpenCursorCount() {
+
+		this.closeLeakedCursors();
+
+		return this.openCursors.size();
+	}
+
+	/**
+	 * Cleans the log files until no more files need cleaning, and forces a checkpoint,
+	 * so that the cleaned files are deleted. This gives the space of deleted entries
+	 * back to the file system.
+	 * @return The number of log files that were cleaned.
+	 */
+	public int cleanLog() {
+
+		this.commitBatch();
+
+		int cleanedFiles = 0;
+
+		for (int files = this.environment.cleanLog(); files > 0; files = this.environment.cleanLog()) cleanedFiles += files;
+
+		CheckpointConfig checkpointConfig = new CheckpointConfig();
+		checkpointConfig.setForce(true);
+
+		this.environment.checkpoint(checkpointConfig);
+
+		if (log.isDebugEnabled()) log.debug("Cleaned " + cleanedFiles + " log files.");
+
+		return cleanedFiles;
+	}
+
+	/**
+	 * Commits the writes that were made outside of a transaction and are not yet committed.
+	 */
+	public void commitBatch() {
+
+		this.batchLock.lock();
+
+		try {
+
+			if (this.batchTransaction == null) return;
+
+			if (log.isDebugEnabled()) log.debug("Committing batch of " + this.batchWrites.size() + " writes...");
+
+			Transaction batchTransaction = this.batchTransaction;
+			this.batchTransaction = null;
+			this.batchWrites.clear();
+
+			this.commit(batchTransaction);
+		} catch (Exception ex) {
+
+			throw new Xdi2RuntimeException("Cannot commit batch: " + ex.getMessage(), ex);
+		} finally {
+
+			this.batchLock.unlock();
+		}
+	}
+
 	/*
 	 * Helper methods
 	 */
 
+	/**
+	 * Returns the transaction to read with. Outside of a transaction, this locks the batch
+	 * until release() is called.
+	 */
+	private Transaction readTransaction() {
+
+		Transaction transaction = this.transaction.get();
+		if (transaction != null) return transaction;
+
+		this.batchLock.lock();
+
+		try {
+
+			this.commitBatchIfExpired();
+		} catch (RuntimeException ex) {
+
+			this.batchLock.unlock();
+			throw ex;
+		}
+
+		return this.batchTransaction;
+	}
+
+	/**
+	 * Returns the transaction to write with. Outside of a transaction, this locks the batch
+	 * until release() is called.
+	 */
+	private Transaction writeTransaction() {
+
+		Transaction transaction = this.transaction.get();
+		if (transaction != null) return transaction;
+
+		this.batchLock.lock();
+
+		try {
+
+			this.commitBatchIfExpired();
+
+			if (this.batchTransaction == null) {
+
+				this.batchTransaction = this.environment.beginTransaction(null, null);
+				this.batchWrites.clear();
+				this.batchStart = System.currentTimeMillis();
+
+				if (this.batchSize > 1 && this.batchWindow > 0) this.scheduleBatchCommit(this.batchTransaction);
+			}
+		} catch (RuntimeException ex) {
+
+			this.batchLock.unlock();
+			throw ex;
+		}
+
+		return this.batchTransaction;
+	}
+
+	private void release() {
+
+		if (this.transaction.get() == null) this.batchLock.unlock();
+	}
+
+	/**
+	 * Runs a write in the current transaction, or in the batch.
+	 */
+	private void write(Write write) {
+
+		Transaction transaction = this.writeTransaction();
+
+		try {
+
+			try {
+
+				write.run(transaction);
+			} catch (Exception ex) {
+
+				if (! this.writeFailed(write)) throw new Xdi2RuntimeException(write.message + ex.getMessage(), ex);
+
+				return;
+			}
+
+			if (this.transaction.get() != null) return;
+
+			this.batchWrites.add(write);
+
+			if (this.batchWrites.size() >= this.batchSize) this.commitBatch();
+		} finally {
+
+			this.release();
+		}
+	}
+
+	/**
+	 * Called when a write in the batch has failed. Since the earlier writes of the batch have
+	 * already returned to their callers, they are committed on their own, and then the failed
+	 * write is tried once more in its own transaction.
+	 * @return True, if the failed write has succeeded when it was tried again.
+	 */
+	private boolean writeFailed(Write write) {
+
+		if (this.transaction.get() != null || this.batchTransaction == null) return false;
+
+		List<Write> writes = new ArrayList<Write> (this.batchWrites);
+
+		try {
+
+			this.batchTransaction.abort();
+		} finally {
+
+			this.batchTransaction = null;
+			this.batchWrites.clear();
+		}
+
+		if (writes.isEmpty()) return false;
+
+		if (log.isDebugEnabled()) log.debug("Committing " + writes.size() + " earlier writes of the batch after a failed write...");
+
+		Transaction transaction = this.environment.beginTransaction(null, null);
+
+		try {
+
+			for (Write earlierWrite : writes) earlierWrite.run(transaction);
+			this.commit(transaction);
+		} catch (RuntimeException ex) {
+
+			transaction.abort();
+
+			log.error("Cannot commit " + writes.size() + " earlier writes of the batch after a failed write: " + ex.getMessage(), ex);
+			throw new Xdi2RuntimeException("Cannot commit " + writes.size() + " earlier writes of the batch after a failed write: " + ex.getMessage(), ex);
+		}
+
+		transaction = this.environment.beginTransaction(null, null);
+
+		try {
+
+			write.run(transaction);
+			this.commit(transaction);
+
+			return true;
+		} catch (RuntimeException ex) {
+
+			transaction.abort();
+
+			return false;
+		}
+	}
+
+	/**
+	 * Commits a batch when the batch window has passed, unless it has already been committed.
+	 */
+	private void scheduleBatchCommit(final Transaction batchTransaction) {
+
+		if (this.batchTimer == null) this.batchTimer = new Timer("BDBKeyValueStore batch " + this.databaseName, true);
+
+		this.batchTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+
+				BDBKeyValueStore.this.batchLock.lock();
+
+				try {
+
+					if (BDBKeyValueStore.this.batchTransaction == batchTransaction) BDBKeyValueStore.this.commitBatch();
+				} catch (Exception ex) {
+
+					log.error("Cannot commit batch: " + ex.getMessage(), ex);
+				} finally {
+
+					BDBKeyValueStore.this.batchLock.unlock();
+				}
+			}
+		}, this.batchWindow);
+	}
+
+	private void commitBatchIfExpired() {
+
+		if (this.batchTransaction == null || this.batchWindow <= 0) return;
+
+		if (System.currentTimeMillis() - this.batchStart >= this.batchWindow) this.commitBatch();
+	}
+
+	private void commit(Transaction transaction) {
+
+		switch (this.syncPolicy) {
+
+		case NO_SYNC: transaction.commitNoSync(); break;
+		case WRITE_NO_SYNC: transaction.commitWriteNoSync(); break;
+		default: transaction.commitSync(); break;
+		}
+	}
+
+	private OpenCursor openCursor(CursorIterator<?> iterator, Transaction transaction) {
+
+		Cursor cursor = this.database.openCursor(transaction, CursorConfig.READ_COMMITTED);
+
+		OpenCursor openCursor = new OpenCursor(iterator, this.cursorQueue, cursor, transaction, this.leakDetection ? new Throwable("Cursor opened here") : null);
+		this.openCursors.add(openCursor);
+
+		return openCursor;
+	}
+
+	private void closeCursor(OpenCursor openCursor, boolean leaked) {
+
+		if (! this.openCursors.remove(openCursor)) return;
+
+		openCursor.closed = true;
+
+		if (leaked) {
+
+			if (openCursor.origin != null) log.warn("Closing a cursor that was never closed.", openCursor.origin);
+			else if (log.isDebugEnabled()) log.debug("Closing a cursor that was never closed. Enable leak detection to see where it was opened.");
+		}
+
+		try {
+
+			openCursor.cursor.close();
+		} catch (DatabaseException ex) {
+
+			log.warn("Cannot close cursor: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Closes the cursors whose iterators have been garbage collected without being closed.
+	 */
+	private void closeLeakedCursors() {
+
+		Reference<? extends CursorIterator<?>> reference;
+
+		while ((reference = this.cursorQueue.poll()) != null) this.closeCursor((OpenCursor) reference, true);
+	}
+
+	/**
+	 * Closes the cursors that are still open in a transaction, or all cursors if the transaction is null.
+	 */
+	private void closeCursors(Transaction transaction) {
+
+		this.closeLeakedCursors();
+
+		List<OpenCursor> openCursors;
+
+		synchronized (this.openCursors) {
+
+			openCursors = new ArrayList<OpenCursor> (this.openCursors);
+		}
+
+		for (OpenCursor openCursor : openCursors) {
+
+			if (transaction == null || openCursor.transaction == transaction) this.closeCursor(openCursor, true);
+		}
+	}
+
+	/**
+	 * Converts the entries that earlier versions stored in the platform charset to UTF-8, if that
+	 * is not UTF-8. A marker database with the suffix ".utf8" makes later opens skip this.
+	 */
+	private void migrate() {
+
+		Charset charset = Charset.defaultCharset();
+		String markerName = this.databaseName + MIGRATED_SUFFIX;
+
+		if (charset.equals(UTF8) || this.environmentConfig.getReadOnly()) return;
+		if (this.environment.getDatabaseNames().contains(markerName)) return;
+
+		Transaction transaction = this.environmentConfig.getTransactional() ? this.environment.beginTransaction(null, null) : null;
+		List<byte[][]> entries = new ArrayList<byte[][]> ();
+
+		try {
+
+			Cursor cursor = this.database.openCursor(transaction, null);
+
+			try {
+
+				DatabaseEntry dbKey = new DatabaseEntry();
+				DatabaseEntry dbValue = new DatabaseEntry();
+
+				while (cursor.getNext(dbKey, dbValue, null).equals(OperationStatus.SUCCESS)) {
+
+					if (isUTF8(dbKey.getData()) && isUTF8(dbValue.getData())) continue;
+
+					entries.add(new byte[][] { dbKey.getData(), dbValue.getData() });
+					cursor.delete();
+				}
+			} finally {
+
+				cursor.close();
+			}
+
+			for (byte[][] entry : entries) {
+
+				DatabaseEntry dbKey = new DatabaseEntry(new String(entry[0], charset).getBytes(UTF8));
+				DatabaseEntry dbValue = new DatabaseEntry(new String(entry[1], charset).getBytes(UTF8));
+
+				this.database.putNoDupData(transaction, dbKey, dbValue);
+			}
+
+			if (transaction != null) transaction.commit();
+		} catch (DatabaseException ex) {
+
+			if (transaction != null) transaction.abort();
+			throw ex;
+		}
+
+		DatabaseConfig markerConfig = new DatabaseConfig();
+		markerConfig.setAllowCreate(true);
+		markerConfig.setTransactional(this.environmentConfig.getTransactional());
+
+		this.environment.openDatabase(null, markerName, markerConfig).close();
+
+		if (! entries.isEmpty()) log.warn("Converted " + entries.size() + " entries of database " + this.databaseName + " from " + charset.name() + " to UTF-8.");
+	}
+
+	private static boolean isUTF8(byte[] bytes) {
+
+		try {
+
+			UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes));
+
+			return true;
+		} catch (CharacterCodingException ex) {
+
+			return false;
+		}
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] prefix) {
+
+		if (bytes.length < prefix.length) return false;
+
+		for (int i=0; i<prefix.length; i++) if (bytes[i] != prefix[i]) return false;
+
+		return true;
+	}
+
 	public static void cleanup(String databasePath) {
 
 		File path = new File(databasePath);
@@ -401,61 +1025,288 @@ public class BDBKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 	 * Helper classes
 	 */
 
-	private class CursorDuplicatesIterator extends ReadOnlyIterator<String> {
+	/**
+	 * A write, which can be run again in another transaction.
+	 */
+	private abstract static class Write {
 
-		private DatabaseEntry dbKey;
-		private DatabaseEntry dbValue;
-		private Cursor cursor;
+		private final String message;
+
+		private Write(String message) {
+
+			this.message = message;
+		}
+
+		protected abstract void run(Transaction transaction);
+	}
+
+	/**
+	 * An iterator that reads from a cursor. In a transaction, the cursor is positioned when
+	 * the first element is needed, and closed when there are no more elements. Outside of a
+	 * transaction, the elements are read in pages, and each page is read with its own cursor.
+	 * Cursors that are never closed are closed when their iterator is garbage collected, or
+	 * when the transaction or the store is closed.
+	 */
+	private abstract class CursorIterator<T> extends ReadOnlyIterator<T> {
+
+		protected DatabaseEntry dbKey;
+		protected DatabaseEntry dbValue;
+		private OpenCursor openCursor;
 		private OperationStatus status;
 
-		private CursorDuplicatesIterator(Transaction transaction, DatabaseEntry dbKey, DatabaseEntry dbValue) {
+		private LinkedList<T> page;
+		private boolean lastPage;
+		protected byte[] lastKey;
+		protected byte[] lastValue;
+
+		private CursorIterator(Transaction transaction, DatabaseEntry dbKey, DatabaseEntry dbValue) {
 
 			super(null);
 
 			this.dbKey = dbKey;
 			this.dbValue = dbValue;
 
-			this.cursor = null;
+			this.openCursor = transaction == null ? null : BDBKeyValueStore.this.openCursor(this, transaction);
+			this.status = null;
 
-			try {
+			this.page = null;
+			this.lastPage = false;
+		}
 
-				this.cursor = BDBKeyValueStore.this.database.openCursor(transaction, null);
-				this.status = this.cursor.getSearchKey(this.dbKey, this.dbValue, null);
-				if (! this.status.equals(OperationStatus.SUCCESS)) this.cursor.close();
-			} catch (DatabaseException ex) {
+		@Override
+		public boolean hasNext() {
+
+			if (this.openCursor == null) {
+
+				if (this.page == null || (this.page.isEmpty() && ! this.lastPage)) this.readPage();
 
-				throw new Xdi2RuntimeException("Cannot read from this.database.", ex);
+				return ! this.page.isEmpty();
 			}
+
+			if (this.openCursor.closed) return false;
+			if (this.status == null) this.move(true);
+
+			return this.status.equals(OperationStatus.SUCCESS) && ! this.openCursor.closed;
 		}
 
 		@Override
-		public boolean hasNext() {
+		public T next() {
 
-			return(this.status.equals(OperationStatus.SUCCESS));
+			if (! this.hasNext()) throw new NoSuchElementException();
+
+			if (this.openCursor == null) return this.page.removeFirst();
+
+			T element = this.element();
+
+			this.move(false);
+
+			return element;
 		}
 
 		@Override
-		public String next() {
+		public void close() {
+
+			if (this.openCursor == null) {
 
-			if (log.isTraceEnabled()) log.trace("CursorDuplicatesIterator.next()");
+				this.page = new LinkedList<T> ();
+				this.lastPage = true;
 
-			String element = new String(this.dbValue.getData());
+				return;
+			}
+
+			BDBKeyValueStore.this.closeCursor(this.openCursor, false);
+		}
+
+		private void move(boolean first) {
 
 			try {
 
-				if (! this.status.equals(OperationStatus.SUCCESS)) return null;
-				this.status = this.cursor.getNextDup(this.dbKey, this.dbValue, null);
+				this.status = first ? this.first(this.openCursor.cursor) : this.next(this.openCursor.cursor);
+			} catch (DatabaseException ex) {
 
-				if (! this.status.equals(OperationStatus.SUCCESS)) {
+				this.close();
+				throw new Xdi2RuntimeException("Cannot read from database.", ex);
+			}
 
-					this.cursor.close();
+			if (! this.status.equals(OperationStatus.SUCCESS)) this.close();
+		}
+
+		/**
+		 * Reads the next page of elements with a cursor of the batch, which is closed again
+		 * before the elements are returned.
+		 */
+		private void readPage() {
+
+			this.page = new LinkedList<T> ();
+
+			Transaction transaction = BDBKeyValueStore.this.readTransaction();
+			Cursor cursor = null;
+
+			try {
+
+				cursor = BDBKeyValueStore.this.database.openCursor(transaction, CursorConfig.READ_COMMITTED);
+
+				OperationStatus status = this.lastKey == null ? this.first(cursor) : this.after(cursor);
+
+				while (status.equals(OperationStatus.SUCCESS)) {
+
+					this.page.add(this.element());
+					this.lastKey = this.dbKey.getData().clone();
+					this.lastValue = this.dbValue.getData().clone();
+
+					if (this.page.size() >= PAGE_SIZE) break;
+
+					status = this.next(cursor);
 				}
+
+				this.lastPage = ! status.equals(OperationStatus.SUCCESS);
 			} catch (DatabaseException ex) {
 
+				this.lastPage = true;
 				throw new Xdi2RuntimeException("Cannot read from database.", ex);
+			} finally {
+
+				try {
+
+					if (cursor != null) cursor.close();
+				} finally {
+
+					BDBKeyValueStore.this.release();
+				}
 			}
+		}
 
-			return element;
+		protected abstract OperationStatus first(Cursor cursor);
+		protected abstract OperationStatus next(Cursor cursor);
+
+		/**
+		 * Positions a new cursor on the first entry after lastKey and lastValue.
+		 */
+		protected abstract OperationStatus after(Cursor cursor);
+
+		protected abstract T element();
+	}
+
+	private class CursorDuplicatesIterator extends CursorIterator<String> {
+
+		private CursorDuplicatesIterator(Transaction transaction, DatabaseEntry dbKey, DatabaseEntry dbValue) {
+
+			super(transaction, dbKey, dbValue);
+		}
+
+		@Override
+		protected OperationStatus first(Cursor cursor) {
+
+			return cursor.getSearchKey(this.dbKey, this.dbValue, null);
+		}
+
+		@Override
+		protected OperationStatus next(Cursor cursor) {
+
+			return cursor.getNextDup(this.dbKey, this.dbValue, null);
+		}
+
+		@Override
+		protected OperationStatus after(Cursor cursor) {
+
+			this.dbKey.setData(this.lastKey);
+			this.dbValue.setData(this.lastValue);
+
+			OperationStatus status = cursor.getSearchBothRange(this.dbKey, this.dbValue, null);
+			if (status.equals(OperationStatus.SUCCESS) && Arrays.equals(this.dbValue.getData(), this.lastValue)) status = this.next(cursor);
+
+			return status;
+		}
+
+		@Override
+		protected String element() {
+
+			return new String(this.dbValue.getData(), UTF8);
+		}
+	}
+
+	private class CursorPrefixIterator extends CursorIterator<Entry<String, String>> {
+
+		private byte[] prefix;
+
+		private CursorPrefixIterator(Transaction transaction, byte[] prefix) {
+
+			super(transaction, new DatabaseEntry(), new DatabaseEntry());
+
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected OperationStatus first(Cursor cursor) {
+
+			this.dbKey.setData(this.prefix);
+
+			return this.inRange(cursor.getSearchKeyRange(this.dbKey, this.dbValue, null));
+		}
+
+		@Override
+		protected OperationStatus next(Cursor cursor) {
+
+			return this.inRange(cursor.getNext(this.dbKey, this.dbValue, null));
+		}
+
+		@Override
+		protected OperationStatus after(Cursor cursor) {
+
+			this.dbKey.setData(this.lastKey);
+			this.dbValue.setData(this.lastValue);
+
+			OperationStatus status = cursor.getSearchBothRange(this.dbKey, this.dbValue, null);
+			if (status.equals(OperationStatus.SUCCESS)) {
+
+				if (Arrays.equals(this.dbValue.getData(), this.lastValue)) return this.next(cursor);
+
+				return this.inRange(status);
+			}
+
+			// no more values of the last key
+
+			this.dbKey.setData(this.lastKey);
+
+			status = cursor.getSearchKeyRange(this.dbKey, this.dbValue, null);
+			if (status.equals(OperationStatus.SUCCESS) && Arrays.equals(this.dbKey.getData(), this.lastKey)) status = cursor.getNextNoDup(this.dbKey, this.dbValue, null);
+
+			return this.inRange(status);
+		}
+
+		@Override
+		protected Entry<String, String> element() {
+
+			return new SimpleImmutableEntry<String, String> (new String(this.dbKey.getData(), UTF8), new String(this.dbValue.getData(), UTF8));
+		}
+
+		private OperationStatus inRange(OperationStatus status) {
+
+			if (status.equals(OperationStatus.SUCCESS) && ! startsWith(this.dbKey.getData(), this.prefix)) return OperationStatus.NOTFOUND;
+
+			return status;
+		}
+	}
+
+	/**
+	 * A cursor of a CursorIterator. This only weakly references the iterator,
+	 * so we find out when an iterator is garbage collected without having been closed.
+	 */
+	private static class OpenCursor extends WeakReference<CursorIterator<?>> {
+
+		private Cursor cursor;
+		private Transaction transaction;
+		private Throwable origin;
+		private volatile boolean closed;
+
+		private OpenCursor(CursorIterator<?> iterator, ReferenceQueue<CursorIterator<?>> queue, Cursor cursor, Transaction transaction, Throwable origin) {
+
+			super(iterator, queue);
+
+			this.cursor = cursor;
+			this.transaction = transaction;
+			this.origin = origin;
+			this.closed = false;
 		}
 	}
 }
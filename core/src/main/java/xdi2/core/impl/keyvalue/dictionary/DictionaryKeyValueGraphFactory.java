@@ -0,0 +1,56 @@
+package xdi2.core.impl.keyvalue.dictionary;
+
+import java.io.IOException;
+
+import xdi2.core.GraphFactory;
+import xdi2.core.impl.keyvalue.AbstractKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.KeyValueStore;
+
+/**
+ * GraphFactory that creates graphs in memory, stored in int arrays.
+ * 
+ * @author markus
+ */
+public class DictionaryKeyValueGraphFactory extends AbstractKeyValueGraphFactory implements GraphFactory {
+
+	public static final boolean DEFAULT_SUPPORT_GET_CONTEXTNODES = true; 
+	public static final boolean DEFAULT_SUPPORT_GET_RELATIONS = true; 
+	public static final boolean DEFAULT_INDEX_INCOMING_RELATIONS = true; 
+	public static final boolean DEFAULT_DIRECT = false;
+
+	private boolean direct;
+
+	public DictionaryKeyValueGraphFactory() {
+
+		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS, DEFAULT_INDEX_INCOMING_RELATIONS);
+
+		this.direct = DEFAULT_DIRECT;
+	}
+
+	@Override
+	protected KeyValueStore openKeyValueStore(String identifier) throws IOException {
+
+		// open store
+
+		KeyValueStore keyValueStore = new DictionaryKeyValueStore(this.direct);
+		keyValueStore.init();
+
+		// done
+
+		return keyValueStore;
+	}
+
+	/**
+	 * If true, the int arrays of the graphs are direct buffers outside of the heap.
+	 * Their size is then limited by -XX:MaxDirectMemorySize instead of -Xmx.
+	 */
+	public boolean getDirect() {
+
+		return this.direct;
+	}
+
+	public void setDirect(boolean direct) {
+
+		this.direct = direct;
+	}
+}
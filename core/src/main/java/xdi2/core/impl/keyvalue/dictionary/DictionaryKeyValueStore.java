@@ -0,0 +1,345 @@
+package xdi2.core.impl.keyvalue.dictionary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import xdi2.core.impl.keyvalue.AbstractKeyValueStore;
+import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.util.iterators.EmptyIterator;
+
+/**
+ * This class defines a key/value store in memory that is made of int arrays instead of
+ * objects. It is used by the DictionaryKeyValueGraphFactory class to create graphs in memory.
+ * 
+ * Keys and values share one dictionary, which gives every string an int id. Every key/value
+ * pair is a node with the ids of its key and value, and the nodes of a key form a doubly linked
+ * list. A hash table of nodes finds a pair in constant time. All of this lives in a few
+ * large IntArrays, which can be direct buffers outside of the heap. So a store with millions
+ * of pairs consists of a few dozen objects, which the garbage collector hardly ever looks at.
+ * 
+ * Like MapKeyValueStore, this store is not synchronized, and it does not support
+ * ordered keys or transactions.
+ * 
+ * @author markus
+ */
+public class DictionaryKeyValueStore extends AbstractKeyValueStore implements KeyValueStore {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private boolean direct;
+
+	private StringDictionary dictionary;
+
+	private IntArray heads;
+	private IntArray counts;
+
+	private IntArray nodeKeys;
+	private IntArray nodeValues;
+	private IntArray nodeNext;
+	private IntArray nodePrev;
+	private int nodes;
+	private int freeNode;
+	private int entries;
+
+	private IntArray table;
+	private int tableMask;
+
+	public DictionaryKeyValueStore(boolean direct) {
+
+		this.direct = direct;
+	}
+
+	@Override
+	public void init() throws IOException {
+
+		this.clear();
+	}
+
+	@Override
+	public void close() {
+
+		this.dictionary = null;
+		this.heads = null;
+		this.counts = null;
+		this.nodeKeys = null;
+		this.nodeValues = null;
+		this.nodeNext = null;
+		this.nodePrev = null;
+		this.table = null;
+	}
+
+	@Override
+	public void set(String key, String value) {
+
+		int keyId = this.dictionary.lookup(key);
+		int valueId = this.dictionary.lookup(value);
+
+		if (keyId != -1 && valueId != -1 && this.findNode(keyId, valueId) != -1) return;
+
+		keyId = this.dictionary.acquire(key);
+		valueId = this.dictionary.acquire(value);
+
+		this.heads.ensureCapacity(this.dictionary.size());
+		this.counts.ensureCapacity(this.dictionary.size());
+
+		this.addNode(keyId, valueId);
+	}
+
+	@Override
+	public String getOne(String key) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1 || this.heads.get(keyId) == 0) return null;
+
+		return this.dictionary.get(this.nodeValues.get(this.heads.get(keyId) - 1));
+	}
+
+	@Override
+	public Iterator<String> getAll(String key) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1 || this.heads.get(keyId) == 0) return new EmptyIterator<String> ();
+
+		// we return a copy, so the store can be changed while iterating
+
+		List<String> values = new ArrayList<String> (this.counts.get(keyId));
+
+		for (int node = this.heads.get(keyId); node != 0; node = this.nodeNext.get(node - 1)) {
+
+			values.add(this.dictionary.get(this.nodeValues.get(node - 1)));
+		}
+
+		return values.iterator();
+	}
+
+	@Override
+	public boolean contains(String key) {
+
+		int keyId = this.dictionary.lookup(key);
+
+		return keyId != -1 && this.heads.get(keyId) != 0;
+	}
+
+	@Override
+	public boolean contains(String key, String value) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1) return false;
+
+		int valueId = this.dictionary.lookup(value);
+		if (valueId == -1) return false;
+
+		return this.findNode(keyId, valueId) != -1;
+	}
+
+	@Override
+	public void delete(String key) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1) return;
+
+		while (this.heads.get(keyId) != 0) this.removeNode(this.heads.get(keyId) - 1);
+	}
+
+	@Override
+	public void delete(String key, String value) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1) return;
+
+		int valueId = this.dictionary.lookup(value);
+		if (valueId == -1) return;
+
+		int node = this.findNode(keyId, valueId);
+		if (node != -1) this.removeNode(node);
+	}
+
+	@Override
+	public long count(String key) {
+
+		int keyId = this.dictionary.lookup(key);
+		if (keyId == -1) return 0;
+
+		return this.counts.get(keyId);
+	}
+
+	@Override
+	public void clear() {
+
+		this.dictionary = new StringDictionary(this.direct);
+
+		this.heads = new IntArray(this.direct, INITIAL_CAPACITY);
+		this.counts = new IntArray(this.direct, INITIAL_CAPACITY);
+
+		this.nodeKeys = new IntArray(this.direct, INITIAL_CAPACITY);
+		this.nodeValues = new IntArray(this.direct, INITIAL_CAPACITY);
+		this.nodeNext = new IntArray(this.direct, INITIAL_CAPACITY);
+		this.nodePrev = new IntArray(this.direct, INITIAL_CAPACITY);
+		this.nodes = 0;
+		this.freeNode = -1;
+		this.entries = 0;
+
+		this.table = new IntArray(this.direct, 2 * INITIAL_CAPACITY);
+		this.tableMask = this.table.capacity() - 1;
+	}
+
+	public boolean isDirect() {
+
+		return this.direct;
+	}
+
+	/**
+	 * The number of key/value pairs in the store.
+	 */
+	public int getEntryCount() {
+
+		return this.entries;
+	}
+
+	/**
+	 * The number of different strings in the keys and values of the store.
+	 */
+	public int getStringCount() {
+
+		return this.dictionary.count();
+	}
+
+	/**
+	 * The number of bytes of all buffers of the store, on or off the heap.
+	 */
+	public long getBytes() {
+
+		return this.dictionary.bytes() + this.heads.bytes() + this.counts.bytes() + this.nodeKeys.bytes() + this.nodeValues.bytes() + this.nodeNext.bytes() + this.nodePrev.bytes() + this.table.bytes();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private int findNode(int keyId, int valueId) {
+
+		for (int slot = hash(keyId, valueId) & this.tableMask; ; slot = (slot + 1) & this.tableMask) {
+
+			int entry = this.table.get(slot);
+			if (entry == 0) return -1;
+
+			int node = entry - 1;
+			if (this.nodeKeys.get(node) == keyId && this.nodeValues.get(node) == valueId) return node;
+		}
+	}
+
+	private void addNode(int keyId, int valueId) {
+
+		if (2 * (this.entries + 1) > this.table.capacity()) this.rehash(2 * this.table.capacity());
+
+		// find a node
+
+		int node;
+
+		if (this.freeNode != -1) {
+
+			node = this.freeNode;
+			this.freeNode = this.nodeNext.get(node) - 1;
+		} else {
+
+			node = this.nodes++;
+
+			this.nodeKeys.ensureCapacity(this.nodes);
+			this.nodeValues.ensureCapacity(this.nodes);
+			this.nodeNext.ensureCapacity(this.nodes);
+			this.nodePrev.ensureCapacity(this.nodes);
+		}
+
+		// put it at the head of the list of the key
+
+		int head = this.heads.get(keyId);
+
+		this.nodeKeys.set(node, keyId);
+		this.nodeValues.set(node, valueId);
+		this.nodeNext.set(node, head);
+		this.nodePrev.set(node, 0);
+
+		if (head != 0) this.nodePrev.set(head - 1, node + 1);
+		this.heads.set(keyId, node + 1);
+		this.counts.set(keyId, this.counts.get(keyId) + 1);
+		this.entries++;
+
+		// add it to the table
+
+		int slot = hash(keyId, valueId) & this.tableMask;
+		while (this.table.get(slot) != 0) slot = (slot + 1) & this.tableMask;
+		this.table.set(slot, node + 1);
+	}
+
+	private void removeNode(int node) {
+
+		int keyId = this.nodeKeys.get(node);
+		int valueId = this.nodeValues.get(node);
+
+		// remove it from the table, and move the following entries back into the gap
+
+		int slot = hash(keyId, valueId) & this.tableMask;
+		while (this.table.get(slot) != node + 1) slot = (slot + 1) & this.tableMask;
+
+		for (int next = (slot + 1) & this.tableMask; ; next = (next + 1) & this.tableMask) {
+
+			int entry = this.table.get(next);
+			if (entry == 0) break;
+
+			int home = hash(this.nodeKeys.get(entry - 1), this.nodeValues.get(entry - 1)) & this.tableMask;
+
+			if (((next - home) & this.tableMask) >= ((next - slot) & this.tableMask)) {
+
+				this.table.set(slot, entry);
+				slot = next;
+			}
+		}
+
+		this.table.set(slot, 0);
+
+		// remove it from the list of the key
+
+		int next = this.nodeNext.get(node);
+		int prev = this.nodePrev.get(node);
+
+		if (prev != 0) this.nodeNext.set(prev - 1, next); else this.heads.set(keyId, next);
+		if (next != 0) this.nodePrev.set(next - 1, prev);
+
+		this.counts.set(keyId, this.counts.get(keyId) - 1);
+		this.entries--;
+
+		// free the node and the strings
+
+		this.nodeNext.set(node, this.freeNode + 1);
+		this.freeNode = node;
+
+		this.dictionary.release(keyId);
+		this.dictionary.release(valueId);
+	}
+
+	private void rehash(int capacity) {
+
+		IntArray table = new IntArray(this.direct, capacity);
+		int tableMask = table.capacity() - 1;
+
+		for (int slot=0; slot<this.table.capacity(); slot++) {
+
+			int entry = this.table.get(slot);
+			if (entry == 0) continue;
+
+			int newSlot = hash(this.nodeKeys.get(entry - 1), this.nodeValues.get(entry - 1)) & tableMask;
+			while (table.get(newSlot) != 0) newSlot = (newSlot + 1) & tableMask;
+			table.set(newSlot, entry);
+		}
+
+		this.table = table;
+		this.tableMask = tableMask;
+	}
+
+	private static int hash(int keyId, int valueId) {
+
+		return StringDictionary.mix(keyId * 0x9e3779b9 + valueId);
+	}
+}
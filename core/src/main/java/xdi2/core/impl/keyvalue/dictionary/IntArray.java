@@ -0,0 +1,106 @@
+package xdi2.core.impl.keyvalue.dictionary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A growable array of ints, kept in buffers either on the heap or outside of it
+ * (direct buffers). Large arrays consist of segments of fixed size, so growing them
+ * only adds segments and never copies elements. New elements are 0.
+ * 
+ * @author markus
+ */
+class IntArray {
+
+	private static final int SHIFT = 16;
+	private static final int SEGMENT_SIZE = 1 << SHIFT;
+	private static final int MASK = SEGMENT_SIZE - 1;
+	private static final int MIN_SIZE = 16;
+
+	private boolean direct;
+
+	private IntBuffer[] segments;
+	private int capacity;
+
+	IntArray(boolean direct, int capacity) {
+
+		this.direct = direct;
+
+		this.segments = new IntBuffer[0];
+		this.capacity = 0;
+
+		this.ensureCapacity(capacity);
+	}
+
+	int get(int index) {
+
+		return this.segments[index >>> SHIFT].get(index & MASK);
+	}
+
+	void set(int index, int value) {
+
+		this.segments[index >>> SHIFT].put(index & MASK, value);
+	}
+
+	void ensureCapacity(int capacity) {
+
+		if (capacity <= this.capacity) return;
+
+		// a small array is one buffer, which is replaced by a larger one
+
+		if (capacity < SEGMENT_SIZE) {
+
+			int size = Math.max(MIN_SIZE, Integer.highestOneBit(capacity - 1) << 1);
+
+			this.segments = new IntBuffer[] { this.copy(this.segments.length == 0 ? null : this.segments[0], size) };
+			this.capacity = size;
+
+			return;
+		}
+
+		// a large array is a number of segments
+
+		if (capacity > Integer.MAX_VALUE - MASK) throw new IllegalArgumentException("Capacity too large: " + capacity);
+
+		int count = (capacity + MASK) >>> SHIFT;
+		IntBuffer[] segments = new IntBuffer[count];
+
+		for (int i=0; i<count; i++) {
+
+			if (i >= this.segments.length) segments[i] = this.copy(null, SEGMENT_SIZE);
+			else if (this.segments[i].capacity() < SEGMENT_SIZE) segments[i] = this.copy(this.segments[i], SEGMENT_SIZE);
+			else segments[i] = this.segments[i];
+		}
+
+		this.segments = segments;
+		this.capacity = count << SHIFT;
+	}
+
+	int capacity() {
+
+		return this.capacity;
+	}
+
+	long bytes() {
+
+		return 4L * this.capacity;
+	}
+
+	private IntBuffer copy(IntBuffer segment, int size) {
+
+		ByteBuffer byteBuffer = this.direct ? ByteBuffer.allocateDirect(4 * size) : ByteBuffer.allocate(4 * size);
+		IntBuffer newSegment = byteBuffer.order(ByteOrder.nativeOrder()).asIntBuffer();
+
+		if (segment != null) {
+
+			IntBuffer oldSegment = segment.duplicate();
+			oldSegment.clear();
+
+			newSegment.put(oldSegment);
+			newSegment.clear();
+		}
+
+		return newSegment;
+	}
+}
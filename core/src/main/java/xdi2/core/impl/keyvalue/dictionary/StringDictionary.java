@@ -0,0 +1,298 @@
+package xdi2.core.impl.keyvalue.dictionary;
+
+/**
+ * Assigns int ids to strings. The characters of all strings are kept in one IntArray,
+ * two per int. Ids are reference counted. The id of a string that is no longer referenced
+ * is reused, and the space of its characters is reclaimed when there is enough of it.
+ * 
+ * @author markus
+ */
+class StringDictionary {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MIN_GARBAGE = 1 << 16;
+
+	private boolean direct;
+
+	private IntArray chars;
+	private int charsSize;
+	private int charsGarbage;
+
+	private IntArray offsets;
+	private IntArray lengths;
+	private IntArray hashes;
+	private IntArray references;
+	private int size;
+	private int count;
+	private int freeId;
+
+	private IntArray table;
+	private int tableMask;
+
+	StringDictionary(boolean direct) {
+
+		this.direct = direct;
+
+		this.chars = new IntArray(direct, INITIAL_CAPACITY);
+		this.charsSize = 0;
+		this.charsGarbage = 0;
+
+		this.offsets = new IntArray(direct, INITIAL_CAPACITY);
+		this.lengths = new IntArray(direct, INITIAL_CAPACITY);
+		this.hashes = new IntArray(direct, INITIAL_CAPACITY);
+		this.references = new IntArray(direct, INITIAL_CAPACITY);
+		this.size = 0;
+		this.count = 0;
+		this.freeId = -1;
+
+		this.table = new IntArray(direct, 2 * INITIAL_CAPACITY);
+		this.tableMask = this.table.capacity() - 1;
+	}
+
+	/**
+	 * Returns the id of a string, or -1 if it has none.
+	 */
+	int lookup(String string) {
+
+		int hash = string.hashCode();
+
+		for (int slot = mix(hash) & this.tableMask; ; slot = (slot + 1) & this.tableMask) {
+
+			int entry = this.table.get(slot);
+			if (entry == 0) return -1;
+
+			int id = entry - 1;
+			if (this.hashes.get(id) == hash && this.equals(id, string)) return id;
+		}
+	}
+
+	/**
+	 * Returns the id of a string, and adds a reference to it. The string gets an id if it has none.
+	 */
+	int acquire(String string) {
+
+		int id = this.lookup(string);
+
+		if (id == -1) id = this.add(string);
+
+		this.references.set(id, this.references.get(id) + 1);
+
+		return id;
+	}
+
+	/**
+	 * Removes a reference to an id. When there are no more references, the id is freed.
+	 */
+	void release(int id) {
+
+		int references = this.references.get(id) - 1;
+		this.references.set(id, references);
+
+		if (references == 0) this.remove(id);
+	}
+
+	String get(int id) {
+
+		int offset = this.offsets.get(id);
+		int length = this.lengths.get(id);
+
+		char[] chars = new char[length];
+
+		for (int i=0; i<length; i++) chars[i] = this.charAt(offset, i);
+
+		return new String(chars);
+	}
+
+	/**
+	 * The number of ids that were ever handed out. All ids are smaller than this.
+	 */
+	int size() {
+
+		return this.size;
+	}
+
+	/**
+	 * The number of strings that currently have an id.
+	 */
+	int count() {
+
+		return this.count;
+	}
+
+	long bytes() {
+
+		return this.chars.bytes() + this.offsets.bytes() + this.lengths.bytes() + this.hashes.bytes() + this.references.bytes() + this.table.bytes();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private int add(String string) {
+
+		if (2 * (this.count + 1) > this.table.capacity()) this.rehash(2 * this.table.capacity());
+
+		// find an id
+
+		int id;
+
+		if (this.freeId != -1) {
+
+			id = this.freeId;
+			this.freeId = this.offsets.get(id);
+		} else {
+
+			id = this.size++;
+
+			this.offsets.ensureCapacity(this.size);
+			this.lengths.ensureCapacity(this.size);
+			this.hashes.ensureCapacity(this.size);
+			this.references.ensureCapacity(this.size);
+		}
+
+		// store the characters
+
+		int length = string.length();
+		int offset = this.charsSize;
+
+		this.charsSize += (length + 1) / 2;
+		if (this.charsSize < 0) throw new IllegalStateException("Dictionary is full.");
+		this.chars.ensureCapacity(this.charsSize);
+
+		for (int i=0; i<length; i+=2) {
+
+			int c1 = string.charAt(i);
+			int c2 = i + 1 < length ? string.charAt(i + 1) : 0;
+
+			this.chars.set(offset + i / 2, (c1 << 16) | c2);
+		}
+
+		this.offsets.set(id, offset);
+		this.lengths.set(id, length);
+		this.hashes.set(id, string.hashCode());
+		this.references.set(id, 0);
+		this.count++;
+
+		// add it to the table
+
+		int slot = mix(string.hashCode()) & this.tableMask;
+		while (this.table.get(slot) != 0) slot = (slot + 1) & this.tableMask;
+		this.table.set(slot, id + 1);
+
+		return id;
+	}
+
+	private void remove(int id) {
+
+		// remove it from the table, and move the following entries back into the gap
+
+		int slot = mix(this.hashes.get(id)) & this.tableMask;
+		while (this.table.get(slot) != id + 1) slot = (slot + 1) & this.tableMask;
+
+		for (int next = (slot + 1) & this.tableMask; ; next = (next + 1) & this.tableMask) {
+
+			int entry = this.table.get(next);
+			if (entry == 0) break;
+
+			int home = mix(this.hashes.get(entry - 1)) & this.tableMask;
+
+			if (((next - home) & this.tableMask) >= ((next - slot) & this.tableMask)) {
+
+				this.table.set(slot, entry);
+				slot = next;
+			}
+		}
+
+		this.table.set(slot, 0);
+
+		// free the id and its characters
+
+		this.charsGarbage += (this.lengths.get(id) + 1) / 2;
+
+		this.offsets.set(id, this.freeId);
+		this.lengths.set(id, -1);
+		this.freeId = id;
+		this.count--;
+
+		if (this.charsGarbage > MIN_GARBAGE && this.charsGarbage > this.charsSize / 2) this.compactChars();
+	}
+
+	private void rehash(int capacity) {
+
+		IntArray table = new IntArray(this.direct, capacity);
+		int tableMask = table.capacity() - 1;
+
+		for (int id=0; id<this.size; id++) {
+
+			if (this.isFree(id)) continue;
+
+			int slot = mix(this.hashes.get(id)) & tableMask;
+			while (table.get(slot) != 0) slot = (slot + 1) & tableMask;
+			table.set(slot, id + 1);
+		}
+
+		this.table = table;
+		this.tableMask = tableMask;
+	}
+
+	/**
+	 * Copies the characters of all strings that have an id to a new IntArray.
+	 */
+	private void compactChars() {
+
+		IntArray chars = new IntArray(this.direct, this.charsSize - this.charsGarbage);
+		int charsSize = 0;
+
+		for (int id=0; id<this.size; id++) {
+
+			if (this.isFree(id)) continue;
+
+			int offset = this.offsets.get(id);
+			int ints = (this.lengths.get(id) + 1) / 2;
+
+			for (int i=0; i<ints; i++) chars.set(charsSize + i, this.chars.get(offset + i));
+
+			this.offsets.set(id, charsSize);
+			charsSize += ints;
+		}
+
+		this.chars = chars;
+		this.charsSize = charsSize;
+		this.charsGarbage = 0;
+	}
+
+	private boolean isFree(int id) {
+
+		return this.lengths.get(id) < 0;
+	}
+
+	private boolean equals(int id, String string) {
+
+		int length = this.lengths.get(id);
+		if (length != string.length()) return false;
+
+		int offset = this.offsets.get(id);
+
+		for (int i=0; i<length; i++) if (this.charAt(offset, i) != string.charAt(i)) return false;
+
+		return true;
+	}
+
+	private char charAt(int offset, int i) {
+
+		int value = this.chars.get(offset + i / 2);
+
+		return (char) ((i & 1) == 0 ? value >>> 16 : value & 0xffff);
+	}
+
+	static int mix(int hash) {
+
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+
+		return hash;
+	}
+}
@@ -15,6 +15,7 @@ public final class MapKeyValueGraphFactory extends AbstractKeyValueGraphFactory
 
 	public static final boolean DEFAULT_SUPPORT_GET_CONTEXTNODES = true; 
 	public static final boolean DEFAULT_SUPPORT_GET_RELATIONS = true; 
+	public static final boolean DEFAULT_INDEX_INCOMING_RELATIONS = true; 
 
 	private static final MapFactory DEFAULT_MAP_FACTORY = new DefaultMapFactory();
 	private static final SetFactory DEFAULT_SET_FACTORY = new DefaultSetFactory();
@@ -24,7 +25,7 @@ public final class MapKeyValueGraphFactory extends AbstractKeyValueGraphFactory
 
 	public MapKeyValueGraphFactory() {
 
-		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS);
+		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS, DEFAULT_INDEX_INCOMING_RELATIONS);
 
 		this.mapFactory = DEFAULT_MAP_FACTORY;
 		this.setFactory = DEFAULT_SET_FACTORY;
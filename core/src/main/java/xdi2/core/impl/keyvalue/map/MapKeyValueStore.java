@@ -1,18 +1,28 @@
 package xdi2.core.impl.keyvalue.map;
 
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 
 import xdi2.core.impl.keyvalue.AbstractKeyValueStore;
 import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.util.iterators.DescendingIterator;
 import xdi2.core.util.iterators.EmptyIterator;
+import xdi2.core.util.iterators.LookaheadIterator;
+import xdi2.core.util.iterators.MappingIterator;
 
 /**
  * This class defines access to a map. It is used by the
  * MapKeyValueGraphFactory class to create graphs stored in maps.
  * 
+ * If the map is a SortedMap, this store supports ordered keys. getAllWithPrefix() looks up
+ * every next key in the map, so the store can be written to while the iterator is used.
+ * 
  * @author markus
  */
 public class MapKeyValueStore extends AbstractKeyValueStore implements KeyValueStore {
@@ -107,6 +117,80 @@ public class MapKeyValueStore extends AbstractKeyValueStore implements KeyValueS
 		this.map.clear();
 	}
 
+	@Override
+	public boolean supportsOrderedKeys() {
+
+		return this.map instanceof SortedMap;
+	}
+
+	@Override
+	public Iterator<Entry<String, String>> getAllWithPrefix(final String prefix) {
+
+		if (! this.supportsOrderedKeys()) return super.getAllWithPrefix(prefix);
+
+		final SortedMap<String, Set<String>> map = (SortedMap<String, Set<String>>) this.map;
+
+		Iterator<String> keys = new LookaheadIterator<String> () {
+
+			private String fromKey = prefix;
+
+			{
+
+				this.lookahead();
+			}
+
+			@Override
+			protected void lookahead() {
+
+				SortedMap<String, Set<String>> tailMap = map.tailMap(this.fromKey);
+
+				this.hasNext = (! tailMap.isEmpty()) && tailMap.firstKey().startsWith(prefix);
+				if (! this.hasNext) return;
+
+				// the smallest key after this one
+
+				this.nextItem = tailMap.firstKey();
+				this.fromKey = this.nextItem + '\u0000';
+			}
+		};
+
+		return new DescendingIterator<String, Entry<String, String>> (keys) {
+
+			@Override
+			public Iterator<Entry<String, String>> descend(final String key) {
+
+				Set<String> values = map.get(key);
+				if (values == null) return new EmptyIterator<Entry<String, String>> ();
+
+				return new MappingIterator<String, Entry<String, String>> (new ArrayList<String> (values).iterator()) {
+
+					@Override
+					public Entry<String, String> map(String value) {
+
+						return new SimpleImmutableEntry<String, String> (key, value);
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public void deleteWithPrefix(String prefix) {
+
+		if (! this.supportsOrderedKeys()) {
+
+			super.deleteWithPrefix(prefix);
+			return;
+		}
+
+		for (Iterator<String> keys = ((SortedMap<String, Set<String>>) this.map).tailMap(prefix).keySet().iterator(); keys.hasNext(); ) {
+
+			if (! keys.next().startsWith(prefix)) break;
+
+			keys.remove();
+		}
+	}
+
 	public Map<String, Set<String>> getMap() {
 
 		return this.map;
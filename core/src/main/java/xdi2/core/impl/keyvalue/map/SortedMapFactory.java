@@ -0,0 +1,14 @@
+package xdi2.core.impl.keyvalue.map;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+public class SortedMapFactory implements MapFactory {
+
+	@Override
+	public Map<String, Set<String>> newMap() {
+
+		return new TreeMap<String, Set<String>> ();
+	}
+}
@@ -15,10 +15,17 @@ public class PropertiesKeyValueGraphFactory extends AbstractKeyValueGraphFactory
 
 	public static final boolean DEFAULT_SUPPORT_GET_CONTEXTNODES = true; 
 	public static final boolean DEFAULT_SUPPORT_GET_RELATIONS = true; 
+	public static final boolean DEFAULT_INDEX_INCOMING_RELATIONS = false; 
+
+	public static final long DEFAULT_LOG_THRESHOLD = PropertiesKeyValueStore.DEFAULT_LOG_THRESHOLD;
+
+	private long logThreshold;
 
 	public PropertiesKeyValueGraphFactory() {
 
-		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS);
+		super(DEFAULT_SUPPORT_GET_CONTEXTNODES, DEFAULT_SUPPORT_GET_RELATIONS, DEFAULT_INDEX_INCOMING_RELATIONS);
+
+		this.logThreshold = DEFAULT_LOG_THRESHOLD;
 	}
 
 	@Override
@@ -30,13 +37,24 @@ public class PropertiesKeyValueGraphFactory extends AbstractKeyValueGraphFactory
 
 		// open store
 
-		KeyValueStore keyValueStore;
+		PropertiesKeyValueStore keyValueStore;
 
 		keyValueStore = new PropertiesKeyValueStore(path);
+		keyValueStore.setLogThreshold(this.getLogThreshold());
 		keyValueStore.init();
 
 		// done
 
 		return keyValueStore;
 	}
+
+	public long getLogThreshold() {
+
+		return this.logThreshold;
+	}
+
+	public void setLogThreshold(long logThreshold) {
+
+		this.logThreshold = logThreshold;
+	}
 }
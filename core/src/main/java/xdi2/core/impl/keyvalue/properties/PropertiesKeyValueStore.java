@@ -1,17 +1,28 @@
 package xdi2.core.impl.keyvalue.properties;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -27,43 +38,333 @@ import xdi2.core.impl.keyvalue.KeyValueStore;
  * This class defines access to a properties file. It is used by the
  * PropertiesKeyValueGraphFactory class to create graphs stored in properties files.
  * 
+ * Changes are not written to the properties file directly. They are appended to a log
+ * file next to it (path + ".log"), which is replayed when the store is opened. When the log
+ * grows beyond the log threshold, a background thread writes a fresh properties file and
+ * a new log is started. When the store is closed, the properties file is written and the log
+ * is deleted, so a closed store is a plain properties file, as in earlier versions.
+ * 
+ * Transactions are bound to the thread that began them. A transaction keeps the properties
+ * it changes in an overlay on top of the shared properties, and records its changes, which
+ * are applied to the shared properties and appended to the log together when it is committed.
+ * A transaction sees the changes that other transactions commit in the meantime, except for
+ * the properties it changed itself. Since that would not work for clear(), the store cannot
+ * be cleared while another thread has an open transaction.
+ * 
  * @author markus
  */
 public class PropertiesKeyValueStore extends AbstractKeyValueStore implements KeyValueStore {
 
 	private static final Logger log = LoggerFactory.getLogger(PropertiesKeyValueStore.class);
 
+	public static final long DEFAULT_LOG_THRESHOLD = 1024 * 1024;
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String COMPACTING_SUFFIX = ".log.compacting";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final String OPERATION_SET = "set";
+	private static final String OPERATION_DELETE = "delete";
+	private static final String OPERATION_CLEAR = "clear";
+	private static final String OPERATION_BEGIN = "begin";
+	private static final String OPERATION_COMMIT = "commit";
+
 	private String path;
+	private long logThreshold;
 
 	private Properties properties;
-	private boolean transaction;
+	private ThreadLocal<PropertiesTransaction> transaction;
+	private int transactions;
+
+	private Writer logWriter;
+	private long logSize;
+	private Thread compaction;
 
 	public PropertiesKeyValueStore(String path) {
 
 		this.path = path;
+		this.logThreshold = DEFAULT_LOG_THRESHOLD;
 
 		this.properties = null;
-		this.transaction = false;
+		this.transaction = new ThreadLocal<PropertiesTransaction> ();
+		this.transactions = 0;
+
+		this.logWriter = null;
+		this.logSize = 0;
+		this.compaction = null;
 	}
 
 	@Override
-	public void init() throws IOException {
+	public synchronized void init() throws IOException {
 
 		this.load();
+
+		// if there is a log left over from before, we start with a fresh properties file
+
+		File logFile = new File(this.path + LOG_SUFFIX);
+		File compactingFile = new File(this.path + COMPACTING_SUFFIX);
+
+		if (logFile.exists() || compactingFile.exists()) {
+
+			this.save(this.properties);
+
+			if (logFile.exists() && ! logFile.delete()) throw new IOException("Cannot delete log file at " + logFile.getPath());
+			if (compactingFile.exists() && ! compactingFile.delete()) throw new IOException("Cannot delete log file at " + compactingFile.getPath());
+		}
+
+		this.openLog();
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+
+		this.awaitCompaction();
+
+		try {
+
+			this.save(this.properties);
 
-		this.save();
+			this.logWriter.close();
+			new File(this.path + LOG_SUFFIX).delete();
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot close log file at " + this.path + LOG_SUFFIX, ex);
+		}
 
 		this.path = null;
 		this.properties = null;
+		this.logWriter = null;
 	}
 
 	@Override
 	public void set(String key, String value) {
 
+		String[] operation = new String[] { OPERATION_SET, key, value };
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		if (transaction != null) {
+
+			this.apply(transaction, operation);
+			return;
+		}
+
+		this.write(Collections.singletonList(operation));
+	}
+
+	@Override
+	public String getOne(String key) {
+
+		return super.getOne(key);
+	}
+
+	@Override
+	public Iterator<String> getAll(String key) {
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		synchronized (this) {
+
+			return getAll(transaction == null ? this.properties : transaction.properties, key);
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		synchronized (this) {
+
+			return contains(transaction == null ? this.properties : transaction.properties, key);
+		}
+	}
+
+	@Override
+	public boolean contains(String key, String value) {
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		synchronized (this) {
+
+			return contains(transaction == null ? this.properties : transaction.properties, key, value);
+		}
+	}
+
+	@Override
+	public void delete(String key) {
+
+		String[] operation = new String[] { OPERATION_DELETE, key };
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		if (transaction != null) {
+
+			this.apply(transaction, operation);
+			return;
+		}
+
+		this.write(Collections.singletonList(operation));
+	}
+
+	@Override
+	public void delete(String key, String value) {
+
+		String[] operation = new String[] { OPERATION_DELETE, key, value };
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		if (transaction != null) {
+
+			this.apply(transaction, operation);
+			return;
+		}
+
+		this.write(Collections.singletonList(operation));
+	}
+
+	@Override
+	public void clear() {
+
+		String[] operation = new String[] { OPERATION_CLEAR };
+
+		PropertiesTransaction transaction = this.transaction.get();
+
+		synchronized (this) {
+
+			this.checkClear(transaction);
+
+			if (transaction != null) {
+
+				this.apply(transaction, operation);
+				return;
+			}
+
+			this.write(Collections.singletonList(operation));
+		}
+	}
+
+	@Override
+	public boolean supportsTransactions() {
+
+		return true;
+	}
+
+	@Override
+	public void beginTransaction() {
+
+		log.trace("beginTransaction()");
+
+		if (this.transaction.get() != null) throw new Xdi2RuntimeException("Already have an open transaction.");
+
+		if (log.isDebugEnabled()) log.debug("Beginning Transaction...");
+
+		synchronized (this) {
+
+			this.transaction.set(new PropertiesTransaction(this.properties));
+			this.transactions++;
+		}
+
+		if (log.isDebugEnabled()) log.debug("Began transaction...");
+	}
+
+	@Override
+	public void commitTransaction() {
+
+		log.trace("commitTransaction()");
+
+		PropertiesTransaction transaction = this.transaction.get();
+		if (transaction == null) throw new Xdi2RuntimeException("No open transaction.");
+
+		try {
+
+			// apply the changes of the transaction to the current properties
+
+			synchronized (this) {
+
+				if (transaction.properties.cleared) this.checkClear(transaction);
+
+				if (! transaction.operations.isEmpty()) this.write(transaction.operations);
+			}
+		} catch (Exception ex) {
+
+			throw new Xdi2RuntimeException("Cannot commit transaction: " + ex.getMessage(), ex);
+		} finally {
+
+			this.endTransaction();
+		}
+
+		if (log.isDebugEnabled()) log.debug("Committed transaction...");
+	}
+
+	@Override
+	public void rollbackTransaction() {
+
+		log.trace("rollbackTransaction()");
+
+		if (this.transaction.get() == null) throw new Xdi2RuntimeException("No open transaction.");
+
+		this.endTransaction();
+
+		if (log.isDebugEnabled()) log.debug("Rolled back transaction...");
+	}
+
+	/**
+	 * Waits until a running compaction of the log has finished.
+	 */
+	public synchronized void awaitCompaction() {
+
+		while (this.compaction != null) {
+
+			try {
+
+				this.wait();
+			} catch (InterruptedException ex) {
+
+				Thread.currentThread().interrupt();
+				throw new Xdi2RuntimeException("Interrupted while waiting for compaction.", ex);
+			}
+		}
+	}
+
+	public String getPath() {
+
+		return this.path;
+	}
+
+	/**
+	 * The size in characters that the log can reach before it is compacted into a new properties file.
+	 */
+	public long getLogThreshold() {
+
+		return this.logThreshold;
+	}
+
+	public void setLogThreshold(long logThreshold) {
+
+		this.logThreshold = logThreshold;
+	}
+
+	public synchronized long getLogSize() {
+
+		return this.logSize;
+	}
+
+	/*
+	 * Operations on properties
+	 */
+
+	private static void apply(Properties properties, String[] operation) {
+
+		if (OPERATION_SET.equals(operation[0]) && operation.length == 3) set(properties, operation[1], operation[2]);
+		else if (OPERATION_DELETE.equals(operation[0]) && operation.length == 2) delete(properties, operation[1]);
+		else if (OPERATION_DELETE.equals(operation[0]) && operation.length == 3) delete(properties, operation[1], operation[2]);
+		else if (OPERATION_CLEAR.equals(operation[0]) && operation.length == 1) properties.clear();
+		else throw new Xdi2RuntimeException("Invalid operation: " + Arrays.asList(operation));
+	}
+
+	private static void set(Properties properties, String key, String value) {
+
 		String hash = hash(value);
 
 		// find index
@@ -72,7 +373,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			index = this.properties.getProperty(key + "___" + hash);
+			index = properties.getProperty(key + "___" + hash);
 		} catch(Exception ex) {
 
 			index = null;
@@ -84,7 +385,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			indexlist = this.properties.getProperty(key + "___");
+			indexlist = properties.getProperty(key + "___");
 			if (indexlist.trim().equals("")) indexlist = null;
 		} catch (Exception ex) {
 
@@ -101,21 +402,12 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		String newindex = UUID.randomUUID().toString();
 
-		this.properties.setProperty(key + "___", (indexlist == null ? "" : indexlist + " ") + newindex);
-		this.properties.setProperty(key + "___" + newindex, value);
-		this.properties.setProperty(key + "___" + hash, newindex);
-
-		if (! this.transaction) this.save();
+		properties.setProperty(key + "___", (indexlist == null ? "" : indexlist + " ") + newindex);
+		properties.setProperty(key + "___" + newindex, value);
+		properties.setProperty(key + "___" + hash, newindex);
 	}
 
-	@Override
-	public String getOne(String key) {
-
-		return super.getOne(key);
-	}
-
-	@Override
-	public Iterator<String> getAll(String key) {
+	private static Iterator<String> getAll(Properties properties, String key) {
 
 		// find index list
 
@@ -123,7 +415,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			indexlist = this.properties.getProperty(key + "___");
+			indexlist = properties.getProperty(key + "___");
 			if (indexlist.trim().equals("")) indexlist = null;
 		} catch (Exception ex) {
 
@@ -138,7 +430,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		for (int i=0; i<indices.length; i++) {
 
-			String content = this.properties.getProperty(key + "___" + indices[i]);
+			String content = properties.getProperty(key + "___" + indices[i]);
 			if (content == null) continue;
 
 			contents.add(content);
@@ -149,8 +441,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 		return contents.iterator();
 	}
 
-	@Override
-	public boolean contains(String key) {
+	private static boolean contains(Properties properties, String key) {
 
 		// find index list
 
@@ -158,7 +449,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			indexlist = this.properties.getProperty(key + "___");
+			indexlist = properties.getProperty(key + "___");
 			if (indexlist.trim().equals("")) indexlist = null;
 		} catch (Exception ex) {
 
@@ -170,8 +461,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 		return indexlist != null;
 	}
 
-	@Override
-	public boolean contains(String key, String value) {
+	private static boolean contains(Properties properties, String key, String value) {
 
 		String hash = hash(value);
 
@@ -181,7 +471,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			index = this.properties.getProperty(key + "___" + hash);
+			index = properties.getProperty(key + "___" + hash);
 		} catch(Exception ex) {
 
 			index = null;
@@ -193,7 +483,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			indexlist = this.properties.getProperty(key + "___");
+			indexlist = properties.getProperty(key + "___");
 			if (indexlist.trim().equals("")) indexlist = null;
 		} catch (Exception ex) {
 
@@ -207,16 +497,12 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 		return Arrays.asList(indices).contains(index);
 	}
 
-	@Override
-	public void delete(String key) {
-
-		this.properties.remove(key + "___");
+	private static void delete(Properties properties, String key) {
 
-		if (! this.transaction) this.save();
+		properties.remove(key + "___");
 	}
 
-	@Override
-	public void delete(String key, String value) {
+	private static void delete(Properties properties, String key, String value) {
 
 		String hash = hash(value);
 
@@ -226,7 +512,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			index = this.properties.getProperty(key + "___" + hash);
+			index = properties.getProperty(key + "___" + hash);
 		} catch(Exception ex) {
 
 			index = null;
@@ -240,7 +526,7 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		try {
 
-			indexlist = this.properties.getProperty(key + "___");
+			indexlist = properties.getProperty(key + "___");
 			if (indexlist.trim().equals("")) indexlist = null;
 		} catch (Exception ex) {
 
@@ -261,89 +547,192 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 
 		// store new index list
 
-		this.properties.setProperty(key + "___", newindexlist);
-		this.properties.remove(key + "___" + index);
-		this.properties.remove(key + "___" + hash);
-
-		if (! this.transaction) this.save();
+		properties.setProperty(key + "___", newindexlist);
+		properties.remove(key + "___" + index);
+		properties.remove(key + "___" + hash);
 	}
 
-	@Override
-	public void clear() {
+	/*
+	 * Helper methods
+	 */
 
-		this.properties.clear();
+	private synchronized void apply(PropertiesTransaction transaction, String[] operation) {
 
-		if (! this.transaction) this.save();
+		apply(transaction.properties, operation);
+		transaction.operations.add(operation);
 	}
 
-	@Override
-	public boolean supportsTransactions() {
+	private synchronized void endTransaction() {
 
-		return true;
+		this.transaction.remove();
+		this.transactions--;
 	}
 
-	@Override
-	public void beginTransaction() {
+	/**
+	 * The overlays of other open transactions would still show the properties that are cleared.
+	 */
+	private void checkClear(PropertiesTransaction transaction) {
 
-		log.trace("beginTransaction()");
+		int otherTransactions = transaction == null ? this.transactions : this.transactions - 1;
 
-		if (this.transaction) throw new Xdi2RuntimeException("Already have an open transaction.");
+		if (otherTransactions > 0) throw new Xdi2RuntimeException("Cannot clear while " + otherTransactions + " other transaction(s) are open.");
+	}
 
-		if (log.isDebugEnabled()) log.debug("Beginning Transaction...");
+	/**
+	 * Appends operations to the log, and then applies them to the properties.
+	 * Several operations are enclosed in a begin and a commit record, so they are
+	 * replayed either all or not at all.
+	 */
+	private synchronized void write(List<String[]> operations) {
+
+		StringBuilder buffer = new StringBuilder();
+
+		if (operations.size() > 1) appendRecord(buffer, new String[] { OPERATION_BEGIN });
+		for (String[] operation : operations) appendRecord(buffer, operation);
+		if (operations.size() > 1) appendRecord(buffer, new String[] { OPERATION_COMMIT });
 
 		try {
 
-			this.load();
-			this.transaction = true;
-		} catch (Exception ex) {
+			this.logWriter.write(buffer.toString());
+			this.logWriter.flush();
+		} catch (IOException ex) {
 
-			throw new Xdi2RuntimeException("Cannot begin transaction: " + ex.getMessage(), ex);
+			throw new Xdi2RuntimeException("Cannot write log file at " + this.path + LOG_SUFFIX, ex);
 		}
 
-		if (log.isDebugEnabled()) log.debug("Began transaction...");
+		this.logSize += buffer.length();
+
+		for (String[] operation : operations) apply(this.properties, operation);
+
+		if (this.logSize >= this.logThreshold) this.startCompaction();
 	}
 
-	@Override
-	public void commitTransaction() {
+	/**
+	 * Moves the log aside and starts a new one, and writes a copy of the properties to the
+	 * properties file in the background. The old log is deleted when that is done.
+	 * If an earlier compaction failed, its old log is still there, so the log is appended
+	 * to it instead, and the compaction is tried again for both.
+	 */
+	private void startCompaction() {
 
-		log.trace("commitTransaction()");
+		if (this.compaction != null) return;
+
+		final File compactingFile = new File(this.path + COMPACTING_SUFFIX);
+		final Properties properties = new Properties();
 
-		if (! this.transaction) throw new Xdi2RuntimeException("No open transaction.");
+		File logFile = new File(this.path + LOG_SUFFIX);
 
 		try {
 
-			this.save();
-			this.transaction = false;
-		} catch (Exception ex) {
+			this.logWriter.close();
 
-			throw new Xdi2RuntimeException("Cannot commit transaction: " + ex.getMessage(), ex);
+			if (compactingFile.exists()) {
+
+				append(logFile, compactingFile);
+				if (! logFile.delete()) throw new IOException("Cannot delete log file at " + logFile.getPath());
+			} else {
+
+				if (! logFile.renameTo(compactingFile)) throw new IOException("Cannot rename log file to " + compactingFile.getPath());
+			}
+		} catch (IOException ex) {
+
+			log.error("Cannot compact log: " + ex.getMessage(), ex);
+		} finally {
+
+			this.openLog();
 		}
 
-		if (log.isDebugEnabled()) log.debug("Committed transaction...");
-	}
+		if (! compactingFile.exists()) return;
 
-	@Override
-	public void rollbackTransaction() {
+		properties.putAll(this.properties);
 
-		log.trace("rollbackTransaction()");
+		if (log.isDebugEnabled()) log.debug("Compacting log of " + this.path + "...");
+
+		this.compaction = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					PropertiesKeyValueStore.this.save(properties);
+					compactingFile.delete();
 
-		if (! this.transaction) throw new Xdi2RuntimeException("No open transaction.");
+					if (log.isDebugEnabled()) log.debug("Compacted log of " + PropertiesKeyValueStore.this.path + ".");
+				} catch (Exception ex) {
+
+					log.error("Cannot compact log, will try again with the next one: " + ex.getMessage(), ex);
+				} finally {
+
+					synchronized (PropertiesKeyValueStore.this) {
+
+						PropertiesKeyValueStore.this.compaction = null;
+						PropertiesKeyValueStore.this.notifyAll();
+					}
+				}
+			}
+		}, "PropertiesKeyValueStore compaction");
+
+		this.compaction.setDaemon(true);
+		this.compaction.start();
+	}
+
+	/**
+	 * Appends the contents of a file to another one. If that fails, the other file is truncated
+	 * to its old length again, so that it does not end with an incomplete record.
+	 */
+	private static void append(File file, File toFile) throws IOException {
+
+		long length = toFile.length();
 
 		try {
 
-			this.load();
-			this.transaction = false;
-		} catch (Exception ex) {
+			InputStream inputStream = new FileInputStream(file);
 
-			throw new Xdi2RuntimeException("Cannot roll back transaction: " + ex.getMessage(), ex);
-		}
+			try {
 
-		if (log.isDebugEnabled()) log.debug("Rolled back transaction...");
+				OutputStream outputStream = new FileOutputStream(toFile, true);
+
+				try {
+
+					byte[] bytes = new byte[8192];
+					for (int count; (count = inputStream.read(bytes)) != -1; ) outputStream.write(bytes, 0, count);
+				} finally {
+
+					outputStream.close();
+				}
+			} finally {
+
+				inputStream.close();
+			}
+		} catch (IOException ex) {
+
+			RandomAccessFile randomAccessFile = new RandomAccessFile(toFile, "rw");
+
+			try {
+
+				randomAccessFile.setLength(length);
+			} finally {
+
+				randomAccessFile.close();
+			}
+
+			throw ex;
+		}
 	}
 
-	public String getPath() {
+	private void openLog() {
 
-		return this.path;
+		File logFile = new File(this.path + LOG_SUFFIX);
+
+		try {
+
+			this.logWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+			this.logSize = logFile.length();
+		} catch (IOException ex) {
+
+			throw new Xdi2RuntimeException("Cannot open log file at " + logFile.getPath(), ex);
+		}
 	}
 
 	private void load() {
@@ -353,33 +742,157 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 		try {
 
 			File file = new File(this.path);
-			if (! file.exists()) return;
+			File tempFile = new File(this.path + TEMP_SUFFIX);
 
-			Reader reader = new FileReader(this.path);
+			// a new properties file that was not renamed yet
 
-			this.properties.load(reader);
-			reader.close();
+			if (! file.exists() && tempFile.exists()) tempFile.renameTo(file);
+
+			if (file.exists()) {
+
+				Reader reader = new FileReader(this.path);
+
+				this.properties.load(reader);
+				reader.close();
+			}
+
+			// replay the logs
+
+			this.replay(new File(this.path + COMPACTING_SUFFIX));
+			this.replay(new File(this.path + LOG_SUFFIX));
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot load properties file at " + this.path, ex);
 		}
 	}
 
-	private void save() {
+	/**
+	 * Applies the operations in a log. A record that is not complete because the process
+	 * was stopped while it was written is ignored, and so is a transaction without a commit record.
+	 */
+	private void replay(File logFile) throws IOException {
+
+		if (! logFile.exists()) return;
+
+		StringBuilder buffer = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(logFile), "UTF-8");
 
 		try {
 
-			File file = new File(this.path);
-			if (! file.exists()) file.createNewFile();
+			char[] chars = new char[8192];
+			for (int count; (count = reader.read(chars)) != -1; ) buffer.append(chars, 0, count);
+		} finally {
+
+			reader.close();
+		}
+
+		List<String[]> transaction = null;
+		int records = 0;
+
+		for (int start = 0, end; (end = buffer.indexOf("\n", start)) != -1; start = end + 1) {
+
+			String[] operation = parseRecord(buffer.substring(start, end));
+			records++;
+
+			if (OPERATION_BEGIN.equals(operation[0])) {
+
+				transaction = new ArrayList<String[]> ();
+			} else if (OPERATION_COMMIT.equals(operation[0])) {
+
+				if (transaction != null) for (String[] transactionOperation : transaction) apply(this.properties, transactionOperation);
+				transaction = null;
+			} else if (transaction != null) {
 
-			Writer writer = new FileWriter(file);
+				transaction.add(operation);
+			} else {
+
+				apply(this.properties, operation);
+			}
+		}
+
+		if (log.isDebugEnabled()) log.debug("Replayed " + records + " records from " + logFile.getPath());
+	}
+
+	/**
+	 * Writes properties to a temporary file, which then replaces the properties file.
+	 */
+	private void save(Properties properties) throws IOException {
+
+		File file = new File(this.path);
+		File tempFile = new File(this.path + TEMP_SUFFIX);
+
+		Writer writer = new FileWriter(tempFile);
+
+		try {
+
+			properties.store(writer, null);
+		} finally {
 
-			this.properties.store(writer, null);
 			writer.close();
-		} catch (Exception ex) {
+		}
+
+		// File.renameTo() does not replace an existing file on all platforms
+
+		if (! tempFile.renameTo(file)) {
+
+			file.delete();
+			if (! tempFile.renameTo(file)) throw new IOException("Cannot rename " + tempFile.getPath() + " to " + file.getPath());
+		}
+	}
+
+	private static void appendRecord(StringBuilder buffer, String[] operation) {
+
+		for (int i=0; i<operation.length; i++) {
+
+			if (i > 0) buffer.append('\t');
+
+			String field = operation[i];
+
+			for (int ii=0; ii<field.length(); ii++) {
+
+				char c = field.charAt(ii);
+
+				switch (c) {
+
+				case '\\': buffer.append("\\\\"); break;
+				case '\t': buffer.append("\\t"); break;
+				case '\n': buffer.append("\\n"); break;
+				case '\r': buffer.append("\\r"); break;
+				default: buffer.append(c); break;
+				}
+			}
+		}
+
+		buffer.append('\n');
+	}
+
+	private static String[] parseRecord(String record) {
+
+		List<String> fields = new ArrayList<String> ();
+		StringBuilder field = new StringBuilder();
 
-			throw new Xdi2RuntimeException("Cannot save properties file at " + this.path, ex);
+		for (int i=0; i<record.length(); i++) {
+
+			char c = record.charAt(i);
+
+			if (c == '\t') {
+
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\\' && i + 1 < record.length()) {
+
+				c = record.charAt(++i);
+
+				field.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+			} else {
+
+				field.append(c);
+			}
 		}
+
+		fields.add(field.toString());
+
+		return fields.toArray(new String[fields.size()]);
 	}
 
 	private static String hash(String str) {
@@ -400,10 +913,6 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 		return hash;
 	}
 
-	/*
-	 * Helper methods
-	 */
-
 	public static void cleanup() {
 
 		File[] files = new File(".").listFiles(new FilenameFilter() {
@@ -411,10 +920,80 @@ public class PropertiesKeyValueStore extends AbstractKeyValueStore implements Ke
 			@Override
 			public boolean accept(File dir, String name) {
 
-				return name.startsWith("xdi2-properties-keyvalue-graph.") && name.endsWith(".properties");
+				return name.startsWith("xdi2-properties-keyvalue-graph.") && name.contains(".properties");
 			}
 		});
 
 		for (File file : files) file.delete();
 	}
+
+	/*
+	 * Helper classes
+	 */
+
+	private static class PropertiesTransaction {
+
+		private PropertiesOverlay properties;
+		private List<String[]> operations;
+
+		private PropertiesTransaction(Properties base) {
+
+			this.properties = new PropertiesOverlay(base);
+			this.operations = new ArrayList<String[]> ();
+		}
+	}
+
+	/**
+	 * The properties that a transaction changed, on top of the shared properties.
+	 * This supports only the methods used by the operations on properties above.
+	 * Reading the shared properties requires the lock of the store.
+	 */
+	private static class PropertiesOverlay extends Properties {
+
+		private static final long serialVersionUID = -2640716453780913722L;
+
+		private final Properties base;
+		private final Map<String, String> changes;
+		private boolean cleared;
+
+		private PropertiesOverlay(Properties base) {
+
+			this.base = base;
+			this.changes = new HashMap<String, String> ();
+			this.cleared = false;
+		}
+
+		@Override
+		public String getProperty(String key) {
+
+			if (this.changes.containsKey(key)) return this.changes.get(key);
+
+			return this.cleared ? null : this.base.getProperty(key);
+		}
+
+		@Override
+		public synchronized Object setProperty(String key, String value) {
+
+			String oldValue = this.getProperty(key);
+			this.changes.put(key, value);
+
+			return oldValue;
+		}
+
+		@Override
+		public synchronized Object remove(Object key) {
+
+			String oldValue = this.getProperty((String) key);
+			this.changes.put((String) key, null);
+
+			return oldValue;
+		}
+
+		@Override
+		public synchronized void clear() {
+
+			this.changes.clear();
+			this.cleared = true;
+		}
+	}
 }
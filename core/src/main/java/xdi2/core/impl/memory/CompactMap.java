@@ -0,0 +1,237 @@
+package xdi2.core.impl.memory;
+
+import java.io.Serializable;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A small map for the children of a MemoryContextNode.
+ *
+ * Up to THRESHOLD entries are kept inline in a single array of alternating keys and values,
+ * in the order of the sort mode of the graph (insertion order, or sorted for SORTMODE_ALPHA).
+ * Past the threshold, the entries move to a HashMap, LinkedHashMap or TreeMap.
+ */
+final class CompactMap<K extends Comparable<? super K>, V> implements Serializable {
+
+	private static final long serialVersionUID = -3474516092717207375L;
+
+	static final int THRESHOLD = 8;
+
+	private final int sortMode;
+
+	private Object[] entries;
+	private int size;
+	private Map<K, V> map;
+
+	private transient int modCount;
+
+	CompactMap(int sortMode) {
+
+		this.sortMode = sortMode;
+
+		this.entries = new Object[2];
+		this.size = 0;
+		this.map = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(K key) {
+
+		if (this.map != null) return this.map.get(key);
+
+		int index = this.indexOf(key);
+
+		return index < 0 ? null : (V) this.entries[2 * index + 1];
+	}
+
+	boolean containsKey(K key) {
+
+		if (this.map != null) return this.map.containsKey(key);
+
+		return this.indexOf(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	V put(K key, V value) {
+
+		if (this.map != null) return this.map.put(key, value);
+
+		int index = this.indexOf(key);
+
+		if (index >= 0) {
+
+			V oldValue = (V) this.entries[2 * index + 1];
+			this.entries[2 * index + 1] = value;
+
+			return oldValue;
+		}
+
+		this.modCount++;
+
+		// move to a map
+
+		if (this.size == THRESHOLD) {
+
+			this.map = this.newMap();
+
+			for (int i=0; i<this.size; i++) this.map.put((K) this.entries[2 * i], (V) this.entries[2 * i + 1]);
+			this.map.put(key, value);
+
+			this.entries = null;
+			this.size = 0;
+
+			return null;
+		}
+
+		// insert into the array
+
+		if (2 * this.size == this.entries.length) {
+
+			Object[] entries = new Object[Math.min(2 * this.entries.length, 2 * THRESHOLD)];
+			System.arraycopy(this.entries, 0, entries, 0, this.entries.length);
+			this.entries = entries;
+		}
+
+		int position = - index - 1;
+
+		System.arraycopy(this.entries, 2 * position, this.entries, 2 * position + 2, 2 * (this.size - position));
+		this.entries[2 * position] = key;
+		this.entries[2 * position + 1] = value;
+		this.size++;
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(K key) {
+
+		if (this.map != null) return this.map.remove(key);
+
+		int index = this.indexOf(key);
+		if (index < 0) return null;
+
+		this.modCount++;
+
+		V oldValue = (V) this.entries[2 * index + 1];
+
+		System.arraycopy(this.entries, 2 * index + 2, this.entries, 2 * index, 2 * (this.size - index - 1));
+		this.size--;
+		this.entries[2 * this.size] = null;
+		this.entries[2 * this.size + 1] = null;
+
+		return oldValue;
+	}
+
+	int size() {
+
+		if (this.map != null) return this.map.size();
+
+		return this.size;
+	}
+
+	boolean isEmpty() {
+
+		return this.size() == 0;
+	}
+
+	/**
+	 * Returns the only value of this map, or null if it does not have exactly one entry.
+	 */
+	@SuppressWarnings("unchecked")
+	V singleValue() {
+
+		if (this.size() != 1) return null;
+
+		if (this.map != null) return this.map.values().iterator().next();
+
+		return (V) this.entries[1];
+	}
+
+	Iterator<V> values() {
+
+		if (this.map != null) return this.map.values().iterator();
+
+		return new ValueIterator();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/**
+	 * Finds a key in the array.
+	 * @return The index of the key, or (-(insertion point) - 1) if it is not there.
+	 */
+	@SuppressWarnings("unchecked")
+	private int indexOf(K key) {
+
+		if (this.sortMode == MemoryGraphFactory.SORTMODE_ALPHA) {
+
+			int low = 0;
+			int high = this.size - 1;
+
+			while (low <= high) {
+
+				int middle = (low + high) >>> 1;
+				int compare = ((K) this.entries[2 * middle]).compareTo(key);
+
+				if (compare < 0) low = middle + 1;
+				else if (compare > 0) high = middle - 1;
+				else return middle;
+			}
+
+			return - low - 1;
+		}
+
+		for (int i=0; i<this.size; i++) if (this.entries[2 * i].equals(key)) return i;
+
+		return - this.size - 1;
+	}
+
+	private Map<K, V> newMap() {
+
+		if (this.sortMode == MemoryGraphFactory.SORTMODE_ALPHA) {
+
+			return new TreeMap<K, V> ();
+		} else if (this.sortMode == MemoryGraphFactory.SORTMODE_ORDER) {
+
+			return new LinkedHashMap<K, V> ();
+		} else {
+
+			return new HashMap<K, V> ();
+		}
+	}
+
+	private class ValueIterator implements Iterator<V> {
+
+		private int index = 0;
+		private int expectedModCount = CompactMap.this.modCount;
+
+		@Override
+		public boolean hasNext() {
+
+			return this.index < CompactMap.this.size;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+
+			if (CompactMap.this.modCount != this.expectedModCount) throw new ConcurrentModificationException();
+			if (! this.hasNext()) throw new NoSuchElementException();
+
+			return (V) CompactMap.this.entries[2 * this.index++ + 1];
+		}
+
+		@Override
+		public void remove() {
+
+			throw new UnsupportedOperationException();
+		}
+	}
+}
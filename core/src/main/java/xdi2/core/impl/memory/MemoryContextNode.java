@@ -1,11 +1,6 @@
 package xdi2.core.impl.memory;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import xdi2.core.ContextNode;
 import xdi2.core.Literal;
@@ -14,18 +9,32 @@ import xdi2.core.impl.AbstractContextNode;
 import xdi2.core.util.iterators.CastingIterator;
 import xdi2.core.util.iterators.DescendingIterator;
 import xdi2.core.util.iterators.EmptyIterator;
+import xdi2.core.util.iterators.IteratorListMaker;
 import xdi2.core.util.iterators.ReadOnlyIterator;
+import xdi2.core.util.iterators.SingleItemIterator;
 import xdi2.core.xri3.XDI3Segment;
 import xdi2.core.xri3.XDI3SubSegment;
 
+/**
+ * A context node of a MemoryGraph.
+ *
+ * The maps for child context nodes and relations are only allocated when the first
+ * child is added, and are small inline arrays as long as there are few children (see CompactMap).
+ * For every arc, the relations map holds either a single MemoryRelation, or a map of
+ * MemoryRelations by target context node XRI if there is more than one.
+ *
+ * All changes happen under the write lock of the graph. In a concurrent graph, reads happen
+ * under its read lock, and iterators are snapshots taken under the read lock.
+ */
 public class MemoryContextNode extends AbstractContextNode implements ContextNode {
 
 	private static final long serialVersionUID = 4930852359817860369L;
 
 	private XDI3SubSegment arcXri;
+	private XDI3Segment xri;
 
-	private Map<XDI3SubSegment, MemoryContextNode> contextNodes;
-	private Map<XDI3Segment, Map<XDI3Segment, MemoryRelation>> relations;
+	private CompactMap<XDI3SubSegment, MemoryContextNode> contextNodes;
+	private CompactMap<XDI3Segment, Object> relations;
 	private MemoryLiteral literal;
 
 	MemoryContextNode(MemoryGraph graph, MemoryContextNode contextNode, XDI3SubSegment arcXri) {
@@ -34,22 +43,9 @@ public class MemoryContextNode extends AbstractContextNode implements ContextNod
 
 		this.arcXri = arcXri;
 
-		if (graph.getSortMode() == MemoryGraphFactory.SORTMODE_ALPHA) {
-
-			this.contextNodes = new TreeMap<XDI3SubSegment, MemoryContextNode> ();
-			this.relations = new TreeMap<XDI3Segment, Map<XDI3Segment, MemoryRelation>> ();
-			this.literal = null;
-		} else if (graph.getSortMode() == MemoryGraphFactory.SORTMODE_ORDER) {
-
-			this.contextNodes = new LinkedHashMap<XDI3SubSegment, MemoryContextNode> ();
-			this.relations = new LinkedHashMap<XDI3Segment, Map<XDI3Segment, MemoryRelation>> ();
-			this.literal = null;
-		} else {
-
-			this.contextNodes = new HashMap<XDI3SubSegment, MemoryContextNode> ();
-			this.relations = new HashMap<XDI3Segment, Map<XDI3Segment, MemoryRelation>> ();
-			this.literal = null;
-		}
+		this.contextNodes = null;
+		this.relations = null;
+		this.literal = null;
 	}
 
 	@Override
@@ -58,76 +54,161 @@ public class MemoryContextNode extends AbstractContextNode implements ContextNod
 		return this.arcXri;
 	}
 
+	@Override
+	public XDI3Segment getXri() {
+
+		if (this.xri == null) this.xri = this.makeXri();
+
+		return this.xri;
+	}
+
 	/*
 	 * Methods related to context nodes of this context node
 	 */
 
 	@Override
-	public synchronized ContextNode setContextNode(XDI3SubSegment arcXri) {
+	public ContextNode setContextNode(XDI3SubSegment arcXri) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
 
-		this.checkContextNode(arcXri);
+			this.checkContextNode(arcXri);
 
-		ContextNode contextNode = this.getContextNode(arcXri);
-		if (contextNode != null) return contextNode;
+			ContextNode contextNode = this.getContextNode(arcXri);
+			if (contextNode != null) return contextNode;
 
-		contextNode = new MemoryContextNode((MemoryGraph) this.getGraph(), this, arcXri);
+			contextNode = new MemoryContextNode(graph, this, arcXri);
 
-		this.contextNodes.put(arcXri, (MemoryContextNode) contextNode);
+			if (this.contextNodes == null) this.contextNodes = new CompactMap<XDI3SubSegment, MemoryContextNode> (graph.getSortMode());
+			this.contextNodes.put(arcXri, (MemoryContextNode) contextNode);
 
-		return contextNode;
+			return contextNode;
+		} finally {
+
+			graph.endWrite();
+		}
 	}
 
 	@Override
 	public ContextNode getContextNode(XDI3SubSegment arcXri) {
 
-		return this.contextNodes.get(arcXri);
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			if (this.contextNodes == null) return null;
+
+			return this.contextNodes.get(arcXri);
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public ReadOnlyIterator<ContextNode> getContextNodes() {
 
-		return new ReadOnlyIterator<ContextNode> (new CastingIterator<MemoryContextNode, ContextNode> (this.contextNodes.values().iterator()));
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			if (this.contextNodes == null) return new EmptyIterator<ContextNode> ();
+
+			return new ReadOnlyIterator<ContextNode> (new CastingIterator<MemoryContextNode, ContextNode> (graph.snapshot(this.contextNodes.values())));
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public boolean containsContextNode(XDI3SubSegment arcXri) {
 
-		return this.contextNodes.containsKey(arcXri);
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			if (this.contextNodes == null) return false;
+
+			return this.contextNodes.containsKey(arcXri);
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public boolean containsContextNodes() {
 
-		return ! this.contextNodes.isEmpty();
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			return this.contextNodes != null;
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
-	public synchronized void delContextNode(XDI3SubSegment arcXri) {
+	public void delContextNode(XDI3SubSegment arcXri) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			// delete incoming relations
+
+			ContextNode contextNode = this.getContextNode(arcXri);
+			if (contextNode == null) return;
 
-		// delete incoming relations
+			for (Iterator<Relation> relations = contextNode.getIncomingRelations(); relations.hasNext(); ) relations.next().delete();
 
-		ContextNode contextNode = this.getContextNode(arcXri);
-		if (contextNode == null) return;
+			// delete this context node
 
-		for (Iterator<Relation> relations = contextNode.getIncomingRelations(); relations.hasNext(); ) relations.next().delete();
+			this.contextNodes.remove(arcXri);
+			if (this.contextNodes.isEmpty()) this.contextNodes = null;
 
-		// delete this context node
+			((MemoryContextNode) contextNode).unindexAllRelations();
+		} finally {
 
-		this.contextNodes.remove(arcXri);
+			graph.endWrite();
+		}
 	}
 
 	@Override
-	public synchronized void delContextNodes() {
+	public void delContextNodes() {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			// delete incoming relations
+
+			for (Iterator<ContextNode> contextNodes = this.getContextNodes(); contextNodes.hasNext(); )
+				for (Iterator<Relation> relations = contextNodes.next().getIncomingRelations(); relations.hasNext(); ) 
+					relations.next().delete();
 
-		// delete incoming relations
+			// delete context nodes
 
-		for (Iterator<ContextNode> contextNodes = this.getContextNodes(); contextNodes.hasNext(); )
-			for (Iterator<Relation> relations = contextNodes.next().getIncomingRelations(); relations.hasNext(); ) 
-				relations.next().delete();
+			if (this.contextNodes == null) return;
 
-		// delete context nodes
+			for (Iterator<MemoryContextNode> contextNodes = this.contextNodes.values(); contextNodes.hasNext(); ) contextNodes.next().unindexAllRelations();
 
-		this.contextNodes.clear();
+			this.contextNodes = null;
+		} finally {
+
+			graph.endWrite();
+		}
 	}
 
 	/*
@@ -135,117 +216,246 @@ public class MemoryContextNode extends AbstractContextNode implements ContextNod
 	 */
 
 	@Override
-	public synchronized Relation setRelation(XDI3Segment arcXri, ContextNode targetContextNode) {
+	public Relation setRelation(XDI3Segment arcXri, ContextNode targetContextNode) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			this.checkRelation(arcXri, targetContextNode);
 
-		this.checkRelation(arcXri, targetContextNode);
+			XDI3Segment targetContextNodeXri = targetContextNode.getXri();
 
-		XDI3Segment targetContextNodeXri = targetContextNode.getXri();
+			Relation relation = this.getRelation(arcXri, targetContextNodeXri);
+			if (relation != null) return relation;
 
-		Relation relation = this.getRelation(arcXri, targetContextNodeXri);
-		if (relation != null) return relation;
+			relation = new MemoryRelation(this, arcXri, targetContextNodeXri);
 
-		Map<XDI3Segment, MemoryRelation> relations = this.relations.get(arcXri);
-		if (relations == null) {
+			if (this.relations == null) this.relations = new CompactMap<XDI3Segment, Object> (graph.getSortMode());
 
-			if (((MemoryGraph) this.getGraph()).getSortMode() == MemoryGraphFactory.SORTMODE_ALPHA) {
+			// a single relation with this arc is stored directly, more than one in a map by target
 
-				relations = new TreeMap<XDI3Segment, MemoryRelation> ();
-			} else if (((MemoryGraph) this.getGraph()).getSortMode() == MemoryGraphFactory.SORTMODE_ORDER) {
+			Object relations = this.relations.get(arcXri);
 
-				relations = new LinkedHashMap<XDI3Segment, MemoryRelation> ();
+			if (relations == null) {
+
+				this.relations.put(arcXri, relation);
+			} else if (relations instanceof MemoryRelation) {
+
+				CompactMap<XDI3Segment, MemoryRelation> targetRelations = new CompactMap<XDI3Segment, MemoryRelation> (graph.getSortMode());
+				targetRelations.put(((MemoryRelation) relations).getTargetContextNodeXri(), (MemoryRelation) relations);
+				targetRelations.put(targetContextNodeXri, (MemoryRelation) relation);
+
+				this.relations.put(arcXri, targetRelations);
 			} else {
 
-				relations = new HashMap<XDI3Segment, MemoryRelation> ();
+				targetRelations(relations).put(targetContextNodeXri, (MemoryRelation) relation);
 			}
 
-			this.relations.put(arcXri, relations);
-		}
-
-		relation = new MemoryRelation(this, arcXri, targetContextNodeXri);
+			graph.indexRelation((MemoryRelation) relation);
 
-		relations.put(targetContextNodeXri, (MemoryRelation) relation);
+			return relation;
+		} finally {
 
-		return relation;
+			graph.endWrite();
+		}
 	}
 
 	@Override
 	public Relation getRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
 
-		Map<XDI3Segment, MemoryRelation> relations = this.relations.get(arcXri);
-		if (relations == null) return null;
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			if (this.relations == null) return null;
+
+			Object relations = this.relations.get(arcXri);
+			if (relations == null) return null;
+
+			if (relations instanceof MemoryRelation) {
 
-		return relations.get(targetContextNodeXri);
+				return ((MemoryRelation) relations).getTargetContextNodeXri().equals(targetContextNodeXri) ? (MemoryRelation) relations : null;
+			}
+
+			return targetRelations(relations).get(targetContextNodeXri);
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public ReadOnlyIterator<Relation> getRelations(XDI3Segment arcXri) {
 
-		Map<XDI3Segment, MemoryRelation> relations = this.relations.get(arcXri);
-		if (relations == null) return new EmptyIterator<Relation> ();
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
 
-		return new ReadOnlyIterator<Relation> (new CastingIterator<MemoryRelation, Relation> (relations.values().iterator()));
+			if (this.relations == null) return new EmptyIterator<Relation> ();
+
+			Object relations = this.relations.get(arcXri);
+			if (relations == null) return new EmptyIterator<Relation> ();
+
+			return new ReadOnlyIterator<Relation> (new CastingIterator<MemoryRelation, Relation> (graph.snapshot(relationIterator(relations))));
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public ReadOnlyIterator<Relation> getRelations() {
 
-		Iterator<MemoryRelation> descendingIterator = new DescendingIterator<Entry<XDI3Segment, Map<XDI3Segment, MemoryRelation>>, MemoryRelation> (this.relations.entrySet().iterator()) {
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
 
-			@Override
-			public Iterator<MemoryRelation> descend(Entry<XDI3Segment, Map<XDI3Segment, MemoryRelation>> item) {
+		try {
 
-				return item.getValue().values().iterator();
-			}
-		};
+			if (this.relations == null) return new EmptyIterator<Relation> ();
 
-		return new ReadOnlyIterator<Relation> (new CastingIterator<MemoryRelation, Relation> (descendingIterator));
+			Iterator<MemoryRelation> descendingIterator = new DescendingIterator<Object, MemoryRelation> (this.relations.values()) {
+
+				@Override
+				public Iterator<MemoryRelation> descend(Object item) {
+
+					return relationIterator(item);
+				}
+			};
+
+			return new ReadOnlyIterator<Relation> (new CastingIterator<MemoryRelation, Relation> (graph.snapshot(descendingIterator)));
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
-	public boolean containsRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
+	public ReadOnlyIterator<Relation> getIncomingRelations() {
 
-		Map<XDI3Segment, MemoryRelation> relations = this.relations.get(arcXri);
-		if (relations == null) return false;
+		MemoryGraph graph = this.getMemoryGraph();
+		if (! graph.getIndexIncomingRelations()) return super.getIncomingRelations();
 
-		return relations.containsKey(targetContextNodeXri);
+		return new ReadOnlyIterator<Relation> (new CastingIterator<MemoryRelation, Relation> (graph.getIndexedIncomingRelations(this.getXri()).iterator()));
+	}
+
+	@Override
+	public boolean containsRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
+
+		return this.getRelation(arcXri, targetContextNodeXri) != null;
 	}
 
 	@Override
 	public boolean containsRelations(XDI3Segment arcXri) {
 
-		return this.relations.containsKey(arcXri);
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			if (this.relations == null) return false;
+
+			return this.relations.containsKey(arcXri);
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public boolean containsRelations() {
 
-		return ! this.relations.isEmpty();
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			return this.relations != null;
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
-	public synchronized void delRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
+	public void delRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			MemoryRelation relation = (MemoryRelation) this.getRelation(arcXri, targetContextNodeXri);
+			if (relation == null) return;
+
+			Object relations = this.relations.get(arcXri);
 
-		Map<XDI3Segment, MemoryRelation> relations = this.relations.get(arcXri);
-		if (relations == null) return;
+			if (relations instanceof MemoryRelation) {
 
-		relations.remove(targetContextNodeXri);
+				this.relations.remove(arcXri);
+			} else {
+
+				// go back to a single relation if only one is left
+
+				CompactMap<XDI3Segment, MemoryRelation> targetRelations = targetRelations(relations);
+				targetRelations.remove(targetContextNodeXri);
+
+				if (targetRelations.size() == 1) this.relations.put(arcXri, targetRelations.singleValue());
+			}
 
-		if (relations.isEmpty()) {
+			if (this.relations.isEmpty()) this.relations = null;
 
-			this.relations.remove(arcXri);
+			graph.unindexRelation(relation);
+		} finally {
+
+			graph.endWrite();
 		}
 	}
 
 	@Override
-	public synchronized void delRelations(XDI3Segment arcXri) {
+	public void delRelations(XDI3Segment arcXri) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			if (this.relations == null) return;
+
+			Object relations = this.relations.remove(arcXri);
+			if (relations == null) return;
 
-		this.relations.remove(arcXri);
+			if (this.relations.isEmpty()) this.relations = null;
+
+			for (Iterator<MemoryRelation> relationIterator = relationIterator(relations); relationIterator.hasNext(); ) graph.unindexRelation(relationIterator.next());
+		} finally {
+
+			graph.endWrite();
+		}
 	}
 
 	@Override
-	public synchronized void delRelations() {
+	public void delRelations() {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
 
-		this.relations.clear();
+			if (this.relations == null) return;
+
+			for (Iterator<Object> relationsIterator = this.relations.values(); relationsIterator.hasNext(); ) 
+				for (Iterator<MemoryRelation> relationIterator = relationIterator(relationsIterator.next()); relationIterator.hasNext(); ) 
+					graph.unindexRelation(relationIterator.next());
+
+			this.relations = null;
+		} finally {
+
+			graph.endWrite();
+		}
 	}
 
 	/*
@@ -253,35 +463,119 @@ public class MemoryContextNode extends AbstractContextNode implements ContextNod
 	 */
 
 	@Override
-	public synchronized Literal setLiteral(Object literalData) {
+	public Literal setLiteral(Object literalData) {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			this.checkLiteral(literalData);
+
+			Literal literal = this.getLiteral(literalData);
+			if (literal != null) return literal;
+
+			literal = new MemoryLiteral(this, literalData);
 
-		this.checkLiteral(literalData);
+			this.literal = (MemoryLiteral) literal;
 
-		Literal literal = this.getLiteral(literalData);
-		if (literal != null) return literal;
+			return literal;
+		} finally {
 
-		literal = new MemoryLiteral(this, literalData);
-	
-		this.literal = (MemoryLiteral) literal;
-		
-		return literal;
+			graph.endWrite();
+		}
 	}
 
 	@Override
 	public Literal getLiteral() {
 
-		return this.literal;
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			return this.literal;
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
 	public boolean containsLiteral() {
 
-		return this.literal != null;
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginRead();
+
+		try {
+
+			return this.literal != null;
+		} finally {
+
+			graph.endRead();
+		}
 	}
 
 	@Override
-	public synchronized void delLiteral() {
+	public void delLiteral() {
 
-		this.literal = null;
+		MemoryGraph graph = this.getMemoryGraph();
+		graph.beginWrite();
+
+		try {
+
+			this.literal = null;
+		} finally {
+
+			graph.endWrite();
+		}
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private MemoryGraph getMemoryGraph() {
+
+		return (MemoryGraph) this.getGraph();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static CompactMap<XDI3Segment, MemoryRelation> targetRelations(Object relations) {
+
+		return (CompactMap<XDI3Segment, MemoryRelation>) relations;
+	}
+
+	/**
+	 * Iterates over an entry of the relations map, which is either a single MemoryRelation
+	 * or a map of MemoryRelations by target context node XRI.
+	 */
+	private static Iterator<MemoryRelation> relationIterator(Object relations) {
+
+		if (relations instanceof MemoryRelation) return new SingleItemIterator<MemoryRelation> ((MemoryRelation) relations);
+
+		return targetRelations(relations).values();
+	}
+
+	/**
+	 * Removes the relations of this context node and all its descendants
+	 * from the incoming relations index, after this context node was deleted.
+	 */
+	private void unindexAllRelations() {
+
+		MemoryGraph graph = this.getMemoryGraph();
+		if (! graph.getIndexIncomingRelations()) return;
+
+		if (this.relations != null) {
+
+			for (Iterator<Object> relationsIterator = this.relations.values(); relationsIterator.hasNext(); ) 
+				for (Iterator<MemoryRelation> relationIterator = relationIterator(relationsIterator.next()); relationIterator.hasNext(); ) 
+					graph.unindexRelation(relationIterator.next());
+		}
+
+		if (this.contextNodes != null) {
+
+			for (Iterator<MemoryContextNode> contextNodes = this.contextNodes.values(); contextNodes.hasNext(); ) contextNodes.next().unindexAllRelations();
+		}
 	}
 }
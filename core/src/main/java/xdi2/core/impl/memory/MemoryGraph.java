@@ -1,24 +1,51 @@
 package xdi2.core.impl.memory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import xdi2.core.ContextNode;
 import xdi2.core.Graph;
 import xdi2.core.impl.AbstractGraph;
-
+import xdi2.core.util.iterators.IteratorListMaker;
+import xdi2.core.xri3.XDI3Segment;
+
+/**
+ * An in-memory graph.
+ *
+ * Changes to the graph are serialized by a graph-level write lock. A concurrent graph
+ * also takes the read lock for reads, and returns iterators over snapshots, so that
+ * many threads can read the graph while another thread changes it. Each single read is
+ * consistent, but a sequence of reads may see changes that happened in between.
+ */
 public class MemoryGraph extends AbstractGraph implements Graph {
 
 	private static final long serialVersionUID = 8979035878235290607L;
 
 	private int sortmode;
+	private boolean concurrent;
 
+	private ReentrantReadWriteLock lock;
 	private MemoryContextNode rootContextNode;
+	private Map<XDI3Segment, Set<MemoryRelation>> incomingRelations;
 
-	MemoryGraph(MemoryGraphFactory graphFactory, String identifier, int sortmode) {
+	MemoryGraph(MemoryGraphFactory graphFactory, String identifier, int sortmode, boolean indexIncomingRelations, boolean concurrent) {
 
 		super(graphFactory, identifier);
 
 		this.sortmode = sortmode;
+		this.concurrent = concurrent;
+
+		this.lock = new ReentrantReadWriteLock();
 
 		this.rootContextNode = new MemoryContextNode(this, null, null);
+		this.incomingRelations = indexIncomingRelations ? new HashMap<XDI3Segment, Set<MemoryRelation>> () : null;
 	}
 
 	@Override
@@ -40,4 +67,103 @@ public class MemoryGraph extends AbstractGraph implements Graph {
 
 		return this.sortmode;
 	}
+
+	public boolean getIndexIncomingRelations() {
+
+		return this.incomingRelations != null;
+	}
+
+	public boolean isConcurrent() {
+
+		return this.concurrent;
+	}
+
+	/*
+	 * Methods related to locking
+	 */
+
+	void beginRead() {
+
+		if (this.concurrent) this.lock.readLock().lock();
+	}
+
+	void endRead() {
+
+		if (this.concurrent) this.lock.readLock().unlock();
+	}
+
+	void beginWrite() {
+
+		this.lock.writeLock().lock();
+	}
+
+	void endWrite() {
+
+		this.lock.writeLock().unlock();
+	}
+
+	/**
+	 * In a concurrent graph, copies the items of an iterator, so that they can be iterated
+	 * after the read lock was released. Otherwise returns the iterator itself.
+	 */
+	<T> Iterator<T> snapshot(Iterator<T> iterator) {
+
+		if (! this.concurrent) return iterator;
+
+		return new IteratorListMaker<T> (iterator).list().iterator();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/*
+	 * The incoming relations index is changed with the write lock held
+	 */
+
+	void indexRelation(MemoryRelation relation) {
+
+		if (this.incomingRelations == null) return;
+
+		Set<MemoryRelation> relations = this.incomingRelations.get(relation.getTargetContextNodeXri());
+
+		if (relations == null) {
+
+			relations = Collections.newSetFromMap(new IdentityHashMap<MemoryRelation, Boolean> ());
+			this.incomingRelations.put(relation.getTargetContextNodeXri(), relations);
+		}
+
+		relations.add(relation);
+	}
+
+	void unindexRelation(MemoryRelation relation) {
+
+		if (this.incomingRelations == null) return;
+
+		Set<MemoryRelation> relations = this.incomingRelations.get(relation.getTargetContextNodeXri());
+		if (relations == null) return;
+
+		relations.remove(relation);
+		if (relations.isEmpty()) this.incomingRelations.remove(relation.getTargetContextNodeXri());
+	}
+
+	/**
+	 * Returns a snapshot of the indexed relations pointing to a target context node XRI,
+	 * so that callers can delete relations while iterating.
+	 */
+	List<MemoryRelation> getIndexedIncomingRelations(XDI3Segment targetContextNodeXri) {
+
+		this.beginRead();
+
+		try {
+
+			Set<MemoryRelation> relations = this.incomingRelations.get(targetContextNodeXri);
+			if (relations == null) return Collections.emptyList();
+
+			return new ArrayList<MemoryRelation> (relations);
+		} finally {
+
+			this.endRead();
+		}
+	}
 }
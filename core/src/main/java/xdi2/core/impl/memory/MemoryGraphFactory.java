@@ -17,15 +17,22 @@ public class MemoryGraphFactory extends AbstractGraphFactory implements GraphFac
 	public static final int SORTMODE_ORDER = 1;
 	public static final int SORTMODE_ALPHA = 2;
 
+	public static final boolean DEFAULT_INDEX_INCOMING_RELATIONS = true;
+	public static final boolean DEFAULT_CONCURRENT = false;
+
 	private static MemoryGraphFactory instance = null;
 
 	private int sortmode;
+	private boolean indexIncomingRelations;
+	private boolean concurrent;
 
 	private Map<String, MemoryGraph> graphs;
 
 	public MemoryGraphFactory() { 
 
 		this.sortmode = SORTMODE_NONE;
+		this.indexIncomingRelations = DEFAULT_INDEX_INCOMING_RELATIONS;
+		this.concurrent = DEFAULT_CONCURRENT;
 
 		this.graphs = new HashMap<String, MemoryGraph> ();
 	}
@@ -42,7 +49,7 @@ public class MemoryGraphFactory extends AbstractGraphFactory implements GraphFac
 
 		// create new graph
 
-		return new MemoryGraph(this, null, this.sortmode);
+		return new MemoryGraph(this, null, this.sortmode, this.indexIncomingRelations, this.concurrent);
 	}
 
 	@Override
@@ -52,7 +59,7 @@ public class MemoryGraphFactory extends AbstractGraphFactory implements GraphFac
 
 		if (graph == null) {
 
-			graph = new MemoryGraph(this, identifier, this.sortmode);
+			graph = new MemoryGraph(this, identifier, this.sortmode, this.indexIncomingRelations, this.concurrent);
 
 			this.graphs.put(identifier, graph);
 		}
@@ -69,4 +76,33 @@ public class MemoryGraphFactory extends AbstractGraphFactory implements GraphFac
 
 		this.sortmode = sortmode;
 	}
+
+	public boolean getIndexIncomingRelations() {
+
+		return this.indexIncomingRelations;
+	}
+
+	/**
+	 * Enables or disables the index of incoming relations in new graphs.
+	 * With the index, getIncomingRelations() takes time proportional to the number of results,
+	 * instead of walking over all relations in the graph.
+	 */
+	public void setIndexIncomingRelations(boolean indexIncomingRelations) {
+
+		this.indexIncomingRelations = indexIncomingRelations;
+	}
+
+	public boolean getConcurrent() {
+
+		return this.concurrent;
+	}
+
+	/**
+	 * Enables or disables concurrent reads in new graphs.
+	 * A concurrent graph can be read by many threads while another thread changes it.
+	 */
+	public void setConcurrent(boolean concurrent) {
+
+		this.concurrent = concurrent;
+	}
 }
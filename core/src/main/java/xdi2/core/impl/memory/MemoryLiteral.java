@@ -7,7 +7,7 @@ public class MemoryLiteral extends AbstractLiteral implements Literal {
 
 	private static final long serialVersionUID = -7857969624385707741L;
 
-	private Object literalData;
+	private volatile Object literalData;
 
 	MemoryLiteral(MemoryContextNode contextNode, Object literalData) {
 
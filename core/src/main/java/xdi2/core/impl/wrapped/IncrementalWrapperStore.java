@@ -0,0 +1,19 @@
+package xdi2.core.impl.wrapped;
+
+import java.util.List;
+
+import xdi2.core.impl.memory.MemoryGraph;
+
+/**
+ * A WrapperStore that can persist only the statements that changed since the
+ * last save, instead of writing the whole graph every time.
+ */
+public interface IncrementalWrapperStore extends WrapperStore {
+
+	/**
+	 * Persists changes to the graph.
+	 * @param memoryGraph The graph, after the changes have been made to it.
+	 * @param changes The changes since the last save, in the order in which they were made.
+	 */
+	public void save(MemoryGraph memoryGraph, List<WrapperStoreChange> changes);
+}
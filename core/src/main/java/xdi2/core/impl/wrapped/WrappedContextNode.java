@@ -5,6 +5,7 @@ import java.util.Iterator;
 import xdi2.core.ContextNode;
 import xdi2.core.Literal;
 import xdi2.core.Relation;
+import xdi2.core.Statement;
 import xdi2.core.impl.AbstractContextNode;
 import xdi2.core.impl.memory.MemoryContextNode;
 import xdi2.core.impl.memory.MemoryLiteral;
@@ -40,9 +41,15 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized ContextNode setContextNode(XDI3SubSegment arcXri) {
 
+		WrappedGraph graph = (WrappedGraph) this.getGraph();
+		boolean track = graph.isTrackingChanges() && ! this.memoryContextNode.containsContextNode(arcXri);
+
 		MemoryContextNode ret = (MemoryContextNode) this.memoryContextNode.setContextNode(arcXri);
 
-		return new WrappedContextNode((WrappedGraph) this.getGraph(), this, ret);
+		WrappedContextNode contextNode = new WrappedContextNode(graph, this, ret);
+		if (track) graph.addChange(WrapperStoreChange.set(contextNode.getStatement().getXri()));
+
+		return contextNode;
 	}
 
 	@Override
@@ -76,12 +83,23 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized void delContextNode(XDI3SubSegment arcXri) {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			ContextNode contextNode = this.getContextNode(arcXri);
+			if (contextNode != null) this.addDelChange(contextNode.getStatement());
+		}
+
 		this.memoryContextNode.delContextNode(arcXri);
 	}
 
 	@Override
 	public synchronized void delContextNodes() {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			for (ContextNode contextNode : this.getContextNodes()) this.addDelChange(contextNode.getStatement());
+		}
+
 		this.memoryContextNode.delContextNodes();
 	}
 
@@ -92,9 +110,15 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized Relation setRelation(XDI3Segment arcXri, ContextNode targetContextNode) {
 
+		WrappedGraph graph = (WrappedGraph) this.getGraph();
+		boolean track = graph.isTrackingChanges() && ! this.memoryContextNode.containsRelation(arcXri, targetContextNode.getXri());
+
 		MemoryRelation ret = (MemoryRelation) this.memoryContextNode.setRelation(arcXri, targetContextNode);
 
-		return new WrappedRelation(this, ret);
+		WrappedRelation relation = new WrappedRelation(this, ret);
+		if (track) graph.addChange(WrapperStoreChange.set(relation.getStatement().getXri()));
+
+		return relation;
 	}
 
 	@Override
@@ -142,18 +166,34 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized void delRelation(XDI3Segment arcXri, XDI3Segment targetContextNodeXri) {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			Relation relation = this.getRelation(arcXri, targetContextNodeXri);
+			if (relation != null) this.addDelChange(relation.getStatement());
+		}
+
 		this.memoryContextNode.delRelation(arcXri, targetContextNodeXri);
 	}
 
 	@Override
 	public synchronized void delRelations(XDI3Segment arcXri) {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			for (Relation relation : this.getRelations(arcXri)) this.addDelChange(relation.getStatement());
+		}
+
 		this.memoryContextNode.delRelations(arcXri);
 	}
 
 	@Override
 	public synchronized void delRelations() {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			for (Relation relation : this.getRelations()) this.addDelChange(relation.getStatement());
+		}
+
 		this.memoryContextNode.delRelations();
 	}
 
@@ -164,9 +204,15 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized Literal setLiteral(Object literalData) {
 
+		WrappedGraph graph = (WrappedGraph) this.getGraph();
+		boolean track = graph.isTrackingChanges() && this.memoryContextNode.getLiteral(literalData) == null;
+
 		MemoryLiteral ret = (MemoryLiteral) this.memoryContextNode.setLiteral(literalData);
 
-		return ret == null ? null : new WrappedLiteral(this, ret);
+		WrappedLiteral literal = ret == null ? null : new WrappedLiteral(this, ret);
+		if (track && literal != null) graph.addChange(WrapperStoreChange.set(literal.getStatement().getXri()));
+
+		return literal;
 	}
 
 	@Override
@@ -186,9 +232,24 @@ public class WrappedContextNode extends AbstractContextNode implements ContextNo
 	@Override
 	public synchronized void delLiteral() {
 
+		if (((WrappedGraph) this.getGraph()).isTrackingChanges()) {
+
+			Literal literal = this.getLiteral();
+			if (literal != null) this.addDelChange(literal.getStatement());
+		}
+
 		this.memoryContextNode.delLiteral();
 	}
 
+	/*
+	 * Helper methods
+	 */
+
+	private void addDelChange(Statement statement) {
+
+		((WrappedGraph) this.getGraph()).addChange(WrapperStoreChange.del(statement.getXri()));
+	}
+
 	private class FileContextNodeMappingIterator extends MappingIterator<ContextNode, ContextNode> {
 
 		public FileContextNodeMappingIterator(Iterator<ContextNode> iterator) {
@@ -1,5 +1,8 @@
 package xdi2.core.impl.wrapped;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import xdi2.core.ContextNode;
 import xdi2.core.Graph;
 import xdi2.core.impl.AbstractGraph;
@@ -12,6 +15,7 @@ public class WrappedGraph extends AbstractGraph implements Graph {
 
 	private WrapperStore wrapperStore;
 	private MemoryGraph memoryGraph;
+	private List<WrapperStoreChange> changes;
 
 	WrappedGraph(WrappedGraphFactory graphFactory, String identifier, WrapperStore wrapper, MemoryGraph memoryGraph) {
 
@@ -19,6 +23,7 @@ public class WrappedGraph extends AbstractGraph implements Graph {
 
 		this.wrapperStore = wrapper;
 		this.memoryGraph = memoryGraph;
+		this.changes = (wrapper instanceof IncrementalWrapperStore) ? new ArrayList<WrapperStoreChange> () : null;
 
 		this.getWrapperStore().load(this.getMemoryGraph());
 	}
@@ -34,7 +39,7 @@ public class WrappedGraph extends AbstractGraph implements Graph {
 	@Override
 	public void close() {
 
-		this.getWrapperStore().save(this.getMemoryGraph());
+		this.save();
 	}
 
 	@Override
@@ -51,7 +56,7 @@ public class WrappedGraph extends AbstractGraph implements Graph {
 	@Override
 	public void commitTransaction() {
 
-		this.getWrapperStore().save(this.getMemoryGraph());
+		this.save();
 	}
 
 	@Override
@@ -59,6 +64,47 @@ public class WrappedGraph extends AbstractGraph implements Graph {
 
 	}
 
+	/*
+	 * Methods related to tracking changes
+	 */
+
+	/**
+	 * Checks if changes to this graph are recorded, so that an IncrementalWrapperStore
+	 * can persist only them.
+	 */
+	boolean isTrackingChanges() {
+
+		return this.changes != null;
+	}
+
+	synchronized void addChange(WrapperStoreChange change) {
+
+		if (this.changes != null) this.changes.add(change);
+	}
+
+	/**
+	 * Returns the number of changes that have not been saved yet.
+	 */
+	public synchronized int getChangeCount() {
+
+		return this.changes == null ? 0 : this.changes.size();
+	}
+
+	private synchronized void save() {
+
+		if (this.changes == null) {
+
+			this.getWrapperStore().save(this.getMemoryGraph());
+			return;
+		}
+
+		if (this.changes.isEmpty()) return;
+
+		((IncrementalWrapperStore) this.getWrapperStore()).save(this.getMemoryGraph(), this.changes);
+
+		this.changes.clear();
+	}
+
 	public WrapperStore getWrapperStore() {
 
 		return this.wrapperStore;
@@ -27,5 +27,8 @@ public class WrappedLiteral extends AbstractLiteral implements Literal {
 	public void setLiteralData(Object literalData) {
 
 		this.memoryLiteral.setLiteralData(literalData);
+
+		WrappedGraph graph = (WrappedGraph) this.getContextNode().getGraph();
+		if (graph.isTrackingChanges()) graph.addChange(WrapperStoreChange.set(this.getStatement().getXri()));
 	}
 }
@@ -0,0 +1,56 @@
+package xdi2.core.impl.wrapped;
+
+import xdi2.core.exceptions.Xdi2ParseException;
+import xdi2.core.xri3.XDI3Statement;
+
+/**
+ * A single change to a wrapped graph, i.e. a statement that was set or deleted.
+ * The string form is "+ " or "- ", followed by the statement in XDI display format.
+ */
+public final class WrapperStoreChange {
+
+	private final boolean set;
+	private final XDI3Statement statementXri;
+
+	private WrapperStoreChange(boolean set, XDI3Statement statementXri) {
+
+		this.set = set;
+		this.statementXri = statementXri;
+	}
+
+	public static WrapperStoreChange set(XDI3Statement statementXri) {
+
+		return new WrapperStoreChange(true, statementXri);
+	}
+
+	public static WrapperStoreChange del(XDI3Statement statementXri) {
+
+		return new WrapperStoreChange(false, statementXri);
+	}
+
+	public static WrapperStoreChange fromString(String string) throws Xdi2ParseException {
+
+		if (string.length() < 3 || string.charAt(1) != ' ') throw new Xdi2ParseException("Invalid change: " + string);
+
+		char c = string.charAt(0);
+		if (c != '+' && c != '-') throw new Xdi2ParseException("Invalid change: " + string);
+
+		return new WrapperStoreChange(c == '+', XDI3Statement.create(string.substring(2)));
+	}
+
+	public boolean isSet() {
+
+		return this.set;
+	}
+
+	public XDI3Statement getStatementXri() {
+
+		return this.statementXri;
+	}
+
+	@Override
+	public String toString() {
+
+		return (this.set ? "+ " : "- ") + this.statementXri.toString();
+	}
+}
@@ -22,12 +22,14 @@ public class FileWrapperGraphFactory extends WrappedGraphFactory implements Grap
 
 	private String path;
 	private String mimeType;
+	private long journalSize;
 
 	public FileWrapperGraphFactory() { 
 
 		super();
 
 		this.mimeType = DEFAULT_MIMETYPE;
+		this.journalSize = FileWrapperStore.DEFAULT_JOURNAL_SIZE;
 	}
 
 	@Override
@@ -47,7 +49,7 @@ public class FileWrapperGraphFactory extends WrappedGraphFactory implements Grap
 		XDIReader xdiReader = XDIReaderRegistry.forMimeType(this.mimeType == null ? null : new MimeType(this.mimeType));
 		XDIWriter xdiWriter = XDIWriterRegistry.forMimeType(this.mimeType == null ? null : new MimeType(this.mimeType));
 
-		return new FileWrapperStore(path, this.mimeType, xdiReader, xdiWriter);
+		return new FileWrapperStore(path, this.mimeType, xdiReader, xdiWriter, this.journalSize);
 	}
 
 	public String getPath() {
@@ -69,4 +71,18 @@ public class FileWrapperGraphFactory extends WrappedGraphFactory implements Grap
 
 		this.mimeType = mimeType;
 	}
+
+	public long getJournalSize() {
+
+		return this.journalSize;
+	}
+
+	/**
+	 * Sets the size in bytes at which the journal is compacted into the graph file.
+	 * 0 means that every save rewrites the whole graph file.
+	 */
+	public void setJournalSize(long journalSize) {
+
+		this.journalSize = journalSize;
+	}
 }
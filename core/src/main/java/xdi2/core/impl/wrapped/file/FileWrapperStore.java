@@ -1,36 +1,82 @@
 package xdi2.core.impl.wrapped.file;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xdi2.core.Statement;
 import xdi2.core.exceptions.Xdi2RuntimeException;
 import xdi2.core.impl.memory.MemoryGraph;
+import xdi2.core.impl.wrapped.IncrementalWrapperStore;
 import xdi2.core.impl.wrapped.WrapperStore;
+import xdi2.core.impl.wrapped.WrapperStoreChange;
 import xdi2.core.io.XDIReader;
 import xdi2.core.io.XDIWriter;
-
-public class FileWrapperStore implements WrapperStore {
+import xdi2.core.io.readers.XDIDisplayReader;
+
+/**
+ * A WrapperStore that keeps the graph in a file.
+ *
+ * Changes are appended to a journal file next to the graph file, with one
+ * "+ statement" or "- statement" line per change in XDI display format, and a
+ * line containing only "." at the end of every save. When the journal grows past
+ * the journal size, the graph file is rewritten and the journal is deleted.
+ * Loading reads the graph file and then replays all complete saves in the journal.
+ * An incomplete save at the end of the journal is dropped, but loading fails and
+ * the journal is kept if a complete save cannot be read.
+ *
+ * The graph file and the journal are UTF-8. Graph files in XDI display format are
+ * memory-mapped, and parsed on several threads if the reader is configured for that.
+ * Earlier versions wrote the graph file in the platform charset. Such a file is still
+ * read, since a graph file that is not valid UTF-8 is decoded with the platform
+ * charset, and it is written as UTF-8 the next time the graph file is rewritten.
+ */
+public class FileWrapperStore implements IncrementalWrapperStore {
 
 	private static final Logger log = LoggerFactory.getLogger(FileWrapperStore.class);
 
+	public static final String JOURNAL_SUFFIX = ".journal";
+	public static final long DEFAULT_JOURNAL_SIZE = 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String END_OF_SAVE = ".";
+
 	private String path;
 	private String mimeType;
 	private XDIReader xdiReader;
 	private XDIWriter xdiWriter;
+	private long journalSize;
 
-	public FileWrapperStore(String path, String mimeType, XDIReader xdiReader, XDIWriter xdiWriter) {
+	public FileWrapperStore(String path, String mimeType, XDIReader xdiReader, XDIWriter xdiWriter, long journalSize) {
 
 		this.path = path;
 		this.mimeType = mimeType;
 		this.xdiReader = xdiReader;
 		this.xdiWriter = xdiWriter;
+		this.journalSize = journalSize;
+	}
+
+	public FileWrapperStore(String path, String mimeType, XDIReader xdiReader, XDIWriter xdiWriter) {
+
+		this(path, mimeType, xdiReader, xdiWriter, DEFAULT_JOURNAL_SIZE);
 	}
 
 	@Override
@@ -38,51 +84,276 @@ public class FileWrapperStore implements WrapperStore {
 
 		memoryGraph.clear();
 
+		boolean complete;
+
 		try {
 
 			File file = new File(this.path);
+
 			if (! file.exists()) {
 
 				if (log.isDebugEnabled()) log.debug("File " + file.getAbsolutePath() + " does not exist. Not loading.");
-				return;
-			}
+			} else {
 
-			if (log.isDebugEnabled()) log.debug("Loading file " + file.getAbsolutePath());
+				if (log.isDebugEnabled()) log.debug("Loading file " + file.getAbsolutePath());
 
-			Reader reader = new FileReader(file);
+				if (this.xdiReader instanceof XDIDisplayReader) {
 
-			this.xdiReader.read(memoryGraph, reader);
-			reader.close();
+					((XDIDisplayReader) this.xdiReader).read(memoryGraph, file);
+				} else {
+
+					Reader reader = new InputStreamReader(new FileInputStream(file), charset(file));
+
+					try {
+
+						this.xdiReader.read(memoryGraph, reader);
+					} finally {
+
+						reader.close();
+					}
+				}
+			}
+
+			complete = this.replay(memoryGraph);
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot load file at " + this.path, ex);
 		}
+
+		// an incomplete save at the end of the journal would be mistaken
+		// for the start of the next one, so we get rid of the journal now
+
+		if (! complete) this.save(memoryGraph);
 	}
 
+	/**
+	 * Rewrites the whole graph file, and deletes the journal.
+	 */
 	@Override
 	public void save(MemoryGraph memoryGraph) {
 
 		try {
 
 			File file = new File(this.path);
-			if (! file.exists()) {
+			File tempFile = new File(this.path + TEMP_SUFFIX);
+
+			if (log.isDebugEnabled()) log.debug("Saving file " + file.getAbsolutePath());
+
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
 
-				if (log.isDebugEnabled()) log.debug("File " + file.getAbsolutePath() + " does not exist. Creating file.");
-				file.createNewFile();
+			try {
+
+				this.xdiWriter.write(memoryGraph, writer);
+			} finally {
+
+				writer.close();
 			}
 
-			if (log.isDebugEnabled()) log.debug("Saving file " + file.getAbsolutePath());
+			// File.renameTo() does not replace an existing file on all platforms
+
+			if (! tempFile.renameTo(file)) {
 
-			Writer writer = new FileWriter(this.path);
+				file.delete();
+				if (! tempFile.renameTo(file)) throw new IOException("Cannot rename " + tempFile.getAbsolutePath() + " to " + file.getName());
+			}
+
+			// if we stop before this, replaying the journal again on top of
+			// the new graph file does no harm
 
-			this.xdiWriter.write(memoryGraph, writer);
-			writer.close();
+			File journalFile = this.getJournalFile();
+			if (journalFile.exists() && ! journalFile.delete()) throw new IOException("Cannot delete " + journalFile.getAbsolutePath());
 		} catch (Exception ex) {
 
 			throw new Xdi2RuntimeException("Cannot save file at " + this.path, ex);
 		}
 	}
 
+	/**
+	 * Appends changes to the journal, and rewrites the graph file if the journal is too large.
+	 */
+	@Override
+	public void save(MemoryGraph memoryGraph, List<WrapperStoreChange> changes) {
+
+		File journalFile = this.getJournalFile();
+
+		if (this.journalSize <= 0) {
+
+			this.save(memoryGraph);
+			return;
+		}
+
+		try {
+
+			if (log.isDebugEnabled()) log.debug("Appending " + changes.size() + " changes to " + journalFile.getAbsolutePath());
+
+			long length = journalFile.length();
+
+			try {
+
+				Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+
+				try {
+
+					for (WrapperStoreChange change : changes) {
+
+						writer.write(change.toString());
+						writer.write('\n');
+					}
+
+					writer.write(END_OF_SAVE);
+					writer.write('\n');
+				} finally {
+
+					writer.close();
+				}
+			} catch (IOException ex) {
+
+				truncate(journalFile, length);
+
+				throw ex;
+			}
+		} catch (Exception ex) {
+
+			throw new Xdi2RuntimeException("Cannot append to journal at " + journalFile.getAbsolutePath(), ex);
+		}
+
+		if (journalFile.length() >= this.journalSize) this.save(memoryGraph);
+	}
+
+	/*
+	 * Journal
+	 */
+
+	public File getJournalFile() {
+
+		return new File(this.path + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Applies all complete saves in the journal to the graph.
+	 * Only the last save can be incomplete, if we stopped while appending it. An invalid line in
+	 * a save that is followed by "." means that the journal is corrupt, and dropping that save
+	 * and the ones after it would lose changes, so we fail instead.
+	 * @return False, if the journal ends with an incomplete save.
+	 */
+	private boolean replay(MemoryGraph memoryGraph) throws IOException {
+
+		File journalFile = this.getJournalFile();
+		if (! journalFile.exists()) return true;
+
+		if (log.isDebugEnabled()) log.debug("Replaying journal " + journalFile.getAbsolutePath());
+
+		List<WrapperStoreChange> changes = new ArrayList<WrapperStoreChange> ();
+		String invalidLine = null;
+		int lineNr = 0;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+
+		try {
+
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+
+				lineNr++;
+
+				if (END_OF_SAVE.equals(line)) {
+
+					if (invalidLine != null) throw new IOException("Invalid line in a complete save in journal " + journalFile.getAbsolutePath() + ": " + invalidLine);
+
+					apply(memoryGraph, changes);
+					changes.clear();
+
+					continue;
+				}
+
+				if (invalidLine != null) continue;
+
+				try {
+
+					changes.add(WrapperStoreChange.fromString(line));
+				} catch (Exception ex) {
+
+					invalidLine = lineNr + ": " + line + " (" + ex.getMessage() + ")";
+				}
+			}
+		} finally {
+
+			reader.close();
+		}
+
+		if (invalidLine != null || ! changes.isEmpty()) {
+
+			log.warn("Ignoring an incomplete save at the end of journal " + journalFile.getAbsolutePath() + (invalidLine == null ? "" : ", with invalid line " + invalidLine));
+
+			return false;
+		}
+
+		return true;
+	}
+
+	private static void apply(MemoryGraph memoryGraph, List<WrapperStoreChange> changes) {
+
+		for (WrapperStoreChange change : changes) {
+
+			if (change.isSet()) {
+
+				memoryGraph.setStatement(change.getStatementXri());
+			} else {
+
+				Statement statement = memoryGraph.getStatement(change.getStatementXri());
+				if (statement != null) statement.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns UTF-8 if a file is valid UTF-8, and the platform charset otherwise.
+	 */
+	private static Charset charset(File file) throws IOException {
+
+		Reader reader = new InputStreamReader(new FileInputStream(file), UTF8.newDecoder());
+
+		try {
+
+			char[] chars = new char[8192];
+			while (reader.read(chars) != -1);
+		} catch (CharacterCodingException ex) {
+
+			log.warn("File " + file.getAbsolutePath() + " is not valid UTF-8. Reading it with the platform charset " + Charset.defaultCharset().name() + ".");
+
+			return Charset.defaultCharset();
+		} finally {
+
+			reader.close();
+		}
+
+		return UTF8;
+	}
+
+	private static void truncate(File file, long length) {
+
+		try {
+
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+			try {
+
+				randomAccessFile.setLength(length);
+			} finally {
+
+				randomAccessFile.close();
+			}
+		} catch (IOException ex) {
+
+			log.warn("Cannot truncate " + file.getAbsolutePath() + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	/*
+	 * Getters and setters
+	 */
+
 	public String getPath() {
 
 		return this.path;
@@ -123,6 +394,16 @@ public class FileWrapperStore implements WrapperStore {
 		this.xdiWriter = xdiWriter;
 	}
 
+	public long getJournalSize() {
+
+		return this.journalSize;
+	}
+
+	public void setJournalSize(long journalSize) {
+
+		this.journalSize = journalSize;
+	}
+
 	/*
 	 * Helper methods
 	 */
@@ -134,7 +415,9 @@ public class FileWrapperStore implements WrapperStore {
 			@Override
 			public boolean accept(File dir, String name) {
 
-				return name.startsWith("xdi2-graph.") && name.endsWith(".xdi");
+				if (! name.startsWith("xdi2-graph.") && ! name.startsWith("xdi2-file-wrapper-graph.")) return false;
+
+				return name.endsWith(".xdi") || name.endsWith(".xdi" + JOURNAL_SUFFIX) || name.endsWith(".xdi" + TEMP_SUFFIX);
 			}
 		});
 
@@ -24,6 +24,13 @@ public final class XDIReaderRegistry {
 
 	private static final Logger log = LoggerFactory.getLogger(XDIReaderRegistry.class);
 
+	public static final String PARAMETER_STREAMING = "streaming";
+	public static final String DEFAULT_STREAMING = "1";
+	public static final String PARAMETER_THREADS = "threads";
+	public static final String DEFAULT_THREADS = "1";
+	public static final String PARAMETER_CHUNKSIZE = "chunksize";
+	public static final String DEFAULT_CHUNKSIZE = "4194304";
+
 	private static String readerClassNames[] = {
 
 		XDIJSONReader.class.getName(),
@@ -31,11 +31,13 @@ public final class XDIWriterRegistry {
 	public static final String PARAMETER_INNER = "inner";
 	public static final String PARAMETER_PRETTY = "pretty";
 	public static final String PARAMETER_HTML = "html";
+	public static final String PARAMETER_STREAMING = "streaming";
 	public static final String DEFAULT_IMPLIED = "0";
 	public static final String DEFAULT_ORDERED = "0";
 	public static final String DEFAULT_INNER = "1";
 	public static final String DEFAULT_PRETTY = "0";
 	public static final String DEFAULT_HTML = "0";
+	public static final String DEFAULT_STREAMING = "0";
 
 	private static String writerClassNames[] = {
 
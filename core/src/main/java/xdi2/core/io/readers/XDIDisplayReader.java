@@ -1,14 +1,33 @@
 package xdi2.core.io.readers;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import xdi2.core.Graph;
 import xdi2.core.exceptions.Xdi2ParseException;
 import xdi2.core.io.AbstractXDIReader;
 import xdi2.core.io.MimeType;
+import xdi2.core.io.XDIReaderRegistry;
 import xdi2.core.xri3.XDI3Statement;
 
 public class XDIDisplayReader extends AbstractXDIReader {
@@ -19,6 +38,15 @@ public class XDIDisplayReader extends AbstractXDIReader {
 	public static final String FILE_EXTENSION = "xdi";
 	public static final MimeType MIME_TYPE = new MimeType("text/xdi");
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BATCH_LINES = 1000;
+
+	private int threads;
+	private int chunkSize;
+
+	private transient ExecutorService executorService;
+
 	public XDIDisplayReader(Properties parameters) {
 
 		super(parameters);
@@ -27,46 +55,371 @@ public class XDIDisplayReader extends AbstractXDIReader {
 	@Override
 	protected void init() {
 
+		this.threads = Integer.parseInt(this.parameters.getProperty(XDIReaderRegistry.PARAMETER_THREADS, XDIReaderRegistry.DEFAULT_THREADS));
+		this.chunkSize = Integer.parseInt(this.parameters.getProperty(XDIReaderRegistry.PARAMETER_CHUNKSIZE, XDIReaderRegistry.DEFAULT_CHUNKSIZE));
+
+		if (this.threads <= 0) this.threads = Runtime.getRuntime().availableProcessors();
+		if (this.chunkSize <= 0) throw new IllegalArgumentException("Invalid chunk size: " + this.chunkSize);
+	}
+
+	@Override
+	public Reader read(Graph graph, Reader reader) throws IOException, Xdi2ParseException {
+
+		this.read(graph, new LineBatchSource(new BufferedReader(reader)));
+
+		return reader;
 	}
 
-	private static void read(Graph graph, BufferedReader bufferedReader) throws IOException, Xdi2ParseException {
+	/**
+	 * Reads a UTF-8 file into a graph.
+	 * The file is memory-mapped and split into chunks that end at line breaks.
+	 * A chunk that is not valid UTF-8 is decoded with the platform charset, since earlier
+	 * versions wrote files in that, and bytes that are not valid in it either are replaced.
+	 */
+	public void read(Graph graph, File file) throws IOException, Xdi2ParseException {
+
+		FileInputStream stream = new FileInputStream(file);
+
+		try {
 
-		String line;
+			FileChannel channel = stream.getChannel();
+
+			this.read(graph, new ChunkSource(channel, this.chunkSize));
+		} finally {
+
+			stream.close();
+		}
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/**
+	 * Parses batches of lines, and adds their statements to the graph in the order
+	 * in which they appear in the input.
+	 *
+	 * If there is more than one batch and more than one thread was configured with the
+	 * threads parameter (0 means one per processor), the batches are parsed by a pool of threads,
+	 * and at most twice as many batches as threads are parsed ahead of the one that is
+	 * being added. The statements are always added by the calling thread, since none of
+	 * the graph implementations can take writes from several threads at the same time
+	 * (a concurrent MemoryGraph takes them one after the other).
+	 */
+	private void read(Graph graph, BatchSource source) throws IOException, Xdi2ParseException {
+
+		Batch first = source.next();
+		if (first == null) return;
+
+		Batch second = this.threads == 1 ? null : source.next();
 		int lineNr = 0;
 
-		while ((line = bufferedReader.readLine()) != null) {
+		// only one batch, or only one thread
+
+		if (second == null) {
+
+			for (Batch batch = first; batch != null; batch = source.next()) lineNr = batch.call().addTo(graph, lineNr);
+
+			return;
+		}
+
+		// parse on a pool of threads
+
+		ExecutorService executorService = this.getExecutorService();
+		LinkedList<Future<ParsedBatch>> pending = new LinkedList<Future<ParsedBatch>> ();
+
+		try {
+
+			pending.add(executorService.submit(first));
+			pending.add(executorService.submit(second));
+
+			Batch next = source.next();
+
+			while (! pending.isEmpty()) {
+
+				while (next != null && pending.size() < 2 * this.threads) {
+
+					pending.add(executorService.submit(next));
+					next = source.next();
+				}
+
+				ParsedBatch parsedBatch;
 
-			lineNr++;
+				try {
 
-			if (line.trim().isEmpty()) continue;
+					parsedBatch = pending.removeFirst().get();
+				} catch (InterruptedException ex) {
+
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while parsing.");
+				} catch (ExecutionException ex) {
+
+					if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+					if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+					throw new IOException("Cannot parse: " + ex.getCause().getMessage(), ex.getCause());
+				}
+
+				lineNr = parsedBatch.addTo(graph, lineNr);
+			}
+		} finally {
+
+			for (Future<ParsedBatch> future : pending) future.cancel(true);
+		}
+	}
+
+	/**
+	 * The pool of threads is created when it is first needed, and kept for later reads.
+	 * Its threads end when they have been idle for a while.
+	 */
+	private synchronized ExecutorService getExecutorService() {
+
+		if (this.executorService == null) {
+
+			ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+
+					Thread thread = new Thread(runnable, "XDIDisplayReader parser");
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+
+			threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+			this.executorService = threadPoolExecutor;
+		}
+
+		return this.executorService;
+	}
+
+	/**
+	 * Returns the position after the next line break at or after a position.
+	 */
+	private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+		while (position < size) {
+
+			buffer.clear();
+
+			int read = channel.read(buffer, position);
+			if (read <= 0) break;
+
+			for (int i=0; i<read; i++) if (buffer.get(i) == '\n') return position + i + 1;
+
+			position += read;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Some lines of the input, which can be parsed independently of all other lines.
+	 */
+	private static abstract class Batch implements Callable<ParsedBatch> {
+
+		@Override
+		public abstract ParsedBatch call() throws IOException;
+	}
+
+	private interface BatchSource {
+
+		/**
+		 * @return The next batch, or null at the end of the input.
+		 */
+		public Batch next() throws IOException;
+	}
 
-			XDI3Statement statementXri;
+	/**
+	 * A batch of lines read from a stream.
+	 */
+	private static class LineBatch extends Batch {
+
+		private final List<String> lines;
+
+		private LineBatch(List<String> lines) {
+
+			this.lines = lines;
+		}
+
+		@Override
+		public ParsedBatch call() {
+
+			ParsedBatch parsedBatch = new ParsedBatch();
+
+			for (String line : this.lines) if (! parsedBatch.parse(line)) break;
+
+			return parsedBatch;
+		}
+	}
+
+	private static class LineBatchSource implements BatchSource {
+
+		private final BufferedReader bufferedReader;
+
+		private LineBatchSource(BufferedReader bufferedReader) {
+
+			this.bufferedReader = bufferedReader;
+		}
+
+		@Override
+		public Batch next() throws IOException {
+
+			List<String> lines = new ArrayList<String> ();
+			String line;
+
+			while (lines.size() < BATCH_LINES && (line = this.bufferedReader.readLine()) != null) lines.add(line);
+
+			return lines.isEmpty() ? null : new LineBatch(lines);
+		}
+	}
+
+	/**
+	 * A line-aligned range of bytes in a file.
+	 * A line break byte never occurs inside a multi-byte UTF-8 character.
+	 */
+	private static class Chunk extends Batch {
+
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+
+		private Chunk(FileChannel channel, long start, long end) {
+
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public ParsedBatch call() throws IOException {
+
+			ByteBuffer byteBuffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, this.end - this.start);
+			CharBuffer charBuffer;
 
 			try {
 
-				statementXri = XDI3Statement.create(line);
-			} catch (Exception ex) {
+				charBuffer = UTF8.newDecoder().decode(byteBuffer.duplicate());
+			} catch (CharacterCodingException ex) {
+
+				charBuffer = Charset.defaultCharset().decode(byteBuffer);
+			}
+
+			ParsedBatch parsedBatch = new ParsedBatch();
+
+			int length = charBuffer.length();
+			int lineStart = 0;
+
+			while (lineStart < length) {
 
-				throw new Xdi2ParseException("Parser problem at line " + lineNr + ": " + ex.getMessage(), ex);
+				int lineEnd = lineStart;
+				while (lineEnd < length && charBuffer.get(lineEnd) != '\n') lineEnd++;
+
+				String line = charBuffer.subSequence(lineStart, lineEnd > lineStart && charBuffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd).toString();
+				lineStart = lineEnd + 1;
+
+				if (! parsedBatch.parse(line)) break;
 			}
 
-			// add the statement to the graph
+			return parsedBatch;
+		}
+	}
+
+	/**
+	 * Splits a file into chunks of about chunkSize bytes that end at line breaks.
+	 */
+	private static class ChunkSource implements BatchSource {
+
+		private final FileChannel channel;
+		private final int chunkSize;
+		private final long size;
+		private long start;
+
+		private ChunkSource(FileChannel channel, int chunkSize) throws IOException {
+
+			this.channel = channel;
+			this.chunkSize = chunkSize;
+			this.size = channel.size();
+			this.start = 0;
+		}
+
+		@Override
+		public Batch next() throws IOException {
+
+			if (this.start >= this.size) return null;
+
+			long end = this.start + this.chunkSize >= this.size ? this.size : nextLine(this.channel, this.start + this.chunkSize, this.size);
+			if (end - this.start > Integer.MAX_VALUE) throw new IOException("Line too long at byte " + this.start);
+
+			Chunk chunk = new Chunk(this.channel, this.start, end);
+			this.start = end;
+
+			return chunk;
+		}
+	}
+
+	/**
+	 * The statements of a batch, with their line numbers within the batch.
+	 */
+	private static class ParsedBatch {
+
+		private final List<XDI3Statement> statementXris = new ArrayList<XDI3Statement> ();
+		private final List<Integer> lineNrs = new ArrayList<Integer> ();
+		private int lineCount = 0;
+
+		private int errorLineNr;
+		private Exception error;
+
+		/**
+		 * Parses the next line of the batch.
+		 * @return False, if the line cannot be parsed. The statements before it are still added.
+		 */
+		private boolean parse(String line) {
+
+			this.lineCount++;
+
+			if (line.trim().isEmpty()) return true;
 
 			try {
 
-				graph.setStatement(statementXri);
+				this.statementXris.add(XDI3Statement.create(line));
+				this.lineNrs.add(Integer.valueOf(this.lineCount));
 			} catch (Exception ex) {
 
-				throw new Xdi2ParseException("Graph problem at line " + lineNr + ": " + ex.getMessage(), ex);
+				this.errorLineNr = this.lineCount;
+				this.error = ex;
+
+				return false;
 			}
+
+			return true;
 		}
-	}
 
-	@Override
-	public Reader read(Graph graph, Reader reader) throws IOException, Xdi2ParseException {
+		/**
+		 * Adds the statements to the graph.
+		 * @param lineNrOffset The number of lines before this batch.
+		 * @return The number of lines up to the end of this batch.
+		 */
+		private int addTo(Graph graph, int lineNrOffset) throws Xdi2ParseException {
 
-		read(graph, new BufferedReader(reader));
+			for (int i=0; i<this.statementXris.size(); i++) {
 
-		return reader;
+				try {
+
+					graph.setStatement(this.statementXris.get(i));
+				} catch (Exception ex) {
+
+					throw new Xdi2ParseException("Graph problem at line " + (lineNrOffset + this.lineNrs.get(i).intValue()) + ": " + ex.getMessage(), ex);
+				}
+			}
+
+			if (this.error != null) throw new Xdi2ParseException("Parser problem at line " + (lineNrOffset + this.errorLineNr) + ": " + this.error.getMessage(), this.error);
+
+			return lineNrOffset + this.lineCount;
+		}
 	}
 }
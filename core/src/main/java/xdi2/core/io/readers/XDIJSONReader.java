@@ -22,6 +22,7 @@ import xdi2.core.features.nodetypes.XdiRoot;
 import xdi2.core.impl.AbstractLiteral;
 import xdi2.core.io.AbstractXDIReader;
 import xdi2.core.io.MimeType;
+import xdi2.core.io.XDIReaderRegistry;
 import xdi2.core.util.XDI3Util;
 import xdi2.core.xri3.XDI3Segment;
 import xdi2.core.xri3.XDI3Statement;
@@ -34,6 +35,8 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class XDIJSONReader extends AbstractXDIReader {
 
@@ -47,6 +50,8 @@ public class XDIJSONReader extends AbstractXDIReader {
 
 	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
 
+	private boolean readStreaming;
+
 	public XDIJSONReader(Properties parameters) {
 
 		super(parameters);
@@ -55,6 +60,11 @@ public class XDIJSONReader extends AbstractXDIReader {
 	@Override
 	protected void init() {
 
+		// check parameters
+
+		this.readStreaming = "1".equals(this.parameters.getProperty(XDIReaderRegistry.PARAMETER_STREAMING, XDIReaderRegistry.DEFAULT_STREAMING));
+
+		if (log.isTraceEnabled()) log.trace("Parameters: readStreaming=" + this.readStreaming);
 	}
 
 	public void read(XdiRoot root, JsonObject jsonGraphObject, State state) throws IOException, Xdi2ParseException {
@@ -72,12 +82,9 @@ public class XDIJSONReader extends AbstractXDIReader {
 
 				JsonArray jsonEntryArray = (JsonArray) jsonEntryElement;
 
-				// find the root and the base context node of this statement
+				// find the base context node of this statement
 
-				XdiRoot statementRoot = root.findRoot(statementXri.getSubject(), true);
-				XDI3Segment absoluteSubject = XDI3Util.concatXris(root.getContextNode().getXri(), statementXri.getSubject());
-				XDI3Segment relativePart = statementRoot.getRelativePart(absoluteSubject);
-				ContextNode baseContextNode = relativePart == null ? statementRoot.getContextNode() : statementRoot.getContextNode().setDeepContextNode(relativePart);
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
 
 				// add context nodes
 
@@ -96,12 +103,9 @@ public class XDIJSONReader extends AbstractXDIReader {
 
 				Object literalData = AbstractLiteral.jsonElementToLiteralData(jsonEntryElement);
 
-				// find the root and the base context node of this statement
+				// find the base context node of this statement
 
-				XdiRoot statementRoot = root.findRoot(statementXri.getSubject(), true);
-				XDI3Segment absoluteSubject = XDI3Util.concatXris(root.getContextNode().getXri(), statementXri.getSubject());
-				XDI3Segment relativePart = statementRoot.getRelativePart(absoluteSubject);
-				ContextNode baseContextNode = relativePart == null ? statementRoot.getContextNode() : statementRoot.getContextNode().setDeepContextNode(relativePart);
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
 
 				// add literal
 
@@ -116,12 +120,9 @@ public class XDIJSONReader extends AbstractXDIReader {
 				XDI3Segment arcXri = statementXri.getPredicate();
 				JsonArray jsonEntryArray = (JsonArray) jsonEntryElement;
 
-				// find the root and the base context node of this statement
+				// find the base context node of this statement
 
-				XdiRoot statementRoot = root.findRoot(statementXri.getSubject(), true);
-				XDI3Segment absoluteSubject = XDI3Util.concatXris(root.getContextNode().getXri(), statementXri.getSubject());
-				XDI3Segment relativePart = statementRoot.getRelativePart(absoluteSubject);
-				ContextNode baseContextNode = relativePart == null ? statementRoot.getContextNode() : statementRoot.getContextNode().setDeepContextNode(relativePart);
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
 
 				// add inner root and/or relations
 
@@ -155,8 +156,119 @@ public class XDIJSONReader extends AbstractXDIReader {
 		}
 	}
 
+	/**
+	 * Reads XDI/JSON from a JsonReader, adding statements to the graph as the
+	 * members of the JSON object are parsed, without building a JSON tree first.
+	 */
+	public void read(XdiRoot root, JsonReader jsonReader, State state) throws IOException, Xdi2ParseException {
+
+		if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) throw new Xdi2ParseException("JSON must be an object: " + jsonReader.peek());
+
+		jsonReader.beginObject();
+
+		while (jsonReader.hasNext()) {
+
+			String key = jsonReader.nextName();
+
+			if (key.endsWith("/" + XDIConstants.XRI_S_CONTEXT.toString())) {
+
+				XDI3Statement statementXri = makeStatement(key + "/()", state);
+
+				if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) throw new Xdi2ParseException("JSON object member must be an array: " + jsonReader.peek());
+
+				// find the base context node of this statement
+
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
+
+				// add context nodes
+
+				jsonReader.beginArray();
+
+				while (jsonReader.hasNext()) {
+
+					if (jsonReader.peek() != JsonToken.STRING) throw new Xdi2ParseException("JSON array element must be a string: " + jsonReader.peek());
+
+					XDI3SubSegment arcXri = makeXDI3SubSegment(jsonReader.nextString(), state);
+
+					ContextNode contextNode = baseContextNode.setContextNode(arcXri);
+					if (log.isTraceEnabled()) log.trace("Under " + baseContextNode.getXri() + ": Set context node " + contextNode.getArcXri() + " --> " + contextNode.getXri());
+				}
+
+				jsonReader.endArray();
+			} else if (key.endsWith("/" + XDIConstants.XRI_S_LITERAL.toString())) {
+
+				XDI3Statement statementXri = makeStatement(key + "/\"\"", state);
+
+				Object literalData = AbstractLiteral.jsonElementToLiteralData(gson.getAdapter(JsonElement.class).read(jsonReader));
+
+				// find the base context node of this statement
+
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
+
+				// add literal
+
+				Literal literal = baseContextNode.setLiteral(literalData);
+				if (log.isTraceEnabled()) log.trace("Under " + baseContextNode.getXri() + ": Set literal --> " + literal.getLiteralData());
+			} else {
+
+				XDI3Statement statementXri = makeStatement(key + "/()", state);
+
+				if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) throw new Xdi2ParseException("JSON object member must be an array: " + jsonReader.peek());
+
+				XDI3Segment arcXri = statementXri.getPredicate();
+
+				// find the base context node of this statement
+
+				ContextNode baseContextNode = findBaseContextNode(root, statementXri);
+
+				// add inner root and/or relations
+
+				jsonReader.beginArray();
+
+				while (jsonReader.hasNext()) {
+
+					JsonToken token = jsonReader.peek();
+
+					// inner root or relation?
+
+					if (token == JsonToken.BEGIN_OBJECT) {
+
+						root = root.findRoot(statementXri.getSubject(), true);
+
+						XDI3Segment subject = root.getRelativePart(XDI3Util.concatXris(root.getContextNode().getXri(), statementXri.getSubject()));
+						XDI3Segment predicate = statementXri.getPredicate();
+
+						XdiInnerRoot innerRoot = root.findInnerRoot(subject, predicate, true);
+
+						this.read(innerRoot, jsonReader, state);
+					} else if (token == JsonToken.STRING) {
+
+						XDI3Segment targetContextNodeXri = makeXDI3Segment(jsonReader.nextString(), state);
+						targetContextNodeXri = XDI3Util.concatXris(root.getContextNode().getXri(), targetContextNodeXri);
+
+						Relation relation = baseContextNode.setRelation(arcXri, targetContextNodeXri);
+						if (log.isTraceEnabled()) log.trace("Under " + baseContextNode.getXri() + ": Set relation " + relation.getArcXri() + " --> " + relation.getTargetContextNodeXri());
+					} else {
+
+						throw new Xdi2ParseException("JSON array element must be either an object or a string: " + token);
+					}
+				}
+
+				jsonReader.endArray();
+			}
+		}
+
+		jsonReader.endObject();
+	}
+
 	private void read(Graph graph, BufferedReader bufferedReader, State state) throws IOException, Xdi2ParseException {
 
+		if (this.readStreaming) {
+
+			this.read(XdiLocalRoot.findLocalRoot(graph), new JsonReader(bufferedReader), state);
+			return;
+		}
+
 		JsonElement jsonGraphElement = gson.getAdapter(JsonObject.class).fromJson(bufferedReader);
 
 		if (! (jsonGraphElement instanceof JsonObject)) throw new Xdi2ParseException("JSON must be an object: " + jsonGraphElement);
@@ -188,6 +300,18 @@ public class XDIJSONReader extends AbstractXDIReader {
 		private String lastXriString;
 	}
 
+	/**
+	 * Finds the root of a statement, and creates the context node that is the subject of the statement.
+	 */
+	private static ContextNode findBaseContextNode(XdiRoot root, XDI3Statement statementXri) {
+
+		XdiRoot statementRoot = root.findRoot(statementXri.getSubject(), true);
+		XDI3Segment absoluteSubject = XDI3Util.concatXris(root.getContextNode().getXri(), statementXri.getSubject());
+		XDI3Segment relativePart = statementRoot.getRelativePart(absoluteSubject);
+
+		return relativePart == null ? statementRoot.getContextNode() : statementRoot.getContextNode().setDeepContextNode(relativePart);
+	}
+
 	private static XDI3Statement makeStatement(String xriString, State state) throws Xdi2ParseException {
 
 		state.lastXriString = xriString;
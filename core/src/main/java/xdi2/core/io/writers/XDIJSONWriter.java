@@ -3,14 +3,22 @@ package xdi2.core.io.writers;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import xdi2.core.ContextNode;
 import xdi2.core.Graph;
+import xdi2.core.Literal;
+import xdi2.core.Relation;
 import xdi2.core.Statement;
 import xdi2.core.impl.AbstractLiteral;
 import xdi2.core.impl.memory.MemoryGraphFactory;
@@ -53,6 +61,7 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 	private boolean writeOrdered;
 	private boolean writeInner;
 	private boolean writePretty;
+	private boolean writeStreaming;
 
 	public XDIJSONWriter(Properties parameters) {
 
@@ -68,8 +77,9 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 		this.writeOrdered = "1".equals(this.parameters.getProperty(XDIWriterRegistry.PARAMETER_ORDERED, XDIWriterRegistry.DEFAULT_ORDERED));
 		this.writeInner = "1".equals(this.parameters.getProperty(XDIWriterRegistry.PARAMETER_INNER, XDIWriterRegistry.DEFAULT_INNER));
 		this.writePretty = "1".equals(this.parameters.getProperty(XDIWriterRegistry.PARAMETER_PRETTY, XDIWriterRegistry.DEFAULT_PRETTY));
+		this.writeStreaming = "1".equals(this.parameters.getProperty(XDIWriterRegistry.PARAMETER_STREAMING, XDIWriterRegistry.DEFAULT_STREAMING));
 
-		if (log.isTraceEnabled()) log.trace("Parameters: writeImplied=" + this.writeImplied + ", writeOrdered=" + this.writeOrdered + ", writeInner=" + this.writeInner + ", writePretty=" + this.writePretty);
+		if (log.isTraceEnabled()) log.trace("Parameters: writeImplied=" + this.writeImplied + ", writeOrdered=" + this.writeOrdered + ", writeInner=" + this.writeInner + ", writePretty=" + this.writePretty + ", writeStreaming=" + this.writeStreaming);
 	}
 
 	private void writeInternal(Graph graph, JsonObject jsonObject) throws IOException {
@@ -80,11 +90,7 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 
 		if (this.writeOrdered) {
 
-			MemoryGraphFactory memoryGraphFactory = new MemoryGraphFactory();
-			memoryGraphFactory.setSortmode(MemoryGraphFactory.SORTMODE_ALPHA);
-			Graph orderedGraph = memoryGraphFactory.openGraph();
-			CopyUtil.copyGraph(graph, orderedGraph, null);
-			graph = orderedGraph;
+			graph = orderedGraph(graph);
 
 			List<Iterator<? extends Statement>> list = new ArrayList<Iterator<? extends Statement>> ();
 			list.add(new MappingContextNodeStatementIterator(graph.getRootContextNode().getAllContextNodes()));
@@ -116,20 +122,241 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 	@Override
 	public Writer write(Graph graph, Writer writer) throws IOException {
 
+		JsonWriter jsonWriter = new JsonWriter(writer);
+		if (this.writePretty) jsonWriter.setIndent("  ");
+
 		// write
 
-		JsonObject jsonObject = new JsonObject();
+		if (this.writeStreaming) {
+
+			this.writeStreaming(graph, jsonWriter);
+		} else {
 
-		this.writeInternal(graph, jsonObject);
+			JsonObject jsonObject = new JsonObject();
 
-		JsonWriter jsonWriter = new JsonWriter(writer);
-		if (this.writePretty) jsonWriter.setIndent("  ");
-		gson.toJson(jsonObject, jsonWriter);
+			this.writeInternal(graph, jsonObject);
+
+			gson.toJson(jsonObject, jsonWriter);
+		}
+
+		jsonWriter.flush();
 		writer.flush();
 
 		return writer;
 	}
 
+	/*
+	 * Streaming
+	 */
+
+	/**
+	 * Writes the graph directly to a JsonWriter, one context node at a time.
+	 * All statements of a context node share the same subject, so the members of the
+	 * resulting JSON object can be written without holding more than one context node's
+	 * relations in memory. Inner roots are written as nested objects when the
+	 * corresponding subject/predicate member is written.
+	 */
+	private void writeStreaming(Graph graph, JsonWriter jsonWriter) throws IOException {
+
+		// write ordered?
+
+		if (this.writeOrdered) graph = orderedGraph(graph);
+
+		// write the statements
+
+		this.writeScope(new Scope(null, graph.getRootContextNode(), null), jsonWriter);
+	}
+
+	private void writeScope(Scope scope, JsonWriter jsonWriter) throws IOException {
+
+		jsonWriter.beginObject();
+
+		// find inner roots directly under the root of this scope
+
+		if (this.writeInner) {
+
+			for (Iterator<ContextNode> contextNodes = scope.root.getContextNodes(); contextNodes.hasNext(); ) {
+
+				ContextNode contextNode = contextNodes.next();
+				XDI3SubSegment arcXri = contextNode.getArcXri();
+
+				if ((! arcXri.hasXRef()) || (! arcXri.getXRef().hasPartialSubjectAndPredicate())) continue;
+
+				scope.innerRoots.put("" + arcXri.getXRef().getPartialSubject() + "/" + arcXri.getXRef().getPartialPredicate(), contextNode);
+			}
+		}
+
+		// write the context nodes of this scope
+
+		this.writeContextNode(scope.root, scope, jsonWriter);
+
+		// write inner roots that have not been written together with their predicate relation
+
+		for (Entry<String, ContextNode> innerRoot : scope.innerRoots.entrySet()) {
+
+			if (scope.writtenInnerRoots.contains(innerRoot.getKey())) continue;
+
+			jsonWriter.name(innerRoot.getKey());
+			jsonWriter.beginArray();
+			this.writeScope(new Scope(scope, innerRoot.getValue(), XDI3Segment.fromComponent(innerRoot.getValue().getArcXri())), jsonWriter);
+			jsonWriter.endArray();
+		}
+
+		// write statements from nested scopes that could not be written there
+
+		for (Entry<String, JsonElement> pending : scope.pending.entrySet()) {
+
+			jsonWriter.name(pending.getKey());
+			gson.toJson(pending.getValue(), jsonWriter);
+		}
+
+		jsonWriter.endObject();
+	}
+
+	private void writeContextNode(ContextNode contextNode, Scope scope, JsonWriter jsonWriter) throws IOException {
+
+		// context node statements
+
+		String contextNodesKey = null;
+
+		for (Iterator<ContextNode> contextNodes = contextNode.getContextNodes(); contextNodes.hasNext(); ) {
+
+			Statement statement = contextNodes.next().getStatement();
+			if ((! this.writeImplied) && statement.isImplied()) continue;
+
+			XDI3Statement statementXri = scope.reduce(statement.getXri());
+			if (statementXri == null) continue;
+
+			if (contextNodesKey == null) {
+
+				contextNodesKey = statementXri.getSubject() + "/" + statementXri.getPredicate();
+
+				jsonWriter.name(contextNodesKey);
+				jsonWriter.beginArray();
+			}
+
+			jsonWriter.value(statementXri.getObject().toString());
+		}
+
+		if (contextNodesKey != null) jsonWriter.endArray();
+
+		// relation statements
+
+		Map<String, List<String>> relations = new LinkedHashMap<String, List<String>> ();
+
+		for (Iterator<Relation> i = contextNode.getRelations(); i.hasNext(); ) {
+
+			Statement statement = i.next().getStatement();
+			if ((! this.writeImplied) && statement.isImplied()) continue;
+
+			XDI3Statement statementXri = scope.reduce(statement.getXri());
+			if (statementXri == null) continue;
+
+			String key = statementXri.getSubject() + "/" + statementXri.getPredicate();
+
+			List<String> targets = relations.get(key);
+
+			if (targets == null) {
+
+				targets = new ArrayList<String> ();
+				relations.put(key, targets);
+			}
+
+			targets.add(statementXri.getObject().toString());
+		}
+
+		for (Entry<String, List<String>> relation : relations.entrySet()) {
+
+			jsonWriter.name(relation.getKey());
+			jsonWriter.beginArray();
+			for (String target : relation.getValue()) jsonWriter.value(target);
+
+			ContextNode innerRoot = scope.innerRoots.get(relation.getKey());
+
+			if (innerRoot != null) {
+
+				this.writeScope(new Scope(scope, innerRoot, XDI3Segment.fromComponent(innerRoot.getArcXri())), jsonWriter);
+				scope.writtenInnerRoots.add(relation.getKey());
+			}
+
+			jsonWriter.endArray();
+		}
+
+		// literal statement
+
+		Literal literal = contextNode.getLiteral();
+
+		if (literal != null) {
+
+			Statement statement = literal.getStatement();
+
+			XDI3Statement statementXri = (this.writeImplied || ! statement.isImplied()) ? scope.reduce(statement.getXri()) : null;
+
+			if (statementXri != null) {
+
+				jsonWriter.name(statementXri.getSubject() + "/" + statementXri.getPredicate());
+				gson.toJson(AbstractLiteral.literalDataToJsonElement(statementXri.getLiteralData()), jsonWriter);
+			}
+		}
+
+		// descend into the context nodes, except for inner roots which are written as nested objects
+
+		for (Iterator<ContextNode> contextNodes = contextNode.getContextNodes(); contextNodes.hasNext(); ) {
+
+			ContextNode childContextNode = contextNodes.next();
+
+			if (contextNode == scope.root && scope.innerRoots.containsValue(childContextNode)) continue;
+
+			this.writeContextNode(childContextNode, scope, jsonWriter);
+		}
+	}
+
+	/**
+	 * A JSON object being written, i.e. the top-level object or the object of an inner root.
+	 */
+	private static class Scope {
+
+		private Scope parent;
+		private ContextNode root;
+		private XDI3Segment start;
+		private Map<String, ContextNode> innerRoots;
+		private Set<String> writtenInnerRoots;
+		private Map<String, JsonElement> pending;
+
+		private Scope(Scope parent, ContextNode root, XDI3Segment start) {
+
+			this.parent = parent;
+			this.root = root;
+			this.start = start;
+			this.innerRoots = new LinkedHashMap<String, ContextNode> ();
+			this.writtenInnerRoots = new HashSet<String> ();
+			this.pending = new LinkedHashMap<String, JsonElement> ();
+		}
+
+		/**
+		 * Reduces a statement to the form in which it appears in this scope.
+		 * If the statement can only be expressed in an enclosing scope, it is kept
+		 * there until that scope is finished, and null is returned.
+		 */
+		private XDI3Statement reduce(XDI3Statement statementXri) {
+
+			if (this.parent == null) return statementXri;
+
+			XDI3Statement parentStatementXri = this.parent.reduce(statementXri);
+			if (parentStatementXri == null) return null;
+
+			XDI3Statement reducedStatementXri = StatementUtil.removeStartXriStatement(parentStatementXri, this.start, true);
+
+			if (reducedStatementXri == null) {
+
+				addObjectToJsonObject(parentStatementXri, this.parent.pending, parentStatementXri.getSubject() + "/" + parentStatementXri.getPredicate());
+				return null;
+			}
+
+			return reducedStatementXri;
+		}
+	}
+
 	private void putStatementIntoJsonObject(XDI3Statement statementXri, JsonObject jsonObject) throws IOException {
 
 		// inner root short notation?
@@ -186,6 +413,16 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 		return true;
 	}
 
+	private static Graph orderedGraph(Graph graph) {
+
+		MemoryGraphFactory memoryGraphFactory = new MemoryGraphFactory();
+		memoryGraphFactory.setSortmode(MemoryGraphFactory.SORTMODE_ALPHA);
+		Graph orderedGraph = memoryGraphFactory.openGraph();
+		CopyUtil.copyGraph(graph, orderedGraph, null);
+
+		return orderedGraph;
+	}
+
 	private static JsonObject findJsonObjectInJsonArray(JsonArray jsonArray) {
 
 		for (JsonElement jsonElement : jsonArray) {
@@ -196,6 +433,25 @@ public class XDIJSONWriter extends AbstractXDIWriter {
 		return null;
 	}
 
+	private static void addObjectToJsonObject(XDI3Statement statementXri, Map<String, JsonElement> jsonObject, String key) {
+
+		if (statementXri.isLiteralStatement()) {
+
+			jsonObject.put(key, AbstractLiteral.literalDataToJsonElement(statementXri.getLiteralData()));
+		} else {
+
+			JsonArray jsonArray = (JsonArray) jsonObject.get(key);
+
+			if (jsonArray == null) {
+
+				jsonArray = new JsonArray();
+				jsonObject.put(key, jsonArray);
+			}
+
+			jsonArray.add(new JsonPrimitive(statementXri.getObject().toString()));
+		}
+	}
+
 	private static void addObjectToJsonObject(XDI3Statement statementXri, JsonObject jsonObject, String key) throws IOException {
 
 		if (statementXri.isLiteralStatement()) {
@@ -7,7 +7,7 @@ import java.util.Iterator;
  *  
  * @author markus
  */
-public class CastingIterator<I, O> extends IterableIterator<O> {
+public class CastingIterator<I, O> extends IterableIterator<O> implements ClosableIterator<O> {
 
 	private Iterator<? extends I> iterator;
 	private Class<? extends O> o;
@@ -48,6 +48,12 @@ public class CastingIterator<I, O> extends IterableIterator<O> {
 		this.iterator.remove();
 	}
 
+	@Override
+	public void close() {
+
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
+	}
+
 	public Class<? extends O> getO() {
 
 		return this.o;
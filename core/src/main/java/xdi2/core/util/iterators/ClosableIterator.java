@@ -0,0 +1,17 @@
+package xdi2.core.util.iterators;
+
+import java.util.Iterator;
+
+/**
+ * An iterator that holds a resource (e.g. a database cursor) until it is exhausted or closed.
+ * Iterators that wrap other iterators pass close() on to them.
+ * 
+ * @author markus
+ */
+public interface ClosableIterator<T> extends Iterator<T> {
+
+	/**
+	 * Releases the resources of this iterator. Calling this more than once has no effect.
+	 */
+	public void close();
+}
@@ -46,5 +46,12 @@ public abstract class DescendingIterator<D, T> extends ReadOnlyIterator<T> {
 		return this.t.next();
 	}
 
+	@Override
+	public void close() {
+
+		if (this.t instanceof ClosableIterator) ((ClosableIterator<?>) this.t).close();
+		if (this.d instanceof ClosableIterator) ((ClosableIterator<?>) this.d).close();
+	}
+
 	public abstract Iterator<T> descend(D item);
 }
@@ -35,6 +35,7 @@ public final class IteratorContains<T> {
 			if (this.iterator.next().equals(this.element)) {
 
 				this.contains = Boolean.TRUE;
+				if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
 				return true;
 			}
 		}
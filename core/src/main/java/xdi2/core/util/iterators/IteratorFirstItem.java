@@ -25,6 +25,7 @@ public final class IteratorFirstItem<T> {
 		if (this.item != null) return this.item;
 
 		if (this.iterator.hasNext()) this.item = this.iterator.next();
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
 
 		return this.item;
 	}
@@ -7,7 +7,7 @@ import java.util.Iterator;
  * 
  * @author markus
  */
-public abstract class MappingIterator<I, O> extends IterableIterator<O> {
+public abstract class MappingIterator<I, O> extends IterableIterator<O> implements ClosableIterator<O> {
 
 	protected Iterator<? extends I> iterator;
 
@@ -34,5 +34,11 @@ public abstract class MappingIterator<I, O> extends IterableIterator<O> {
 		this.iterator.remove();
 	}
 
+	@Override
+	public void close() {
+
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
+	}
+
 	public abstract O map(I item);
 }
@@ -36,5 +36,11 @@ public abstract class SelectingIterator<T> extends LookaheadIterator<T> {
 		}
 	}
 
+	@Override
+	public void close() {
+
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
+	}
+
 	public abstract boolean select(T item);
 }
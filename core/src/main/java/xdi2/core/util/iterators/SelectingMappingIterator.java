@@ -37,6 +37,12 @@ public abstract class SelectingMappingIterator<I, O> extends LookaheadIterator<O
 		}
 	}
 
+	@Override
+	public void close() {
+
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
+	}
+
 	public abstract boolean select(I item);
 
 	public abstract O map(I item);
@@ -2,7 +2,7 @@ package xdi2.core.util.iterators;
 
 import java.util.Iterator;
 
-public class WrappingIterator<T> extends IterableIterator<T> {
+public class WrappingIterator<T> extends IterableIterator<T> implements ClosableIterator<T> {
 
 	private Iterator<T> iterator;
 
@@ -28,4 +28,10 @@ public class WrappingIterator<T> extends IterableIterator<T> {
 
 		this.iterator.remove();
 	}
+
+	@Override
+	public void close() {
+
+		if (this.iterator instanceof ClosableIterator) ((ClosableIterator<?>) this.iterator).close();
+	}
 }
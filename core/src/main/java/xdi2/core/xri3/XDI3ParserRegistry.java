@@ -1,16 +1,51 @@
 package xdi2.core.xri3;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import xdi2.core.xri3.parser.manual.XDI3ParserManual;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Holds the XDI3Parser used by XDI3Segment.create() and friends.
+ *
+ * Parse results for statements, segments and sub-segments are kept in a bounded
+ * cache, so that frequently used XRIs are only parsed once. Cached components are
+ * interned, i.e. equal XRIs share one instance. Statements with array or object
+ * literal data are not cached, since their JSON literal data can be changed.
+ */
 public class XDI3ParserRegistry {
 
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
 	private static XDI3ParserRegistry instance = new XDI3ParserRegistry(new XDI3ParserManual());
 
 	private XDI3Parser parser;
 
-	private XDI3ParserRegistry(XDI3Parser parser) { 
-		
+	private int cacheSize;
+	private ConcurrentMap<String, XDI3Statement> statementCache;
+	private ConcurrentMap<String, XDI3Segment> segmentCache;
+	private ConcurrentMap<String, XDI3SubSegment> subSegmentCache;
+	private AtomicLong cacheHits;
+	private AtomicLong cacheMisses;
+
+	private XDI3ParserRegistry(XDI3Parser parser) {
+
 		this.parser = parser;
+
+		this.cacheSize = DEFAULT_CACHE_SIZE;
+		this.statementCache = new ConcurrentHashMap<String, XDI3Statement> ();
+		this.segmentCache = new ConcurrentHashMap<String, XDI3Segment> ();
+		this.subSegmentCache = new ConcurrentHashMap<String, XDI3SubSegment> ();
+		this.cacheHits = new AtomicLong();
+		this.cacheMisses = new AtomicLong();
 	}
 
 	public static void setInstance(XDI3ParserRegistry instance) {
@@ -31,5 +66,173 @@ public class XDI3ParserRegistry {
 	public void setParser(XDI3Parser parser) {
 
 		this.parser = parser;
+
+		this.clearCache();
+	}
+
+	/*
+	 * Cached parsing
+	 */
+
+	public XDI3Statement parseXDI3Statement(String string) {
+
+		XDI3Statement statement = this.statementCache.get(string);
+
+		if (statement != null) {
+
+			this.cacheHits.incrementAndGet();
+			return statement;
+		}
+
+		this.cacheMisses.incrementAndGet();
+
+		statement = this.getParser().parseXDI3Statement(string);
+		if (! isImmutable(statement)) return statement;
+
+		return this.cache(this.statementCache, string, statement);
+	}
+
+	public XDI3Segment parseXDI3Segment(String string) {
+
+		XDI3Segment segment = this.segmentCache.get(string);
+
+		if (segment != null) {
+
+			this.cacheHits.incrementAndGet();
+			return segment;
+		}
+
+		this.cacheMisses.incrementAndGet();
+
+		segment = this.getParser().parseXDI3Segment(string);
+		if (this.cacheSize > 0) segment = this.intern(segment);
+
+		return this.cache(this.segmentCache, string, segment);
+	}
+
+	public XDI3SubSegment parseXDI3SubSegment(String string) {
+
+		XDI3SubSegment subSegment = this.subSegmentCache.get(string);
+
+		if (subSegment != null) {
+
+			this.cacheHits.incrementAndGet();
+			return subSegment;
+		}
+
+		this.cacheMisses.incrementAndGet();
+
+		subSegment = this.getParser().parseXDI3SubSegment(string);
+
+		return this.cache(this.subSegmentCache, string, subSegment);
+	}
+
+	/*
+	 * Cache configuration and statistics
+	 */
+
+	/**
+	 * Returns the maximum number of entries per cached component type.
+	 */
+	public int getCacheSize() {
+
+		return this.cacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of entries per cached component type.
+	 * A size of 0 disables caching.
+	 */
+	public void setCacheSize(int cacheSize) {
+
+		if (cacheSize < 0) throw new IllegalArgumentException("Invalid cache size: " + cacheSize);
+
+		this.cacheSize = cacheSize;
+
+		this.clearCache();
+	}
+
+	public long getCacheHits() {
+
+		return this.cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+
+		return this.cacheMisses.get();
+	}
+
+	public void resetCacheStatistics() {
+
+		this.cacheHits.set(0);
+		this.cacheMisses.set(0);
+	}
+
+	public void clearCache() {
+
+		this.statementCache.clear();
+		this.segmentCache.clear();
+		this.subSegmentCache.clear();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/**
+	 * Replaces the sub-segments of a freshly parsed segment with their interned
+	 * instances, and makes its list of sub-segments unmodifiable.
+	 */
+	private XDI3Segment intern(XDI3Segment segment) {
+
+		List<XDI3SubSegment> subSegments = new ArrayList<XDI3SubSegment> (segment.getNumSubSegments());
+
+		for (XDI3SubSegment subSegment : segment.getSubSegments()) {
+
+			subSegments.add(this.cache(this.subSegmentCache, subSegment.toString(), subSegment));
+		}
+
+		return new XDI3Segment(segment.toString(), Collections.unmodifiableList(subSegments));
+	}
+
+	/**
+	 * Checks if a statement has no JSON array or object literal data, also not in an inner root.
+	 */
+	private static boolean isImmutable(XDI3Statement statement) {
+
+		if (statement.isLiteralStatement()) {
+
+			Object literalData = statement.getLiteralData();
+
+			return ! (literalData instanceof JsonArray) && ! (literalData instanceof JsonObject);
+		}
+
+		XDI3Statement innerRootStatement = statement.getInnerRootStatement();
+
+		return innerRootStatement == null || isImmutable(innerRootStatement);
+	}
+
+	/**
+	 * Adds a parse result to a cache and returns the instance that ends up in
+	 * the cache. If the cache is full, an arbitrary entry is evicted first.
+	 */
+	private <T> T cache(ConcurrentMap<String, T> cache, String string, T component) {
+
+		if (this.cacheSize <= 0 || string == null) return component;
+
+		if (cache.size() >= this.cacheSize) {
+
+			Iterator<String> keys = cache.keySet().iterator();
+
+			if (keys.hasNext()) {
+
+				keys.next();
+				keys.remove();
+			}
+		}
+
+		T existing = cache.putIfAbsent(string, component);
+
+		return existing != null ? existing : component;
 	}
 }
@@ -18,7 +18,7 @@ public final class XDI3Segment extends XDI3SyntaxComponent {
 
 	public static XDI3Segment create(String string) {
 
-		return XDI3ParserRegistry.getInstance().getParser().parseXDI3Segment(string);
+		return XDI3ParserRegistry.getInstance().parseXDI3Segment(string);
 	}
 
 	public static XDI3Segment fromComponent(XDI3SubSegment subSegment) {
@@ -39,7 +39,7 @@ public class XDI3Statement extends XDI3SyntaxComponent {
 	 */
 	public static XDI3Statement create(String string) {
 
-		return XDI3ParserRegistry.getInstance().getParser().parseXDI3Statement(string);
+		return XDI3ParserRegistry.getInstance().parseXDI3Statement(string);
 	}
 
 	/**
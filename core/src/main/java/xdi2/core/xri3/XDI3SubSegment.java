@@ -25,7 +25,7 @@ public class XDI3SubSegment extends XDI3SyntaxComponent {
 
 	public static XDI3SubSegment create(String string) {
 
-		return XDI3ParserRegistry.getInstance().getParser().parseXDI3SubSegment(string);
+		return XDI3ParserRegistry.getInstance().parseXDI3SubSegment(string);
 	}
 
 	public static XDI3SubSegment fromComponents(Character cs, boolean classXs, boolean attributeXs, String literal, XDI3XRef xref) {
@@ -0,0 +1,393 @@
+package xdi2.core.xri3.parser.manual;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.constants.XDIConstants;
+import xdi2.core.impl.AbstractLiteral;
+import xdi2.core.xri3.XDI3Parser;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.core.xri3.XDI3SubSegment;
+import xdi2.core.xri3.XDI3XRef;
+
+/**
+ * An XRI parser implemented manually in pure Java.
+ * Produces the same results as XDI3ParserManual, but scans its input in a single
+ * pass over character indices, without regular expressions or intermediate strings.
+ */
+public class XDI3ParserScanner extends XDI3Parser {
+
+	private static final Logger log = LoggerFactory.getLogger(XDI3ParserScanner.class);
+
+	private static final int SCAN_SLASHES = 0;
+	private static final int SCAN_FIRST_SLASH = 1;
+	private static final int SCAN_SECOND_SLASH = 2;
+	private static final int SCAN_IRI = 3;
+
+	@Override
+	public XDI3Statement parseXDI3Statement(String string) {
+
+		if (log.isTraceEnabled()) log.trace("Parsing statement: " + string);
+
+		int[] scan = scan(string);
+
+		if (scan[SCAN_SLASHES] != 2 || scan[SCAN_SECOND_SLASH] == string.length() - 1) throw new ParserException("Invalid statement: " + string + " (wrong number of segments: " + (scan[SCAN_SLASHES] + 1) + ")");
+
+		String subjectString = string.substring(0, scan[SCAN_FIRST_SLASH]);
+		String predicateString = string.substring(scan[SCAN_FIRST_SLASH] + 1, scan[SCAN_SECOND_SLASH]);
+		String objectString = string.substring(scan[SCAN_SECOND_SLASH] + 1);
+
+		XDI3Segment subject = this.parseXDI3Segment(subjectString);
+		XDI3Segment predicate = this.parseXDI3Segment(predicateString);
+
+		if (XDIConstants.XRI_S_LITERAL.equals(predicateString)) {
+
+			Object object = this.parseLiteralData(objectString);
+
+			return this.makeXDI3Statement(string, subject, predicate, object);
+		} else if (XDIConstants.XRI_S_CONTEXT.equals(predicateString)) {
+
+			XDI3SubSegment object = this.parseXDI3SubSegment(objectString);
+
+			return this.makeXDI3Statement(string, subject, predicate, object);
+		} else {
+
+			XDI3Segment object = this.parseXDI3Segment(objectString);
+
+			return this.makeXDI3Statement(string, subject, predicate, object);
+		}
+	}
+
+	@Override
+	public XDI3Segment parseXDI3Segment(String string) {
+
+		if (log.isTraceEnabled()) log.trace("Parsing segment: " + string);
+
+		int start = 0, pos = 0, len = string.length();
+		char[] pairs = new char[8];
+		int depth = 0;
+		char c, close;
+		List<XDI3SubSegment> subSegments = new ArrayList<XDI3SubSegment> ();
+
+		while (pos < len) {
+
+			// parse beginning of subsegment
+
+			if (pos < len && (close = cla(string.charAt(pos))) != 0) { pairs = push(pairs, depth++, close); pos++; }
+			if (pos < len && (close = att(string.charAt(pos))) != 0) { pairs = push(pairs, depth++, close); pos++; }
+			if (pos < len && cs(string.charAt(pos)) != null) pos++;
+			if (pos < len && (close = xs(string.charAt(pos))) != 0) { pairs = push(pairs, depth++, close); pos++; }
+
+			// parse to the end of the subsegment
+
+			while (pos < len) {
+
+				c = string.charAt(pos);
+
+				// no open pairs? then check if we reached beginning of the next subsegment
+
+				if (depth == 0) {
+
+					if (cla(c) != 0 || att(c) != 0 || cs(c) != null || xs(c) != 0) break;
+
+					pos++;
+					continue;
+				}
+
+				// new pair being opened?
+
+				if ((close = cla(c)) != 0 || (close = att(c)) != 0 || (close = xs(c)) != 0) {
+
+					pairs = push(pairs, depth++, close);
+					pos++;
+					continue;
+				}
+
+				// pair being closed?
+
+				if (c == pairs[depth - 1]) depth--;
+
+				pos++;
+			}
+
+			if (depth > 0) throw new ParserException("Missing closing character '" + pairs[depth - 1] + "'.");
+
+			subSegments.add(this.parseXDI3SubSegment(string.substring(start, pos)));
+
+			start = pos;
+		}
+
+		// done
+
+		return this.makeXDI3Segment(string, subSegments);
+	}
+
+	@Override
+	public XDI3SubSegment parseXDI3SubSegment(String string) {
+
+		if (log.isTraceEnabled()) log.trace("Parsing subsegment: " + string);
+
+		Character cs = null;
+		char cla = 0;
+		char att = 0;
+		String literal = null;
+		XDI3XRef xref = null;
+
+		int pos = 0, len = string.length();
+
+		// extract class pair
+
+		if (pos < len && (cla = cla(string.charAt(pos))) != 0) {
+
+			if (string.charAt(len - 1) != cla) throw new ParserException("Invalid subsegment: " + string + " (invalid closing '" + cla + "' character for class)");
+
+			pos++; len--;
+		}
+
+		// extract attribute pair
+
+		if (pos < len && (att = att(string.charAt(pos))) != 0) {
+
+			if (string.charAt(len - 1) != att) throw new ParserException("Invalid subsegment: " + string + " (invalid closing '" + att + "' character for attribute)");
+
+			pos++; len--;
+		}
+
+		// extract cs
+
+		if (pos < len && (cs = cs(string.charAt(pos))) != null) {
+
+			pos++;
+		}
+
+		// parse the rest, either xref or literal
+
+		if (pos < len) {
+
+			if (xs(string.charAt(pos)) != 0) {
+
+				xref = this.parseXDI3XRef(string.substring(pos, len));
+			} else {
+
+				if (pos == 0) throw new ParserException("Invalid subsegment: " + string + " (no cs, xref)");
+				literal = parseLiteral(string.substring(pos, len));
+			}
+		}
+
+		// done
+
+		return this.makeXDI3SubSegment(string, cs, cla != 0, att != 0, literal, xref);
+	}
+
+	@Override
+	public XDI3XRef parseXDI3XRef(String string) {
+
+		if (log.isTraceEnabled()) log.trace("Parsing xref: " + string);
+
+		char close = xs(string.charAt(0));
+		if (close == 0) throw new ParserException("Invalid xref: " + string + " (no opening delimiter)");
+		if (string.charAt(string.length() - 1) != close) throw new ParserException("Invalid xref: " + string + " (invalid closing '" + close + "' character)");
+
+		String xs = close == XDIConstants.XS_ROOT.charAt(1) ? XDIConstants.XS_ROOT : XDIConstants.XS_VARIABLE;
+		if (string.length() == 2) return this.makeXDI3XRef(string, xs, null, null, null, null, null, null);
+
+		String value = string.substring(1, string.length() - 1);
+
+		int[] scan = scan(value);
+
+		XDI3Segment segment = null;
+		XDI3Statement statement = null;
+		XDI3Segment partialSubject = null;
+		XDI3Segment partialPredicate = null;
+		String iri = null;
+		String literal = null;
+
+		if (scan[SCAN_IRI] != 0) {
+
+			iri = value;
+		} else {
+
+			int segments = scan[SCAN_SLASHES] + 1;
+
+			if (segments == 3) {
+
+				statement = this.parseXDI3Statement(value);
+			} else if (segments == 2) {
+
+				partialSubject = this.parseXDI3Segment(value.substring(0, scan[SCAN_FIRST_SLASH]));
+				partialPredicate = this.parseXDI3Segment(value.substring(scan[SCAN_FIRST_SLASH] + 1));
+			} else {
+
+				char c = value.charAt(0);
+
+				if (cs(c) != null || cla(c) != 0 || att(c) != 0 || xs(c) != 0) {
+
+					segment = this.parseXDI3Segment(value);
+				} else {
+
+					literal = value;
+				}
+			}
+		}
+
+		return this.makeXDI3XRef(string, xs, segment, statement, partialSubject, partialPredicate, iri, literal);
+	}
+
+	public Object parseLiteralData(String string) {
+
+		if (log.isTraceEnabled()) log.trace("Parsing literal data: " + string);
+
+		try {
+
+			return AbstractLiteral.stringToLiteralData(string);
+		} catch (Exception ex) {
+
+			throw new ParserException("Invalid literal data: " + string);
+		}
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	/**
+	 * Scans a string once and finds the '/' and ':' characters which are not
+	 * inside a (), {} or "" pair.
+	 * @return The number of such slashes, the positions of the first two of them,
+	 * and 1 if the string looks like an IRI (a colon before any cs), otherwise 0.
+	 */
+	private static int[] scan(String string) {
+
+		int[] scan = new int[] { 0, -1, -1, 0 };
+		int depth = 0;
+		boolean quoted = false;
+		boolean colon = false;
+		boolean csBeforeColon = false;
+
+		for (int pos=0; pos<string.length(); pos++) {
+
+			char c = string.charAt(pos);
+
+			if (quoted) {
+
+				if (c == '\\') pos++; else if (c == '"') quoted = false;
+				continue;
+			}
+
+			switch (c) {
+
+			case '"': quoted = true; continue;
+			case '(': case '{': depth++; continue;
+			case ')': case '}': if (depth > 0) depth--; continue;
+			}
+
+			if (depth > 0) continue;
+
+			if (c == '/') {
+
+				if (scan[SCAN_SLASHES] == 0) scan[SCAN_FIRST_SLASH] = pos;
+				if (scan[SCAN_SLASHES] == 1) scan[SCAN_SECOND_SLASH] = pos;
+				scan[SCAN_SLASHES]++;
+			} else if (c == ':') {
+
+				colon = true;
+			} else if (! colon && cs(c) != null && c != XDIConstants.CS_ORDER.charValue() && c != XDIConstants.CS_VALUE.charValue()) {
+
+				csBeforeColon = true;
+			}
+		}
+
+		if (colon && ! csBeforeColon) scan[SCAN_IRI] = 1;
+
+		return scan;
+	}
+
+	private static char[] push(char[] pairs, int depth, char close) {
+
+		if (depth == pairs.length) {
+
+			char[] newPairs = new char[pairs.length * 2];
+			System.arraycopy(pairs, 0, newPairs, 0, pairs.length);
+			pairs = newPairs;
+		}
+
+		pairs[depth] = close;
+
+		return pairs;
+	}
+
+	private static Character cs(char c) {
+
+		switch (c) {
+
+		case '=': return XDIConstants.CS_EQUALS;
+		case '@': return XDIConstants.CS_AT;
+		case '+': return XDIConstants.CS_PLUS;
+		case '$': return XDIConstants.CS_DOLLAR;
+		case '*': return XDIConstants.CS_STAR;
+		case '!': return XDIConstants.CS_BANG;
+		case '#': return XDIConstants.CS_ORDER;
+		case '&': return XDIConstants.CS_VALUE;
+		default: return null;
+		}
+	}
+
+	private static char cla(char c) {
+
+		return c == '[' ? ']' : 0;
+	}
+
+	private static char att(char c) {
+
+		return c == '<' ? '>' : 0;
+	}
+
+	private static char xs(char c) {
+
+		if (c == '(') return ')';
+		if (c == '{') return '}';
+
+		return 0;
+	}
+
+	private static String parseLiteral(String string) {
+
+		if (string.indexOf('%') != -1 || string.indexOf('+') != -1) {
+
+			try {
+
+				string = URLDecoder.decode(string, "UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+
+				throw new ParserException(ex.getMessage(), ex);
+			}
+		}
+
+		for (int pos=0; pos<string.length(); pos++) {
+
+			char c = string.charAt(pos);
+
+			if (c >= 0x41 && c <= 0x5A) continue;
+			if (c >= 0x61 && c <= 0x7A) continue;
+			if (c >= 0x30 && c <= 0x39) continue;
+			if (c == '-') continue;
+			if (c == '.') continue;
+			if (c == ':') continue;
+			if (c == '_') continue;
+			if (c == '~') continue;
+			if (c >= 0xA0 && c <= 0xD7FF) continue;
+			if (c >= 0xF900 && c <= 0xFDCF) continue;
+			if (c >= 0xFDF0 && c <= 0xFFEF) continue;
+
+			throw new ParserException("Invalid character '" + c + "' at position " + pos + " of literal " + string);
+		}
+
+		return string;
+	}
+}
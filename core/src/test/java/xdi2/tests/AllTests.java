@@ -16,11 +16,17 @@ import xdi2.tests.core.features.timestamps.TimestampsTest;
 import xdi2.tests.core.features.variables.VariablesTest;
 import xdi2.tests.core.impl.AbstractLiteralTest;
 import xdi2.tests.core.impl.json.FileJSONGraphTest;
+import xdi2.tests.core.impl.json.JSONStoreStatisticsTest;
 import xdi2.tests.core.impl.json.MemoryJSONGraphTest;
+import xdi2.tests.core.impl.json.ShardedFileJSONGraphTest;
 import xdi2.tests.core.impl.keyvalue.BDBKeyValueGraphTest;
 import xdi2.tests.core.impl.keyvalue.BDBKeyValueTest;
+import xdi2.tests.core.impl.keyvalue.DictionaryKeyValueGraphTest;
+import xdi2.tests.core.impl.keyvalue.DictionaryKeyValueTest;
 import xdi2.tests.core.impl.keyvalue.MapKeyValueGraphTest;
 import xdi2.tests.core.impl.keyvalue.MapKeyValueTest;
+import xdi2.tests.core.impl.keyvalue.OrderedBDBKeyValueGraphTest;
+import xdi2.tests.core.impl.keyvalue.OrderedMapKeyValueGraphTest;
 import xdi2.tests.core.impl.keyvalue.PropertiesKeyValueGraphTest;
 import xdi2.tests.core.impl.keyvalue.PropertiesKeyValueTest;
 import xdi2.tests.core.impl.memory.MemoryGraphTest;
@@ -35,6 +41,8 @@ import xdi2.tests.core.util.iterators.IteratorTest;
 import xdi2.tests.core.xri3.XDI3ParserAPGTest;
 import xdi2.tests.core.xri3.XDI3ParserAParseTest;
 import xdi2.tests.core.xri3.XDI3ParserManualTest;
+import xdi2.tests.core.xri3.XDI3ParserRegistryTest;
+import xdi2.tests.core.xri3.XDI3ParserScannerTest;
 
 public class AllTests {
 
@@ -44,16 +52,24 @@ public class AllTests {
 		suite.addTestSuite(XDI3ParserAParseTest.class);
 		suite.addTestSuite(XDI3ParserAPGTest.class);
 		suite.addTestSuite(XDI3ParserManualTest.class);
+		suite.addTestSuite(XDI3ParserRegistryTest.class);
+		suite.addTestSuite(XDI3ParserScannerTest.class);
 		suite.addTestSuite(MemoryGraphTest.class);
 		suite.addTestSuite(MapKeyValueGraphTest.class);
 		suite.addTestSuite(PropertiesKeyValueGraphTest.class);
 		suite.addTestSuite(BDBKeyValueGraphTest.class);
+		suite.addTestSuite(OrderedMapKeyValueGraphTest.class);
+		suite.addTestSuite(OrderedBDBKeyValueGraphTest.class);
+		suite.addTestSuite(DictionaryKeyValueGraphTest.class);
 		suite.addTestSuite(FileWrapperGraphTest.class);
 		suite.addTestSuite(MemoryJSONGraphTest.class);
 		suite.addTestSuite(FileJSONGraphTest.class);
+		suite.addTestSuite(ShardedFileJSONGraphTest.class);
+		suite.addTestSuite(JSONStoreStatisticsTest.class);
 		suite.addTestSuite(MapKeyValueTest.class);
 		suite.addTestSuite(PropertiesKeyValueTest.class);
 		suite.addTestSuite(BDBKeyValueTest.class);
+		suite.addTestSuite(DictionaryKeyValueTest.class);
 		suite.addTestSuite(AbstractLiteralTest.class);
 		suite.addTestSuite(DataTypesTest.class);
 		suite.addTestSuite(DictionaryTest.class);
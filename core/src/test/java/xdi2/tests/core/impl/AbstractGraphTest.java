@@ -966,6 +966,48 @@ public abstract class AbstractGraphTest extends TestCase {
 		graph29.close();
 	}
 
+	public void testIncomingRelationsAfterDelete() throws Exception {
+
+		Graph graph30 = this.openNewGraph(this.getClass().getName() + "-graph-30");
+
+		graph30.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+		graph30.setStatement(XDI3Statement.create("=markus/+colleague/=animesh"));
+		graph30.setStatement(XDI3Statement.create("=markus+work/+friend/=animesh"));
+		graph30.setStatement(XDI3Statement.create("=les/+friend/=animesh"));
+
+		ContextNode markus = graph30.getDeepContextNode(XDI3Segment.create("=markus"));
+		ContextNode les = graph30.getDeepContextNode(XDI3Segment.create("=les"));
+		ContextNode animesh = graph30.getDeepContextNode(XDI3Segment.create("=animesh"));
+
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations()).count(), 4);
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations(XDI3Segment.create("+friend"))).count(), 3);
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations(XDI3Segment.create("+colleague"))).count(), 1);
+
+		markus.delRelations(XDI3Segment.create("+colleague"));
+
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations()).count(), 3);
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations(XDI3Segment.create("+colleague"))).count(), 0);
+
+		les.delRelations();
+
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations()).count(), 2);
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations(XDI3Segment.create("+friend"))).count(), 2);
+
+		markus.delete();
+
+		assertFalse(animesh.containsIncomingRelations());
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations()).count(), 0);
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations(XDI3Segment.create("+friend"))).count(), 0);
+
+		graph30.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+
+		assertEquals(new IteratorCounter(animesh.getIncomingRelations()).count(), 1);
+		assertEquals(animesh.getIncomingRelations().next().getContextNode(), graph30.getDeepContextNode(XDI3Segment.create("=markus")));
+		assertEquals(graph30.getRootContextNode().getAllRelationCount(), 1);
+
+		graph30.close();
+	}
+
 	@SuppressWarnings("unused")
 	private static void makeGraph(Graph graph) throws Exception {
 
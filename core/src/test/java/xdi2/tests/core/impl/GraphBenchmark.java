@@ -0,0 +1,225 @@
+package xdi2.tests.core.impl;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.ContextNode;
+import xdi2.core.Graph;
+import xdi2.core.GraphFactory;
+import xdi2.core.Relation;
+import xdi2.core.impl.keyvalue.KeyValueGraph;
+import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.impl.keyvalue.dictionary.DictionaryKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.dictionary.DictionaryKeyValueStore;
+import xdi2.core.impl.keyvalue.map.MapKeyValueGraphFactory;
+import xdi2.core.impl.memory.MemoryGraphFactory;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.core.xri3.XDI3SubSegment;
+
+/**
+ * Measures how much heap and time graphs need for a number of statements,
+ * and how many reads per second a concurrent memory graph serves.
+ * This is not part of the test suite, since the numbers depend on the machine.
+ * The number of statements can be set with -Dxdi2.tests.statements=...
+ */
+public class GraphBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(GraphBenchmark.class);
+
+	public static final int STATEMENTS = Integer.getInteger("xdi2.tests.statements", 20000).intValue();
+
+	private static final int CONCURRENT_TIME = 2000;
+
+	public static void main(String[] args) throws Exception {
+
+		MemoryGraphFactory orderMemoryGraphFactory = new MemoryGraphFactory();
+		orderMemoryGraphFactory.setSortmode(MemoryGraphFactory.SORTMODE_ORDER);
+
+		MemoryGraphFactory alphaMemoryGraphFactory = new MemoryGraphFactory();
+		alphaMemoryGraphFactory.setSortmode(MemoryGraphFactory.SORTMODE_ALPHA);
+
+		DictionaryKeyValueGraphFactory directGraphFactory = new DictionaryKeyValueGraphFactory();
+		directGraphFactory.setDirect(true);
+
+		GraphFactory[] graphFactories = new GraphFactory[] { new MemoryGraphFactory(), orderMemoryGraphFactory, alphaMemoryGraphFactory, new MapKeyValueGraphFactory(), new DictionaryKeyValueGraphFactory(), directGraphFactory };
+		String[] names = new String[] { "memory", "memory (order)", "memory (alpha)", "map", "dictionary", "dictionary (direct)" };
+
+		for (int i=0; i<graphFactories.length; i++) measure(graphFactories[i], names[i]);
+
+		concurrentReads();
+	}
+
+	/**
+	 * Adds statements to a graph: every person has a name, and every ten persons share a friend who knows them.
+	 */
+	public static void fill(Graph graph, int statements) {
+
+		for (int i=0; i<statements / 2; i++) {
+
+			graph.setStatement(XDI3Statement.create("=person" + (i / 10) + "+friend/+knows/=person" + (i + 1)));
+			graph.setStatement(XDI3Statement.create("=person" + i + "<+name>&/&/\"Person " + i + "\""));
+		}
+	}
+
+	/**
+	 * Runs reader threads for some milliseconds, optionally while one thread
+	 * keeps adding and deleting statements.
+	 * @return The number of reads of each reader, followed by the number of writes.
+	 */
+	public static long[] runReaders(final Graph graph, int threads, boolean writer, long time) throws Exception {
+
+		final List<Throwable> errors = new ArrayList<Throwable> ();
+		final long[] counts = new long[threads + 1];
+		final long end = System.currentTimeMillis() + time;
+
+		List<Thread> readers = new ArrayList<Thread> ();
+
+		for (int t=0; t<threads; t++) {
+
+			final int thread = t;
+
+			readers.add(new Thread() {
+
+				@Override
+				public void run() {
+
+					try {
+
+						while (System.currentTimeMillis() < end) {
+
+							int count = 0;
+
+							for (Iterator<ContextNode> contextNodes = graph.getRootContextNode().getContextNodes(); contextNodes.hasNext(); ) {
+
+								ContextNode contextNode = contextNodes.next().getContextNode(XDI3SubSegment.create("+friend"));
+								if (contextNode == null) continue;
+
+								for (Iterator<Relation> relations = contextNode.getRelations(); relations.hasNext(); relations.next()) count++;
+
+								counts[thread]++;
+							}
+
+							if (count < 1000) throw new AssertionError("Missing relations: " + count);
+						}
+					} catch (Throwable ex) {
+
+						synchronized (errors) { errors.add(ex); }
+					}
+				}
+			});
+		}
+
+		Thread writerThread = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					for (int i=0; System.currentTimeMillis() < end; i++) {
+
+						graph.setStatement(XDI3Statement.create("=writer+friend" + (i % 100) + "/+knows/=person" + (i % 1000)));
+						graph.setStatement(XDI3Statement.create("=writer<+name>&/&/\"Writer " + i + "\""));
+
+						if (i % 100 == 99) graph.getRootContextNode().delContextNode(XDI3SubSegment.create("=writer"));
+
+						counts[counts.length - 1]++;
+					}
+
+					graph.getRootContextNode().delContextNode(XDI3SubSegment.create("=writer"));
+				} catch (Throwable ex) {
+
+					synchronized (errors) { errors.add(ex); }
+				}
+			}
+		};
+
+		for (Thread reader : readers) reader.start();
+		if (writer) writerThread.start();
+
+		for (Thread reader : readers) reader.join();
+		if (writer) writerThread.join();
+
+		if (! errors.isEmpty()) throw new RuntimeException("Reader or writer failed: " + errors.get(0), errors.get(0));
+
+		return counts;
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private static void measure(GraphFactory graphFactory, String name) throws IOException {
+
+		System.gc();
+
+		long heapBefore = usedHeap();
+		long gcTimeBefore = gcTime();
+		long start = System.currentTimeMillis();
+
+		Graph graph = graphFactory.openGraph();
+		fill(graph, STATEMENTS);
+
+		long time = System.currentTimeMillis() - start;
+
+		System.gc();
+
+		long heap = usedHeap() - heapBefore;
+		long gcTime = gcTime() - gcTimeBefore;
+
+		KeyValueStore keyValueStore = graph instanceof KeyValueGraph ? ((KeyValueGraph) graph).getKeyValueStore() : null;
+		String buffers = keyValueStore instanceof DictionaryKeyValueStore ? ", buffers " + (((DictionaryKeyValueStore) keyValueStore).getBytes() / 1024) + " KB" : "";
+
+		log.info(name + ": " + STATEMENTS + " statements in " + time + " ms, heap " + (heap / 1024) + " KB, " + (heap / STATEMENTS) + " bytes per statement" + buffers + ", GC " + gcTime + " ms");
+
+		graph.close();
+	}
+
+	private static void concurrentReads() throws Exception {
+
+		MemoryGraphFactory graphFactory = new MemoryGraphFactory();
+		graphFactory.setConcurrent(true);
+
+		Graph graph = graphFactory.openGraph();
+		fill(graph, 2000);
+
+		for (int threads : new int[] { 1, 4 }) {
+
+			long reads = sum(runReaders(graph, threads, false, CONCURRENT_TIME), threads);
+			long readsWithWriter = sum(runReaders(graph, threads, true, CONCURRENT_TIME), threads);
+
+			log.info(threads + " reader threads: " + (reads * 1000 / CONCURRENT_TIME) + " reads/s, with a writer: " + (readsWithWriter * 1000 / CONCURRENT_TIME) + " reads/s");
+		}
+
+		graph.close();
+	}
+
+	private static long sum(long[] counts, int length) {
+
+		long sum = 0;
+		for (int i=0; i<length; i++) sum += counts[i];
+
+		return sum;
+	}
+
+	private static long usedHeap() {
+
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long gcTime() {
+
+		long gcTime = 0;
+
+		for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()) gcTime += Math.max(0, garbageCollectorMXBean.getCollectionTime());
+
+		return gcTime;
+	}
+}
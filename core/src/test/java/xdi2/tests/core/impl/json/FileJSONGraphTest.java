@@ -1,10 +1,20 @@
 package xdi2.tests.core.impl.json;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 
+import xdi2.core.ContextNode;
 import xdi2.core.Graph;
+import xdi2.core.impl.json.AbstractJSONStore;
+import xdi2.core.impl.json.JSONGraph;
+import xdi2.core.impl.json.JSONStore;
+import xdi2.core.impl.json.JSONStoreStatistics;
+import xdi2.core.impl.json.JSONStoreStatistics.Operation;
 import xdi2.core.impl.json.file.FileJSONGraphFactory;
 import xdi2.core.impl.json.file.FileJSONStore;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
 import xdi2.tests.core.impl.AbstractGraphTest;
 
 public class FileJSONGraphTest extends AbstractGraphTest {
@@ -40,4 +50,92 @@ public class FileJSONGraphTest extends AbstractGraphTest {
 
 		return graphFactory.openGraph(identifier);
 	}
+
+	public void testSubtreeReads() throws Exception {
+
+		String identifier = "subtree";
+
+		Graph graph = graphFactory.openGraph(identifier);
+		JSONBenchmark.fillSubtree(graph);
+
+		long statements = graph.getDeepContextNode(XDI3Segment.create("=deep")).getAllStatementCount();
+
+		graph.close();
+
+		FileJSONGraphFactory prefetchGraphFactory = new FileJSONGraphFactory();
+		prefetchGraphFactory.setPrefetch(true);
+
+		FileJSONGraphFactory noPrefetchGraphFactory = new FileJSONGraphFactory();
+		noPrefetchGraphFactory.setPrefetch(false);
+
+		// read the subtree with a fresh cache
+
+		assertEquals(1, readSubtree(prefetchGraphFactory, identifier, statements));
+		assertTrue(readSubtree(noPrefetchGraphFactory, identifier, statements) > 100);
+	}
+
+	public void testPrefetchBounds() throws Exception {
+
+		Graph graph = graphFactory.openGraph("a");
+		graph.setStatement(XDI3Statement.create("=x+y/+z/=xy"));
+		graph.setStatement(XDI3Statement.create("=xy<+name>&/&/\"Sibling\""));
+		graph.close();
+
+		Graph otherGraph = graphFactory.openGraph("a_b");
+		otherGraph.setStatement(XDI3Statement.create("=x<+name>&/&/\"Other graph\""));
+		otherGraph.close();
+
+		// only the ids below the prefix, and only of this graph
+
+		graph = graphFactory.openGraph("a");
+		JSONStore jsonStore = ((JSONGraph) graph).getJsonStore();
+
+		assertEquals(new HashSet<String> (Arrays.asList("=x", "=x+y")), jsonStore.loadPrefix("=x", 100).keySet());
+		assertFalse(jsonStore.loadPrefix("", 100).containsKey("b_=x<+name>"));
+		assertEquals(new HashSet<String> (Arrays.asList("=xy", "=xy<+name>", "=xy<+name>&")), jsonStore.loadPrefix("=xy", 100).keySet());
+
+		// nothing if there are more than the limit
+
+		assertNull(jsonStore.loadPrefix("=x", 1));
+		assertEquals(2, jsonStore.loadPrefix("=x", 2).size());
+
+		long statements = graph.getRootContextNode().getAllStatementCount();
+
+		graph.close();
+
+		// a subtree that does not fit into the cache is not prefetched
+
+		FileJSONGraphFactory smallCacheGraphFactory = new FileJSONGraphFactory();
+		smallCacheGraphFactory.setCacheSize(2);
+
+		JSONGraph smallCacheGraph = (JSONGraph) smallCacheGraphFactory.openGraph("a");
+		JSONStoreStatistics statistics = ((AbstractJSONStore) smallCacheGraph.getJsonStore()).getStatistics();
+
+		assertEquals(statements, smallCacheGraph.getRootContextNode().getAllStatementCount());
+		assertEquals(1, statistics.getCount(Operation.LOAD_PREFIX));
+		assertTrue(statistics.getCount(Operation.LOAD) > 1);
+
+		smallCacheGraph.close();
+	}
+
+	/**
+	 * Reads all statements below =deep in a newly opened graph.
+	 * @return The number of store reads.
+	 */
+	static long readSubtree(FileJSONGraphFactory graphFactory, String identifier, long statements) throws IOException {
+
+		JSONGraph graph = (JSONGraph) graphFactory.openGraph(identifier);
+		JSONStoreStatistics statistics = ((AbstractJSONStore) graph.getJsonStore()).getStatistics();
+
+		ContextNode contextNode = graph.getDeepContextNode(XDI3Segment.create("=deep"));
+		statistics.reset();
+
+		assertEquals(statements, contextNode.getAllStatementCount());
+
+		long reads = statistics.getCount(Operation.LOAD) + statistics.getCount(Operation.LOAD_MANY) + statistics.getCount(Operation.LOAD_PREFIX);
+
+		graph.close();
+
+		return reads;
+	}
 }
@@ -0,0 +1,136 @@
+package xdi2.tests.core.impl.json;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.ContextNode;
+import xdi2.core.Graph;
+import xdi2.core.impl.json.file.FileJSONGraphFactory;
+import xdi2.core.impl.json.file.FileJSONStore;
+import xdi2.core.impl.json.file.ShardedFileJSONStore;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+
+/**
+ * Measures how fast file JSON graphs read and write.
+ * This is not part of the test suite, since the numbers depend on the machine.
+ */
+public class JSONBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(JSONBenchmark.class);
+
+	private static final String SHARDED_PATH = "./xdi2-benchmark-sharded-json/";
+
+	public static void main(String[] args) throws Exception {
+
+		FileJSONStore.cleanup();
+
+		try {
+
+			subtreeReads();
+			writes();
+		} finally {
+
+			FileJSONStore.cleanup();
+			ShardedFileJSONStore.cleanup(new File(SHARDED_PATH));
+		}
+	}
+
+	/**
+	 * Adds a deep chain of context nodes below =deep, with a few children at every level.
+	 */
+	public static void fillSubtree(Graph graph) {
+
+		StringBuilder xri = new StringBuilder("=deep");
+
+		for (int i=0; i<20; i++) {
+
+			xri.append("+l" + i);
+
+			for (int ii=0; ii<3; ii++) graph.setStatement(XDI3Statement.create(xri + "+c" + ii + "<+name>&/&/\"Child " + i + "-" + ii + "\""));
+			graph.setStatement(XDI3Statement.create(xri + "/+next/=deep"));
+		}
+	}
+
+	/**
+	 * Adds 200 friends below =markus, each with a relation and a name literal.
+	 */
+	public static void fillFriends(Graph graph) {
+
+		ContextNode contextNode = graph.getRootContextNode().setDeepContextNode(XDI3Segment.create("=markus"));
+
+		for (int i=0; i<200; i++) {
+
+			contextNode.setDeepContextNode(XDI3Segment.create("+friend" + i)).setRelation(XDI3Segment.create("+knows"), XDI3Segment.create("=markus"));
+			contextNode.setDeepContextNode(XDI3Segment.create("<+name" + i + ">&")).setLiteral("Name " + i);
+		}
+	}
+
+	/**
+	 * Store reads and time of reading a subtree with a fresh cache, with and without prefetching.
+	 */
+	private static void subtreeReads() throws IOException {
+
+		String identifier = "subtree";
+
+		Graph graph = new FileJSONGraphFactory().openGraph(identifier);
+		fillSubtree(graph);
+
+		long statements = graph.getDeepContextNode(XDI3Segment.create("=deep")).getAllStatementCount();
+
+		graph.close();
+
+		FileJSONGraphFactory prefetchGraphFactory = new FileJSONGraphFactory();
+		prefetchGraphFactory.setPrefetch(true);
+
+		FileJSONGraphFactory noPrefetchGraphFactory = new FileJSONGraphFactory();
+		noPrefetchGraphFactory.setPrefetch(false);
+
+		for (int run=0; run<3; run++) {
+
+			long start = System.currentTimeMillis();
+			long noPrefetchReads = FileJSONGraphTest.readSubtree(noPrefetchGraphFactory, identifier, statements);
+			long noPrefetchTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			long prefetchReads = FileJSONGraphTest.readSubtree(prefetchGraphFactory, identifier, statements);
+			long prefetchTime = System.currentTimeMillis() - start;
+
+			log.info("Subtree of " + statements + " statements: " + noPrefetchReads + " store reads in " + noPrefetchTime + " ms without prefetching, " + prefetchReads + " store reads in " + prefetchTime + " ms with prefetching");
+		}
+	}
+
+	/**
+	 * Time of writing the same statements to a flat and to a sharded graph, including the write-out on close.
+	 */
+	private static void writes() throws IOException {
+
+		FileJSONGraphFactory flatGraphFactory = new FileJSONGraphFactory();
+
+		FileJSONGraphFactory shardedGraphFactory = new FileJSONGraphFactory();
+		shardedGraphFactory.setSharded(true);
+		shardedGraphFactory.setPath(SHARDED_PATH);
+
+		long flat = timeWrites(flatGraphFactory.openGraph("writes-flat"));
+		long sharded = timeWrites(shardedGraphFactory.openGraph("writes-sharded"));
+
+		log.info("Writes: flat " + flat + " ms, sharded " + sharded + " ms");
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private static long timeWrites(Graph graph) {
+
+		long start = System.currentTimeMillis();
+
+		fillFriends(graph);
+		graph.close();
+
+		return System.currentTimeMillis() - start;
+	}
+}
@@ -0,0 +1,99 @@
+package xdi2.tests.core.impl.json;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import xdi2.core.impl.json.JSONStoreJournal;
+import xdi2.core.impl.json.JSONStoreStatistics;
+import xdi2.core.impl.json.JSONStoreStatistics.Operation;
+import xdi2.core.impl.json.memory.MemoryJSONStore;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+public class JSONStoreStatisticsTest extends TestCase {
+
+	public void testStatistics() throws Exception {
+
+		MemoryJSONStore store = new MemoryJSONStore();
+		store.init();
+
+		assertNull(store.getJournal());
+		assertEquals(0, store.getJournalSize());
+
+		for (int i=0; i<10; i++) store.save("id" + i, new JsonObject());
+		for (int i=0; i<10; i++) store.load("id" + i);
+		store.saveToArray("id0", "key", new JsonPrimitive("value"));
+		store.delete("id1");
+
+		JSONStoreStatistics statistics = store.getStatistics();
+
+		// saveToArray() loads and saves internally
+
+		assertEquals(11, statistics.getCount(Operation.SAVE));
+		assertEquals(11, statistics.getCount(Operation.LOAD));
+		assertEquals(1, statistics.getCount(Operation.SAVE_TO_ARRAY));
+		assertEquals(1, statistics.getCount(Operation.DELETE));
+		assertEquals(0, statistics.getCount(Operation.DELETE_FROM_OBJECT));
+
+		long count = 0;
+		for (long bucket : statistics.getHistogram(Operation.LOAD)) count += bucket;
+		assertEquals(11, count);
+
+		assertTrue(statistics.getPercentileMicros(Operation.LOAD, 50) >= 1);
+		assertTrue(statistics.getPercentileMicros(Operation.LOAD, 50) <= statistics.getPercentileMicros(Operation.LOAD, 100));
+		assertEquals(0, statistics.getPercentileMicros(Operation.DELETE_FROM_OBJECT, 50));
+
+		statistics.reset();
+
+		assertEquals(0, statistics.getCount(Operation.SAVE));
+
+		store.close();
+	}
+
+	public void testJournal() throws Exception {
+
+		MemoryJSONStore store = new MemoryJSONStore();
+		store.init();
+		store.setJournalSize(5);
+
+		for (int i=0; i<8; i++) store.save("id" + i, new JsonObject());
+		store.deleteFromObject("id7", "key");
+
+		JSONStoreJournal journal = store.getJournal();
+		List<JSONStoreJournal.Entry> entries = journal.getEntries();
+
+		// deleteFromObject() loads and saves internally, and is recorded after them
+
+		assertEquals(5, journal.getCount());
+		assertEquals(11, journal.getTotal());
+		assertEquals(5, entries.size());
+		assertEquals("id6", entries.get(0).getId());
+		assertEquals(Operation.SAVE, entries.get(1).getOperation());
+		assertEquals(Operation.LOAD, entries.get(2).getOperation());
+		assertEquals(Operation.SAVE, entries.get(3).getOperation());
+		assertEquals(Operation.DELETE_FROM_OBJECT, entries.get(4).getOperation());
+		assertEquals("key", entries.get(4).getKey());
+
+		journal.clear();
+
+		assertEquals(0, journal.getEntries().size());
+
+		store.setJournalSize(0);
+
+		assertNull(store.getJournal());
+
+		store.close();
+	}
+
+	public void testBuckets() throws Exception {
+
+		assertEquals(0, JSONStoreStatistics.bucket(0));
+		assertEquals(0, JSONStoreStatistics.bucket(999));
+		assertEquals(1, JSONStoreStatistics.bucket(1000));
+		assertEquals(2, JSONStoreStatistics.bucket(2000));
+		assertEquals(2, JSONStoreStatistics.bucket(3999));
+		assertEquals(3, JSONStoreStatistics.bucket(4000));
+		assertEquals(JSONStoreStatistics.BUCKETS - 1, JSONStoreStatistics.bucket(Long.MAX_VALUE));
+	}
+}
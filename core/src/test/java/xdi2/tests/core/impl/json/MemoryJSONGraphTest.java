@@ -2,12 +2,24 @@ package xdi2.tests.core.impl.json;
 
 import java.io.IOException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import xdi2.core.Graph;
+import xdi2.core.impl.json.AbstractJSONStore;
+import xdi2.core.impl.json.JSONCache;
+import xdi2.core.impl.json.JSONGraph;
+import xdi2.core.impl.json.JSONStoreStatistics;
+import xdi2.core.impl.json.JSONStoreStatistics.Operation;
 import xdi2.core.impl.json.memory.MemoryJSONGraphFactory;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
 import xdi2.tests.core.impl.AbstractGraphTest;
 
 public class MemoryJSONGraphTest extends AbstractGraphTest {
 
+	private static final Logger log = LoggerFactory.getLogger(MemoryJSONGraphTest.class);
+
 	private static MemoryJSONGraphFactory graphFactory = new MemoryJSONGraphFactory();
 
 	@Override
@@ -21,4 +33,122 @@ public class MemoryJSONGraphTest extends AbstractGraphTest {
 
 		return graph;
 	}
+
+	public void testCacheAndTransactions() throws Exception {
+
+		MemoryJSONGraphFactory graphFactory = new MemoryJSONGraphFactory();
+		graphFactory.setCacheSize(50);
+
+		JSONGraph graph = (JSONGraph) graphFactory.openGraph(this.getClass().getName() + "-graph-cache");
+		JSONCache jsonCache = graph.getJsonCache();
+		JSONStoreStatistics statistics = ((AbstractJSONStore) graph.getJsonStore()).getStatistics();
+
+		// without a transaction, every change goes to the store
+
+		for (int i=0; i<20; i++) graph.setStatement(XDI3Statement.create("=markus/+friend/=friend" + i));
+
+		long operations = operations(statistics);
+		statistics.reset();
+
+		// in a transaction, changed JSON objects are written once
+
+		graph.beginTransaction();
+		for (int i=20; i<40; i++) graph.setStatement(XDI3Statement.create("=markus/+friend/=friend" + i));
+		assertEquals(0, statistics.getCount(Operation.SAVE));
+		graph.commitTransaction();
+
+		long transactionOperations = operations(statistics);
+
+		log.info("20 statements: " + operations + " store operations, in a transaction: " + transactionOperations);
+
+		assertTrue(transactionOperations < operations / 2);
+		assertEquals(40, graph.getDeepContextNode(XDI3Segment.create("=markus")).getRelationCount());
+
+		// the cache is bounded
+
+		for (int i=0; i<200; i++) graph.setStatement(XDI3Statement.create("=person" + i + "<+name>&/&/\"Person " + i + "\""));
+		for (int i=0; i<200; i++) assertEquals("Person " + i, graph.getDeepLiteral(XDI3Segment.create("=person" + i + "<+name>&")).getLiteralData());
+
+		assertTrue(jsonCache.getCount() <= 50);
+		assertTrue(jsonCache.getHits() > 0);
+
+		// deleting a context node removes the ids below it from the cache
+
+		assertNotNull(graph.getDeepLiteral(XDI3Segment.create("=person199<+name>&")));
+		assertTrue(jsonCache.getIds().contains("=person199<+name>&"));
+
+		graph.getRootContextNode().delContextNode(XDI3Segment.create("=person199").getFirstSubSegment());
+
+		assertFalse(jsonCache.getIds().contains("=person199<+name>&"));
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=person199")));
+
+		// rollback discards changes, deletions and changes below deleted ids
+
+		graph.beginTransaction();
+		graph.getRootContextNode().delContextNode(XDI3Segment.create("=person0").getFirstSubSegment());
+		graph.setStatement(XDI3Statement.create("=person0<+name>&/&/\"Changed\""));
+		graph.setStatement(XDI3Statement.create("=person1<+name>&/&/\"Changed\""));
+		graph.getRootContextNode().delContextNode(XDI3Segment.create("=person2").getFirstSubSegment());
+		assertEquals("Changed", graph.getDeepLiteral(XDI3Segment.create("=person0<+name>&")).getLiteralData());
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=person2")));
+		graph.rollbackTransaction();
+
+		assertEquals("Person 0", graph.getDeepLiteral(XDI3Segment.create("=person0<+name>&")).getLiteralData());
+		assertEquals("Person 1", graph.getDeepLiteral(XDI3Segment.create("=person1<+name>&")).getLiteralData());
+		assertEquals("Person 2", graph.getDeepLiteral(XDI3Segment.create("=person2<+name>&")).getLiteralData());
+
+		// commit applies deletions before changes made after them
+
+		graph.beginTransaction();
+		graph.getRootContextNode().delContextNode(XDI3Segment.create("=person0").getFirstSubSegment());
+		graph.setStatement(XDI3Statement.create("=person0<+name>&/&/\"Changed\""));
+		graph.getRootContextNode().delContextNode(XDI3Segment.create("=person1").getFirstSubSegment());
+		graph.commitTransaction();
+
+		jsonCache.clear();
+
+		assertEquals("Changed", graph.getDeepLiteral(XDI3Segment.create("=person0<+name>&")).getLiteralData());
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=person1")));
+		assertEquals("Person 2", graph.getDeepLiteral(XDI3Segment.create("=person2<+name>&")).getLiteralData());
+
+		// a transaction belongs to the thread that began it
+
+		final JSONGraph sharedGraph = graph;
+		final Object[] otherThreadRead = new Object[1];
+
+		graph.beginTransaction();
+		graph.setStatement(XDI3Statement.create("=person2<+name>&/&/\"In transaction\""));
+
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				sharedGraph.setStatement(XDI3Statement.create("=person3<+name>&/&/\"Other thread\""));
+				otherThreadRead[0] = sharedGraph.getDeepLiteral(XDI3Segment.create("=person2<+name>&")).getLiteralData();
+			}
+		};
+
+		statistics.reset();
+		thread.start();
+		thread.join();
+
+		assertEquals("Person 2", otherThreadRead[0]);
+		assertTrue(statistics.getCount(Operation.SAVE) + statistics.getCount(Operation.SAVE_TO_OBJECT) > 0);
+
+		graph.rollbackTransaction();
+
+		assertEquals("Person 2", graph.getDeepLiteral(XDI3Segment.create("=person2<+name>&")).getLiteralData());
+		assertEquals("Other thread", graph.getDeepLiteral(XDI3Segment.create("=person3<+name>&")).getLiteralData());
+
+		graph.close();
+	}
+
+	private static long operations(JSONStoreStatistics statistics) {
+
+		long operations = 0;
+		for (Operation operation : Operation.values()) operations += statistics.getCount(operation);
+
+		return operations;
+	}
 }
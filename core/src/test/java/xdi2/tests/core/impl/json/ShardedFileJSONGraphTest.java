@@ -0,0 +1,183 @@
+package xdi2.tests.core.impl.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import xdi2.core.Graph;
+import xdi2.core.impl.json.JSONGraph;
+import xdi2.core.impl.json.file.FileJSONGraphFactory;
+import xdi2.core.impl.json.file.FileJSONStore;
+import xdi2.core.impl.json.file.ShardedFileJSONStore;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+public class ShardedFileJSONGraphTest extends AbstractGraphTest {
+
+	private static final String PATH = "./xdi2-test-sharded-json/";
+
+	private static FileJSONGraphFactory graphFactory = new FileJSONGraphFactory();
+
+	static {
+
+		graphFactory.setSharded(true);
+		graphFactory.setPath(PATH);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+
+		super.setUp();
+
+		ShardedFileJSONStore.cleanup(new File(PATH));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		super.tearDown();
+
+		ShardedFileJSONStore.cleanup(new File(PATH));
+		FileJSONStore.cleanup();
+	}
+
+	@Override
+	protected Graph openNewGraph(String identifier) throws IOException {
+
+		return graphFactory.openGraph(identifier);
+	}
+
+	@Override
+	protected Graph reopenGraph(Graph graph, String identifier) throws IOException {
+
+		graph.close();
+
+		return graphFactory.openGraph(identifier);
+	}
+
+	public void testTransactions() throws Exception {
+
+		Graph graph = this.openNewGraph(this.getClass().getName() + "-graph-tx");
+		ShardedFileJSONStore jsonStore = (ShardedFileJSONStore) ((JSONGraph) graph).getJsonStore();
+
+		assertTrue(graph.supportsTransactions());
+
+		graph.beginTransaction();
+		graph.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+
+		// the graph buffers changes until the transaction is committed
+
+		assertEquals(0, jsonStore.getDirtyCount());
+		graph.commitTransaction();
+		assertEquals(0, jsonStore.getDirtyCount());
+
+		graph.beginTransaction();
+		graph.setStatement(XDI3Statement.create("=markus/+friend/=drummond"));
+		graph.getDeepContextNode(XDI3Segment.create("=animesh")).delete();
+		graph.rollbackTransaction();
+
+		graph = this.reopenGraph(graph, this.getClass().getName() + "-graph-tx");
+
+		assertTrue(graph.containsStatement(XDI3Statement.create("=markus/+friend/=animesh")));
+		assertFalse(graph.containsStatement(XDI3Statement.create("=markus/+friend/=drummond")));
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=drummond")));
+
+		graph.getDeepContextNode(XDI3Segment.create("=markus")).delete();
+
+		graph = this.reopenGraph(graph, this.getClass().getName() + "-graph-tx");
+
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=markus")));
+
+		graph.close();
+	}
+
+	public void testConcurrentTransactions() throws Exception {
+
+		final Graph graph = this.openNewGraph(this.getClass().getName() + "-graph-threads");
+		final List<Throwable> errors = new ArrayList<Throwable> ();
+
+		graph.beginTransaction();
+		graph.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+
+		// another thread commits without having a transaction, and writes without one
+
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					graph.commitTransaction();
+					graph.setStatement(XDI3Statement.create("=drummond/+friend/=animesh"));
+				} catch (Throwable ex) {
+
+					errors.add(ex);
+				}
+			}
+		};
+
+		thread.start();
+		thread.join();
+
+		assertTrue(errors.isEmpty());
+
+		// rolling back the transaction does not discard the write of the other thread
+
+		graph.rollbackTransaction();
+
+		Graph reopenedGraph = this.reopenGraph(graph, this.getClass().getName() + "-graph-threads");
+
+		assertTrue(reopenedGraph.containsStatement(XDI3Statement.create("=drummond/+friend/=animesh")));
+		assertFalse(reopenedGraph.containsStatement(XDI3Statement.create("=markus/+friend/=animesh")));
+
+		reopenedGraph.close();
+	}
+
+	public void testShards() throws Exception {
+
+		Graph graph = this.openNewGraph(this.getClass().getName() + "-graph-shards");
+		File directory = ((ShardedFileJSONStore) ((JSONGraph) graph).getJsonStore()).getDirectory();
+
+		JSONBenchmark.fillFriends(graph);
+
+		graph = this.reopenGraph(graph, this.getClass().getName() + "-graph-shards");
+
+		// every file is in a directory xx/yy, and the files are spread over many of them
+
+		int files = 0;
+		int shards = 0;
+		int maxFilesPerShard = 0;
+
+		for (File file : directory.listFiles()) {
+
+			assertTrue(file.isDirectory());
+			assertEquals(2, file.getName().length());
+
+			for (File shard : file.listFiles()) {
+
+				assertTrue(shard.isDirectory());
+				assertEquals(2, shard.getName().length());
+
+				String[] names = shard.list();
+
+				for (String name : names) assertTrue(name.endsWith(".json"));
+
+				files += names.length;
+				shards++;
+				maxFilesPerShard = Math.max(maxFilesPerShard, names.length);
+			}
+		}
+
+		assertTrue(files > 400);
+		assertTrue(shards > files / 2);
+		assertTrue(maxFilesPerShard <= 4);
+
+		assertEquals(400, graph.getDeepContextNode(XDI3Segment.create("=markus")).getContextNodeCount());
+		assertEquals("Name 199", graph.getDeepLiteral(XDI3Segment.create("=markus<+name199>&")).getLiteralData());
+
+		graph.close();
+	}
+}
@@ -1,14 +1,22 @@
 package xdi2.tests.core.impl.keyvalue;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 
 import junit.framework.TestCase;
+
 import xdi2.core.impl.keyvalue.KeyValueStore;
 import xdi2.core.util.iterators.IteratorCounter;
 
 public abstract class AbstractKeyValueTest extends TestCase {
 
+	static final int THREADS = 4;
+	private static final int TRANSACTIONS = 20;
+	private static final int WRITES = 10;
+
 	protected abstract KeyValueStore getKeyValueStore(String id) throws IOException;
 
 	public void testBasic() throws Exception {
@@ -291,4 +299,140 @@ public abstract class AbstractKeyValueTest extends TestCase {
 
 		keyValueStore.close();
 	}
+
+	public void testPrefix() throws Exception {
+
+		KeyValueStore keyValueStore = this.getKeyValueStore(this.getClass().getName() + "-keyvalue-8");
+		keyValueStore.clear();
+
+		if (! keyValueStore.supportsOrderedKeys()) {
+
+			keyValueStore.close();
+			return;
+		}
+
+		keyValueStore.set("a", "1");
+		keyValueStore.set("a/b", "2");
+		keyValueStore.set("a/b", "3");
+		keyValueStore.set("a/c", "4");
+		keyValueStore.set("ab", "5");
+		keyValueStore.set("b", "6");
+		keyValueStore.set("a/\u00e4", "7");
+		keyValueStore.set("a/\uffff", "8");
+
+		String buf = "";
+		for (Iterator<Entry<String, String>> i = keyValueStore.getAllWithPrefix("a/"); i.hasNext(); ) { Entry<String, String> entry = i.next(); buf += entry.getKey() + "=" + entry.getValue() + ";"; }
+		assertEquals("a/b=2;a/b=3;a/c=4;a/\u00e4=7;a/\uffff=8;", buf);
+
+		assertEquals(7, new IteratorCounter(keyValueStore.getAllWithPrefix("a")).count());
+		assertEquals(8, new IteratorCounter(keyValueStore.getAllWithPrefix("")).count());
+		assertFalse(keyValueStore.getAllWithPrefix("c").hasNext());
+
+		keyValueStore.deleteWithPrefix("a/");
+
+		assertFalse(keyValueStore.contains("a/b"));
+		assertFalse(keyValueStore.contains("a/c"));
+		assertFalse(keyValueStore.contains("a/\u00e4"));
+		assertFalse(keyValueStore.contains("a/\uffff"));
+		assertTrue(keyValueStore.contains("a", "1"));
+		assertTrue(keyValueStore.contains("ab", "5"));
+		assertTrue(keyValueStore.contains("b", "6"));
+
+		keyValueStore.close();
+	}
+
+	public void testConcurrentTransactions() throws Exception {
+
+		KeyValueStore keyValueStore = this.getKeyValueStore(this.getClass().getName() + "-keyvalue-7");
+		keyValueStore.clear();
+
+		if (! keyValueStore.supportsTransactions()) {
+
+			keyValueStore.close();
+			return;
+		}
+
+		runWriters(keyValueStore, 1, TRANSACTIONS, "single");
+		runWriters(keyValueStore, THREADS, TRANSACTIONS, "multi");
+
+		this.assertWrites(keyValueStore, 1, "single");
+		this.assertWrites(keyValueStore, THREADS, "multi");
+
+		keyValueStore.close();
+	}
+
+	/**
+	 * Checks that every committed write of the writers is there, and no rolled back write.
+	 */
+	private void assertWrites(KeyValueStore keyValueStore, int threads, String prefix) {
+
+		for (int t=0; t<threads; t++) {
+
+			for (int i=0; i<TRANSACTIONS; i++) {
+
+				for (int ii=0; ii<WRITES; ii++) {
+
+					String key = prefix + "-" + t + "-" + i + "-" + ii;
+
+					if (i % 5 == 4) {
+
+						assertFalse(key, keyValueStore.contains(key));
+					} else {
+
+						assertTrue(key, keyValueStore.contains(key, "value-" + ii));
+						assertEquals(1, keyValueStore.count(key));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs threads that each write in transactions, and roll back every fifth of them.
+	 */
+	static void runWriters(final KeyValueStore keyValueStore, int threads, final int transactions, final String prefix) throws Exception {
+
+		final List<Throwable> errors = new ArrayList<Throwable> ();
+		List<Thread> writers = new ArrayList<Thread> ();
+
+		for (int t=0; t<threads; t++) {
+
+			final int thread = t;
+
+			writers.add(new Thread() {
+
+				@Override
+				public void run() {
+
+					try {
+
+						for (int i=0; i<transactions; i++) {
+
+							keyValueStore.beginTransaction();
+
+							for (int ii=0; ii<WRITES; ii++) {
+
+								String key = prefix + "-" + thread + "-" + i + "-" + ii;
+
+								keyValueStore.set(key, "value-" + ii);
+								if (! keyValueStore.contains(key, "value-" + ii)) throw new AssertionError("Own write not visible: " + key);
+							}
+
+							// every fifth transaction is rolled back
+
+							if (i % 5 == 4) keyValueStore.rollbackTransaction(); else keyValueStore.commitTransaction();
+						}
+					} catch (Throwable ex) {
+
+						synchronized (errors) { errors.add(ex); }
+					}
+				}
+			});
+		}
+
+		for (Thread writer : writers) writer.start();
+		for (Thread writer : writers) writer.join();
+
+		if (! errors.isEmpty()) throw new RuntimeException("Writer failed: " + errors.get(0).getMessage(), errors.get(0));
+	}
 }
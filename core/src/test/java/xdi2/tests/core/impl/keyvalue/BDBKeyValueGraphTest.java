@@ -3,8 +3,13 @@ package xdi2.tests.core.impl.keyvalue;
 import java.io.IOException;
 
 import xdi2.core.Graph;
+import xdi2.core.impl.keyvalue.KeyValueCompactor;
+import xdi2.core.impl.keyvalue.KeyValueGraph;
+import xdi2.core.impl.keyvalue.KeyValueStore;
 import xdi2.core.impl.keyvalue.bdb.BDBKeyValueGraphFactory;
 import xdi2.core.impl.keyvalue.bdb.BDBKeyValueStore;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
 import xdi2.tests.core.impl.AbstractGraphTest;
 
 public class BDBKeyValueGraphTest extends AbstractGraphTest {
@@ -47,4 +52,55 @@ public class BDBKeyValueGraphTest extends AbstractGraphTest {
 
 		return graphFactory.openGraph(identifier);
 	}
+
+	public void testCompaction() throws Exception {
+
+		String identifier = this.getClass().getName() + "-compaction";
+
+		Graph graph = this.openNewGraph(identifier);
+		KeyValueStore keyValueStore = ((KeyValueGraph) graph).getKeyValueStore();
+
+		graph.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+		graph.setStatement(XDI3Statement.create("=markus<+name>&/&/\"Markus\""));
+
+		keyValueStore.set("=gone/--C", "+x");
+		keyValueStore.set("=markus/+gone", "=animesh");
+
+		graph.close();
+
+		KeyValueCompactor.Result result = graphFactory.compactGraph(identifier);
+
+		assertEquals(2, result.getOrphanedEntries());
+		assertEquals(32, result.getReclaimedBytes());
+
+		graph = graphFactory.openGraph(identifier);
+
+		assertTrue(graph.containsStatement(XDI3Statement.create("=markus/+friend/=animesh")));
+		assertTrue(graph.containsStatement(XDI3Statement.create("=markus<+name>&/&/\"Markus\"")));
+		assertNull(graph.getDeepContextNode(XDI3Segment.create("=gone")));
+
+		graph.close();
+
+		assertEquals(0, graphFactory.compactGraph(identifier).getOrphanedEntries());
+
+		// more orphaned keys than are deleted in one batch
+
+		graph = graphFactory.openGraph(identifier);
+		keyValueStore = ((KeyValueGraph) graph).getKeyValueStore();
+
+		keyValueStore.beginTransaction();
+		for (int i=0; i<2500; i++) keyValueStore.set("=gone" + i + "/--C", "+x");
+		keyValueStore.commitTransaction();
+
+		graph.close();
+
+		assertEquals(2500, graphFactory.compactGraph(identifier).getOrphanedEntries());
+
+		graph = graphFactory.openGraph(identifier);
+
+		assertTrue(graph.containsStatement(XDI3Statement.create("=markus/+friend/=animesh")));
+		assertTrue(graph.containsStatement(XDI3Statement.create("=markus<+name>&/&/\"Markus\"")));
+
+		graph.close();
+	}
 }
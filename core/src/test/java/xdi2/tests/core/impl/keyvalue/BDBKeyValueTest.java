@@ -2,12 +2,21 @@ package xdi2.tests.core.impl.keyvalue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Durability.SyncPolicy;
 import com.sleepycat.je.EnvironmentConfig;
 
 import xdi2.core.impl.keyvalue.KeyValueStore;
 import xdi2.core.impl.keyvalue.bdb.BDBKeyValueStore;
+import xdi2.core.util.iterators.ClosableIterator;
+import xdi2.core.util.iterators.IteratorCounter;
+import xdi2.core.util.iterators.IteratorFirstItem;
+import xdi2.core.util.iterators.MappingIterator;
 
 public class BDBKeyValueTest extends AbstractKeyValueTest {
 
@@ -69,4 +78,316 @@ public class BDBKeyValueTest extends AbstractKeyValueTest {
 
 		return keyValueStore;
 	}
+
+	public void testSyncPolicies() throws Exception {
+
+		SyncPolicy[] syncPolicies = new SyncPolicy[] { SyncPolicy.SYNC, SyncPolicy.WRITE_NO_SYNC, SyncPolicy.NO_SYNC, SyncPolicy.SYNC, SyncPolicy.SYNC };
+		int[] batchSizes = new int[] { 1, 1, 1, 100, 1000 };
+		long[] batchWindows = new long[] { 0, 0, 0, 0, 10 };
+
+		for (int i=0; i<syncPolicies.length; i++) {
+
+			String id = this.getClass().getName() + "-keyvalue-sync-" + i;
+
+			BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(id);
+			keyValueStore.clear();
+			keyValueStore.setSyncPolicy(syncPolicies[i]);
+			keyValueStore.setBatchSize(batchSizes[i]);
+			keyValueStore.setBatchWindow(batchWindows[i]);
+
+			for (int ii=0; ii<1000; ii++) {
+
+				keyValueStore.set("key" + ii, "value" + ii);
+				assertEquals("value" + ii, keyValueStore.getOne("key" + ii));
+
+				// a batch is committed when it is full, or earlier by the timer of the batch window
+
+				if (batchWindows[i] == 0) assertEquals((ii + 1) % batchSizes[i], keyValueStore.getBatchCount());
+				else assertTrue(keyValueStore.getBatchCount() <= batchSizes[i]);
+			}
+
+			keyValueStore.close();
+
+			keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(id);
+
+			for (int ii=0; ii<1000; ii++) assertTrue(keyValueStore.contains("key" + ii, "value" + ii));
+
+			keyValueStore.close();
+		}
+	}
+
+	public void testBatchWindow() throws Exception {
+
+		BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-window");
+		keyValueStore.clear();
+		keyValueStore.setBatchSize(1000);
+		keyValueStore.setBatchWindow(50);
+
+		keyValueStore.set("a", "value");
+		assertEquals(1, keyValueStore.getBatchCount());
+
+		// the batch is committed without any further operation on the store
+
+		for (int i=0; i<100 && keyValueStore.getBatchCount() > 0; i++) Thread.sleep(50);
+
+		assertEquals(0, keyValueStore.getBatchCount());
+
+		keyValueStore.close();
+	}
+
+	public void testBatchFailure() throws Exception {
+
+		final BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-failure");
+		keyValueStore.clear();
+		keyValueStore.setBatchSize(1000);
+
+		for (int i=0; i<10; i++) keyValueStore.set("key" + i, "value" + i);
+		assertEquals(10, keyValueStore.getBatchCount());
+
+		// another thread holds a lock on a key, so the next write to it fails
+
+		final Object lock = new Object();
+		final boolean[] locked = new boolean[] { false };
+
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				keyValueStore.beginTransaction();
+				keyValueStore.set("locked", "x");
+
+				synchronized (lock) {
+
+					locked[0] = true;
+					lock.notifyAll();
+
+					try {
+
+						lock.wait();
+					} catch (InterruptedException ex) {
+
+					}
+				}
+
+				keyValueStore.rollbackTransaction();
+			}
+		};
+
+		synchronized (lock) {
+
+			thread.start();
+			while (! locked[0]) lock.wait();
+		}
+
+		try {
+
+			keyValueStore.set("locked", "y");
+
+			fail();
+		} catch (Exception ex) {
+
+		}
+
+		synchronized (lock) {
+
+			lock.notifyAll();
+		}
+
+		thread.join();
+
+		// the earlier writes of the batch are committed, not discarded
+
+		assertEquals(0, keyValueStore.getBatchCount());
+
+		keyValueStore.close();
+		keyValueStore.init();
+
+		for (int i=0; i<10; i++) assertTrue(keyValueStore.contains("key" + i, "value" + i));
+		assertFalse(keyValueStore.contains("locked"));
+
+		keyValueStore.close();
+	}
+
+	public void testCommitFailure() throws Exception {
+
+		final BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-commit");
+		keyValueStore.clear();
+
+		keyValueStore.beginTransaction();
+		keyValueStore.set("locked", "x");
+
+		// another thread writes a key, then fails on the locked key, so its transaction cannot be committed
+
+		final List<String> results = new ArrayList<String> ();
+
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				keyValueStore.beginTransaction();
+				keyValueStore.set("key", "y");
+
+				try {
+
+					keyValueStore.set("locked", "y");
+					results.add("set");
+				} catch (Exception ex) {
+
+				}
+
+				try {
+
+					keyValueStore.commitTransaction();
+					results.add("commit");
+				} catch (Exception ex) {
+
+				}
+
+				keyValueStore.rollbackTransaction();
+				results.add("rollback");
+			}
+		};
+
+		thread.start();
+		thread.join();
+
+		assertEquals(Arrays.asList("rollback"), results);
+
+		// the rollback released the locks of the failed transaction
+
+		keyValueStore.set("key", "x");
+		keyValueStore.commitTransaction();
+
+		assertTrue(keyValueStore.contains("key", "x"));
+		assertFalse(keyValueStore.contains("key", "y"));
+		assertTrue(keyValueStore.contains("locked", "x"));
+
+		keyValueStore.close();
+	}
+
+	public void testLazyGetAll() throws Exception {
+
+		BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-lazy");
+		keyValueStore.clear();
+		keyValueStore.setLeakDetection(true);
+		keyValueStore.setBatchSize(1000);
+
+		for (int i=0; i<1000; i++) keyValueStore.set("a", "value" + i);
+
+		// outside of a transaction, no cursor stays open while iterating
+
+		assertEquals(1000, new IteratorCounter(keyValueStore.getAll("a")).count());
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+
+		assertNotNull(new IteratorFirstItem<String> (keyValueStore.getAll("a")).item());
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+
+		Iterator<String> values = new MappingIterator<String, String> (keyValueStore.getAll("a")) {
+
+			@Override
+			public String map(String item) {
+
+				return item.toUpperCase();
+			}
+		};
+
+		assertTrue(values.next().startsWith("VALUE"));
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+
+		((ClosableIterator<String>) values).close();
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+		assertFalse(values.hasNext());
+
+		// writing while iterating
+
+		int deleted = 0;
+
+		for (values = keyValueStore.getAll("a"); values.hasNext(); deleted++) keyValueStore.delete("a", values.next());
+
+		assertEquals(1000, deleted);
+		assertFalse(keyValueStore.contains("a"));
+
+		// cursors of a transaction are closed when it ends
+
+		keyValueStore.set("b", "x");
+		keyValueStore.set("b", "y");
+
+		keyValueStore.beginTransaction();
+		keyValueStore.getAll("b").next();
+		assertEquals(1, keyValueStore.getOpenCursorCount());
+		keyValueStore.commitTransaction();
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+
+		// in a transaction, cursors stay open until their iterators are closed
+
+		keyValueStore.beginTransaction();
+
+		List<ClosableIterator<String>> iterators = new ArrayList<ClosableIterator<String>> ();
+
+		for (int i=0; i<10; i++) {
+
+			ClosableIterator<String> iterator = (ClosableIterator<String>) keyValueStore.getAll("b");
+			iterator.next();
+			iterators.add(iterator);
+		}
+
+		assertEquals(10, keyValueStore.getOpenCursorCount());
+
+		for (ClosableIterator<String> iterator : iterators) iterator.close();
+
+		assertEquals(0, keyValueStore.getOpenCursorCount());
+
+		keyValueStore.commitTransaction();
+
+		keyValueStore.close();
+	}
+
+	public void testNativeReads() throws Exception {
+
+		BDBKeyValueStore keyValueStore = (BDBKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-native");
+		keyValueStore.clear();
+		keyValueStore.setBatchSize(1000);
+
+		StringBuilder padding = new StringBuilder();
+		for (int i=0; i<1000; i++) padding.append('x');
+
+		for (int i=0; i<100; i++) keyValueStore.set("a", "value" + i + padding);
+		keyValueStore.set("b", "value");
+
+		assertEquals(100, keyValueStore.count("a"));
+		assertEquals(1, keyValueStore.count("b"));
+		assertEquals(0, keyValueStore.count("c"));
+		assertTrue(keyValueStore.contains("a"));
+		assertFalse(keyValueStore.contains("c"));
+		assertEquals("value", keyValueStore.getOne("b"));
+		assertNull(keyValueStore.getOne("c"));
+
+		// uncommitted writes of a transaction are counted
+
+		keyValueStore.beginTransaction();
+		keyValueStore.set("c", "value");
+		keyValueStore.delete("a", "value0" + padding);
+		assertEquals(1, keyValueStore.count("c"));
+		assertEquals(99, keyValueStore.count("a"));
+		keyValueStore.rollbackTransaction();
+
+		assertEquals(0, keyValueStore.count("c"));
+		assertEquals(100, keyValueStore.count("a"));
+
+		// the same as counting by iterating, also in a batch and after deleting a key
+
+		assertEquals(new IteratorCounter(keyValueStore.getAll("a")).count(), keyValueStore.count("a"));
+
+		keyValueStore.setBatchSize(1000);
+		keyValueStore.set("c", "value");
+		keyValueStore.delete("b");
+		assertEquals(2, keyValueStore.getBatchCount());
+		assertEquals(1, keyValueStore.count("c"));
+		assertEquals(0, keyValueStore.count("b"));
+		assertFalse(keyValueStore.contains("b"));
+
+		keyValueStore.close();
+	}
 }
@@ -0,0 +1,62 @@
+package xdi2.tests.core.impl.keyvalue;
+
+import java.io.IOException;
+import java.util.Set;
+
+import xdi2.core.Graph;
+import xdi2.core.impl.keyvalue.KeyValueGraph;
+import xdi2.core.impl.keyvalue.dictionary.DictionaryKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.dictionary.DictionaryKeyValueStore;
+import xdi2.core.impl.keyvalue.map.MapKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.map.MapKeyValueStore;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.tests.core.impl.AbstractGraphTest;
+import xdi2.tests.core.impl.GraphBenchmark;
+
+public class DictionaryKeyValueGraphTest extends AbstractGraphTest {
+
+	private DictionaryKeyValueGraphFactory graphFactory = new DictionaryKeyValueGraphFactory();
+
+	@Override
+	protected Graph openNewGraph(String identifier) throws IOException {
+
+		return this.graphFactory.openGraph(identifier);
+	}
+
+	@Override
+	protected Graph reopenGraph(Graph graph, String id) throws IOException {
+
+		return graph;
+	}
+
+	public void testSharedStrings() throws Exception {
+
+		DictionaryKeyValueGraphFactory directGraphFactory = new DictionaryKeyValueGraphFactory();
+		directGraphFactory.setDirect(true);
+
+		Graph mapGraph = new MapKeyValueGraphFactory().openGraph();
+		GraphBenchmark.fill(mapGraph, 2000);
+
+		int mapEntries = 0;
+		for (Set<String> values : ((MapKeyValueStore) ((KeyValueGraph) mapGraph).getKeyValueStore()).getMap().values()) mapEntries += values.size();
+
+		for (DictionaryKeyValueGraphFactory graphFactory : new DictionaryKeyValueGraphFactory[] { this.graphFactory, directGraphFactory }) {
+
+			Graph graph = graphFactory.openGraph();
+			GraphBenchmark.fill(graph, 2000);
+
+			DictionaryKeyValueStore keyValueStore = (DictionaryKeyValueStore) ((KeyValueGraph) graph).getKeyValueStore();
+
+			// the same pairs as in a map store, but every string is only stored once
+
+			assertEquals(graphFactory.getDirect(), keyValueStore.isDirect());
+			assertEquals(mapEntries, keyValueStore.getEntryCount());
+			assertTrue(keyValueStore.getStringCount() < 2 * keyValueStore.getEntryCount());
+			assertTrue(graph.containsStatement(XDI3Statement.create("=person0+friend/+knows/=person1")));
+
+			graph.close();
+		}
+
+		mapGraph.close();
+	}
+}
@@ -0,0 +1,81 @@
+package xdi2.tests.core.impl.keyvalue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.impl.keyvalue.dictionary.DictionaryKeyValueStore;
+import xdi2.core.util.iterators.IteratorListMaker;
+
+public class DictionaryKeyValueTest extends AbstractKeyValueTest {
+
+	@Override
+	protected KeyValueStore getKeyValueStore(String id) throws IOException {
+
+		// open store
+
+		KeyValueStore keyValueStore = new DictionaryKeyValueStore(true);
+		keyValueStore.init();
+
+		// done
+
+		return keyValueStore;
+	}
+
+	public void testChurn() throws Exception {
+
+		DictionaryKeyValueStore keyValueStore = (DictionaryKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-churn");
+		Map<String, Set<String>> map = new HashMap<String, Set<String>> ();
+		Random random = new Random(0);
+
+		// compare random writes and deletes with a map
+
+		for (int i=0; i<200000; i++) {
+
+			String key = "key" + random.nextInt(500);
+			String value = "value" + random.nextInt(50) + (random.nextInt(10) == 0 ? "€" : "");
+
+			Set<String> set = map.get(key);
+			if (set == null) map.put(key, set = new HashSet<String> ());
+
+			switch (random.nextInt(4)) {
+
+			case 0:
+			case 1: keyValueStore.set(key, value); set.add(value); break;
+			case 2: keyValueStore.delete(key, value); set.remove(value); break;
+			default: if (random.nextInt(20) == 0) { keyValueStore.delete(key); set.clear(); } break;
+			}
+
+			assertEquals(set.contains(value), keyValueStore.contains(key, value));
+		}
+
+		int entries = 0;
+
+		for (Map.Entry<String, Set<String>> entry : map.entrySet()) {
+
+			assertEquals(entry.getValue().size(), keyValueStore.count(entry.getKey()));
+			assertEquals(! entry.getValue().isEmpty(), keyValueStore.contains(entry.getKey()));
+			assertEquals(entry.getValue(), new HashSet<String> (new IteratorListMaker<String> (keyValueStore.getAll(entry.getKey())).list()));
+
+			entries += entry.getValue().size();
+		}
+
+		assertEquals(entries, keyValueStore.getEntryCount());
+
+		// strings that are not used anymore are removed from the dictionary
+
+		for (String key : map.keySet()) keyValueStore.delete(key);
+
+		assertEquals(0, keyValueStore.getEntryCount());
+		assertEquals(0, keyValueStore.getStringCount());
+
+		keyValueStore.set("", "");
+		assertEquals("", keyValueStore.getOne(""));
+
+		keyValueStore.close();
+	}
+}
@@ -0,0 +1,137 @@
+package xdi2.tests.core.impl.keyvalue;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.impl.keyvalue.bdb.BDBKeyValueStore;
+import xdi2.core.impl.keyvalue.properties.PropertiesKeyValueStore;
+import xdi2.core.util.iterators.IteratorCounter;
+
+import com.sleepycat.je.Durability.SyncPolicy;
+
+/**
+ * Measures how fast key/value stores write and read.
+ * This is not part of the test suite, since the numbers depend on the machine.
+ */
+public class KeyValueBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(KeyValueBenchmark.class);
+
+	private static final int TRANSACTIONS = 200;
+
+	public static void main(String[] args) throws Exception {
+
+		BDBKeyValueStore.cleanup(BDBKeyValueTest.DATABASE_PATH);
+
+		try {
+
+			syncPolicies();
+			nativeReads();
+
+			transactions(openBDBKeyValueStore(KeyValueBenchmark.class.getName() + "-transactions"));
+			transactions(new PropertiesKeyValueTest().getKeyValueStore(KeyValueBenchmark.class.getName() + "-transactions"));
+		} finally {
+
+			BDBKeyValueStore.cleanup(BDBKeyValueTest.DATABASE_PATH);
+			PropertiesKeyValueStore.cleanup();
+		}
+	}
+
+	/**
+	 * Writes per second of BDB with every sync policy, and with batches.
+	 */
+	private static void syncPolicies() throws Exception {
+
+		SyncPolicy[] syncPolicies = new SyncPolicy[] { SyncPolicy.SYNC, SyncPolicy.WRITE_NO_SYNC, SyncPolicy.NO_SYNC, SyncPolicy.SYNC, SyncPolicy.SYNC };
+		int[] batchSizes = new int[] { 1, 1, 1, 100, 1000 };
+		long[] batchWindows = new long[] { 0, 0, 0, 0, 10 };
+
+		for (int i=0; i<syncPolicies.length; i++) {
+
+			BDBKeyValueStore keyValueStore = openBDBKeyValueStore(KeyValueBenchmark.class.getName() + "-sync-" + i);
+			keyValueStore.clear();
+			keyValueStore.setSyncPolicy(syncPolicies[i]);
+			keyValueStore.setBatchSize(batchSizes[i]);
+			keyValueStore.setBatchWindow(batchWindows[i]);
+
+			long start = System.currentTimeMillis();
+
+			for (int ii=0; ii<1000; ii++) {
+
+				keyValueStore.set("key" + ii, "value" + ii);
+				keyValueStore.getOne("key" + ii);
+			}
+
+			long time = System.currentTimeMillis() - start;
+
+			log.info(syncPolicies[i] + " (batch size " + batchSizes[i] + ", window " + batchWindows[i] + " ms): " + (1000 * 1000 / Math.max(time, 1)) + " writes/s");
+
+			keyValueStore.close();
+		}
+	}
+
+	/**
+	 * Time of count() and contains() in BDB, compared with counting by iterating.
+	 */
+	private static void nativeReads() throws Exception {
+
+		BDBKeyValueStore keyValueStore = openBDBKeyValueStore(KeyValueBenchmark.class.getName() + "-native");
+		keyValueStore.clear();
+		keyValueStore.setBatchSize(1000);
+
+		StringBuilder padding = new StringBuilder();
+		for (int i=0; i<1000; i++) padding.append('x');
+
+		for (int i=0; i<100; i++) keyValueStore.set("a", "value" + i + padding);
+
+		int calls = 1000;
+
+		long start = System.nanoTime();
+		for (int i=0; i<calls; i++) new IteratorCounter(keyValueStore.getAll("a")).count();
+		long iterating = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i=0; i<calls; i++) keyValueStore.count("a");
+		long counting = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i=0; i<calls; i++) keyValueStore.contains("a");
+		long containing = System.nanoTime() - start;
+
+		log.info("count() of 100 values: " + (iterating / calls / 1000) + " us by iterating, " + (counting / calls / 1000) + " us native. contains(): " + (containing / calls / 1000) + " us.");
+
+		keyValueStore.close();
+	}
+
+	/**
+	 * Transactions per second of a store with one thread, and with several threads at the same time.
+	 */
+	private static void transactions(KeyValueStore keyValueStore) throws Exception {
+
+		keyValueStore.clear();
+
+		long start = System.currentTimeMillis();
+		AbstractKeyValueTest.runWriters(keyValueStore, 1, TRANSACTIONS, "single");
+		long singleTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		AbstractKeyValueTest.runWriters(keyValueStore, AbstractKeyValueTest.THREADS, TRANSACTIONS, "multi");
+		long multiTime = System.currentTimeMillis() - start;
+
+		log.info(keyValueStore.getClass().getSimpleName() + ": 1 thread: " + (TRANSACTIONS * 1000 / Math.max(singleTime, 1)) + " transactions/s, " + AbstractKeyValueTest.THREADS + " threads: " + (AbstractKeyValueTest.THREADS * TRANSACTIONS * 1000 / Math.max(multiTime, 1)) + " transactions/s");
+
+		keyValueStore.close();
+	}
+
+	/*
+	 * Helper methods
+	 */
+
+	private static BDBKeyValueStore openBDBKeyValueStore(String id) throws IOException {
+
+		return (BDBKeyValueStore) new BDBKeyValueTest().getKeyValueStore(id);
+	}
+}
@@ -2,8 +2,16 @@ package xdi2.tests.core.impl.keyvalue;
 
 import java.io.IOException;
 
+import xdi2.core.ContextNode;
 import xdi2.core.Graph;
+import xdi2.core.impl.keyvalue.KeyValueCompactor;
+import xdi2.core.impl.keyvalue.KeyValueGraph;
+import xdi2.core.impl.keyvalue.KeyValueStore;
 import xdi2.core.impl.keyvalue.map.MapKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.map.SortedMapFactory;
+import xdi2.core.util.iterators.IteratorCounter;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
 import xdi2.tests.core.impl.AbstractGraphTest;
 
 public class MapKeyValueGraphTest extends AbstractGraphTest {
@@ -21,4 +29,71 @@ public class MapKeyValueGraphTest extends AbstractGraphTest {
 
 		return graph;
 	}
+
+	public void testSubtreeDeletion() throws Exception {
+
+		MapKeyValueGraphFactory graphFactory = new MapKeyValueGraphFactory();
+		graphFactory.setMapFactory(new SortedMapFactory());
+		graphFactory.setIndexIncomingRelations(true);
+
+		Graph graph = graphFactory.openGraph(this.getClass().getName() + "-subtree");
+		KeyValueStore keyValueStore = ((KeyValueGraph) graph).getKeyValueStore();
+
+		graph.setStatement(XDI3Statement.create("=markus+friend/+knows/=animesh"));
+		graph.setStatement(XDI3Statement.create("=markus+friend<+name>&/&/\"Animesh\""));
+		graph.setStatement(XDI3Statement.create("=markus+friend+best/+knows/=drummond"));
+		graph.setStatement(XDI3Statement.create("=markus+friends/+knows/=drummond"));
+		graph.setStatement(XDI3Statement.create("=drummond/+knows/=markus+friend"));
+
+		// deleting a context node leaves no keys of its subtree behind
+
+		ContextNode contextNode = graph.getDeepContextNode(XDI3Segment.create("=markus+friend"));
+		contextNode.delete();
+
+		assertEquals(0, new KeyValueCompactor(keyValueStore, false).compact().getOrphanedEntries());
+
+		contextNode = graph.getDeepContextNode(XDI3Segment.create("=markus")).setContextNode(contextNode.getArcXri());
+
+		assertFalse(contextNode.containsContextNodes());
+		assertFalse(contextNode.containsRelations());
+		assertFalse(contextNode.containsLiteral());
+
+		// orphaned keys, e.g. of stores written by older versions, are found by compaction
+
+		long statementCount = graph.getRootContextNode().getAllStatementCount();
+		long entryCount = new IteratorCounter(keyValueStore.getAllWithPrefix("")).count();
+
+		keyValueStore.set("=gone/--C", "+x");
+		keyValueStore.set("=gone+x/--L", "\"x\"");
+		keyValueStore.set("=markus/+gone", "=animesh");
+		keyValueStore.set("=animesh/--I", "+gone");
+		keyValueStore.set("=animesh/--I/+gone", "=markus");
+
+		KeyValueCompactor.Result result = new KeyValueCompactor(keyValueStore, false).compact();
+
+		assertEquals(entryCount + 5, result.getScannedEntries());
+		assertEquals(5, result.getOrphanedEntries());
+		assertEquals(88, result.getReclaimedBytes());
+		assertEquals(entryCount, new IteratorCounter(keyValueStore.getAllWithPrefix("")).count());
+		assertEquals(statementCount, graph.getRootContextNode().getAllStatementCount());
+		assertEquals(1, new IteratorCounter(graph.getDeepContextNode(XDI3Segment.create("=drummond")).getIncomingRelations()).count());
+
+		// more orphaned keys than are deleted in one batch
+
+		for (int i=0; i<2500; i++) keyValueStore.set("=gone" + i + "/--C", "+x");
+
+		assertEquals(2500, new KeyValueCompactor(keyValueStore, false).compact().getOrphanedEntries());
+		assertEquals(entryCount, new IteratorCounter(keyValueStore.getAllWithPrefix("")).count());
+		assertEquals(statementCount, graph.getRootContextNode().getAllStatementCount());
+
+		try {
+
+			new KeyValueCompactor(keyValueStore, true).compact();
+			fail();
+		} catch (Exception ex) {
+
+		}
+
+		graph.close();
+	}
 }
@@ -0,0 +1,77 @@
+package xdi2.tests.core.impl.keyvalue;
+
+import java.io.IOException;
+
+import xdi2.core.ContextNode;
+import xdi2.core.Graph;
+import xdi2.core.impl.keyvalue.KeyValueGraph;
+import xdi2.core.impl.keyvalue.KeyValueStore;
+import xdi2.core.impl.keyvalue.map.MapKeyValueGraphFactory;
+import xdi2.core.impl.keyvalue.map.SortedMapFactory;
+import xdi2.core.util.iterators.IteratorCounter;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.tests.core.impl.AbstractGraphTest;
+
+public class OrderedMapKeyValueGraphTest extends AbstractGraphTest {
+
+	private MapKeyValueGraphFactory graphFactory = new MapKeyValueGraphFactory();
+
+	public OrderedMapKeyValueGraphTest() {
+
+		this.graphFactory.setMapFactory(new SortedMapFactory());
+		this.graphFactory.setOrderedKeys(true);
+	}
+
+	@Override
+	protected Graph openNewGraph(String identifier) throws IOException {
+
+		return this.graphFactory.openGraph(identifier);
+	}
+
+	@Override
+	protected Graph reopenGraph(Graph graph, String id) throws IOException {
+
+		return graph;
+	}
+
+	public void testSubtreeScan() throws Exception {
+
+		Graph graph = this.openNewGraph(this.getClass().getName() + "-subtree");
+		KeyValueStore keyValueStore = ((KeyValueGraph) graph).getKeyValueStore();
+
+		graph.setStatement(XDI3Statement.create("=markus+friend/+knows/=animesh"));
+		graph.setStatement(XDI3Statement.create("=markus+friend<+name>&/&/\"Animesh\""));
+		graph.setStatement(XDI3Statement.create("=markus+friend+best/+knows/=drummond"));
+		graph.setStatement(XDI3Statement.create("=markus+friends/+knows/=drummond"));
+		graph.setStatement(XDI3Statement.create("=markusx/+knows/=markus"));
+
+		ContextNode contextNode = graph.getDeepContextNode(XDI3Segment.create("=markus+friend"));
+
+		assertEquals(3, contextNode.getAllContextNodeCount());
+		assertEquals(6, contextNode.getAllStatementCount());
+		assertEquals(new IteratorCounter(graph.getRootContextNode().getAllStatements()).count(), graph.getRootContextNode().getAllStatementCount());
+
+		// deleting a context node removes all keys of its subtree, but nothing of its neighbors
+
+		String prefix = "\u0001=markus\u0001+friend\u0001";
+
+		assertEquals(8, new IteratorCounter(keyValueStore.getAllWithPrefix(prefix)).count());
+
+		contextNode.delete();
+
+		assertEquals(0, new IteratorCounter(keyValueStore.getAllWithPrefix(prefix)).count());
+		assertEquals(2, new IteratorCounter(keyValueStore.getAllWithPrefix("\u0001=markus\u0001+friends\u0001")).count());
+		assertEquals(2, new IteratorCounter(keyValueStore.getAllWithPrefix("\u0001=markusx\u0001")).count());
+		assertNotNull(graph.getDeepContextNode(XDI3Segment.create("=markus+friends")));
+		assertNotNull(graph.getDeepContextNode(XDI3Segment.create("=markusx")));
+
+		contextNode = graph.getDeepContextNode(XDI3Segment.create("=markus")).setContextNode(contextNode.getArcXri());
+
+		assertFalse(contextNode.containsContextNodes());
+		assertFalse(contextNode.containsRelations());
+		assertFalse(contextNode.containsLiteral());
+
+		graph.close();
+	}
+}
@@ -1,7 +1,9 @@
 package xdi2.tests.core.impl.keyvalue;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import xdi2.core.impl.keyvalue.KeyValueStore;
 import xdi2.core.impl.keyvalue.properties.PropertiesKeyValueStore;
@@ -29,9 +31,12 @@ public class PropertiesKeyValueTest extends AbstractKeyValueTest {
 
 		String path = "xdi2-properties-keyvalue-graph." + id + ".properties";
 
-		File file = new File(path);
-		if (file.exists()) file.delete();
-		
+		for (String suffix : new String[] { "", ".log", ".log.compacting" }) {
+
+			File file = new File(path + suffix);
+			if (file.exists()) file.delete();
+		}
+
 		// open store
 
 		KeyValueStore keyValueStore;
@@ -43,4 +48,163 @@ public class PropertiesKeyValueTest extends AbstractKeyValueTest {
 
 		return keyValueStore;
 	}
+
+	public void testLog() throws Exception {
+
+		String path = "xdi2-properties-keyvalue-graph." + this.getClass().getName() + "-keyvalue-log.properties";
+
+		PropertiesKeyValueStore keyValueStore = (PropertiesKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-log");
+
+		keyValueStore.set("a", "b");
+		keyValueStore.set("a", "c\td\ne");
+		keyValueStore.set("x", "y");
+		keyValueStore.delete("x");
+
+		keyValueStore.beginTransaction();
+		keyValueStore.set("t", "1");
+		keyValueStore.set("t", "2");
+		keyValueStore.commitTransaction();
+
+		// writes only go to the log
+
+		assertFalse(new File(path).exists());
+		assertTrue(new File(path + ".log").exists());
+
+		// without closing the store, a new store replays the log, but not incomplete records and transactions
+
+		OutputStream outputStream = new FileOutputStream(path + ".log", true);
+		outputStream.write("begin\nset\tu\t1\nset\tv".getBytes("UTF-8"));
+		outputStream.close();
+
+		PropertiesKeyValueStore keyValueStore2 = new PropertiesKeyValueStore(path);
+		keyValueStore2.init();
+
+		assertEquals(2, keyValueStore2.count("a"));
+		assertTrue(keyValueStore2.contains("a", "c\td\ne"));
+		assertFalse(keyValueStore2.contains("x"));
+		assertEquals(2, keyValueStore2.count("t"));
+		assertFalse(keyValueStore2.contains("u"));
+		assertFalse(keyValueStore2.contains("v"));
+
+		// the new store started with a fresh properties file
+
+		assertTrue(new File(path).exists());
+		assertEquals(0, keyValueStore2.getLogSize());
+
+		// the log is compacted in the background when it passes the threshold
+
+		keyValueStore2.setLogThreshold(1000);
+
+		for (int i=0; i<100; i++) keyValueStore2.set("key" + i, "value" + i);
+
+		keyValueStore2.awaitCompaction();
+
+		assertTrue(keyValueStore2.getLogSize() < 1000);
+		assertFalse(new File(path + ".log.compacting").exists());
+
+		// a failed compaction is tried again with the next one
+
+		File tempFile = new File(path + ".tmp");
+		assertTrue(tempFile.mkdir());
+
+		for (int i=100; i<200; i++) keyValueStore2.set("key" + i, "value" + i);
+
+		keyValueStore2.awaitCompaction();
+
+		assertTrue(new File(path + ".log.compacting").exists());
+		assertTrue(tempFile.delete());
+
+		for (int i=200; i<300; i++) keyValueStore2.set("key" + i, "value" + i);
+
+		keyValueStore2.awaitCompaction();
+
+		assertFalse(new File(path + ".log.compacting").exists());
+
+		// a closed store is a plain properties file
+
+		keyValueStore2.close();
+
+		assertFalse(new File(path + ".log").exists());
+
+		keyValueStore2 = new PropertiesKeyValueStore(path);
+		keyValueStore2.init();
+
+		assertEquals(2, keyValueStore2.count("a"));
+		assertEquals(1, keyValueStore2.count("key99"));
+		assertEquals(1, keyValueStore2.count("key150"));
+		assertEquals(1, keyValueStore2.count("key299"));
+
+		keyValueStore2.close();
+
+		// the first store still has its log open
+
+		keyValueStore.close();
+	}
+
+	public void testTransactionOverlay() throws Exception {
+
+		final PropertiesKeyValueStore keyValueStore = (PropertiesKeyValueStore) this.getKeyValueStore(this.getClass().getName() + "-keyvalue-overlay");
+
+		keyValueStore.set("a", "1");
+
+		// a transaction sees what other threads commit, except for what it changed itself
+
+		keyValueStore.beginTransaction();
+		keyValueStore.set("a", "2");
+
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				keyValueStore.set("b", "1");
+				keyValueStore.set("a", "3");
+			}
+		};
+
+		thread.start();
+		thread.join();
+
+		assertTrue(keyValueStore.contains("b", "1"));
+		assertEquals(2, keyValueStore.count("a"));
+
+		keyValueStore.commitTransaction();
+
+		assertEquals(3, keyValueStore.count("a"));
+
+		// the store cannot be cleared while another thread has an open transaction
+
+		keyValueStore.beginTransaction();
+
+		final Exception[] exception = new Exception[1];
+
+		thread = new Thread() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					keyValueStore.clear();
+				} catch (Exception ex) {
+
+					exception[0] = ex;
+				}
+			}
+		};
+
+		thread.start();
+		thread.join();
+
+		assertNotNull(exception[0]);
+		assertTrue(keyValueStore.contains("b"));
+
+		keyValueStore.clear();
+		assertFalse(keyValueStore.contains("b"));
+		keyValueStore.commitTransaction();
+
+		assertFalse(keyValueStore.contains("a"));
+
+		keyValueStore.close();
+	}
 }
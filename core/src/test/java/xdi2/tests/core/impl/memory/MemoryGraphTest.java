@@ -1,13 +1,25 @@
 package xdi2.tests.core.impl.memory;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 
+import xdi2.core.ContextNode;
 import xdi2.core.Graph;
 import xdi2.core.impl.memory.MemoryGraphFactory;
+import xdi2.core.util.iterators.IteratorCounter;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.core.xri3.XDI3SubSegment;
 import xdi2.tests.core.impl.AbstractGraphTest;
+import xdi2.tests.core.impl.GraphBenchmark;
 
 public class MemoryGraphTest extends AbstractGraphTest {
 
+	/**
+	 * How long the readers and the writer of the concurrency test run, in milliseconds.
+	 */
+	private static final int CONCURRENT_TIME = Integer.getInteger("xdi2.tests.concurrenttime", 500).intValue();
+
 	private MemoryGraphFactory graphFactory = new MemoryGraphFactory();
 
 	@Override
@@ -21,4 +33,129 @@ public class MemoryGraphTest extends AbstractGraphTest {
 
 		return graph;
 	}
+
+	public void testCompactChildren() throws Exception {
+
+		int[] sortModes = new int[] { MemoryGraphFactory.SORTMODE_NONE, MemoryGraphFactory.SORTMODE_ORDER, MemoryGraphFactory.SORTMODE_ALPHA };
+
+		for (int sortMode : sortModes) {
+
+			MemoryGraphFactory graphFactory = new MemoryGraphFactory();
+			graphFactory.setSortmode(sortMode);
+
+			Graph graph = graphFactory.openGraph();
+			GraphBenchmark.fill(graph, 2000);
+
+			// leaves have no children, persons with a friend have two, and the root has many
+
+			ContextNode leafContextNode = graph.getDeepContextNode(XDI3Segment.create("=person0<+name>&"));
+			ContextNode contextNode = graph.getDeepContextNode(XDI3Segment.create("=person0"));
+
+			assertNull(field(leafContextNode, "contextNodes"));
+			assertNull(field(leafContextNode, "relations"));
+			assertNotNull(field(contextNode, "contextNodes"));
+			assertNull(field(field(contextNode, "contextNodes"), "map"));
+			assertNull(field(field(contextNode.getContextNode(XDI3SubSegment.create("+friend")), "relations"), "map"));
+			assertNotNull(field(field(graph.getRootContextNode(), "contextNodes"), "map"));
+
+			assertTrue(graph.containsStatement(XDI3Statement.create("=person0+friend/+knows/=person1")));
+
+			graph.close();
+		}
+	}
+
+	public void testManyChildren() throws Exception {
+
+		int[] sortModes = new int[] { MemoryGraphFactory.SORTMODE_NONE, MemoryGraphFactory.SORTMODE_ORDER, MemoryGraphFactory.SORTMODE_ALPHA };
+
+		for (int sortMode : sortModes) {
+
+			MemoryGraphFactory graphFactory = new MemoryGraphFactory();
+			graphFactory.setSortmode(sortMode);
+
+			Graph graph = graphFactory.openGraph();
+			ContextNode contextNode = graph.getRootContextNode().setContextNode(XDI3SubSegment.create("=markus"));
+			ContextNode targetContextNode = graph.getRootContextNode().setContextNode(XDI3SubSegment.create("=animesh"));
+
+			// grow past the inline arrays, then shrink again
+
+			for (int i=99; i>=0; i--) {
+
+				contextNode.setContextNode(XDI3SubSegment.create("+c" + i));
+				contextNode.setRelation(XDI3Segment.create("+r" + (i % 3)), contextNode.getContextNode(XDI3SubSegment.create("+c" + i)));
+				contextNode.setRelation(XDI3Segment.create("+a" + i), targetContextNode);
+			}
+
+			assertEquals(100, contextNode.getContextNodeCount());
+			assertEquals(200, contextNode.getRelationCount());
+			assertEquals(34, contextNode.getRelationCount(XDI3Segment.create("+r0")));
+			assertEquals(100, new IteratorCounter(targetContextNode.getIncomingRelations()).count());
+
+			if (sortMode == MemoryGraphFactory.SORTMODE_ALPHA) assertEquals("+c0", contextNode.getContextNodes().next().getArcXri().toString());
+			if (sortMode == MemoryGraphFactory.SORTMODE_ORDER) assertEquals("+c99", contextNode.getContextNodes().next().getArcXri().toString());
+
+			for (int i=0; i<100; i+=2) {
+
+				contextNode.delContextNode(XDI3SubSegment.create("+c" + i));
+				contextNode.delRelation(XDI3Segment.create("+a" + i), targetContextNode.getXri());
+			}
+
+			assertEquals(50, contextNode.getContextNodeCount());
+			assertEquals(100, contextNode.getRelationCount());
+			assertEquals(50, new IteratorCounter(targetContextNode.getIncomingRelations()).count());
+			assertNull(contextNode.getContextNode(XDI3SubSegment.create("+c0")));
+			assertNotNull(contextNode.getContextNode(XDI3SubSegment.create("+c1")));
+			assertFalse(contextNode.containsRelation(XDI3Segment.create("+a0"), targetContextNode.getXri()));
+			assertTrue(contextNode.containsRelation(XDI3Segment.create("+a1"), targetContextNode.getXri()));
+
+			contextNode.delContextNodes();
+			contextNode.delRelations();
+
+			assertFalse(contextNode.containsContextNodes());
+			assertFalse(contextNode.containsRelations());
+			assertEquals(0, new IteratorCounter(targetContextNode.getIncomingRelations()).count());
+
+			graph.close();
+		}
+	}
+
+	public void testConcurrentReads() throws Exception {
+
+		MemoryGraphFactory graphFactory = new MemoryGraphFactory();
+		graphFactory.setConcurrent(true);
+
+		Graph graph = graphFactory.openGraph();
+		GraphBenchmark.fill(graph, 2000);
+
+		long statements = graph.getRootContextNode().getAllStatementCount();
+
+		for (int threads : new int[] { 1, 4 }) {
+
+			for (boolean writer : new boolean[] { false, true }) {
+
+				long[] counts = GraphBenchmark.runReaders(graph, threads, writer, CONCURRENT_TIME);
+
+				// every reader, and the writer, got to run
+
+				for (int i=0; i<threads; i++) assertTrue(counts[i] > 0);
+				if (writer) assertTrue(counts[threads] > 0);
+			}
+		}
+
+		assertEquals(statements, graph.getRootContextNode().getAllStatementCount());
+		assertFalse(graph.getRootContextNode().containsContextNode(XDI3SubSegment.create("=writer")));
+
+		graph.close();
+	}
+
+	/**
+	 * Reads a private field, to look at how the children of a context node are stored.
+	 */
+	private static Object field(Object object, String name) throws Exception {
+
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+
+		return field.get(object);
+	}
 }
@@ -0,0 +1,105 @@
+package xdi2.tests.core.impl.wrapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import xdi2.core.Graph;
+import xdi2.core.impl.memory.MemoryGraph;
+import xdi2.core.impl.memory.MemoryGraphFactory;
+import xdi2.core.impl.wrapped.WrappedGraph;
+import xdi2.core.impl.wrapped.file.FileWrapperGraphFactory;
+import xdi2.core.impl.wrapped.file.FileWrapperStore;
+import xdi2.core.io.XDIReaderRegistry;
+import xdi2.core.io.readers.XDIDisplayReader;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.tests.core.impl.GraphBenchmark;
+
+/**
+ * Measures the startup time of a graph in XDI display format, when it is read line by
+ * line from a stream, and when it is memory-mapped and parsed on one or several threads.
+ * This is not part of the test suite, since the numbers depend on the machine.
+ * The number of statements can be set with -Dxdi2.tests.statements=...
+ */
+public class FileWrapperBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(FileWrapperBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+
+		FileWrapperStore.cleanup();
+
+		try {
+
+			loadTime();
+		} finally {
+
+			FileWrapperStore.cleanup();
+		}
+	}
+
+	/**
+	 * Reads the same graph file in every way, twice, so that the second run has a warm JVM.
+	 */
+	private static void loadTime() throws Exception {
+
+		FileWrapperGraphFactory graphFactory = new FileWrapperGraphFactory();
+		graphFactory.setMimeType(XDIDisplayReader.MIME_TYPE.toString());
+
+		Graph graph = graphFactory.openGraph("loadtime");
+		FileWrapperStore wrapperStore = (FileWrapperStore) ((WrappedGraph) graph).getWrapperStore();
+
+		for (int i=0; i<GraphBenchmark.STATEMENTS / 2; i++) {
+
+			graph.setStatement(XDI3Statement.create("=person" + i + "/+friend/=person" + (i / 2)));
+			graph.setStatement(XDI3Statement.create("=person" + i + "<+email>&/&/\"person" + i + "@example.com\""));
+		}
+
+		wrapperStore.save(((WrappedGraph) graph).getMemoryGraph());
+		graph.close();
+
+		File file = new File(wrapperStore.getPath());
+
+		Properties parameters = new Properties();
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_THREADS, "0");
+
+		XDIDisplayReader singleThreadReader = new XDIDisplayReader(null);
+		XDIDisplayReader multiThreadReader = new XDIDisplayReader(parameters);
+
+		for (int run=0; run<2; run++) {
+
+			MemoryGraph memoryGraph = MemoryGraphFactory.getInstance().openGraph();
+			Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+			long start = System.currentTimeMillis();
+			singleThreadReader.read(memoryGraph, reader);
+			long streamTime = System.currentTimeMillis() - start;
+
+			reader.close();
+			memoryGraph.close();
+
+			memoryGraph = MemoryGraphFactory.getInstance().openGraph();
+
+			start = System.currentTimeMillis();
+			singleThreadReader.read(memoryGraph, file);
+			long mappedTime = System.currentTimeMillis() - start;
+
+			memoryGraph.close();
+
+			memoryGraph = MemoryGraphFactory.getInstance().openGraph();
+
+			start = System.currentTimeMillis();
+			multiThreadReader.read(memoryGraph, file);
+			long threadsTime = System.currentTimeMillis() - start;
+
+			memoryGraph.close();
+
+			log.info(file.length() / 1024 + " KB, " + Runtime.getRuntime().availableProcessors() + " processors: stream " + streamTime + " ms, memory-mapped " + mappedTime + " ms, memory-mapped on one thread per processor " + threadsTime + " ms");
+		}
+	}
+}
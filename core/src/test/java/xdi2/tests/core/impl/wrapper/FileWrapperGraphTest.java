@@ -1,10 +1,22 @@
 package xdi2.tests.core.impl.wrapper;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 import xdi2.core.Graph;
+import xdi2.core.exceptions.Xdi2RuntimeException;
+import xdi2.core.impl.memory.MemoryGraph;
+import xdi2.core.impl.memory.MemoryGraphFactory;
+import xdi2.core.impl.wrapped.WrappedGraph;
 import xdi2.core.impl.wrapped.file.FileWrapperGraphFactory;
 import xdi2.core.impl.wrapped.file.FileWrapperStore;
+import xdi2.core.io.readers.AutoReader;
+import xdi2.core.io.readers.XDIDisplayReader;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
 import xdi2.tests.core.impl.AbstractGraphTest;
 
 public class FileWrapperGraphTest extends AbstractGraphTest {
@@ -40,4 +52,158 @@ public class FileWrapperGraphTest extends AbstractGraphTest {
 
 		return graphFactory.openGraph(identifier);
 	}
+
+	public void testJournal() throws Exception {
+
+		Graph graph = graphFactory.openGraph("journal");
+		FileWrapperStore wrapperStore = (FileWrapperStore) ((WrappedGraph) graph).getWrapperStore();
+
+		File file = new File(wrapperStore.getPath());
+		File journalFile = wrapperStore.getJournalFile();
+
+		graph.setStatement(XDI3Statement.create("=markus/+friend/=animesh"));
+		graph.setStatement(XDI3Statement.create("=markus<+email>&/&/\"markus@a.com\""));
+		graph.setStatement(XDI3Statement.create("=animesh<+email>&/&/\"animesh@a.com\""));
+		graph.commitTransaction();
+
+		assertFalse(file.exists());
+		assertTrue(journalFile.exists());
+		assertEquals(((WrappedGraph) graph).getChangeCount(), 0);
+
+		// a second save only appends the changed statements
+
+		long length = journalFile.length();
+
+		graph.getDeepLiteral(XDI3Segment.create("=markus<+email>&")).setLiteralData("markus@b.com");
+		graph.getDeepContextNode(XDI3Segment.create("=animesh<+email>")).delete();
+		graph.commitTransaction();
+
+		assertTrue(journalFile.length() - length < length);
+
+		// replay base plus journal, without closing the first graph
+
+		Graph graph2 = graphFactory.openGraph("journal");
+
+		assertEquals(graph2.getDeepLiteral(XDI3Segment.create("=markus<+email>&")).getLiteralData(), "markus@b.com");
+		assertNull(graph2.getDeepContextNode(XDI3Segment.create("=animesh<+email>")));
+		assertNotNull(graph2.getDeepRelation(XDI3Segment.create("=markus"), XDI3Segment.create("+friend"), XDI3Segment.create("=animesh")));
+		assertEquals(graph2.getRootContextNode().getAllStatementCount(), graph.getRootContextNode().getAllStatementCount());
+
+		graph2.close();
+
+		// an incomplete save at the end of the journal is ignored
+
+		OutputStream outputStream = new FileOutputStream(journalFile, true);
+		outputStream.write("+ =markus<+name>&/&/\"Mar".getBytes("UTF-8"));
+		outputStream.close();
+
+		Graph graph3 = graphFactory.openGraph("journal");
+
+		assertNull(graph3.getDeepContextNode(XDI3Segment.create("=markus<+name>")));
+		assertEquals(graph3.getDeepLiteral(XDI3Segment.create("=markus<+email>&")).getLiteralData(), "markus@b.com");
+		assertFalse(journalFile.exists());
+
+		// a corrupt save followed by more saves fails the load, and the journal is kept
+
+		graph3.setStatement(XDI3Statement.create("=markus<+name>&/&/\"Markus\""));
+		graph3.commitTransaction();
+
+		outputStream = new FileOutputStream(journalFile, true);
+		outputStream.write("+ =markus/+friend\n.\n".getBytes("UTF-8"));
+		outputStream.close();
+
+		graph3.setStatement(XDI3Statement.create("=markus<+phone>&/&/\"123\""));
+		graph3.commitTransaction();
+
+		length = journalFile.length();
+
+		try {
+
+			graphFactory.openGraph("journal");
+			fail();
+		} catch (Xdi2RuntimeException ex) {
+
+			assertTrue(journalFile.exists());
+			assertEquals(length, journalFile.length());
+		}
+
+		graph3.close();
+		graph.close();
+	}
+
+	public void testJournalCompaction() throws Exception {
+
+		FileWrapperGraphFactory graphFactory = new FileWrapperGraphFactory();
+		graphFactory.setJournalSize(1024);
+
+		Graph graph = graphFactory.openGraph("compaction");
+		FileWrapperStore wrapperStore = (FileWrapperStore) ((WrappedGraph) graph).getWrapperStore();
+
+		for (int i=0; i<100; i++) {
+
+			graph.setStatement(XDI3Statement.create("=markus<+email" + i + ">&/&/\"markus" + i + "@a.com\""));
+			graph.commitTransaction();
+
+			assertTrue(wrapperStore.getJournalFile().length() < 1024);
+		}
+
+		assertTrue(new File(wrapperStore.getPath()).exists());
+
+		graph.close();
+
+		Graph graph2 = graphFactory.openGraph("compaction");
+
+		for (int i=0; i<100; i++) assertEquals(graph2.getDeepLiteral(XDI3Segment.create("=markus<+email" + i + ">&")).getLiteralData(), "markus" + i + "@a.com");
+
+		graph2.close();
+	}
+
+	/**
+	 * A graph file that is not valid UTF-8 was written by an earlier version in the platform charset,
+	 * so it is read in that charset, and written as UTF-8 the next time.
+	 */
+	public void testPlatformCharset() throws Exception {
+
+		FileWrapperGraphFactory graphFactory = new FileWrapperGraphFactory();
+		graphFactory.setMimeType(XDIDisplayReader.MIME_TYPE.toString());
+
+		Graph graph = graphFactory.openGraph("charset");
+		FileWrapperStore wrapperStore = (FileWrapperStore) ((WrappedGraph) graph).getWrapperStore();
+		graph.close();
+
+		// a graph file written by an earlier version, in the platform charset
+
+		String charset = Charset.defaultCharset().name();
+		String name = new String("M\u00fcller \u20ac".getBytes(charset), charset);
+		byte[] bytes = ("=markus<+name>&/&/\"" + name + "\"\n").getBytes(charset);
+
+		OutputStream outputStream = new FileOutputStream(wrapperStore.getPath());
+		outputStream.write(bytes);
+		outputStream.close();
+
+		graph = graphFactory.openGraph("charset");
+		assertEquals(name, graph.getDeepLiteral(XDI3Segment.create("=markus<+name>&")).getLiteralData());
+
+		// it is written as UTF-8 the next time
+
+		wrapperStore = (FileWrapperStore) ((WrappedGraph) graph).getWrapperStore();
+		wrapperStore.save(((WrappedGraph) graph).getMemoryGraph());
+		graph.close();
+
+		graph = graphFactory.openGraph("charset");
+		assertEquals(name, graph.getDeepLiteral(XDI3Segment.create("=markus<+name>&")).getLiteralData());
+		graph.close();
+
+		// the same with a reader that is not memory-mapped
+
+		outputStream = new FileOutputStream(wrapperStore.getPath());
+		outputStream.write(bytes);
+		outputStream.close();
+
+		FileWrapperStore autoStore = new FileWrapperStore(wrapperStore.getPath(), XDIDisplayReader.MIME_TYPE.toString(), new AutoReader(null), wrapperStore.getXdiWriter());
+		MemoryGraph memoryGraph = MemoryGraphFactory.getInstance().openGraph();
+		autoStore.load(memoryGraph);
+
+		assertEquals(name, memoryGraph.getDeepLiteral(XDI3Segment.create("=markus<+name>&")).getLiteralData());
+	}
 }
@@ -1,11 +1,16 @@
 package xdi2.tests.core.io;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Iterator;
+import java.util.Properties;
 
 import junit.framework.TestCase;
 
@@ -13,11 +18,15 @@ import org.junit.Test;
 
 import xdi2.core.Graph;
 import xdi2.core.Statement;
+import xdi2.core.exceptions.Xdi2ParseException;
 import xdi2.core.impl.memory.MemoryGraphFactory;
 import xdi2.core.io.MimeType;
 import xdi2.core.io.XDIReaderRegistry;
+import xdi2.core.io.XDIWriterRegistry;
 import xdi2.core.io.readers.XDIDisplayReader;
 import xdi2.core.io.readers.XDIJSONReader;
+import xdi2.core.io.writers.XDIJSONWriter;
+import xdi2.core.xri3.XDI3Segment;
 import xdi2.core.xri3.XDI3Statement;
 
 public class ReaderWriterTest extends TestCase {
@@ -101,4 +110,164 @@ public class ReaderWriterTest extends TestCase {
 			}
 		}
 	}
+
+	@Test
+	public void testXDIJSONReaderStreaming() throws Exception {
+
+		String xdiJsonString = readFromFile("readerwriter.json");
+
+		Properties parameters = new Properties();
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_STREAMING, "0");
+
+		Graph graph1 = MemoryGraphFactory.getInstance().openGraph();
+		new XDIJSONReader(parameters).read(graph1, new StringReader(xdiJsonString));
+
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_STREAMING, "1");
+
+		Graph graph2 = MemoryGraphFactory.getInstance().openGraph();
+		new XDIJSONReader(parameters).read(graph2, new StringReader(xdiJsonString));
+
+		assertEqualsGraphs(graph1, graph2);
+
+		try {
+
+			new XDIJSONReader(parameters).read(MemoryGraphFactory.getInstance().openGraph(), new StringReader("{\"=markus/+friend\":\"=animesh\"}"));
+			fail();
+		} catch (Xdi2ParseException ex) {
+
+		}
+	}
+
+	@Test
+	public void testXDIJSONWriterStreaming() throws Exception {
+
+		Graph graph = MemoryGraphFactory.getInstance().openGraph();
+		new XDIJSONReader(null).read(graph, new StringReader(readFromFile("readerwriter.json")));
+
+		graph.setStatement(XDI3Statement.create("(=markus/+friend)=animesh/+friend/=markus"));
+		graph.setStatement(XDI3Statement.create("(=markus/+friend)(=animesh/+knows)=drummond<+name>&/&/\"Drummond\""));
+
+		String[] parameterStrings = new String[] { "implied=0;inner=0", "implied=0;inner=1", "implied=1;inner=0", "implied=1;inner=1", "ordered=1;inner=1", "ordered=1;pretty=1" };
+
+		for (String parameterString : parameterStrings) {
+
+			MimeType mimeType = new MimeType("application/xdi+json;" + parameterString);
+
+			Properties parameters = mimeType.getParameters();
+			parameters.setProperty(XDIWriterRegistry.PARAMETER_STREAMING, "1");
+
+			StringWriter buffer = new StringWriter();
+			new XDIJSONWriter(parameters).write(graph, buffer);
+
+			Graph graph2 = MemoryGraphFactory.getInstance().openGraph();
+			new XDIJSONReader(null).read(graph2, new StringReader(buffer.toString()));
+
+			assertEqualsGraphs(graph, graph2);
+			assertEquals(graph.toString(mimeType), graph2.toString(mimeType));
+		}
+	}
+
+	@Test
+	public void testXDIDisplayReaderFile() throws Exception {
+
+		String xdiDisplayString = readFromFile("readerwriter.xdi");
+
+		File file = File.createTempFile("xdi2-readerwriter", ".xdi");
+		file.deleteOnExit();
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		writer.write(xdiDisplayString.replace("\n", "\r\n"));
+		writer.close();
+
+		Graph graph1 = MemoryGraphFactory.getInstance().openGraph();
+		new XDIDisplayReader(null).read(graph1, new StringReader(xdiDisplayString));
+
+		// small chunks, so that the file is read by several threads
+
+		Properties parameters = new Properties();
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_THREADS, "3");
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_CHUNKSIZE, "100");
+
+		Graph graph2 = MemoryGraphFactory.getInstance().openGraph();
+		new XDIDisplayReader(parameters).read(graph2, file);
+
+		assertEqualsGraphs(graph1, graph2);
+
+		// line numbers in errors count from the start of the file
+
+		String[] lines = xdiDisplayString.split("\n");
+
+		writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		for (int i=0; i<lines.length; i++) writer.write((i == lines.length - 2 ? "=markus<+email>&/&/\"invalid" : lines[i]) + "\n");
+		writer.close();
+
+		try {
+
+			new XDIDisplayReader(parameters).read(MemoryGraphFactory.getInstance().openGraph(), file);
+
+			fail();
+		} catch (Xdi2ParseException ex) {
+
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith("Parser problem at line " + (lines.length - 1) + ":"));
+		}
+
+		file.delete();
+	}
+
+	@Test
+	public void testXDIDisplayReaderThreads() throws Exception {
+
+		StringBuffer buffer = new StringBuffer();
+
+		for (int i=0; i<2500; i++) {
+
+			buffer.append("=person" + i + "/+friend/=person" + (i / 2) + "\n");
+			buffer.append("=person" + i + "<+email>&/&/\"person" + i + "@example.com\"\n");
+		}
+
+		Properties parameters = new Properties();
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_THREADS, "4");
+
+		// the reader keeps its pool of threads for later reads
+
+		XDIDisplayReader xdiReader = new XDIDisplayReader(parameters);
+
+		Graph graph1 = MemoryGraphFactory.getInstance().openGraph();
+		xdiReader.read(graph1, new StringReader(buffer.toString()));
+
+		Graph graph0 = MemoryGraphFactory.getInstance().openGraph();
+		xdiReader.read(graph0, new StringReader(buffer.toString()));
+
+		assertEqualsGraphs(graph0, graph1);
+
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_THREADS, "1");
+
+		Graph graph2 = MemoryGraphFactory.getInstance().openGraph();
+		new XDIDisplayReader(parameters).read(graph2, new StringReader(buffer.toString()));
+
+		assertEqualsGraphs(graph1, graph2);
+		assertEquals(graph1.toString(XDIDisplayReader.MIME_TYPE), graph2.toString(XDIDisplayReader.MIME_TYPE));
+
+		// errors are reported with the line number in the whole input, and
+		// everything before the line is still in the graph
+
+		buffer.insert(buffer.indexOf("=person1750/"), "=person1750/+friend\n");
+
+		parameters.setProperty(XDIReaderRegistry.PARAMETER_THREADS, "4");
+
+		Graph graph3 = MemoryGraphFactory.getInstance().openGraph();
+
+		try {
+
+			new XDIDisplayReader(parameters).read(graph3, new StringReader(buffer.toString()));
+
+			fail();
+		} catch (Xdi2ParseException ex) {
+
+			assertTrue(ex.getMessage(), ex.getMessage().startsWith("Parser problem at line 3501:"));
+		}
+
+		assertNotNull(graph3.getDeepLiteral(XDI3Segment.create("=person1749<+email>&")));
+		assertNull(graph3.getDeepLiteral(XDI3Segment.create("=person1750<+email>&")));
+	}
 }
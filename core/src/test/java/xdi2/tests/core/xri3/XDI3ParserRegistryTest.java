@@ -0,0 +1,98 @@
+package xdi2.tests.core.xri3;
+
+import junit.framework.TestCase;
+import xdi2.core.xri3.XDI3ParserRegistry;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.core.xri3.XDI3SubSegment;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+
+public class XDI3ParserRegistryTest extends TestCase {
+
+	private int cacheSize;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		this.cacheSize = XDI3ParserRegistry.getInstance().getCacheSize();
+
+		XDI3ParserRegistry.getInstance().clearCache();
+		XDI3ParserRegistry.getInstance().resetCacheStatistics();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		XDI3ParserRegistry.getInstance().setCacheSize(this.cacheSize);
+	}
+
+	public void testCache() throws Exception {
+
+		XDI3ParserRegistry registry = XDI3ParserRegistry.getInstance();
+
+		XDI3Segment segment1 = XDI3Segment.create("=markus[<+email>]!1");
+		XDI3Segment segment2 = XDI3Segment.create("=markus[<+email>]!1");
+
+		assertSame(segment1, segment2);
+		assertEquals(registry.getCacheMisses(), 1);
+		assertEquals(registry.getCacheHits(), 1);
+
+		XDI3SubSegment subSegment = XDI3SubSegment.create("=markus");
+
+		assertSame(subSegment, segment1.getFirstSubSegment());
+
+		XDI3Statement statement1 = XDI3Statement.create("=markus/+friend/=animesh");
+		XDI3Statement statement2 = XDI3Statement.create("=markus/+friend/=animesh");
+
+		assertSame(statement1, statement2);
+
+		// JSON array and object literal data can be changed, so they are not shared
+
+		XDI3Statement arrayStatement1 = XDI3Statement.create("=markus<+numbers>&/&/[1,2]");
+		((JsonArray) arrayStatement1.getLiteralData()).add(new JsonPrimitive(Integer.valueOf(3)));
+		XDI3Statement arrayStatement2 = XDI3Statement.create("=markus<+numbers>&/&/[1,2]");
+
+		assertNotSame(arrayStatement1, arrayStatement2);
+		assertEquals(2, ((JsonArray) arrayStatement2.getLiteralData()).size());
+
+		XDI3Statement objectStatement1 = XDI3Statement.create("=markus<+address>&/&/{\"city\":\"Vienna\"}");
+		XDI3Statement objectStatement2 = XDI3Statement.create("=markus<+address>&/&/{\"city\":\"Vienna\"}");
+
+		assertNotSame(objectStatement1, objectStatement2);
+		assertNotSame(objectStatement1.getLiteralData(), objectStatement2.getLiteralData());
+
+		try {
+
+			segment1.getSubSegments().add(subSegment);
+			fail();
+		} catch (UnsupportedOperationException ex) {
+
+		}
+	}
+
+	public void testCacheSize() throws Exception {
+
+		XDI3ParserRegistry registry = XDI3ParserRegistry.getInstance();
+
+		registry.setCacheSize(0);
+
+		XDI3Segment segment1 = XDI3Segment.create("=markus");
+		XDI3Segment segment2 = XDI3Segment.create("=markus");
+
+		assertNotSame(segment1, segment2);
+		assertEquals(segment1, segment2);
+		assertEquals(registry.getCacheHits(), 0);
+
+		registry.setCacheSize(10);
+
+		for (int i=0; i<100; i++) XDI3Segment.create("=markus*" + i);
+
+		assertEquals(registry.getCacheMisses(), 102);
+
+		XDI3Segment.create("=markus*99");
+
+		assertEquals(registry.getCacheHits(), 1);
+	}
+}
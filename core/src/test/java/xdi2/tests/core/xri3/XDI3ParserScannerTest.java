@@ -0,0 +1,92 @@
+package xdi2.tests.core.xri3;
+
+import xdi2.core.xri3.XDI3Parser;
+import xdi2.core.xri3.XDI3Segment;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.core.xri3.XDI3SubSegment;
+import xdi2.core.xri3.XDI3XRef;
+import xdi2.core.xri3.parser.manual.XDI3ParserManual;
+import xdi2.core.xri3.parser.manual.XDI3ParserScanner;
+
+public class XDI3ParserScannerTest extends XDI3ParserTest {
+
+	private static final String[] STATEMENTS = new String[] {
+		"=markus/+friend/=animesh",
+		"=markus[<+email>]!1&/&/\"xxx\"",
+		"=markus/()/[<+email>]",
+		"([@]!9999[@]!8888)/$set/[@]!9999[@]!8888[$msg]!1234",
+		"[@]!9999[@]!8888[$msg]!1234<$t>&/&/\"2011-04-10T22:22:22Z\"",
+		"[@]!9999[@]!8888[$msg]!1234$do/$set/(http://example.com)",
+		"[@]!9999[@]!8888[$msg]!1234$do/$set/(=markus/+friend/=drummond)",
+		"(=markus/$add)/+test/{[<+(name)>]}",
+		"=neustar*animesh<+age>&/&/99",
+		"=neustar*animesh<+smoker>&/&/false",
+		"=markus<+email>&/&/\"a/b(c)d{e}\"",
+		"=markus<+json>&/&/{\"a\":\"b/c\"}",
+		"$(data:,markus.sabadello@gmail.com)/$is/+(user)<+(first_name)>",
+		"=a%C3%A4b/+c/(email)"
+	};
+
+	private XDI3Parser parser = new XDI3ParserScanner();
+
+	@Override
+	public XDI3Parser getParser() {
+
+		return this.parser;
+	}
+
+	public void testSameAsManual() throws Exception {
+
+		XDI3Parser manualParser = new XDI3ParserManual();
+
+		for (String string : STATEMENTS) {
+
+			assertEqualStatements(manualParser.parseXDI3Statement(string), this.parser.parseXDI3Statement(string));
+		}
+	}
+
+	private static void assertEqualStatements(XDI3Statement expected, XDI3Statement actual) {
+
+		assertEquals(expected.toString(), actual.toString());
+		assertEqualSegments(expected.getSubject(), actual.getSubject());
+		assertEqualSegments(expected.getPredicate(), actual.getPredicate());
+
+		if (expected.getObject() instanceof XDI3Segment) assertEqualSegments((XDI3Segment) expected.getObject(), (XDI3Segment) actual.getObject());
+		else if (expected.getObject() instanceof XDI3SubSegment) assertEqualSubSegments((XDI3SubSegment) expected.getObject(), (XDI3SubSegment) actual.getObject());
+		else assertEquals(expected.getObject(), actual.getObject());
+	}
+
+	private static void assertEqualSegments(XDI3Segment expected, XDI3Segment actual) {
+
+		if (expected == null) { assertNull(actual); return; }
+
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(expected.getNumSubSegments(), actual.getNumSubSegments());
+
+		for (int i=0; i<expected.getNumSubSegments(); i++) assertEqualSubSegments(expected.getSubSegment(i), actual.getSubSegment(i));
+	}
+
+	private static void assertEqualSubSegments(XDI3SubSegment expected, XDI3SubSegment actual) {
+
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(expected.getCs(), actual.getCs());
+		assertEquals(expected.isClassXs(), actual.isClassXs());
+		assertEquals(expected.isAttributeXs(), actual.isAttributeXs());
+		assertEquals(expected.getLiteral(), actual.getLiteral());
+
+		if (expected.hasXRef()) assertEqualXRefs(expected.getXRef(), actual.getXRef()); else assertNull(actual.getXRef());
+	}
+
+	private static void assertEqualXRefs(XDI3XRef expected, XDI3XRef actual) {
+
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals(expected.getXs(), actual.getXs());
+		assertEquals(expected.getIri(), actual.getIri());
+		assertEquals(expected.getLiteral(), actual.getLiteral());
+		assertEqualSegments(expected.getSegment(), actual.getSegment());
+		assertEqualSegments(expected.getPartialSubject(), actual.getPartialSubject());
+		assertEqualSegments(expected.getPartialPredicate(), actual.getPartialPredicate());
+
+		if (expected.hasStatement()) assertEqualStatements(expected.getStatement(), actual.getStatement()); else assertNull(actual.getStatement());
+	}
+}
@@ -0,0 +1,157 @@
+package xdi2.messaging.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A helper class for HTTP compression, i.e. the Accept-Encoding: and
+ * Content-Encoding: headers. Supports the "gzip" and "deflate" codings.
+ */
+public class ContentEncoding {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final String IDENTITY = "identity";
+
+	public static final int DEFAULT_THRESHOLD = 1024;
+	public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	private ContentEncoding() { }
+
+	/**
+	 * Returns the Accept-Encoding: header value for the codings we understand.
+	 */
+	public static String acceptEncoding() {
+
+		return GZIP + ", " + DEFLATE;
+	}
+
+	/**
+	 * Picks the best coding from an Accept-Encoding: header.
+	 * @param header The header string.
+	 * @return "gzip", "deflate", or null if neither is acceptable.
+	 */
+	public static String bestEncoding(String header) {
+
+		if (header == null) return null;
+
+		String bestEncoding = null;
+		float bestQ = 0;
+
+		for (String part : header.split(",")) {
+
+			String[] params = part.split(";");
+			String encoding = params[0].trim().toLowerCase();
+			float q = 1;
+
+			for (int i=1; i<params.length; i++) {
+
+				String param = params[i].trim();
+				if (! param.startsWith("q=")) continue;
+
+				try {
+
+					q = Float.parseFloat(param.substring(2).trim());
+				} catch (NumberFormatException ex) {
+
+					q = 0;
+				}
+			}
+
+			// a wildcard stands for any coding that is not listed explicitly
+
+			if (encoding.equals("*")) {
+
+				if (! header.toLowerCase().contains(GZIP)) encoding = GZIP;
+				else if (! header.toLowerCase().contains(DEFLATE)) encoding = DEFLATE;
+				else continue;
+			}
+
+			if (encoding.isEmpty() || IDENTITY.equals(encoding) || ! isSupported(encoding)) continue;
+
+			// prefer gzip over deflate if both have the same q value
+
+			if (q > bestQ || (q == bestQ && q > 0 && GZIP.equals(encoding))) {
+
+				bestEncoding = encoding;
+				bestQ = q;
+			}
+		}
+
+		return bestEncoding;
+	}
+
+	/**
+	 * Checks if we can decode a Content-Encoding: header value.
+	 */
+	public static boolean isSupported(String encoding) {
+
+		if (encoding == null) return true;
+
+		encoding = encoding.trim().toLowerCase();
+
+		return GZIP.equals(encoding) || "x-gzip".equals(encoding) || DEFLATE.equals(encoding) || IDENTITY.equals(encoding) || encoding.isEmpty();
+	}
+
+	/**
+	 * Wraps a stream so that everything written to it is compressed.
+	 * @param outputStream The stream to wrap.
+	 * @param encoding "gzip" or "deflate"
+	 * @param level The compression level, 0-9 or -1 for the default.
+	 * @return The compressing stream. It must be closed to write the trailer.
+	 */
+	public static OutputStream encode(OutputStream outputStream, String encoding, final int level) throws IOException {
+
+		encoding = encoding.trim().toLowerCase();
+
+		if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+
+			return new GZIPOutputStream(outputStream) {
+
+				{
+					this.def.setLevel(level);
+				}
+			};
+		}
+
+		if (DEFLATE.equals(encoding)) {
+
+			return new DeflaterOutputStream(outputStream, new Deflater(level)) {
+
+				@Override
+				public void close() throws IOException {
+
+					super.close();
+					this.def.end();
+				}
+			};
+		}
+
+		throw new IOException("Unsupported content encoding: " + encoding);
+	}
+
+	/**
+	 * Wraps a stream so that everything read from it is decompressed.
+	 * @param inputStream The stream to wrap.
+	 * @param encoding A Content-Encoding: header value, may be null.
+	 * @return The decompressing stream, or the original stream if there is nothing to decode.
+	 */
+	public static InputStream decode(InputStream inputStream, String encoding) throws IOException {
+
+		if (encoding == null) return inputStream;
+
+		encoding = encoding.trim().toLowerCase();
+
+		if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) return new GZIPInputStream(inputStream);
+		if (DEFLATE.equals(encoding)) return new InflaterInputStream(inputStream);
+		if (IDENTITY.equals(encoding) || encoding.isEmpty()) return inputStream;
+
+		throw new IOException("Unsupported content encoding: " + encoding);
+	}
+}
@@ -4,6 +4,7 @@ import junit.framework.Test;
 import junit.framework.TestSuite;
 import xdi2.messaging.tests.basic.BasicTest;
 import xdi2.messaging.tests.http.AcceptHeaderTest;
+import xdi2.messaging.tests.http.ContentEncodingTest;
 import xdi2.messaging.tests.target.contributor.ContributorTest;
 import xdi2.messaging.tests.target.impl.graph.BDBKeyValueGraphMessagingTargetTest;
 import xdi2.messaging.tests.target.impl.graph.FileJSONGraphMessagingTargetTest;
@@ -21,6 +22,7 @@ public class AllTests {
 		//$JUnit-BEGIN$
 		suite.addTestSuite(BasicTest.class);
 		suite.addTestSuite(AcceptHeaderTest.class);
+		suite.addTestSuite(ContentEncodingTest.class);
 		suite.addTestSuite(MemoryGraphMessagingTargetTest.class);
 		suite.addTestSuite(MapGraphMessagingTargetTest.class);
 		suite.addTestSuite(PropertiesKeyValueGraphMessagingTargetTest.class);
@@ -0,0 +1,95 @@
+package xdi2.messaging.tests.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+import xdi2.core.Graph;
+import xdi2.core.impl.memory.MemoryGraphFactory;
+import xdi2.core.io.XDIReaderRegistry;
+import xdi2.core.io.XDIWriterRegistry;
+import xdi2.core.xri3.XDI3Statement;
+import xdi2.messaging.http.ContentEncoding;
+
+public class ContentEncodingTest extends TestCase {
+
+	public void testBestEncoding() throws Exception {
+
+		assertEquals(ContentEncoding.GZIP, ContentEncoding.bestEncoding("gzip"));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding.bestEncoding("deflate, gzip"));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding.bestEncoding("*"));
+		assertEquals(ContentEncoding.DEFLATE, ContentEncoding.bestEncoding("gzip;q=0.5, deflate"));
+		assertEquals(ContentEncoding.DEFLATE, ContentEncoding.bestEncoding("gzip;q=0, *"));
+		assertEquals(ContentEncoding.DEFLATE, ContentEncoding.bestEncoding("br, deflate"));
+
+		assertNull(ContentEncoding.bestEncoding(null));
+		assertNull(ContentEncoding.bestEncoding("identity"));
+		assertNull(ContentEncoding.bestEncoding("gzip;q=0"));
+		assertNull(ContentEncoding.bestEncoding("br, compress"));
+
+		assertTrue(ContentEncoding.isSupported(null));
+		assertTrue(ContentEncoding.isSupported("GZIP"));
+		assertFalse(ContentEncoding.isSupported("br"));
+	}
+
+	public void testBytesOnTheWire() throws Exception {
+
+		Graph graph = MemoryGraphFactory.getInstance().openGraph();
+
+		for (int i=0; i<200; i++) {
+
+			graph.setStatement(XDI3Statement.create("=markus+friend" + i + "/+friend/=animesh"));
+			graph.setStatement(XDI3Statement.create("=markus+friend" + i + "<+name>&/&/\"Friend " + i + "\""));
+		}
+
+		ByteArrayOutputStream identity = new ByteArrayOutputStream();
+		XDIWriterRegistry.forFormat("XDI/JSON", null).write(graph, identity);
+
+		byte[] gzipFast = encode(identity.toByteArray(), ContentEncoding.GZIP, 1);
+		byte[] gzipBest = encode(identity.toByteArray(), ContentEncoding.GZIP, 9);
+		byte[] deflate = encode(identity.toByteArray(), ContentEncoding.DEFLATE, ContentEncoding.DEFAULT_LEVEL);
+
+		assertTrue(gzipFast.length < identity.size() / 4);
+		assertTrue(gzipBest.length <= gzipFast.length);
+		assertTrue(deflate.length < gzipBest.length + 32);
+
+		for (byte[] bytes : new byte[][] { gzipFast, gzipBest }) {
+
+			Graph graph2 = MemoryGraphFactory.getInstance().openGraph();
+			XDIReaderRegistry.forFormat("XDI/JSON", null).read(graph2, ContentEncoding.decode(new ByteArrayInputStream(bytes), ContentEncoding.GZIP));
+
+			assertEquals(graph, graph2);
+		}
+
+		Graph graph3 = MemoryGraphFactory.getInstance().openGraph();
+		XDIReaderRegistry.forFormat("XDI/JSON", null).read(graph3, ContentEncoding.decode(new ByteArrayInputStream(deflate), ContentEncoding.DEFLATE));
+
+		assertEquals(graph, graph3);
+
+		InputStream inputStream = new ByteArrayInputStream(identity.toByteArray());
+		assertSame(inputStream, ContentEncoding.decode(inputStream, null));
+		assertSame(inputStream, ContentEncoding.decode(inputStream, ContentEncoding.IDENTITY));
+
+		try {
+
+			ContentEncoding.decode(inputStream, "br");
+			fail();
+		} catch (IOException ex) {
+
+		}
+	}
+
+	private static byte[] encode(byte[] bytes, String encoding, int level) throws IOException {
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		OutputStream outputStream = ContentEncoding.encode(buffer, encoding, level);
+		outputStream.write(bytes);
+		outputStream.close();
+
+		return buffer.toByteArray();
+	}
+}
@@ -7,6 +7,7 @@ import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,7 @@ import xdi2.messaging.MessageResult;
 import xdi2.messaging.constants.XDIMessagingConstants;
 import xdi2.messaging.error.ErrorMessageResult;
 import xdi2.messaging.http.AcceptHeader;
+import xdi2.messaging.http.ContentEncoding;
 import xdi2.messaging.target.ExecutionContext;
 import xdi2.messaging.target.MessagingTarget;
 import xdi2.messaging.target.interceptor.Interceptor;
@@ -39,8 +41,19 @@ public class HttpTransport {
 
 	private static final MemoryGraphFactory graphFactory = MemoryGraphFactory.getInstance();
 
+	public static final boolean DEFAULT_STREAMING = false;
+	public static final int DEFAULT_STREAMING_THRESHOLD = 65536;
+	public static final boolean DEFAULT_COMPRESSION = true;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = ContentEncoding.DEFAULT_THRESHOLD;
+	public static final int DEFAULT_COMPRESSION_LEVEL = ContentEncoding.DEFAULT_LEVEL;
+
 	private HttpEndpointRegistry httpEndpointRegistry;
 	private InterceptorList interceptors;
+	private boolean streaming;
+	private int streamingThreshold;
+	private boolean compression;
+	private int compressionThreshold;
+	private int compressionLevel;
 
 	private boolean initialized;
 	private Date startup;
@@ -49,6 +62,11 @@ public class HttpTransport {
 
 		this.httpEndpointRegistry = httpEndpointRegistry;
 		this.interceptors = new InterceptorList();
+		this.streaming = DEFAULT_STREAMING;
+		this.streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+		this.compression = DEFAULT_COMPRESSION;
+		this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		this.compressionLevel = DEFAULT_COMPRESSION_LEVEL;
 		this.initialized = false;
 		this.startup = null;
 	}
@@ -308,7 +326,7 @@ public class HttpTransport {
 		sendResult(messageResult, request, response);
 	}
 
-	private static MessageEnvelope readFromUrl(HttpRequest request, HttpResponse response, MessagingTarget messagingTarget, XDI3Segment operationXri) throws IOException {
+	private MessageEnvelope readFromUrl(HttpRequest request, HttpResponse response, MessagingTarget messagingTarget, XDI3Segment operationXri) throws IOException {
 
 		// parse an XDI address from the request path
 
@@ -356,7 +374,7 @@ public class HttpTransport {
 		return messageEnvelope;
 	}
 
-	private static MessageEnvelope readFromBody(HttpRequest request, HttpResponse response) throws IOException {
+	private MessageEnvelope readFromBody(HttpRequest request, HttpResponse response) throws IOException {
 
 		// try to find an appropriate reader for the provided mime type
 
@@ -368,6 +386,19 @@ public class HttpTransport {
 
 		if (reader == null) reader = XDIReaderRegistry.getDefault();
 
+		// check if the body is compressed
+
+		String contentEncoding = request.getHeader("Content-Encoding");
+
+		if (! ContentEncoding.isSupported(contentEncoding)) {
+
+			log.error("Unsupported Content-Encoding: " + contentEncoding);
+			handleException(request, response, new Exception("Unsupported Content-Encoding: " + contentEncoding));
+			return null;
+		}
+
+		if (log.isDebugEnabled() && contentEncoding != null) log.debug("Content-Encoding: " + contentEncoding);
+
 		// read everything into an in-memory XDI graph (a message envelope)
 
 		if (log.isDebugEnabled()) log.debug("Reading message in " + recvMimeType + " with reader " + reader.getClass().getSimpleName() + ".");
@@ -378,7 +409,7 @@ public class HttpTransport {
 
 		try {
 
-			InputStream inputStream = request.getBodyInputStream();
+			InputStream inputStream = ContentEncoding.decode(request.getBodyInputStream(), contentEncoding);
 
 			reader.read(graph, inputStream);
 			messageEnvelope = MessageEnvelope.fromGraph(graph);
@@ -433,7 +464,7 @@ public class HttpTransport {
 		return executionContext;
 	}
 	
-	private static void sendResult(MessageResult messageResult, HttpRequest request, HttpResponse response) throws IOException {
+	private void sendResult(MessageResult messageResult, HttpRequest request, HttpResponse response) throws IOException {
 
 		// find a suitable writer based on accept headers
 
@@ -443,6 +474,17 @@ public class HttpTransport {
 
 		String acceptHeader = request.getHeader("Accept");
 		MimeType sendMimeType = acceptHeader != null ? AcceptHeader.parse(acceptHeader).bestMimeType(false, true) : null;
+
+		// when streaming, let the writer stream too, unless the client asked otherwise
+
+		if (this.isStreaming() && sendMimeType != null && ! sendMimeType.containsParameter(XDIWriterRegistry.PARAMETER_STREAMING)) {
+
+			Properties parameters = new Properties();
+			parameters.setProperty(XDIWriterRegistry.PARAMETER_STREAMING, "1");
+
+			sendMimeType = new MimeType(sendMimeType.toString(), parameters);
+		}
+
 		writer = sendMimeType != null ? XDIWriterRegistry.forMimeType(sendMimeType) : null;
 
 		if (writer == null) writer = XDIWriterRegistry.getDefault();
@@ -451,19 +493,32 @@ public class HttpTransport {
 
 		if (log.isDebugEnabled()) log.debug("Sending result in " + sendMimeType + " with writer " + writer.getClass().getSimpleName() + ".");
 
-		OutputStream outputStream = response.getBodyOutputStream();
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		// compress the result if the client accepts that
+
+		String contentEncoding = null;
 
-		writer.write(messageResult.getGraph(), buffer);
-		response.setStatus(HttpResponse.SC_OK);
-		response.setContentType(writer.getMimeType().toString());
-		response.setContentLength(buffer.size());
-		response.setHeader(HEADER_CORS, "*");
+		if (this.isCompression()) {
 
-		if (buffer.size() > 0) {
+			contentEncoding = ContentEncoding.bestEncoding(request.getHeader("Accept-Encoding"));
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+
+		int threshold = this.isStreaming() ? this.getStreamingThreshold() : Integer.MAX_VALUE;
+		ResultOutputStream outputStream = new ResultOutputStream(response, writer.getMimeType().toString(), threshold, contentEncoding, this.getCompressionThreshold(), this.getCompressionLevel());
+
+		try {
+
+			writer.write(messageResult.getGraph(), outputStream);
+		} catch (IOException ex) {
+
+			if (outputStream.isCommitted()) throw new ResultStreamingException("Cannot complete result after " + outputStream.getCount() + " bytes: " + ex.getMessage(), ex);
+
+			throw ex;
+		} catch (RuntimeException ex) {
+
+			if (outputStream.isCommitted()) throw new ResultStreamingException("Cannot complete result after " + outputStream.getCount() + " bytes: " + ex.getMessage(), ex);
 
-			outputStream.write(buffer.toByteArray());
-			outputStream.flush();
+			throw ex;
 		}
 
 		outputStream.close();
@@ -473,10 +528,14 @@ public class HttpTransport {
 
 	private static void handleInternalException(HttpRequest request, HttpResponse response, Exception ex) throws IOException {
 
+		// if part of a result has already been streamed, we cannot send an error anymore
+
+		if (ex instanceof ResultStreamingException) throw (ResultStreamingException) ex;
+
 		response.sendError(HttpResponse.SC_INTERNAL_SERVER_ERROR, "Unexpected exception: " + ex.getMessage());
 	}
 
-	private static void handleException(HttpRequest request, HttpResponse response, Exception ex) throws IOException {
+	private void handleException(HttpRequest request, HttpResponse response, Exception ex) throws IOException {
 
 		// send error result
 
@@ -487,6 +546,161 @@ public class HttpTransport {
 		sendResult(errorMessageResult, request, response);
 	}
 
+	/*
+	 * Helper classes
+	 */
+
+	/**
+	 * Buffers a result up to a threshold, and then sends it with a Content-Length.
+	 * If the threshold is exceeded, the response headers are sent without a Content-Length,
+	 * and the rest of the result is streamed, i.e. the servlet container uses chunked
+	 * transfer encoding.
+	 * If a content encoding was negotiated, buffered results of at least the compression
+	 * threshold and all streamed results are compressed.
+	 */
+	private static class ResultOutputStream extends OutputStream {
+
+		private HttpResponse response;
+		private String contentType;
+		private int threshold;
+		private String contentEncoding;
+		private int compressionThreshold;
+		private int compressionLevel;
+
+		private ByteArrayOutputStream buffer;
+		private OutputStream outputStream;
+		private long count;
+
+		private ResultOutputStream(HttpResponse response, String contentType, int threshold, String contentEncoding, int compressionThreshold, int compressionLevel) {
+
+			this.response = response;
+			this.contentType = contentType;
+			this.threshold = threshold;
+			this.contentEncoding = contentEncoding;
+			this.compressionThreshold = compressionThreshold;
+			this.compressionLevel = compressionLevel;
+
+			this.buffer = new ByteArrayOutputStream();
+			this.outputStream = null;
+			this.count = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			if (this.outputStream == null && this.buffer.size() + len > this.threshold) this.commit();
+
+			if (this.outputStream != null) {
+
+				this.outputStream.write(b, off, len);
+			} else {
+
+				this.buffer.write(b, off, len);
+			}
+
+			this.count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+
+			// only flush once we are streaming, otherwise we would lose the Content-Length
+
+			if (this.outputStream != null) this.outputStream.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (this.outputStream == null) {
+
+				ByteArrayOutputStream buffer = this.buffer;
+				String contentEncoding = null;
+
+				if (this.contentEncoding != null && this.buffer.size() >= this.compressionThreshold) {
+
+					buffer = new ByteArrayOutputStream();
+					contentEncoding = this.contentEncoding;
+
+					OutputStream compressedOutputStream = ContentEncoding.encode(buffer, contentEncoding, this.compressionLevel);
+					this.buffer.writeTo(compressedOutputStream);
+					compressedOutputStream.close();
+
+					if (log.isDebugEnabled()) log.debug("Compressed " + this.buffer.size() + " bytes to " + buffer.size() + " bytes (" + contentEncoding + ").");
+				}
+
+				OutputStream outputStream = this.sendHeaders(buffer.size(), contentEncoding);
+
+				if (buffer.size() > 0) {
+
+					buffer.writeTo(outputStream);
+					outputStream.flush();
+				}
+
+				outputStream.close();
+			} else {
+
+				this.outputStream.flush();
+				this.outputStream.close();
+			}
+
+			if (log.isDebugEnabled()) log.debug("Sent " + this.count + " bytes" + (this.outputStream == null ? "." : " (streamed)."));
+		}
+
+		private void commit() throws IOException {
+
+			if (log.isDebugEnabled()) log.debug("Result exceeds " + this.threshold + " bytes. Streaming.");
+
+			this.outputStream = this.sendHeaders(-1, this.contentEncoding);
+			if (this.contentEncoding != null) this.outputStream = ContentEncoding.encode(this.outputStream, this.contentEncoding, this.compressionLevel);
+
+			this.buffer.writeTo(this.outputStream);
+			this.buffer = null;
+		}
+
+		private OutputStream sendHeaders(int contentLength, String contentEncoding) throws IOException {
+
+			this.response.setStatus(HttpResponse.SC_OK);
+			this.response.setContentType(this.contentType);
+			if (contentLength >= 0) this.response.setContentLength(contentLength);
+			if (contentEncoding != null) this.response.setHeader("Content-Encoding", contentEncoding);
+			this.response.setHeader(HEADER_CORS, "*");
+
+			return this.response.getBodyOutputStream();
+		}
+
+		private boolean isCommitted() {
+
+			return this.outputStream != null;
+		}
+
+		private long getCount() {
+
+			return this.count;
+		}
+	}
+
+	/**
+	 * Thrown if writing a result fails after part of it has been streamed.
+	 * At that point the status and headers are already sent, so the only option is
+	 * to abort the response, which lets the client see an incomplete body.
+	 */
+	private static class ResultStreamingException extends IOException {
+
+		private static final long serialVersionUID = -4476853563404218451L;
+
+		private ResultStreamingException(String message, Throwable cause) {
+
+			super(message, cause);
+		}
+	}
+
 	/*
 	 * Getters and setters
 	 */
@@ -517,6 +731,73 @@ public class HttpTransport {
 		this.interceptors.addAll(interceptors);
 	}
 
+	/**
+	 * If true, results larger than the streaming threshold are streamed to the client
+	 * instead of being buffered completely to determine the Content-Length.
+	 */
+	public boolean isStreaming() {
+
+		return this.streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+
+		this.streaming = streaming;
+	}
+
+	/**
+	 * The number of bytes up to which results are buffered and sent with a Content-Length.
+	 */
+	public int getStreamingThreshold() {
+
+		return this.streamingThreshold;
+	}
+
+	public void setStreamingThreshold(int streamingThreshold) {
+
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * If true, results are compressed if the client sends a matching Accept-Encoding: header.
+	 * Compressed requests are always accepted.
+	 */
+	public boolean isCompression() {
+
+		return this.compression;
+	}
+
+	public void setCompression(boolean compression) {
+
+		this.compression = compression;
+	}
+
+	/**
+	 * The minimum number of bytes a buffered result must have to be compressed.
+	 */
+	public int getCompressionThreshold() {
+
+		return this.compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * The compression level, from 0 to 9, or -1 for the default level.
+	 */
+	public int getCompressionLevel() {
+
+		return this.compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+
+		this.compressionLevel = compressionLevel;
+	}
+
 	public Date getStartup() {
 
 		return this.startup;